@@ -29,18 +29,38 @@
 package gsn;
 
 import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.storage.BatchedInsertWriter;
+import gsn.storage.RollupManager;
 import gsn.storage.StorageManager;
 import gsn.vsensor.AbstractVirtualSensor;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
-public class ContainerImpl  {
+public class ContainerImpl implements VSensorStateChangeListener {
 
 	private static transient Logger                                      logger                             = Logger.getLogger( ContainerImpl.class );
 
+	/**
+	 * Number of output stream elements written in one batch, 1 means that the
+	 * elements are written (and delivered) as soon as they are produced.
+	 */
+	public static final int DEFAULT_INSERT_BATCH_SIZE = 1;
+
+	/**
+	 * Maximum time (in ms) an output stream element waits for its batch to
+	 * be written.
+	 */
+	public static final long DEFAULT_INSERT_BATCH_LATENCY = 100;
+
 	/**
 	 * The <code> waitingVirtualSensors</code> contains the virtual sensors that
 	 * recently produced data. This variable is useful for batch processing timed
@@ -54,10 +74,23 @@ public class ContainerImpl  {
 	
 	private static ContainerImpl singleton;
 	
-	private static final Object                                          psLock                             = new Object( );
+	/**
+	 * One insert writer per virtual sensor table, the key is the lower case
+	 * name of the virtual sensor.
+	 */
+	private final ConcurrentHashMap<String, BatchedInsertWriter> insertWriters = new ConcurrentHashMap<String, BatchedInsertWriter>( );
 
-	private ContainerImpl() {
+	private final int insertBatchSize;
+
+	private final long insertBatchLatency;
 
+	private Timer insertTimer;
+
+	private ContainerImpl() {
+		insertBatchSize = System.getProperty("insertBatchSize") == null ? DEFAULT_INSERT_BATCH_SIZE : Integer.parseInt(System.getProperty("insertBatchSize"));
+		insertBatchLatency = System.getProperty("insertBatchLatency") == null ? DEFAULT_INSERT_BATCH_LATENCY : Long.parseLong(System.getProperty("insertBatchLatency"));
+		if (insertBatchSize > 1)
+			insertTimer = new Timer("InsertBatchTimer", true);
 	}
 
 	public static ContainerImpl getInstance() {
@@ -68,15 +101,65 @@ public class ContainerImpl  {
 
 
 	public void publishData ( AbstractVirtualSensor sensor ,StreamElement data) throws SQLException {
-		String name = sensor.getVirtualSensorConfiguration( ).getName( ).toLowerCase();
-		StorageManager storageMan = Main.getStorage(sensor.getVirtualSensorConfiguration().getName());
-		synchronized ( psLock ) {
-			storageMan.executeInsert( name ,sensor.getVirtualSensorConfiguration().getOutputStructure(), data );
-		}
-		
-		for (VirtualSensorDataListener listener : dataListeners) {
-			listener.consume(data, sensor.getVirtualSensorConfiguration());
+		getInsertWriter( sensor.getVirtualSensorConfiguration( ) ).insert( data );
+	}
+
+	private BatchedInsertWriter getInsertWriter ( final VSensorConfig config ) {
+		String name = config.getName( ).toLowerCase();
+		BatchedInsertWriter writer = insertWriters.get( name );
+		if ( writer == null ) {
+			StorageManager storageMan = Main.getStorage(config.getName());
+			RollupManager.getInstance( ).register( storageMan, name, config.getOutputStructure( ) );
+			writer = new BatchedInsertWriter( storageMan, name, config.getOutputStructure( ), insertBatchSize, insertBatchLatency, insertTimer,
+					new BatchedInsertWriter.FlushListener( ) {
+						public void flushed ( List<StreamElement> elements ) {
+							RollupManager.getInstance( ).committed( config.getName( ), elements );
+							for ( StreamElement se : elements )
+								for ( VirtualSensorDataListener listener : dataListeners )
+									listener.consume( se, config );
+						}
+					} );
+			// the rollups are updated in the transaction of the rows they aggregate
+			writer.setTransactionListener( new BatchedInsertWriter.TransactionListener( ) {
+				public void inserted ( List<StreamElement> elements, Connection connection ) throws SQLException {
+					RollupManager.getInstance( ).update( config.getName( ), elements, connection );
+				}
+			} );
+			// the distributers serve the written elements from their tail using their primary key
+			writer.setAssignPrimaryKeys( DataDistributer.getTailCapacity( ) > 0 );
+			BatchedInsertWriter previous = insertWriters.putIfAbsent( name, writer );
+			if ( previous != null )
+				writer = previous;
 		}
+		return writer;
+	}
+
+	/**
+	 * @return the insert writers of the loaded virtual sensors, giving access
+	 *         to their throughput and flush latency.
+	 */
+	public Collection<BatchedInsertWriter> getInsertWriters ( ) {
+		return insertWriters.values( );
+	}
+
+	public boolean vsLoading ( VSensorConfig config ) {
+		return true;
+	}
+
+	public boolean vsUnLoading ( VSensorConfig config ) {
+		BatchedInsertWriter writer = insertWriters.remove( config.getName( ).toLowerCase( ) );
+		if ( writer != null )
+			writer.close( );
+		RollupManager.getInstance( ).unregister( config.getName( ) );
+		return true;
+	}
+
+	public void release ( ) throws Exception {
+		for ( BatchedInsertWriter writer : insertWriters.values( ) )
+			writer.close( );
+		insertWriters.clear( );
+		if ( insertTimer != null )
+			insertTimer.cancel( );
 	}
 
 	private ArrayList<VirtualSensorDataListener> dataListeners = new ArrayList<VirtualSensorDataListener>();
@@ -27,68 +27,106 @@
 
 package gsn;
 
+import gsn.DistributionSubscription.OverflowPolicy;
 import gsn.beans.StreamElement;
 import gsn.beans.VSensorConfig;
 import gsn.http.rest.DefaultDistributionRequest;
 import gsn.http.rest.DeliverySystem;
 import gsn.http.rest.DistributionRequest;
-import gsn.http.rest.LocalDeliveryWrapper;
 import gsn.networking.zeromq.ZeroMQDelivery;
-import gsn.networking.zeromq.ZeroMQWrapper;
 import gsn.storage.DataEnumerator;
+import gsn.storage.DataEnumeratorIF;
+import gsn.storage.SQLUtils;
 import gsn.storage.SQLValidator;
+import gsn.utils.TimingWheel;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import gsn.storage.StorageManager;
 import org.apache.log4j.Logger;
-import org.joda.time.format.ISODateTimeFormat;
 
-public class DataDistributer implements VirtualSensorDataListener, VSensorStateChangeListener, Runnable {
+/**
+ * Delivers the output of the virtual sensors to the remote and local
+ * listeners (one distributer per delivery system).
+ * The listeners are spread over a pool of workers (-DdistributerWorkers),
+ * each listener being served by a single worker so that its elements are
+ * delivered in order. A listener first catches up from the virtual sensor
+ * table, then receives the new elements through its own bounded queue
+ * (-DdistributerQueueSize) until it overflows, in which case its
+ * {@link OverflowPolicy} applies (-DdistributerOverflowPolicy by default).
+ * A slow listener only delays the listeners of its own worker.
+ * The listeners which can't be served from the tail of the virtual sensor
+ * (filtering queries, or -DdistributerTailSize=0) never go live: they keep
+ * reading the new elements from the table, at most 100 per round through a
+ * cursor limited to 1000 rows. Nothing is queued in memory for them, so the
+ * overflow policies don't apply, a slow listener of this kind only lags
+ * behind (see {@link DistributionSubscription#getLag()}), as the catch-up
+ * policy does for the live ones. The catch-up policy is the default one as
+ * it is the only one which neither loses elements nor delays the virtual
+ * sensor, as the previous distributer did.
+ */
+public class DataDistributer implements VirtualSensorDataListener, VSensorStateChangeListener {
 
     public static final int KEEP_ALIVE_PERIOD =  15 * 1000;  // 15 sec.
 
+    public static final int DEFAULT_WORKERS = 2;
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /**
+     * Maximum number of elements delivered to a listener before the worker
+     * moves to the next one.
+     */
+    private static final int DELIVERIES_PER_ROUND = 100;
+
     private static int keepAlivePeriod = -1;
 
-    private javax.swing.Timer keepAliveTimer = null;
+    private static int tailCapacity = -1;
+
+    /**
+     * The most recent elements of each virtual sensor, shared by all the
+     * distributers (each of them appends the elements it consumes, the
+     * duplicates being ignored by the tails).
+     */
+    private static final ConcurrentHashMap<VSensorConfig, DistributionTail> tails = new ConcurrentHashMap<VSensorConfig, DistributionTail>();
+
+    private TimingWheel.Timeout keepAliveTimer = null;
 
     private static transient Logger logger = Logger.getLogger(DataDistributer.class);
 
     private static HashMap<Class<? extends DeliverySystem>, DataDistributer> singletonMap = new HashMap<Class<? extends DeliverySystem>, DataDistributer>();
-    private Thread thread;
+
+    private final Worker[] workers;
+
+    private int nextWorker = 0;
 
     private DataDistributer() {
         try {
-            //conn = Main.getStorage().getConnection();
-            thread = new Thread(this);
-            thread.start();
-            // Start the keep alive Timer -- Note that the implementation is backed by one single thread for all the RestDelivery instances.
-            keepAliveTimer = new  javax.swing.Timer(getKeepAlivePeriod(), new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
-                    // write the keep alive message to the stream
+            int workerCount = System.getProperty("distributerWorkers") == null ? DEFAULT_WORKERS : Math.max(1, Integer.parseInt(System.getProperty("distributerWorkers")));
+            workers = new Worker[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Worker();
+                workers[i].start();
+            }
+            // Start the keep alive Timer -- Note that it runs on the scheduler shared with the windows and the scheduled virtual sensors,
+            // so it only queues the keep alive messages, which are written to the streams by the workers.
+            keepAliveTimer = TimingWheel.getInstance().scheduleAtFixedRate(new Runnable() {
+                public void run() {
                     synchronized (listeners) {
-                        ArrayList<DistributionRequest> clisteners = (ArrayList<DistributionRequest>) listeners.clone();
-                        for (DistributionRequest listener : clisteners) {
-                            if ( ! listener.deliverKeepAliveMessage()) {
-                                logger.debug("remove the listener.");
-                                removeListener(listener);
-                            }
-                        }
+                        for (DistributionSubscription subscription : subscriptions.values())
+                            subscription.requestKeepAlive();
                     }
                 }
-            });
-            keepAliveTimer.start();
-        //} catch (SQLException e) {
+            }, getKeepAlivePeriod(), getKeepAlivePeriod());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -107,22 +145,51 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
         return keepAlivePeriod;
     }
 
-    private HashMap<DistributionRequest, PreparedStatement> preparedStatements = new HashMap<DistributionRequest, PreparedStatement>();
+    /**
+     * Number of elements kept in memory per virtual sensor for the delivery
+     * to the up to date listeners, 0 disables the in-memory delivery.
+     */
+    public static int getTailCapacity() {
+        if (tailCapacity == -1)
+            tailCapacity = System.getProperty("distributerTailSize") == null ? DistributionTail.DEFAULT_CAPACITY : Integer.parseInt(System.getProperty("distributerTailSize"));
+        return tailCapacity;
+    }
 
-    private ArrayList<DistributionRequest> listeners = new ArrayList<DistributionRequest>();
+    public static int getQueueSize() {
+        return System.getProperty("distributerQueueSize") == null ? DEFAULT_QUEUE_SIZE : Integer.parseInt(System.getProperty("distributerQueueSize"));
+    }
 
-    //private Connection conn;
+    public static OverflowPolicy getDefaultOverflowPolicy() {
+        return OverflowPolicy.parse(System.getProperty("distributerOverflowPolicy"), OverflowPolicy.CATCH_UP);
+    }
 
-    private ConcurrentHashMap<DistributionRequest, DataEnumerator> candidateListeners = new ConcurrentHashMap<DistributionRequest, DataEnumerator>();
+    private static DistributionTail getTail(VSensorConfig config) {
+        DistributionTail tail = tails.get(config);
+        if (tail == null) {
+            tail = new DistributionTail(config.getOutputStructure(), getTailCapacity());
+            DistributionTail previous = tails.putIfAbsent(config, tail);
+            if (previous != null)
+                tail = previous;
+        }
+        return tail;
+    }
 
-    private LinkedBlockingQueue<DistributionRequest> locker = new LinkedBlockingQueue<DistributionRequest>();
+    private ConcurrentHashMap<DistributionRequest, PreparedStatement> preparedStatements = new ConcurrentHashMap<DistributionRequest, PreparedStatement>();
+
+    private ArrayList<DistributionRequest> listeners = new ArrayList<DistributionRequest>();
 
-    private ConcurrentHashMap<DistributionRequest, Boolean> candidatesForNextRound = new ConcurrentHashMap<DistributionRequest, Boolean>();
+    private HashMap<DistributionRequest, DistributionSubscription> subscriptions = new HashMap<DistributionRequest, DistributionSubscription>();
 
     public void addListener(DistributionRequest listener) {
+        addListener(listener, getDefaultOverflowPolicy());
+    }
+
+    public void addListener(DistributionRequest listener, OverflowPolicy overflowPolicy) {
         synchronized (listeners) {
             if (!listeners.contains(listener)) {
                 logger.warn("Adding a listener to Distributer:" + listener.toString());
+                Worker worker = workers[nextWorker];
+                nextWorker = (nextWorker + 1) % workers.length;
                 boolean needsAnd = SQLValidator.removeSingleQuotes(SQLValidator.removeQuotes(listener.getQuery())).indexOf(" where ") > 0;
                 String query = SQLValidator.addPkField(listener.getQuery());
                 if (needsAnd)
@@ -132,74 +199,38 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
                 query += " timed > " + listener.getStartTime() + " and pk > ? order by timed asc ";
                 PreparedStatement prepareStatement = null;
                 try {
-                    prepareStatement = getPersistantConnection(listener.getVSensorConfig()).prepareStatement(query); //prepareStatement = StorageManager.getInstance().getConnection().prepareStatement(query);
+                    prepareStatement = worker.getPersistantConnection(listener.getVSensorConfig()).prepareStatement(query);
                     prepareStatement.setMaxRows(1000); // Limit the number of rows loaded in memory.
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 }
                 preparedStatements.put(listener, prepareStatement);
                 listeners.add(listener);
-                addListenerToCandidates(listener);
-
+                DistributionSubscription subscription = new DistributionSubscription(listener, overflowPolicy, getQueueSize(), worker.ready);
+                subscriptions.put(listener, subscription);
+                subscription.signal(null);
             } else {
                 logger.warn("Adding a listener to Distributer failed, duplicated listener! " + listener.toString());
             }
         }
     }
 
-
-    private void addListenerToCandidates(DistributionRequest listener) {
-        /**
-         * Locker variable should be modified EXACTLY like candidateListeners variable.
-         */
-        logger.debug("Adding the listener: " + listener.toString() + " to the candidates.");
-        DataEnumerator dataEnum = makeDataEnum(listener);
-        if (dataEnum.hasMoreElements()) {
-            candidateListeners.put(listener, dataEnum);
-            locker.add(listener);
-        }
-    }
-
-    private void removeListenerFromCandidates(DistributionRequest listener) {
-        /**
-         * Locker variable should be modified EXACTLY like candidateListeners variable.
-         */
-        logger.debug("Updating the candidate list [" + listener.toString() + " (removed)].");
-        if (candidatesForNextRound.contains(listener)) {
-            candidateListeners.put(listener, makeDataEnum(listener));
-            candidatesForNextRound.remove(listener);
-        } else {
-            locker.remove(listener);
-            candidateListeners.remove(listener);
-        }
-    }
-
     /**
-     * This method only flushes one single stream element from the provided data enumerator.
-     * Returns false if the flushing the stream element fails. This method also cleans the prepared statements by removing the listener completely.
-     *
-     * @param dataEnum
-     * @param listener
-     * @return
+     * Delivers one stream element to the listener.
+     * Returns false if the listener is closed or the delivery fails.
      */
-    private boolean flushStreamElement(DataEnumerator dataEnum, DistributionRequest listener) {
+    private boolean flushStreamElement(StreamElement se, DistributionSubscription subscription) {
+        DistributionRequest listener = subscription.getRequest();
         if (listener.isClosed()) {
             logger.debug("Flushing an stream element failed, isClosed=true [Listener: " + listener.toString() + "]");
             return false;
         }
-
-        if (!dataEnum.hasMoreElements()) {
-            logger.debug("Nothing to flush to [Listener: " + listener.toString() + "]");
-            return true;
-        }
-
-        StreamElement se = dataEnum.nextElement();
-        //		boolean success = true;
         boolean success = listener.deliverStreamElement(se);
         if (!success) {
             logger.debug("FLushing an stream element failed, delivery failure [Listener: " + listener.toString() + "]");
             return false;
         }
+        subscription.delivered(se);
         logger.debug("Flushing an stream element succeed [Listener: " + listener.toString() + "]");
         return true;
     }
@@ -208,8 +239,9 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
         synchronized (listeners) {
             if (listeners.remove(listener)) {
                 try {
-                    candidatesForNextRound.remove(listener);
-                    removeListenerFromCandidates(listener);
+                    DistributionSubscription subscription = subscriptions.remove(listener);
+                    if (subscription != null)
+                        subscription.close();
                     preparedStatements.get(listener).close();
                     listener.close();
                     logger.warn("Removing listener completely from Distributer [Listener: " + listener.toString() + "]");
@@ -223,45 +255,120 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
     }
 
     public void consume(StreamElement se, VSensorConfig config) {
+        if (se != null && getTailCapacity() > 0)
+            getTail(config).append(se);
+        ArrayList<DistributionSubscription> toSignal = new ArrayList<DistributionSubscription>();
         synchronized (listeners) {
             for (DistributionRequest listener : listeners)
                 if (listener.getVSensorConfig() == config) {
                     logger.debug("sending stream element " + (se == null ? "second-chance-se" : se.toString()) + " produced by " + config.getName() + " to listener =>" + listener.toString());
-                    if (!candidateListeners.containsKey(listener)) {
-                        addListenerToCandidates(listener);
-                    } else {
-                        candidatesForNextRound.put(listener, Boolean.TRUE);
-                    }
+                    toSignal.add(subscriptions.get(listener));
                 }
         }
+        // Outside of the lock as the subscribers using the block policy may wait.
+        for (DistributionSubscription subscription : toSignal)
+            subscription.signal(se);
     }
 
-    public void run() {
-        while (true) {
-            try {
-                if (locker.isEmpty()) {
-                    logger.debug("Waiting(locked) for requests or data items, Number of total listeners: " + listeners.size());
-                    locker.put(locker.take());
-                    logger.debug("Lock released, trying to find interest listeners (total listeners:" + listeners.size() + ")");
+    /**
+     * Serves the subscriptions of one shard, one round at a time.
+     */
+    private class Worker extends Thread {
+
+        private final LinkedBlockingQueue<DistributionSubscription> ready = new LinkedBlockingQueue<DistributionSubscription>();
+
+        private final HashMap<StorageManager, Connection> connections = new HashMap<StorageManager, Connection>();
+
+        Worker() {
+            setName("DataDistributer-Worker-" + getId());
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                DistributionSubscription subscription;
+                try {
+                    subscription = ready.take();
+                } catch (InterruptedException e) {
+                    logger.error(e.getMessage(), e);
+                    continue;
+                }
+                try {
+                    serve(subscription);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                    removeListener(subscription.getRequest());
                 }
-            } catch (InterruptedException e) {
-                logger.error(e.getMessage(), e);
             }
+        }
 
-
-            for (Entry<DistributionRequest, DataEnumerator> item : candidateListeners.entrySet()) {
-                boolean success = flushStreamElement(item.getValue(), item.getKey());
-                if (success == false)
-                    removeListener(item.getKey());
-                else {
-                    if (!item.getValue().hasMoreElements()) {
-                        removeListenerFromCandidates(item.getKey());
+        private void serve(DistributionSubscription subscription) {
+            if (subscription.isClosed())
+                return;
+            if (subscription.isDisconnected()) {
+                logger.warn("Disconnecting a listener which doesn't keep up with the data [" + subscription.toString() + "]");
+                removeListener(subscription.getRequest());
+                return;
+            }
+            DistributionRequest listener = subscription.getRequest();
+            if (subscription.takeKeepAlive() && !listener.deliverKeepAliveMessage()) {
+                logger.debug("remove the listener.");
+                removeListener(listener);
+                return;
+            }
+            if (!subscription.isLive()) {
+                DataEnumeratorIF dataEnum = subscription.getCatchUp();
+                if (dataEnum == null) {
+                    subscription.startCatchUp();
+                    dataEnum = makeDataEnum(listener);
+                }
+                int count = 0;
+                while (dataEnum.hasMoreElements() && count < DELIVERIES_PER_ROUND) {
+                    count++;
+                    if (!flushStreamElement(dataEnum.nextElement(), subscription)) {
+                        dataEnum.close();
+                        removeListener(listener);
+                        return;
+                    }
+                }
+                if (dataEnum.hasMoreElements()) {
+                    subscription.setCatchUp(dataEnum);
+                } else {
+                    subscription.setCatchUp(null);
+                    if (count > 0) {
                         // As we are limiting the number of elements returned by the JDBC driver
-                        // we consume the eventual remaining items.
-                        consume(null, item.getKey().getVSensorConfig());
+                        // we read the eventual remaining items in the next round.
+                        subscription.signal(null);
+                    } else if (isServedFromTail(listener)) {
+                        subscription.goLive(tails.get(listener.getVSensorConfig()));
+                    }
+                }
+            }
+            if (subscription.isLive()) {
+                StreamElement se;
+                int count = 0;
+                while (count++ < DELIVERIES_PER_ROUND && (se = subscription.poll()) != null) {
+                    if (!flushStreamElement(se, subscription)) {
+                        removeListener(listener);
+                        return;
                     }
                 }
             }
+            if (!subscription.unschedule())
+                ready.add(subscription);
+        }
+
+        public Connection getPersistantConnection(VSensorConfig config) throws Exception {
+            StorageManager sm = Main.getStorage(config);
+            synchronized (connections) {
+                Connection c = connections.get(sm);
+                if (c == null) {
+                    c = sm.getConnection();
+                    c.setReadOnly(true);
+                    connections.put(sm, c);
+                }
+                return c;
+            }
         }
     }
 
@@ -282,6 +389,7 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
     }
 
     public boolean vsUnLoading(VSensorConfig config) {
+        tails.remove(config);
         synchronized (listeners) {
             logger.debug("Distributer unloading: " + listeners.size());
             ArrayList<DistributionRequest> toRemove = new ArrayList<DistributionRequest>();
@@ -300,7 +408,28 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
         return true;
     }
 
-    private DataEnumerator makeDataEnum(DistributionRequest listener) {
+    /**
+     * @return true if the listener receives the whole output of the virtual
+     *         sensor, and can thus go live once it is up to date.
+     */
+    private static boolean isServedFromTail(DistributionRequest listener) {
+        return getTailCapacity() > 0 && SQLUtils.isSelectAll(listener.getQuery(), listener.getVSensorConfig().getName());
+    }
+
+    /**
+     * Listeners receiving the whole output of the virtual sensor are served
+     * from its tail as long as they are up to date, the others (filtering
+     * queries, listeners which fell behind the tail or which are catching up
+     * from their start time) read from the virtual sensor table.
+     */
+    private DataEnumeratorIF makeDataEnum(DistributionRequest listener) {
+        if (isServedFromTail(listener)) {
+            DistributionTail tail = tails.get(listener.getVSensorConfig());
+            if (tail != null && tail.covers(listener.getLastVisitedPk())) {
+                logger.debug("Delivering from memory to [Listener: " + listener.toString() + "]");
+                return new ListEnumerator(tail.getElementsAfter(listener.getLastVisitedPk(), listener.getStartTime()));
+            }
+        }
 
         PreparedStatement prepareStatement = preparedStatements.get(listener);
         try {
@@ -321,7 +450,16 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
                 removeListener(listeners.get(0));
         }
         if (keepAliveTimer != null)
-            keepAliveTimer.stop();
+            keepAliveTimer.cancel();
+    }
+
+    /**
+     * @return the state of the listeners, including their queue size and lag.
+     */
+    public List<DistributionSubscription> getSubscriptions() {
+        synchronized (listeners) {
+            return new ArrayList<DistributionSubscription>(subscriptions.values());
+        }
     }
 
     public boolean contains(DeliverySystem delivery) {
@@ -334,20 +472,27 @@ public class DataDistributer implements VirtualSensorDataListener, VSensorStateC
 
 	}
 
-    //
+    /**
+     * Enumerates the elements taken from a tail.
+     */
+    private static class ListEnumerator implements DataEnumeratorIF {
+
+        private final Iterator<StreamElement> iterator;
 
-    private HashMap<StorageManager, Connection> connections = new HashMap<StorageManager, Connection>();
-    public Connection getPersistantConnection(VSensorConfig config) throws Exception {
-        StorageManager sm = Main.getStorage(config);
-        Connection c = connections.get(sm);
-        if (c == null) {
-            c = sm.getConnection();
-            c.setReadOnly(true);
-	    connections.put(sm, c);
+        ListEnumerator(List<StreamElement> elements) {
+            iterator = elements.iterator();
         }
-        return c;
-    }
 
-}
+        public boolean hasMoreElements() {
+            return iterator.hasNext();
+        }
 
+        public StreamElement nextElement() {
+            return iterator.next();
+        }
 
+        public void close() {
+        }
+    }
+
+}
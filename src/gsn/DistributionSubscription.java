@@ -0,0 +1,368 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/DistributionSubscription.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import gsn.beans.StreamElement;
+import gsn.http.rest.DistributionRequest;
+import gsn.storage.DataEnumeratorIF;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of a {@link DistributionRequest} inside a {@link DataDistributer}.
+ * A subscription is either catching up, reading from the virtual sensor
+ * table (or its tail) until it is up to date, or live, receiving the new
+ * elements in its bounded queue. The <code>overflowPolicy</code> decides
+ * what happens when a live subscriber doesn't empty its queue fast enough.
+ * A subscription which can't go live (no tail to take the elements from)
+ * stays in the catch-up state, nothing is queued for it.
+ */
+public class DistributionSubscription {
+
+	public enum OverflowPolicy {
+		/**
+		 * The producer waits until there is room in the queue.
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued element is dropped and never delivered.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The subscriber is removed.
+		 */
+		DISCONNECT,
+		/**
+		 * The queue is dropped and the subscriber catches up from the
+		 * database, nothing is lost. The default policy.
+		 */
+		CATCH_UP;
+
+		/**
+		 * @param name block, drop-oldest, disconnect or catch-up (case
+		 *            insensitive).
+		 * @return the corresponding policy or <code>defaultValue</code> if
+		 *         <code>name</code> is null or unknown.
+		 */
+		public static OverflowPolicy parse(String name, OverflowPolicy defaultValue) {
+			if (name == null)
+				return defaultValue;
+			try {
+				return valueOf(name.trim().toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				return defaultValue;
+			}
+		}
+	}
+
+	private final DistributionRequest request;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final ArrayBlockingQueue<StreamElement> queue;
+
+	/**
+	 * The queue of the worker (shard) serving this subscription.
+	 */
+	private final BlockingQueue<DistributionSubscription> readyQueue;
+
+	private boolean live = false;
+
+	/**
+	 * New data is available for a subscriber which is catching up.
+	 */
+	private boolean dirty = true;
+
+	private boolean scheduled = false;
+
+	private boolean disconnected = false;
+
+	private boolean closed = false;
+
+	/**
+	 * Set when a keep alive message is due, the message being written by the
+	 * worker like the elements.
+	 */
+	private boolean keepAlive = false;
+
+	/**
+	 * The data being read by a subscriber which is catching up, only
+	 * accessed by the worker.
+	 */
+	private DataEnumeratorIF catchUp;
+
+	private long lastQueuedPk = -1;
+
+	private long newestTimestamp = -1;
+
+	private long lastDeliveredTimestamp = -1;
+
+	private long deliveredCount = 0;
+
+	private long droppedCount = 0;
+
+	private long overflowCount = 0;
+
+	public DistributionSubscription(DistributionRequest request, OverflowPolicy overflowPolicy, int queueCapacity,
+			BlockingQueue<DistributionSubscription> readyQueue) {
+		this.request = request;
+		this.overflowPolicy = overflowPolicy;
+		this.queue = new ArrayBlockingQueue<StreamElement>(Math.max(queueCapacity, 1));
+		this.readyQueue = readyQueue;
+	}
+
+	public DistributionRequest getRequest() {
+		return request;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Called by the producer once the element is written in the table, or
+	 * with null to request a new catch up round.
+	 */
+	void signal(StreamElement se) {
+		boolean block = false;
+		synchronized (this) {
+			if (closed)
+				return;
+			if (se != null)
+				newestTimestamp = Math.max(newestTimestamp, se.getTimeStamp());
+			if (!live || se == null) {
+				dirty = true;
+				schedule();
+				return;
+			}
+			long pk = se.getInternalPrimayKey();
+			if (pk < 0) {
+				// can't be tracked in memory, the table is the reference
+				switchToCatchUp();
+				schedule();
+				return;
+			}
+			if (pk <= lastQueuedPk)
+				return;
+			lastQueuedPk = pk;
+			if (se.getTimeStamp() <= request.getStartTime())
+				return;
+			if (!queue.offer(se)) {
+				overflowCount++;
+				switch (overflowPolicy) {
+				case BLOCK:
+					block = true;
+					break;
+				case DROP_OLDEST:
+					queue.poll();
+					droppedCount++;
+					queue.offer(se);
+					break;
+				case DISCONNECT:
+					disconnected = true;
+					queue.clear();
+					break;
+				default:
+					switchToCatchUp();
+				}
+			}
+			schedule();
+			if (!block)
+				return;
+		}
+		// Waiting outside of the lock, so that the worker can empty the queue.
+		try {
+			while (!queue.offer(se, 100, TimeUnit.MILLISECONDS)) {
+				synchronized (this) {
+					if (closed || !live)
+						return;
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+		synchronized (this) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Asks the worker to write a keep alive message to the subscriber, without
+	 * waiting for it.
+	 */
+	synchronized void requestKeepAlive() {
+		if (closed)
+			return;
+		keepAlive = true;
+		schedule();
+	}
+
+	/**
+	 * @return true if a keep alive message is due, which is then considered
+	 *         as written.
+	 */
+	synchronized boolean takeKeepAlive() {
+		boolean due = keepAlive;
+		keepAlive = false;
+		return due;
+	}
+
+	private void switchToCatchUp() {
+		live = false;
+		dirty = true;
+		queue.clear();
+	}
+
+	private void schedule() {
+		if (scheduled)
+			return;
+		scheduled = true;
+		readyQueue.add(this);
+	}
+
+	/**
+	 * @return true if there is nothing left to do, in which case the
+	 *         subscription is not scheduled anymore.
+	 */
+	synchronized boolean unschedule() {
+		if (closed || disconnected || keepAlive || (live && !queue.isEmpty()) || (!live && (dirty || catchUp != null)))
+			return false;
+		scheduled = false;
+		return true;
+	}
+
+	synchronized boolean isLive() {
+		return live;
+	}
+
+	synchronized boolean isDisconnected() {
+		return disconnected;
+	}
+
+	/**
+	 * Called by the worker before reading the table.
+	 */
+	synchronized void startCatchUp() {
+		dirty = false;
+	}
+
+	/**
+	 * Switches the subscription to live once it read everything which is
+	 * not in the tail anymore. The elements of the tail the subscriber didn't
+	 * see yet are moved to the queue.
+	 *
+	 * @return true if the subscription is live.
+	 */
+	synchronized boolean goLive(DistributionTail tail) {
+		if (live)
+			return true;
+		if (closed || tail == null)
+			return false;
+		long lastVisitedPk = request.getLastVisitedPk();
+		if (!tail.covers(lastVisitedPk))
+			return false;
+		// The elements signaled in the meantime are already in the tail.
+		long lastPk = tail.getLastPk();
+		List<StreamElement> pending = tail.getElementsAfter(lastVisitedPk, request.getStartTime());
+		if (pending.size() > queue.remainingCapacity())
+			return false;
+		queue.addAll(pending);
+		lastQueuedPk = Math.max(lastPk, lastVisitedPk);
+		if (!pending.isEmpty())
+			lastQueuedPk = Math.max(lastQueuedPk, pending.get(pending.size() - 1).getInternalPrimayKey());
+		live = true;
+		dirty = false;
+		return true;
+	}
+
+	synchronized DataEnumeratorIF getCatchUp() {
+		return catchUp;
+	}
+
+	synchronized void setCatchUp(DataEnumeratorIF catchUp) {
+		this.catchUp = catchUp;
+	}
+
+	StreamElement poll() {
+		return queue.poll();
+	}
+
+	synchronized void delivered(StreamElement se) {
+		deliveredCount++;
+		lastDeliveredTimestamp = se.getTimeStamp();
+	}
+
+	synchronized void close() {
+		closed = true;
+		queue.clear();
+		if (catchUp != null) {
+			catchUp.close();
+			catchUp = null;
+		}
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the number of elements waiting in the queue.
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the time difference between the newest element produced for
+	 *         this subscriber and the last one it received, in milliseconds.
+	 */
+	public synchronized long getLag() {
+		if (newestTimestamp == -1 || lastDeliveredTimestamp == -1)
+			return 0;
+		return Math.max(0, newestTimestamp - lastDeliveredTimestamp);
+	}
+
+	public synchronized long getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public synchronized long getOverflowCount() {
+		return overflowCount;
+	}
+
+	public String toString() {
+		return new StringBuilder("Subscription[").append(request.toString()).append(", live=").append(isLive()).append(", queued=").append(getQueueSize())
+				.append(", lag=").append(getLag()).append("ms, delivered=").append(getDeliveredCount()).append(", dropped=").append(getDroppedCount())
+				.append(", overflows=").append(getOverflowCount()).append("]").toString();
+	}
+}
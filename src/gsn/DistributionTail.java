@@ -0,0 +1,141 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/DistributionTail.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the most recent stream elements written in the table of a virtual
+ * sensor, so that the distributers can deliver them to the up to date
+ * listeners without querying the table.
+ * The tail always holds <b>all</b> the rows of the table whose primary key
+ * is greater than {@link #getFloorPk()}, a listener which has already seen
+ * the row <code>floorPk</code> can be served from memory, the others have to
+ * catch up from the database.
+ */
+public class DistributionTail {
+
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private final DataField[] outputStructure;
+
+	private final int capacity;
+
+	private final LinkedList<StreamElement> elements = new LinkedList<StreamElement>();
+
+	private long floorPk = Long.MAX_VALUE;
+
+	private long lastPk = -1;
+
+	public DistributionTail(DataField[] outputStructure, int capacity) {
+		this.outputStructure = outputStructure;
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	/**
+	 * Appends an element just written in the table. The elements are
+	 * expected in increasing primary key order, those which were already
+	 * appended are ignored. An element without primary key breaks the
+	 * continuity of the tail, which is then emptied, and so does a gap in the
+	 * keys (rows inserted in the table by someone else), the tail then
+	 * starting again at the element.
+	 */
+	public synchronized void append(StreamElement se) {
+		long pk = se.getInternalPrimayKey();
+		if (pk < 0) {
+			clear();
+			return;
+		}
+		if (pk <= lastPk)
+			return;
+		if (!elements.isEmpty() && pk != lastPk + 1)
+			clear();
+		if (elements.isEmpty())
+			floorPk = pk - 1;
+		elements.add(normalize(se, pk));
+		lastPk = pk;
+		while (elements.size() > capacity)
+			floorPk = elements.removeFirst().getInternalPrimayKey();
+	}
+
+	/**
+	 * Copies the element with the fields ordered and named as in the table,
+	 * the way they are read back by the data enumerators.
+	 */
+	private StreamElement normalize(StreamElement se, long pk) {
+		Serializable[] values = new Serializable[outputStructure.length];
+		for (int i = 0; i < outputStructure.length; i++)
+			values[i] = se.getData(outputStructure[i].getName());
+		StreamElement toReturn = new StreamElement(outputStructure, values, se.getTimeStamp());
+		toReturn.setInternalPrimayKey(pk);
+		return toReturn;
+	}
+
+	/**
+	 * @return true if all the rows of the table after <code>pk</code> are in
+	 *         the tail.
+	 */
+	public synchronized boolean covers(long pk) {
+		return pk >= floorPk;
+	}
+
+	/**
+	 * @return the elements having a primary key greater than <code>pk</code>
+	 *         and a timestamp greater than <code>startTime</code>, in
+	 *         increasing primary key order.
+	 */
+	public synchronized List<StreamElement> getElementsAfter(long pk, long startTime) {
+		ArrayList<StreamElement> toReturn = new ArrayList<StreamElement>();
+		for (StreamElement se : elements)
+			if (se.getInternalPrimayKey() > pk && se.getTimeStamp() > startTime)
+				toReturn.add(se);
+		return toReturn;
+	}
+
+	public synchronized long getFloorPk() {
+		return floorPk;
+	}
+
+	public synchronized long getLastPk() {
+		return lastPk;
+	}
+
+	public synchronized int size() {
+		return elements.size();
+	}
+
+	public synchronized void clear() {
+		elements.clear();
+		floorPk = Long.MAX_VALUE;
+		lastPk = -1;
+	}
+}
@@ -41,6 +41,7 @@ import gsn.http.rest.LocalDeliveryWrapper;
 import gsn.http.rest.PushDelivery;
 import gsn.http.rest.WPPushDelivery;
 import gsn.http.rest.RestDelivery;
+import gsn.http.restapi.Caching;
 import gsn.networking.zeromq.ZeroMQDelivery;
 import gsn.networking.zeromq.ZeroMQProxy;
 import gsn.storage.SQLValidator;
@@ -198,6 +199,7 @@ public final class Main {
 		}
 
 		vsloader.addVSensorStateChangeListener(new SQLValidatorIntegration(SQLValidator.getInstance()));
+		vsloader.addVSensorStateChangeListener(ContainerImpl.getInstance());
 		vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(LocalDeliveryWrapper.class));
 		vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(PushDelivery.class));
 		vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(WPPushDelivery.class));
@@ -205,6 +207,7 @@ public final class Main {
 		vsloader.addVSensorStateChangeListener(ModelDistributer.getInstance(WPPushDelivery.class));
 		if (containerConfig.isZMQEnabled())
 			vsloader.addVSensorStateChangeListener(DataDistributer.getInstance(ZeroMQDelivery.class));
+		vsloader.addVSensorStateChangeListener(Caching.getInstance());
 
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(LocalDeliveryWrapper.class));
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(PushDelivery.class));
@@ -212,6 +215,7 @@ public final class Main {
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(RestDelivery.class));
 		ContainerImpl.getInstance().addVSensorDataListener(ModelDistributer.getInstance(WPPushDelivery.class));
 		ContainerImpl.getInstance().addVSensorDataListener(DataDistributer.getInstance(ZeroMQDelivery.class));
+		ContainerImpl.getInstance().addVSensorDataListener(Caching.getInstance());
 		vsloader.startLoading();
 
 	}
@@ -44,6 +44,12 @@ public final class Mappings {
    
    private static final ConcurrentHashMap < String , TreeMap < String , Boolean >> vsNamesToOutputStructureFields = new ConcurrentHashMap < String , TreeMap < String , Boolean >>( );
    
+   /**
+    * The names of the virtual sensors loaded or being loaded, to the file
+    * declaring them.
+    */
+   private static final ConcurrentHashMap < String , String >                     reservedNames                  = new ConcurrentHashMap < String , String >( );
+   
    private static final transient Logger                                 logger                         = Logger.getLogger( Mappings.class );
    
    public static boolean addVSensorInstance ( VirtualSensor sensorPool ) {
@@ -67,6 +73,23 @@ public final class Mappings {
       return true;
    }
    
+   /**
+    * Reserves the name of the virtual sensor for its file before it is
+    * loaded, so that of two files declaring the same name and loaded in
+    * parallel only one gets it. The name is given back by
+    * {@link #releaseName(VSensorConfig)} if the loading fails, or with the
+    * file by {@link #removeFilename(String)}.
+    * 
+    * @return null if the name is now reserved, else the file holding it.
+    */
+   public static String reserveName ( VSensorConfig config ) {
+      return reservedNames.putIfAbsent( config.getName( ) , config.getFileName( ) );
+   }
+   
+   public static void releaseName ( VSensorConfig config ) {
+      reservedNames.remove( config.getName( ) , config.getFileName( ) );
+   }
+   
    public static VirtualSensor getVSensorInstanceByFileName ( String fileName ) {
       return fileNameToVSInstance.get( fileName );
    }
@@ -85,6 +108,7 @@ public final class Mappings {
 		   VSensorConfig config = ( fileNameToVSInstance.get( fileName ) ).getConfig( );
 		   vsNameTOVSConfig.remove( config.getName( ) );
 		   fileNameToVSInstance.remove( fileName );
+		   releaseName( config );
 	   }
    }
    
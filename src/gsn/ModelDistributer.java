@@ -33,9 +33,8 @@ import gsn.storage.DataEnumerator;
 import gsn.storage.DataEnumeratorIF;
 import gsn.storage.ModelEnumerator;
 import gsn.storage.SQLValidator;
+import gsn.utils.TimingWheel;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
@@ -54,7 +53,7 @@ public class ModelDistributer implements VirtualSensorDataListener, VSensorState
 
     private static int keepAlivePeriod = -1;
 
-    private javax.swing.Timer keepAliveTimer = null;
+    private TimingWheel.Timeout keepAliveTimer = null;
 
     private static transient Logger logger = Logger.getLogger(ModelDistributer.class);
 
@@ -65,9 +64,9 @@ public class ModelDistributer implements VirtualSensorDataListener, VSensorState
         try {
             thread = new Thread(this);
             thread.start();
-            // Start the keep alive Timer -- Note that the implementation is backed by one single thread for all the Delivery instances.
-            keepAliveTimer = new  javax.swing.Timer(getKeepAlivePeriod(), new ActionListener() {
-                public void actionPerformed(ActionEvent e) {
+            // Start the keep alive Timer -- Note that it runs on the scheduler shared with the windows and the scheduled virtual sensors.
+            keepAliveTimer = TimingWheel.getInstance().scheduleAtFixedRate(new Runnable() {
+                public void run() {
                     // write the keep alive message to the stream
                     synchronized (listeners) {
                         ArrayList<DistributionRequest> clisteners = (ArrayList<DistributionRequest>) listeners.clone();
@@ -79,8 +78,7 @@ public class ModelDistributer implements VirtualSensorDataListener, VSensorState
                         }
                     }
                 }
-            });
-            keepAliveTimer.start();
+            }, getKeepAlivePeriod(), getKeepAlivePeriod());
         //} catch (SQLException e) {
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -267,7 +265,7 @@ public class ModelDistributer implements VirtualSensorDataListener, VSensorState
                 removeListener(listeners.get(0));
         }
         if (keepAliveTimer != null)
-            keepAliveTimer.stop();
+            keepAliveTimer.cancel();
     }
 
     public boolean contains(DeliverySystem delivery) {
@@ -0,0 +1,221 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/TestDistributionSubscription.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gsn.DistributionSubscription.OverflowPolicy;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.http.rest.DeliverySystem;
+import gsn.http.rest.DistributionRequest;
+import gsn.utils.models.AbstractModel;
+
+import java.io.Serializable;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDistributionSubscription {
+
+	private DataField[] fields = new DataField[] { new DataField("value", DataTypes.INTEGER) };
+
+	private LinkedBlockingQueue<DistributionSubscription> ready;
+
+	private DistributionTail tail;
+
+	private long lastVisitedPk;
+
+	private DistributionRequest request = new DistributionRequest() {
+		public boolean deliverStreamElement(StreamElement se) {
+			lastVisitedPk = se.getInternalPrimayKey();
+			return true;
+		}
+
+		public boolean deliverKeepAliveMessage() {
+			return true;
+		}
+
+		public long getStartTime() {
+			return 0;
+		}
+
+		public long getLastVisitedPk() {
+			return lastVisitedPk;
+		}
+
+		public String getQuery() {
+			return "select * from test";
+		}
+
+		public VSensorConfig getVSensorConfig() {
+			return null;
+		}
+
+		public void close() {
+		}
+
+		public boolean isClosed() {
+			return false;
+		}
+
+		public DeliverySystem getDeliverySystem() {
+			return null;
+		}
+
+		public AbstractModel getModel() {
+			return null;
+		}
+	};
+
+	private StreamElement element(long pk) {
+		StreamElement se = new StreamElement(fields, new Serializable[] { (int) pk }, pk * 100);
+		se.setInternalPrimayKey(pk);
+		return se;
+	}
+
+	/**
+	 * Appends to the tail then signals, as the distributer does.
+	 */
+	private void produce(DistributionSubscription subscription, long pk) {
+		StreamElement se = element(pk);
+		tail.append(se);
+		subscription.signal(se);
+	}
+
+	@Before
+	public void setUp() {
+		ready = new LinkedBlockingQueue<DistributionSubscription>();
+		tail = new DistributionTail(fields, 100);
+		lastVisitedPk = -1;
+	}
+
+	private DistributionSubscription liveSubscription(OverflowPolicy policy) {
+		DistributionSubscription subscription = new DistributionSubscription(request, policy, 2, ready);
+		produce(subscription, 1);
+		assertEquals(1, ready.size());
+		// caught up from the table
+		request.deliverStreamElement(element(1));
+		assertTrue(subscription.goLive(tail));
+		ready.clear();
+		assertTrue(subscription.unschedule());
+		return subscription;
+	}
+
+	@Test
+	public void testGoLive() {
+		DistributionSubscription subscription = new DistributionSubscription(request, OverflowPolicy.CATCH_UP, 10, ready);
+		produce(subscription, 1);
+		produce(subscription, 2);
+		request.deliverStreamElement(element(1));
+		assertTrue(subscription.goLive(tail));
+		// element 2 moved from the tail, its late signal is ignored
+		subscription.signal(element(2));
+		produce(subscription, 3);
+		assertEquals(2, subscription.getQueueSize());
+		assertEquals(2L, subscription.poll().getInternalPrimayKey());
+		assertEquals(3L, subscription.poll().getInternalPrimayKey());
+		assertNull(subscription.poll());
+	}
+
+	@Test
+	public void testDropOldest() {
+		DistributionSubscription subscription = liveSubscription(OverflowPolicy.DROP_OLDEST);
+		for (long pk = 2; pk <= 5; pk++)
+			produce(subscription, pk);
+		assertEquals(1, ready.size());
+		assertEquals(2, subscription.getQueueSize());
+		assertEquals(2L, subscription.getDroppedCount());
+		assertEquals(4L, subscription.poll().getInternalPrimayKey());
+		assertTrue(subscription.isLive());
+	}
+
+	@Test
+	public void testCatchUp() {
+		DistributionSubscription subscription = liveSubscription(OverflowPolicy.CATCH_UP);
+		for (long pk = 2; pk <= 4; pk++)
+			produce(subscription, pk);
+		assertFalse(subscription.isLive());
+		assertEquals(0, subscription.getQueueSize());
+		assertEquals(0L, subscription.getDroppedCount());
+		assertFalse(subscription.unschedule());
+	}
+
+	@Test
+	public void testDisconnect() {
+		DistributionSubscription subscription = liveSubscription(OverflowPolicy.DISCONNECT);
+		for (long pk = 2; pk <= 4; pk++)
+			produce(subscription, pk);
+		assertTrue(subscription.isDisconnected());
+		assertFalse(subscription.unschedule());
+	}
+
+	@Test
+	public void testWithoutTail() {
+		// a filtering listener, or no tail at all, keeps reading from the table
+		DistributionSubscription subscription = new DistributionSubscription(request, OverflowPolicy.DISCONNECT, 2, ready);
+		for (long pk = 1; pk <= 10; pk++)
+			subscription.signal(element(pk));
+		assertFalse(subscription.goLive(null));
+		assertFalse(subscription.isLive());
+		assertEquals(1, ready.size());
+		assertEquals(0, subscription.getQueueSize());
+		assertEquals(0L, subscription.getOverflowCount());
+		assertFalse(subscription.isDisconnected());
+		subscription.startCatchUp();
+		subscription.delivered(element(3));
+		assertEquals(700L, subscription.getLag());
+		assertTrue(subscription.unschedule());
+		subscription.signal(element(11));
+		assertFalse(subscription.unschedule());
+	}
+
+	@Test
+	public void testKeepAlive() {
+		DistributionSubscription subscription = liveSubscription(OverflowPolicy.CATCH_UP);
+		subscription.requestKeepAlive();
+		assertEquals(1, ready.size());
+		assertFalse(subscription.unschedule());
+		assertTrue(subscription.takeKeepAlive());
+		assertFalse(subscription.takeKeepAlive());
+		assertTrue(subscription.unschedule());
+		subscription.close();
+		subscription.requestKeepAlive();
+		assertFalse(subscription.takeKeepAlive());
+	}
+
+	@Test
+	public void testPolicyNames() {
+		assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.parse("Drop-Oldest", OverflowPolicy.CATCH_UP));
+		assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.parse("block", OverflowPolicy.CATCH_UP));
+		assertEquals(OverflowPolicy.CATCH_UP, OverflowPolicy.parse("unknown", OverflowPolicy.CATCH_UP));
+	}
+}
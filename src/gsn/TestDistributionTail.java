@@ -0,0 +1,94 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/TestDistributionTail.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestDistributionTail {
+
+	private DataField[] fields = new DataField[] { new DataField("value", DataTypes.INTEGER) };
+
+	private StreamElement element(long pk, long timed) {
+		StreamElement se = new StreamElement(new DataField[] { new DataField("VALUE", DataTypes.INTEGER) }, new Serializable[] { (int) pk }, timed);
+		se.setInternalPrimayKey(pk);
+		return se;
+	}
+
+	@Test
+	public void testCoverage() {
+		DistributionTail tail = new DistributionTail(fields, 3);
+		assertFalse(tail.covers(-1));
+		for (long pk = 10; pk <= 14; pk++)
+			tail.append(element(pk, pk * 100));
+		// duplicated appends from the other distributers are ignored
+		tail.append(element(14, 1400));
+		assertEquals(3, tail.size());
+		assertEquals(11L, tail.getFloorPk());
+		assertFalse(tail.covers(10));
+		assertTrue(tail.covers(11));
+
+		List<StreamElement> elements = tail.getElementsAfter(12, 0);
+		assertEquals(2, elements.size());
+		assertEquals(13L, elements.get(0).getInternalPrimayKey());
+		assertEquals("value", elements.get(0).getFieldNames()[0]);
+		assertEquals(1, tail.getElementsAfter(11, 1300).size());
+	}
+
+	@Test
+	public void testGap() {
+		DistributionTail tail = new DistributionTail(fields, 10);
+		tail.append(element(1, 100));
+		tail.append(element(2, 200));
+		// the row 3 was inserted by someone else
+		tail.append(element(4, 400));
+		assertEquals(1, tail.size());
+		assertFalse(tail.covers(2));
+		assertTrue(tail.covers(3));
+	}
+
+	@Test
+	public void testElementWithoutPk() {
+		DistributionTail tail = new DistributionTail(fields, 3);
+		tail.append(element(1, 100));
+		assertTrue(tail.covers(0));
+		tail.append(element(-1, 200));
+		assertEquals(0, tail.size());
+		assertFalse(tail.covers(1));
+		tail.append(element(3, 300));
+		assertTrue(tail.covers(2));
+		assertFalse(tail.covers(1));
+	}
+}
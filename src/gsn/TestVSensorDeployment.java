@@ -0,0 +1,179 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/TestVSensorDeployment.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.DataField;
+import gsn.beans.InputStream;
+import gsn.beans.VSensorConfig;
+import gsn.vsensor.BridgeVirtualSensor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestVSensorDeployment {
+
+	/**
+	 * Registers the virtual sensors without reading from wrappers or
+	 * creating tables.
+	 */
+	private static class Loader extends VSensorLoader {
+		final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+		boolean startVirtualSensor(VSensorConfig vs) {
+			started.add(vs.getFileName());
+			// the time to create the pool, while the others are loaded
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+			}
+			return Mappings.addVSensorInstance(new VirtualSensor(vs));
+		}
+
+		void undeploy(VSensorConfig vs) {
+			if (Mappings.getVSensorInstanceByFileName(vs.getFileName()) != null)
+				removeVirtualSensor(vs);
+		}
+	}
+
+	private static VSensorConfig config(String name, String fileName) {
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setFileName(fileName);
+		config.setMainClass(BridgeVirtualSensor.class.getName());
+		config.setInputStreams(new InputStream[0]);
+		config.setOutputStructure(new DataField[0]);
+		return config;
+	}
+
+	private static Map<VSensorConfig, List<VSensorConfig>> dependencies(VSensorConfig... pairs) {
+		Map<VSensorConfig, List<VSensorConfig>> dependencies = new HashMap<VSensorConfig, List<VSensorConfig>>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			if (!dependencies.containsKey(pairs[i]))
+				dependencies.put(pairs[i], new ArrayList<VSensorConfig>());
+			dependencies.get(pairs[i]).add(pairs[i + 1]);
+		}
+		return dependencies;
+	}
+
+	@Test
+	public void testDependenciesFirst() throws InterruptedException {
+		Loader loader = new Loader();
+		VSensorConfig a = config("ordera", "ordera.xml");
+		VSensorConfig b = config("orderb", "orderb.xml");
+		VSensorConfig c = config("orderc", "orderc.xml");
+		VSensorConfig d = config("orderd", "orderd.xml");
+		// c reads from b which reads from a, d is on its own
+		try {
+			assertEquals(0, loader.deploy(Arrays.asList(c, b, d, a), dependencies(b, a, c, b)));
+			assertEquals(4, loader.started.size());
+			assertTrue(loader.started.indexOf("ordera.xml") < loader.started.indexOf("orderb.xml"));
+			assertTrue(loader.started.indexOf("orderb.xml") < loader.started.indexOf("orderc.xml"));
+		} finally {
+			for (VSensorConfig config : Arrays.asList(a, b, c, d))
+				loader.undeploy(config);
+		}
+	}
+
+	@Test
+	public void testSameNameLoadedOnce() throws InterruptedException {
+		Loader loader = new Loader();
+		List<VSensorConfig> configs = new ArrayList<VSensorConfig>();
+		for (int i = 0; i < 8; i++)
+			configs.add(config("duplicate", "duplicate" + i + ".xml"));
+		try {
+			assertEquals(7, loader.deploy(configs, dependencies()));
+			assertEquals(1, loader.started.size());
+			assertEquals(loader.started.get(0), Mappings.getVSensorConfig("duplicate").getFileName());
+		} finally {
+			for (VSensorConfig config : configs)
+				loader.undeploy(config);
+		}
+		assertNull(Mappings.getVSensorConfig("duplicate"));
+		assertNull(Mappings.reserveName(configs.get(0)));
+		Mappings.releaseName(configs.get(0));
+	}
+
+	@Test
+	public void testNameGivenBackOnFailure() throws InterruptedException {
+		Loader failing = new Loader() {
+			boolean startVirtualSensor(VSensorConfig vs) {
+				return false;
+			}
+		};
+		VSensorConfig first = config("failing", "failing1.xml");
+		assertEquals(1, failing.deploy(Arrays.asList(first), dependencies()));
+		Loader loader = new Loader();
+		VSensorConfig second = config("failing", "failing2.xml");
+		try {
+			assertEquals(0, loader.deploy(Arrays.asList(second), dependencies()));
+		} finally {
+			loader.undeploy(second);
+		}
+	}
+
+	@Test
+	public void testParallelDeployAndUndeploy() throws InterruptedException {
+		final Loader loader = new Loader();
+		for (int i = 0; i < 20; i++) {
+			VSensorConfig old = config("renamed", "renamed-old" + i + ".xml");
+			assertEquals(0, loader.deploy(Arrays.asList(old), dependencies()));
+			// the file is renamed: the old one is removed while the new one is added
+			final VSensorConfig renamed = config("renamed", "renamed-new" + i + ".xml");
+			final int[] failed = new int[] { -1 };
+			Thread deploying = new Thread() {
+				public void run() {
+					try {
+						failed[0] = loader.deploy(Arrays.asList(renamed), dependencies());
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			deploying.start();
+			loader.removeVirtualSensor(old);
+			deploying.join();
+			VSensorConfig loaded = Mappings.getVSensorConfig("renamed");
+			if (failed[0] == 0) {
+				assertEquals(renamed.getFileName(), loaded.getFileName());
+				loader.removeVirtualSensor(renamed);
+			} else {
+				assertEquals(1, failed[0]);
+				assertNull(loaded);
+			}
+			// nothing holds the name anymore
+			assertNull(Mappings.reserveName(renamed));
+			Mappings.releaseName(renamed);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+* 
+* This file is part of GSN.
+* 
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+* 
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+* 
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+* 
+* File: src/gsn/TestVirtualSensor.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.InputStream;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.vsensor.AbstractVirtualSensor;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestVirtualSensor {
+
+	private static final int ELEMENTS = 500;
+
+	static List<Long> received;
+
+	static Set<Thread> threads;
+
+	static CountDownLatch done;
+
+	public static class RecordingVirtualSensor extends AbstractVirtualSensor {
+		public boolean initialize() {
+			return true;
+		}
+
+		public void dispose() {
+		}
+
+		public void dataAvailable(String inputStreamName, StreamElement se) {
+			received.add(se.getTimeStamp());
+			threads.add(Thread.currentThread());
+			done.countDown();
+		}
+	}
+
+	public static class StatelessVirtualSensor extends RecordingVirtualSensor {
+		public boolean isStateless() {
+			return true;
+		}
+	}
+
+	private VirtualSensor start(Class<?> processingClass) throws Exception {
+		received = new Vector<Long>();
+		threads = Collections.synchronizedSet(new HashSet<Thread>());
+		done = new CountDownLatch(ELEMENTS);
+		VSensorConfig config = new VSensorConfig();
+		config.setName("recording");
+		config.setFileName("recording.xml");
+		config.setMainClass(processingClass.getName());
+		config.setLifeCyclePoolSize(4);
+		config.setInputStreams(new InputStream[0]);
+		VirtualSensor pool = new VirtualSensor(config);
+		pool.start();
+		return pool;
+	}
+
+	private void deliver(VirtualSensor pool) throws Exception {
+		for (long i = 0; i < ELEMENTS; i++)
+			pool.deliver("input", new StreamElement(new String[0], new Byte[0], new Serializable[0], i));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testOrderIsKept() throws Exception {
+		VirtualSensor pool = start(RecordingVirtualSensor.class);
+		deliver(pool);
+		pool.closePool();
+		assertEquals(ELEMENTS, received.size());
+		for (int i = 0; i < ELEMENTS; i++)
+			assertEquals(Long.valueOf(i), received.get(i));
+		assertEquals(1, threads.size());
+		assertTrue(!threads.contains(Thread.currentThread()));
+		assertEquals((long) ELEMENTS, pool.getProcessedCount());
+		assertEquals(0, pool.getQueueDepth());
+	}
+
+	@Test
+	public void testStatelessInstances() throws Exception {
+		VirtualSensor pool = start(StatelessVirtualSensor.class);
+		deliver(pool);
+		pool.closePool();
+		assertEquals(ELEMENTS, new HashSet<Long>(received).size());
+		assertTrue(threads.size() <= Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+}
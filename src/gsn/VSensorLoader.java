@@ -38,14 +38,30 @@ import gsn.beans.Modifications;
 import gsn.beans.StreamSource;
 import gsn.beans.VSensorConfig;
 import gsn.wrappers.AbstractWrapper;
+import gsn.wrappers.WrapperRegistry;
 import gsn.wrappers.WrappersUtil;
 
 import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.jibx.runtime.JiBXException;
@@ -60,33 +76,73 @@ public class VSensorLoader extends Thread {
 	private boolean                               isActive                            = true;
 	private ArrayList<VSensorStateChangeListener> changeListeners                     = new ArrayList<VSensorStateChangeListener>();
 	
+    /**
+     * The number of virtual sensors loaded at the same time, set by the
+     * loaderThreads system property.
+     */
+    public static final int                       LOADER_THREADS                      = System.getProperty("loaderThreads") == null ? Runtime.getRuntime().availableProcessors() : Math.max(1, Integer.parseInt(System.getProperty("loaderThreads")));
+
+    /**
+     * Time in milliseconds between two scans of the directory when its
+     * changes can't be watched, or when virtual sensors failed to load.
+     */
+    private static final long                     RETRY_INTERVAL                      = 3000;
+
+    /**
+     * Time in milliseconds between two scans of the directory when nothing
+     * changes in it, set by the loaderRescanInterval system property.
+     */
+    private static final long                     RESCAN_INTERVAL                     = System.getProperty("loaderRescanInterval") == null ? 60000 : Long.parseLong(System.getProperty("loaderRescanInterval"));
+
+    /**
+     * The directory is scanned once nothing changed in it for this time, so
+     * that the files being written are read once complete.
+     */
+    private static final long                     SETTLE_TIME                         = 500;
+
+    private WatchService                          watcher;
+    private volatile int                          failures                            = 0;
+    private volatile ExecutorService              deployers;
+
     private static int                            VSENSOR_LOADER_THREAD_COUNTER       = 0;
     private static VSensorLoader                  singleton                           = null;
     private static transient Logger               logger                              = Logger.getLogger ( VSensorLoader.class );
     
 
 	public void addVSensorStateChangeListener(VSensorStateChangeListener listener) {
-		if (!changeListeners.contains(listener))
-			changeListeners.add(listener);
+		synchronized (changeListeners) {
+			if (!changeListeners.contains(listener))
+				changeListeners.add(listener);
+		}
 	}
 
 	public void removeVSensorStateChangeListener(VSensorStateChangeListener listener) {
-		changeListeners.remove(listener);
+		synchronized (changeListeners) {
+			changeListeners.remove(listener);
+		}
 	}
 	
+	/**
+	 * The listeners are notified of one virtual sensor at a time, even when
+	 * several are loaded in parallel.
+	 */
 	public boolean fireVSensorLoading(VSensorConfig config) {
-		for (VSensorStateChangeListener listener : changeListeners)
-			if (!listener.vsLoading(config))
-				return false;
+		synchronized (changeListeners) {
+			for (VSensorStateChangeListener listener : changeListeners)
+				if (!listener.vsLoading(config))
+					return false;
+		}
 		return true;
 	}
 	
 	public boolean fireVSensorUnLoading(VSensorConfig config) {
-		for (VSensorStateChangeListener listener : changeListeners)
-			if (!listener.vsUnLoading(config)) {
-				logger.error("Unloading failed !",new RuntimeException("Unloading : "+config.getName()+" is failed."));
-				return false;
-			}
+		synchronized (changeListeners) {
+			for (VSensorStateChangeListener listener : changeListeners)
+				if (!listener.vsUnLoading(config)) {
+					logger.error("Unloading failed !",new RuntimeException("Unloading : "+config.getName()+" is failed."));
+					return false;
+				}
+		}
 		return true;
 	}
 
@@ -113,6 +169,7 @@ public class VSensorLoader extends Thread {
 			logger.fatal ( "The Storage Manager shouldn't be null, possible a BUG." );
 			return;
 		}
+		watcher = createWatcher ( );
 		while ( isActive ) {
 			try {
 				loadPlugin ( );
@@ -120,11 +177,64 @@ public class VSensorLoader extends Thread {
 				logger.error ( e.getMessage ( ) , e );
 			}
 			try {
-				Thread.sleep ( 3000 );
+				waitForChanges ( );
 			} catch ( InterruptedException e ) {
 				logger.error ( e.getMessage ( ) , e );
 			} 
 		}
+		closeWatcher ( );
+	}
+
+	private WatchService createWatcher ( ) {
+		WatchService watchService = null;
+		try {
+			watchService = FileSystems.getDefault ( ).newWatchService ( );
+			Paths.get ( pluginsDir ).register ( watchService , StandardWatchEventKinds.ENTRY_CREATE , StandardWatchEventKinds.ENTRY_DELETE ,
+					StandardWatchEventKinds.ENTRY_MODIFY );
+			return watchService;
+		} catch ( Exception e ) {
+			logger.warn ( "The changes of the " + pluginsDir + " directory can't be watched, it is scanned every " + RETRY_INTERVAL + " ms instead: " + e.getMessage ( ) );
+			if ( watchService != null )
+				try {
+					watchService.close ( );
+				} catch ( IOException e1 ) {
+					logger.error ( e1.getMessage ( ) , e1 );
+				}
+			return null;
+		}
+	}
+
+	private void closeWatcher ( ) {
+		if ( watcher == null )
+			return;
+		try {
+			watcher.close ( );
+		} catch ( IOException e ) {
+			logger.error ( e.getMessage ( ) , e );
+		}
+		watcher = null;
+	}
+
+	/**
+	 * Waits until the files of the virtual sensors directory change and stop
+	 * changing, or until the next periodic scan, which is sooner while some
+	 * virtual sensors fail to load.
+	 */
+	private void waitForChanges ( ) throws InterruptedException {
+		if ( watcher == null ) {
+			Thread.sleep ( RETRY_INTERVAL );
+			return;
+		}
+		WatchKey key = watcher.poll ( failures > 0 ? RETRY_INTERVAL : RESCAN_INTERVAL , TimeUnit.MILLISECONDS );
+		while ( key != null ) {
+			key.pollEvents ( );
+			if ( !key.reset ( ) ) {
+				logger.warn ( "The " + pluginsDir + " directory can't be watched anymore, it is scanned every " + RETRY_INTERVAL + " ms instead." );
+				closeWatcher ( );
+				return;
+			}
+			key = watcher.poll ( SETTLE_TIME , TimeUnit.MILLISECONDS );
+		}
 	}
 
     public synchronized void loadVirtualSensor(String vsConfigurationFileContent, String fileName) throws Exception {
@@ -165,14 +275,104 @@ public class VSensorLoader extends Thread {
         for (VSensorConfig configFile : removeIt) {
             removeVirtualSensor(configFile);
         }
+        if (addIt.isEmpty()) {
+            failures = 0;
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            failures = deploy(modifications);
+        } catch (InterruptedException e) {
+            logger.error(e.getMessage(), e);
+        }
+        logger.info(addIt.size() + " virtual sensor(s) processed in " + (System.currentTimeMillis() - start) + " ms, " + failures + " failed.");
+    }
+
+    private synchronized ExecutorService getDeployers() {
+        if (deployers == null) {
+            final AtomicInteger count = new AtomicInteger();
+            deployers = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "VSensorLoader-Worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return deployers;
+    }
+
+    private int deploy(Modifications modifications) throws InterruptedException {
+        Map<VSensorConfig, List<VSensorConfig>> dependencies = new HashMap<VSensorConfig, List<VSensorConfig>>();
+        for (VSensorConfig vs : modifications.getAdd())
+            dependencies.put(vs, modifications.getDependencies(vs));
+        return deploy(modifications.getAdd(), dependencies);
+    }
+
+    /**
+     * Loads the virtual sensors to add in parallel, each one once the virtual
+     * sensors it reads from, among those to add, are processed.
+     *
+     * @return the number of virtual sensors which couldn't be loaded.
+     */
+    int deploy(List<VSensorConfig> addIt, Map<VSensorConfig, List<VSensorConfig>> dependencies) throws InterruptedException {
+        final Map<VSensorConfig, Integer> waiting = new HashMap<VSensorConfig, Integer>();
+        final Map<VSensorConfig, List<VSensorConfig>> dependents = new HashMap<VSensorConfig, List<VSensorConfig>>();
         for (VSensorConfig vs : addIt) {
-        	try{
-                loadPlugin(vs);
-        	}catch(Exception e){
-        		logger.error("Unable to load VSensor " + vs.getName() + ", retrying later...");
-        		e.printStackTrace();
-        	}
+            List<VSensorConfig> required = dependencies.containsKey(vs) ? dependencies.get(vs) : new ArrayList<VSensorConfig>();
+            waiting.put(vs, required.size());
+            for (VSensorConfig dependency : required) {
+                if (!dependents.containsKey(dependency))
+                    dependents.put(dependency, new ArrayList<VSensorConfig>());
+                dependents.get(dependency).add(vs);
+            }
         }
+        final CountDownLatch done = new CountDownLatch(addIt.size());
+        final AtomicInteger failed = new AtomicInteger();
+        final ExecutorService executor = getDeployers();
+        class Deployment implements Runnable {
+            final VSensorConfig vs;
+
+            Deployment(VSensorConfig vs) {
+                this.vs = vs;
+            }
+
+            public void run() {
+                try {
+                    if (!loadPlugin(vs))
+                        failed.incrementAndGet();
+                } catch (Exception e) {
+                    logger.error("Unable to load VSensor " + vs.getName() + ", retrying later...");
+                    logger.error(e.getMessage(), e);
+                    failed.incrementAndGet();
+                } finally {
+                    // the virtual sensors depending on this one are tried even if it failed
+                    List<VSensorConfig> ready = new ArrayList<VSensorConfig>();
+                    synchronized (waiting) {
+                        if (dependents.containsKey(vs))
+                            for (VSensorConfig dependent : dependents.get(vs)) {
+                                int remaining = waiting.get(dependent) - 1;
+                                waiting.put(dependent, remaining);
+                                if (remaining == 0)
+                                    ready.add(dependent);
+                            }
+                    }
+                    for (VSensorConfig dependent : ready)
+                        executor.execute(new Deployment(dependent));
+                    done.countDown();
+                }
+            }
+        }
+        List<VSensorConfig> ready = new ArrayList<VSensorConfig>();
+        synchronized (waiting) {
+            for (VSensorConfig vs : addIt)
+                if (waiting.get(vs) == 0)
+                    ready.add(vs);
+        }
+        for (VSensorConfig vs : ready)
+            executor.execute(new Deployment(vs));
+        done.await();
+        return failed.get();
     }
 
     public synchronized boolean loadPlugin(String fileFilterName) throws SQLException, JiBXException {
@@ -193,11 +393,36 @@ public class VSensorLoader extends Thread {
     }
 
 
-    private synchronized boolean loadPlugin(VSensorConfig vs) throws SQLException, JiBXException {
-
+    /**
+     * Not synchronized, the virtual sensors are loaded in parallel: the name
+     * of the virtual sensor is reserved first, and given back if it couldn't
+     * be loaded.
+     */
+    private boolean loadPlugin(VSensorConfig vs) throws SQLException, JiBXException {
         if (!isVirtualSensorValid(vs))
             return false;
+        String holder = Mappings.reserveName(vs);
+        if (holder != null) {
+            logger.error("Adding the virtual sensor specified in " + vs.getFileName() + " failed because the virtual sensor name used by " + vs.getFileName()
+                    + " is already used by : " + holder);
+            return false;
+        }
+        boolean loaded = false;
+        try {
+            loaded = startVirtualSensor(vs);
+        } finally {
+            if (!loaded)
+                Mappings.releaseName(vs);
+        }
+        return loaded;
+    }
 
+    /**
+     * Creates the pool of the virtual sensor, whose name is reserved, and
+     * starts it.
+     */
+    boolean startVirtualSensor(VSensorConfig vs) throws SQLException, JiBXException {
+        long start = System.currentTimeMillis();
         VirtualSensor pool = new VirtualSensor(vs);
         try {
             if (createInputStreams(pool) == false) {
@@ -235,6 +460,8 @@ public class VSensorLoader extends Thread {
             try {
                 fireVSensorLoading(pool.getConfig());
                 pool.start();
+                pool.setStartupTime(System.currentTimeMillis() - start);
+                logger.info(vs.getName() + " virtual sensor loaded in " + pool.getStartupTime() + " ms.");
             } catch (VirtualSensorInitializationFailedException e1) {
                 logger.error("Creating the virtual sensor >" + vs.getName() + "< failed.", e1);
                 removeVirtualSensor(vs);
@@ -242,13 +469,14 @@ public class VSensorLoader extends Thread {
             }
         } else {
             //TODO: release all vs resources
+            return false;
         }
         return true;
 
     }
 
     
-	private void removeVirtualSensor(VSensorConfig configFile) {
+	void removeVirtualSensor(VSensorConfig configFile) {
 		logger.warn ("removing : " + configFile.getName ( ));
 		VirtualSensor sensorInstance = Mappings.getVSensorInstanceByFileName ( configFile.getFileName ( ) );
 		Mappings.removeFilename ( configFile.getFileName ( ) );
@@ -398,7 +626,8 @@ public class VSensorLoader extends Thread {
 		return true;
 	}
 	/**
-	 * Instantiate the wrapper from its addressBean.
+	 * Instantiate the wrapper from its addressBean, or reuses the running one
+	 * having the same address (see {@link WrapperRegistry}).
 	 * @param addressBean
 	 * @return
 	 * @throws InstantiationException
@@ -406,7 +635,19 @@ public class VSensorLoader extends Thread {
 	 * FIXME: COPIED_FOR_SAFE_STOAGE
 	 */
 	public AbstractWrapper createWrapper(AddressBean addressBean) throws InstantiationException, IllegalAccessException {
+		// the virtual sensors loaded in parallel don't create the same wrapper twice
+		String key = WrapperRegistry.lock(addressBean);
+		try {
+			return acquireOrCreateWrapper(addressBean);
+		} finally {
+			WrapperRegistry.unlock(key);
+		}
+	}
 
+	private AbstractWrapper acquireOrCreateWrapper(AddressBean addressBean) throws InstantiationException, IllegalAccessException {
+			AbstractWrapper shared = WrapperRegistry.acquire(addressBean);
+			if (shared != null)
+				return shared;
 			if ( Main.getWrapperClass ( addressBean.getWrapper ( ) ) == null ) {
 				logger.error ( "The wrapper >" + addressBean.getWrapper ( ) + "< is not defined in the >" + WrappersUtil.DEFAULT_WRAPPER_PROPERTIES_FILE + "< file." );
 				return null;
@@ -424,7 +665,23 @@ public class VSensorLoader extends Thread {
 				logger.error ( e.getMessage ( ) , e );
 				return null;
 			}
-			return wrapper;
+			AbstractWrapper registered = WrapperRegistry.register(wrapper);
+			if (registered != wrapper)
+				releaseWrapper(wrapper);
+			return registered;
+	}
+
+	/**
+	 * Gives back the reference to a wrapper which couldn't be used by a stream
+	 * source.
+	 */
+	private void releaseWrapper(AbstractWrapper wrapper) {
+		try {
+			if (WrapperRegistry.release(wrapper))
+				wrapper.releaseResources();
+		} catch (SQLException e) {
+			logger.error(e.getMessage(), e);
+		}
 	}
 	
 	public boolean prepareStreamSource ( VSensorConfig vsensorConfig,InputStream inputStream , StreamSource streamSource  ) throws InstantiationException, IllegalAccessException {
@@ -437,9 +694,10 @@ public class VSensorLoader extends Thread {
 			try {
 				if (wrapper!=null && prepareStreamSource( streamSource,wrapper.getOutputFormat(),wrapper)) 
 					break;
-				else
-					//TODO: release wrapper's resources
+				else if (wrapper!=null) {
+					releaseWrapper(wrapper);
 					wrapper=null;
+				}
 			} catch (SQLException e) {
 				logger.error(e.getMessage(),e);
 				logger.error("Preparation of the stream source failed : "+streamSource.getAlias()+ " from the input stream : "+inputStream.getInputStreamName());
@@ -461,6 +719,8 @@ public class VSensorLoader extends Thread {
 	public void stopLoading ( ) {
 		this.isActive = false;
 		this.interrupt ( );
+		if ( deployers != null )
+			deployers.shutdownNow ( );
 		for ( String configFile : Mappings.getAllKnownFileName ( ) ) {
 			VirtualSensor sensorInstance = Mappings.getVSensorInstanceByFileName ( configFile );
 			removeAllVSResources ( sensorInstance );
@@ -26,47 +26,99 @@
 package gsn;
 
 import gsn.beans.InputStream;
+import gsn.beans.StreamElement;
 import gsn.beans.StreamSource;
 import gsn.beans.VSensorConfig;
+import gsn.storage.RollupManager;
 import gsn.vsensor.AbstractVirtualSensor;
+import gsn.wrappers.AbstractWrapper;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Runs a virtual sensor. Once started, the elements of its input streams are
+ * put in a bounded mailbox and handed over to the virtual sensor by its own
+ * thread, so that the wrappers producing them don't wait for the processing,
+ * unless the mailbox is full. The elements are processed in the order they
+ * arrived.
+ * <p>
+ * A virtual sensor declaring itself stateless gets as many instances, each
+ * one with its own thread, as its pool size, bounded by the number of
+ * processors. Its elements are then processed concurrently, thus not
+ * necessarily in order.
+ */
 public class VirtualSensor {
 
     private static final transient Logger logger = Logger.getLogger(VirtualSensor.class);
     private static final int GARBAGE_COLLECTOR_INTERVAL = 2;
 
+    /**
+     * The number of elements waiting for a virtual sensor above which the
+     * input streams wait, set by the vsMailboxSize system property.
+     */
+    public static final int MAILBOX_SIZE = System.getProperty("vsMailboxSize") == null ? 1000 : Integer.parseInt(System.getProperty("vsMailboxSize"));
+
+    private static final long MAILBOX_POLL_INTERVAL = 100;
+
     private AbstractVirtualSensor virtualSensor = null;
     private VSensorConfig config = null;
     private long lastModified = -1;
+    private long startupTime = -1;
     private int noOfCallsToReturnVS = 0;
 
+    private static class Delivery {
+        final String inputStreamName;
+        final StreamElement element;
+        final long arrival;
+
+        Delivery(String inputStreamName, StreamElement element) {
+            this.inputStreamName = inputStreamName;
+            this.element = element;
+            this.arrival = System.nanoTime();
+        }
+    }
+
+    private BlockingQueue<Delivery> mailbox = null;
+    private AbstractVirtualSensor[] instances = null;
+    private Thread[] workers = null;
+    private volatile boolean running = false;
+
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong processingTime = new AtomicLong();
+    private final AtomicLong latency = new AtomicLong();
+
     public VirtualSensor(VSensorConfig config) {
         this.config = config;
         this.lastModified = new File(config.getFileName()).lastModified();
     }
 
     public synchronized AbstractVirtualSensor borrowVS() throws VirtualSensorInitializationFailedException {
-        if (virtualSensor == null) {
-            try {
-                virtualSensor = (AbstractVirtualSensor) Class.forName(config.getProcessingClass()).newInstance();
-                virtualSensor.setVirtualSensorConfiguration(config);
-            } catch (Exception e) {
-                throw new VirtualSensorInitializationFailedException(e.getMessage(), e);
-            }
-            if (virtualSensor.initialize() == false) {
-                virtualSensor = null;
-                throw new VirtualSensorInitializationFailedException();
-            }
-            if (logger.isDebugEnabled())
-                logger.debug("Created a new instance for VS " + config.getName());
-        }
+        if (virtualSensor == null)
+            virtualSensor = createInstance();
         return virtualSensor;
     }
 
+    private AbstractVirtualSensor createInstance() throws VirtualSensorInitializationFailedException {
+        AbstractVirtualSensor instance;
+        try {
+            instance = (AbstractVirtualSensor) Class.forName(config.getProcessingClass()).newInstance();
+            instance.setVirtualSensorConfiguration(config);
+        } catch (Exception e) {
+            throw new VirtualSensorInitializationFailedException(e.getMessage(), e);
+        }
+        if (instance.initialize() == false)
+            throw new VirtualSensorInitializationFailedException();
+        if (logger.isDebugEnabled())
+            logger.debug("Created a new instance for VS " + config.getName());
+        return instance;
+    }
+
     /**
      * The method ignores the call if the input is null
      *
@@ -79,6 +131,13 @@ public class VirtualSensor {
     }
 
     public synchronized void closePool() {
+        stopWorkers();
+        if (instances != null) {
+            // the first instance is the one borrowed
+            for (int i = 1; i < instances.length; i++)
+                instances[i].dispose();
+            instances = null;
+        }
         if (virtualSensor != null) {
             virtualSensor.dispose();
             if (logger.isDebugEnabled())
@@ -90,10 +149,144 @@ public class VirtualSensor {
     public void start() throws VirtualSensorInitializationFailedException {
         for (InputStream inputStream : config.getInputStreams()) {
             for (StreamSource streamSource : inputStream.getSources()) {
-                streamSource.getWrapper().start();
+                // a shared wrapper is already running for another virtual sensor
+                AbstractWrapper wrapper = streamSource.getWrapper();
+                synchronized (wrapper) {
+                    if (wrapper.getState() == Thread.State.NEW)
+                        wrapper.start();
+                }
+            }
+        }
+        startWorkers(borrowVS());
+    }
+
+    /**
+     * Hands an element over to the virtual sensor, through its mailbox if it
+     * is started, in which case this waits while the mailbox is full.
+     */
+    public void deliver(String inputStreamName, StreamElement element) throws VirtualSensorInitializationFailedException {
+        BlockingQueue<Delivery> mailbox = this.mailbox;
+        if (mailbox == null) {
+            borrowVS().dataAvailable(inputStreamName, element);
+            return;
+        }
+        Delivery delivery = new Delivery(inputStreamName, element);
+        try {
+            while (!mailbox.offer(delivery, MAILBOX_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    logger.warn("The virtual sensor " + config.getName() + " is stopped, the element is dropped.");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for the mailbox of " + config.getName() + ", the element is dropped.");
+        }
+    }
+
+    private synchronized void startWorkers(AbstractVirtualSensor first) throws VirtualSensorInitializationFailedException {
+        if (workers != null)
+            return;
+        int count = 1;
+        if (first.isStateless())
+            count = Math.max(1, Math.min(config.getLifeCyclePoolSize(), Runtime.getRuntime().availableProcessors()));
+        instances = new AbstractVirtualSensor[count];
+        instances[0] = first;
+        for (int i = 1; i < count; i++)
+            instances[i] = createInstance();
+        mailbox = new ArrayBlockingQueue<Delivery>(MAILBOX_SIZE);
+        running = true;
+        workers = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final AbstractVirtualSensor instance = instances[i];
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    process(instance);
+                }
+            }, "VirtualSensor-" + config.getName() + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Started " + count + " thread(s) for VS " + config.getName());
+    }
+
+    private void process(AbstractVirtualSensor instance) {
+        BlockingQueue<Delivery> mailbox = this.mailbox;
+        while (running) {
+            Delivery delivery;
+            try {
+                delivery = mailbox.take();
+            } catch (InterruptedException e) {
+                break;
             }
+            long start = System.nanoTime();
+            try {
+                instance.dataAvailable(delivery.inputStreamName, delivery.element);
+            } catch (UnsupportedOperationException e) {
+                logger.warn("The stream element produced by the virtual sensor is dropped because of the following error : ");
+                logger.warn(e.getMessage(), e);
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+            }
+            long end = System.nanoTime();
+            processingTime.addAndGet(end - start);
+            latency.addAndGet(end - delivery.arrival);
+            processedCount.incrementAndGet();
         }
-        borrowVS();
+    }
+
+    private void stopWorkers() {
+        if (workers == null)
+            return;
+        running = false;
+        for (Thread worker : workers)
+            worker.interrupt();
+        for (Thread worker : workers) {
+            try {
+                worker.join(MAILBOX_POLL_INTERVAL * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!mailbox.isEmpty())
+            logger.warn(mailbox.size() + " element(s) waiting for " + config.getName() + " are dropped.");
+        workers = null;
+        mailbox = null;
+    }
+
+    /**
+     * @return the number of elements waiting in the mailbox.
+     */
+    public int getQueueDepth() {
+        BlockingQueue<Delivery> mailbox = this.mailbox;
+        return mailbox == null ? 0 : mailbox.size();
+    }
+
+    /**
+     * @return the number of elements processed from the mailbox.
+     */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * @return the average time the virtual sensor took to process an
+     *         element, in milliseconds.
+     */
+    public double getMeanProcessingTime() {
+        long count = processedCount.get();
+        return count == 0 ? 0 : processingTime.get() / 1e6 / count;
+    }
+
+    /**
+     * @return the average time from the arrival of an element in the mailbox
+     *         to the end of its processing, in milliseconds.
+     */
+    public double getMeanLatency() {
+        long count = processedCount.get();
+        return count == 0 ? 0 : latency.get() / 1e6 / count;
     }
 
     /**
@@ -110,6 +303,18 @@ public class VirtualSensor {
         return lastModified;
     }
 
+    /**
+     * @return the time in milliseconds it took to load the virtual sensor, -1
+     *         if it isn't loaded.
+     */
+    public long getStartupTime() {
+        return startupTime;
+    }
+
+    public void setStartupTime(long startupTime) {
+        this.startupTime = startupTime;
+    }
+
     public void dispose() {
     }
 
@@ -130,6 +335,8 @@ public class VirtualSensor {
             if (logger.isDebugEnabled())
                 logger.debug("Enforcing the limit size on the VS table by : " + query);
             effected = Main.getStorage(config.getName()).executeUpdate(query);
+            if (effected > 0)
+                RollupManager.getInstance().trim(config.getName());
         } catch (SQLException e) {
             logger.error("Error in executing: " + query);
             logger.error(e.getMessage(), e);
@@ -44,6 +44,22 @@ public class SafeStorageClientSessionHandler extends IoHandlerAdapter {
   
   private MessageHandler handler;
   
+  /**
+   * Sequence number of the last message processed and of the last one
+   * acknowledged, the acknowledgments being cumulative.
+   */
+  private long lastProcessed = -1;
+  
+  private long lastAcknowledged = -1;
+  
+  /**
+   * Set once a message failed to be processed: the server closes the
+   * session on the Nack and sends again everything after the last
+   * acknowledged message on the next one, so the messages still in flight
+   * are neither processed nor acknowledged meanwhile.
+   */
+  private boolean failed = false;
+  
   public SafeStorageClientSessionHandler(AddressBean wrapprDetails,MessageHandler handler,String requester) {
     this.handler=handler;
     helloMsg = new HelloMsg(wrapprDetails,requester);
@@ -56,15 +72,31 @@ public class SafeStorageClientSessionHandler extends IoHandlerAdapter {
   public void messageReceived(IoSession session, Object message) throws Exception {
     logger.debug("Received data from the server");
     DataMsg dataMsg = (DataMsg) message;
+    if (failed) {
+      logger.debug("Ignoring the message "+dataMsg.getSequenceNumber()+" sent before the Nack");
+      return;
+    }
     if (handler.messageToBeProcessed(dataMsg)) {
-      session.write(new AcknowledgmentMsg(AcknowledgmentMsg.SUCCESS,dataMsg.getSequenceNumber()));
-      logger.debug("Sending Success Ack");
+      lastProcessed = dataMsg.getSequenceNumber();
+      if (!dataMsg.isAckOptional()) {
+        acknowledge(session);
+        logger.debug("Sending Success Ack");
+      }
     }else {
+      failed = true;
+      // what was processed before the failure doesn't have to be sent again
+      if (lastProcessed > lastAcknowledged)
+        acknowledge(session);
       session.write(new AcknowledgmentMsg(AcknowledgmentMsg.FAILURE,dataMsg.getSequenceNumber()));
-      logger.debug("Sending Success Nack");
+      logger.debug("Sending Nack");
     }
     
   }
+  
+  private void acknowledge(IoSession session) {
+    session.write(new AcknowledgmentMsg(AcknowledgmentMsg.SUCCESS,lastProcessed));
+    lastAcknowledged = lastProcessed;
+  }
   public void messageSent(IoSession session, Object message) throws Exception {
 
   }
@@ -73,6 +105,7 @@ public class SafeStorageClientSessionHandler extends IoHandlerAdapter {
 	  handler.restartConnection();
   }
   public void sessionOpened(IoSession session) throws Exception {
+    failed = false;
     session.write(helloMsg);
     logger.warn("Session >" + session + "< is open");
   }
@@ -0,0 +1,129 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/acquisition2/client/TestSafeStorageClientSessionHandler.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.acquisition2.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.acquisition2.messages.AcknowledgmentMsg;
+import gsn.acquisition2.messages.DataMsg;
+import gsn.acquisition2.messages.HelloMsg;
+import gsn.beans.AddressBean;
+import gsn.utils.KeyValueImp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.common.IoSession;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Plays the server side of the windowed acknowledgments: several data
+ * messages are in flight, only the last one of each batch requiring an
+ * acknowledgment, and the server closes the session on a Nack then sends
+ * again everything after the last acknowledged message.
+ */
+public class TestSafeStorageClientSessionHandler {
+
+	private List<Long> processed;
+
+	private List<String> acknowledgments;
+
+	private long failOn;
+
+	private IoSession session;
+
+	private SafeStorageClientSessionHandler client;
+
+	@Before
+	public void setUp() {
+		processed = new ArrayList<Long>();
+		acknowledgments = new ArrayList<String>();
+		failOn = -1;
+		session = (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(), new Class<?>[] { IoSession.class }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("write") && args[0] instanceof AcknowledgmentMsg) {
+					AcknowledgmentMsg ack = (AcknowledgmentMsg) args[0];
+					acknowledgments.add((ack.isAck() ? "ack " : "nack ") + ack.getSeqNumber());
+				} else if (method.getName().equals("write"))
+					assertTrue(args[0] instanceof HelloMsg);
+				return null;
+			}
+		});
+		client = new SafeStorageClientSessionHandler(new AddressBean("mem2", new KeyValueImp("MyKey", "MyValue")), new MessageHandler() {
+			public boolean messageToBeProcessed(DataMsg dataMessage) {
+				if (dataMessage.getSequenceNumber() == failOn) {
+					failOn = -1;
+					return false;
+				}
+				processed.add(dataMessage.getSequenceNumber());
+				return true;
+			}
+
+			public void restartConnection() {
+			}
+		}, "requester");
+	}
+
+	/**
+	 * Sends the messages from <code>first</code> to <code>last</code>, by
+	 * batches of two, as the server does with a window of four.
+	 */
+	private void send(long first, long last) throws Exception {
+		for (long pk = first; pk <= last; pk++) {
+			DataMsg message = new DataMsg(new Object[] { pk }, pk, pk);
+			message.setAckOptional(pk % 2 == 1 && pk != last);
+			client.messageReceived(session, message);
+		}
+	}
+
+	@Test
+	public void testWindowedAcknowledgments() throws Exception {
+		client.sessionOpened(session);
+		send(1, 6);
+		assertEquals(6, processed.size());
+		assertEquals("[ack 2, ack 4, ack 6]", acknowledgments.toString());
+	}
+
+	@Test
+	public void testFailureInTheMiddleOfTheWindow() throws Exception {
+		client.sessionOpened(session);
+		failOn = 4;
+		send(1, 6);
+		// 3 is acknowledged with the Nack, 5 and 6 were in flight
+		assertEquals("[1, 2, 3]", processed.toString());
+		assertEquals("[ack 2, ack 3, nack 4]", acknowledgments.toString());
+		// the server resends everything after the last acknowledged message
+		acknowledgments.clear();
+		client.sessionOpened(session);
+		send(4, 6);
+		assertEquals("[1, 2, 3, 4, 5, 6]", processed.toString());
+		assertEquals("[ack 4, ack 6]", acknowledgments.toString());
+	}
+}
@@ -35,6 +35,14 @@ public class DataMsg extends AbstractMessage {
   private long sequenceNumber = -1;
   
 private long created_at = -1;
+
+  /**
+   * Set by the servers sending several messages per round trip, the client
+   * may then delay the acknowledgment until a message which isn't optional
+   * (acknowledgments are cumulative). Older servers don't set it, each of
+   * their messages is acknowledged.
+   */
+  private boolean ackOptional = false;
   
   public long getSequenceNumber() {
     return sequenceNumber;
@@ -48,6 +56,14 @@ private long created_at = -1;
     return created_at;
   }
 
+  public boolean isAckOptional() {
+    return ackOptional;
+  }
+
+  public void setAckOptional(boolean ackOptional) {
+    this.ackOptional = ackOptional;
+  }
+
   public DataMsg(Object[] data,long seqNo,long created_at) {
     this.data = data;
     this.sequenceNumber=seqNo;
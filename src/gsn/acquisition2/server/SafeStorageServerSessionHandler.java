@@ -35,6 +35,8 @@ import gsn.acquisition2.wrappers.AbstractWrapper2;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
 
 import org.apache.log4j.Logger;
 import org.apache.mina.common.IoHandlerAdapter;
@@ -43,6 +45,13 @@ import org.apache.mina.common.IoSession;
 public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 	
 	private static final String SESSION_STATE_KEY = "ssk";
+
+	/**
+	 * Predicate of the client wrapper giving the maximum number of data
+	 * messages sent and not yet acknowledged. The default (1) waits for the
+	 * acknowledgment of each message before sending the next one.
+	 */
+	public static final String WINDOW_SIZE = "ss-window-size";
 	
 	private SafeStorage ss;
 
@@ -70,29 +79,29 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 			}
 			SessionState sstate = new SessionState () ;
 			sstate.setWrapper(wrapper);
-			sstate.setReaderPS(ss.getStorage().createPreparedStatement("select pk,stream_element,created_at from "+wrapper.getTableName()+" where processed = false order by pk asc limit 1"));	
-			logger.debug("isKeepProcessedSafeStorageEntries: " + wrapper.isKeepProcessedSafeStorageEntries());
+			sstate.setWindowSize(hello.getWrapperDetails().getPredicateValueAsInt(WINDOW_SIZE, 1));
+			sstate.setReaderPS(ss.getStorage().createPreparedStatement("select pk,stream_element,created_at from "+wrapper.getTableName()+" where processed = false and pk > ? order by pk asc limit ?"));	
+			logger.debug("isKeepProcessedSafeStorageEntries: " + wrapper.isKeepProcessedSafeStorageEntries() + ", window size: " + sstate.getWindowSize());
+			// the acknowledgments are cumulative, all the rows sent since the previous one are processed at once
 			if (wrapper.isKeepProcessedSafeStorageEntries()) {
-				sstate.setSuccessAckUpdatePS(ss.getStorage().createPreparedStatement("update "+wrapper.getTableName()+" set PROCESSED  = true where pk = ? "));
+				sstate.setSuccessAckUpdatePS(ss.getStorage().createPreparedStatement("update "+wrapper.getTableName()+" set PROCESSED  = true where pk > ? and pk <= ? "));
 			}
 			else {
-				sstate.setSuccessAckUpdatePS(ss.getStorage().createPreparedStatement("delete from " + wrapper.getTableName() + " where pk = ? "));
+				sstate.setSuccessAckUpdatePS(ss.getStorage().createPreparedStatement("delete from " + wrapper.getTableName() + " where pk > ? and pk <= ? "));
 			}
 			session.setAttribute(SESSION_STATE_KEY, sstate);
 		}
 		if (message instanceof AcknowledgmentMsg) {
 			AcknowledgmentMsg ack = (AcknowledgmentMsg)message;
 			if (!ack.isAck()) {
-				logger.error("Recieved Nack for Hello Message sent for "+((HelloMsg) message).getWrapperDetails().toString());
+				logger.error("Recieved Nack for the data message "+ack.getSeqNumber()+" sent on session >" + session + "<");
 				logger.error("Closing the connection to the SafeStorageServer...");
 				session.close();
 				return;
 			}else {
 				SessionState sstate = (SessionState) session.getAttribute(SESSION_STATE_KEY);
 				if (sstate != null) {
-					sstate.getSuccessAckUpdatePS().clearParameters();
-					sstate.getSuccessAckUpdatePS().setLong(1, ack.getSeqNumber());
-					sstate.getSuccessAckUpdatePS().executeUpdate();
+					acknowledged(sstate, ack.getSeqNumber());
 				}
 				else {
 					logger.error("No Session State found for session >" + session + "<");
@@ -105,7 +114,28 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 	}
 
 	/**
-	 * Send one (block until one available to be sent).
+	 * Marks as processed (or deletes) all the rows sent up to the
+	 * acknowledged one.
+	 */
+	private void acknowledged(SessionState sstate, long seqNumber) throws SQLException {
+		if (seqNumber <= sstate.getLastAckedPk())
+			return;
+		sstate.getSuccessAckUpdatePS().clearParameters();
+		sstate.getSuccessAckUpdatePS().setLong(1, sstate.getLastAckedPk());
+		sstate.getSuccessAckUpdatePS().setLong(2, seqNumber);
+		sstate.getSuccessAckUpdatePS().executeUpdate();
+		sstate.setLastAckedPk(seqNumber);
+		LinkedList<Long> inFlight = sstate.getInFlight();
+		while (!inFlight.isEmpty() && inFlight.getFirst() <= seqNumber)
+			inFlight.removeFirst();
+	}
+
+	/**
+	 * Sends data messages until the window of unacknowledged messages is
+	 * full (block until one available to be sent if none is waiting for an
+	 * acknowledgment). The rows are read by batches of half a window, the
+	 * client acknowledges the last message of each batch so that the next one
+	 * can be sent while the previous is still in flight.
 	 * @param session
 	 * @throws InterruptedException 
 	 */
@@ -116,19 +146,37 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 			logger.error("No Session State found for session >" + session + "<");
 			return ;
 		}
-		ResultSet rs = sstate.getReaderPS().executeQuery();
-		if (rs.next()) {
-			long pk =rs.getLong(1);
-			Object[]  se = (Object[]) rs.getArray(2).getArray();
-			long ts = rs.getTimestamp(3).getTime();
+		while (sstate.getInFlight().size() < sstate.getWindowSize()) {
+			int limit = Math.min(sstate.getBatchSize(), sstate.getWindowSize() - sstate.getInFlight().size());
+			PreparedStatement reader = sstate.getReaderPS();
+			reader.clearParameters();
+			reader.setLong(1, sstate.getLastSentPk());
+			reader.setInt(2, limit);
+			ResultSet rs = reader.executeQuery();
+			ArrayList<DataMsg> batch = new ArrayList<DataMsg>(limit);
+			while (rs.next()) {
+				long pk =rs.getLong(1);
+				Object[]  se = (Object[]) rs.getArray(2).getArray();
+				long ts = rs.getTimestamp(3).getTime();
+				DataMsg dataMsg = new DataMsg(se,pk,ts);
+				dataMsg.setAckOptional(true);
+				batch.add(dataMsg);
+			}
 			rs.close();
-			session.write(new DataMsg(se,pk,ts));
-			logger.debug("Sending data");
-		}
-		else { 
-			logger.debug("Blocking for the wrapper's until a new data have generated.");
-			sstate.getWrapper().canReaderDB();
-			postData(session);
+			if (batch.isEmpty()) {
+				if (!sstate.getInFlight().isEmpty())
+					return; // the next acknowledgment resumes the sending
+				logger.debug("Blocking for the wrapper's until a new data have generated.");
+				sstate.getWrapper().canReaderDB();
+				continue;
+			}
+			batch.get(batch.size() - 1).setAckOptional(false);
+			for (DataMsg dataMsg : batch) {
+				sstate.getInFlight().addLast(dataMsg.getSequenceNumber());
+				sstate.setLastSentPk(dataMsg.getSequenceNumber());
+				session.write(dataMsg);
+			}
+			logger.debug("Sending data ("+batch.size()+" messages)");
 		}
 	}
 
@@ -163,8 +211,52 @@ public class SafeStorageServerSessionHandler extends IoHandlerAdapter{
 		
 		private PreparedStatement successAckUpdatePS;
 
+		private int windowSize = 1;
+
+		private long lastSentPk = -1;
+
+		private long lastAckedPk = -1;
+
+		/**
+		 * The sequence numbers sent and not yet acknowledged, in increasing
+		 * order.
+		 */
+		private LinkedList<Long> inFlight = new LinkedList<Long>();
+
 		public SessionState () {}
 
+		public int getWindowSize() {
+			return windowSize;
+		}
+
+		public void setWindowSize(int windowSize) {
+			this.windowSize = Math.max(windowSize, 1);
+		}
+
+		public int getBatchSize() {
+			return Math.max(windowSize / 2, 1);
+		}
+
+		public long getLastSentPk() {
+			return lastSentPk;
+		}
+
+		public void setLastSentPk(long lastSentPk) {
+			this.lastSentPk = lastSentPk;
+		}
+
+		public long getLastAckedPk() {
+			return lastAckedPk;
+		}
+
+		public void setLastAckedPk(long lastAckedPk) {
+			this.lastAckedPk = lastAckedPk;
+		}
+
+		public LinkedList<Long> getInFlight() {
+			return inFlight;
+		}
+
 		public AbstractWrapper2 getWrapper() {
 			return wrapper;
 		}
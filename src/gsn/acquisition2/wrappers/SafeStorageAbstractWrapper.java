@@ -48,6 +48,10 @@ import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
  * ss-host
  * wrapper-name
  *
+ * Optional parameters:
+ * ss-window-size, the number of data messages the safe storage sends
+ * without waiting for their acknowledgment (1 by default).
+ *
  */
 public abstract class SafeStorageAbstractWrapper extends AbstractWrapper implements MessageHandler{
 	
@@ -62,6 +66,14 @@ public abstract class SafeStorageAbstractWrapper extends AbstractWrapper impleme
   public String getWrapperName() {
     return "Safe Storage Proxy - "+key;
   }
+
+  /**
+   * The safe storage keeps the position of each requester, named after the
+   * virtual sensor and the input stream.
+   */
+  public boolean isShareable() {
+    return false;
+  }
   
   String key,ss_host;
   AddressBean wrapperDetails;
@@ -126,4 +138,4 @@ public abstract class SafeStorageAbstractWrapper extends AbstractWrapper impleme
   public void restartConnection () {
 	  run();
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
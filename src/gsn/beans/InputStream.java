@@ -37,8 +37,10 @@ import gsn.vsensor.AbstractVirtualSensor;
 
 import java.io.Serializable;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
@@ -267,22 +269,8 @@ public class InputStream implements Serializable{
 
 	public boolean executeQuery( final CharSequence alias ) throws SQLException{
 		if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Notified by StreamSource on the alias: " ).append( alias ).toString( ) );
-		if ( this.pool == null ) {
-			logger.debug( "The input is dropped b/c the VSensorInstance is not set yet." );
-			return false;
-		}
-
-		if ( this.currentCount > this.getCount( ) ) {
-			if ( logger.isInfoEnabled( ) ) logger.info( "Maximum count reached, the value *discarded*" );
+		if ( !isAcceptingData( ) )
 			return false;
-		}
-
-		final long currentTimeMillis = System.currentTimeMillis( );
-		if ( this.rate > 0 && ( currentTimeMillis - this.lastVisited ) < this.rate ) {
-			if ( logger.isInfoEnabled( ) ) logger.info( "Called by *discarded* b/c of the rate limit reached." );
-			return false;
-		}
-		this.lastVisited = currentTimeMillis;
 
 		if ( !queryCached ) {
 			rewriteQuery();
@@ -293,28 +281,10 @@ public class InputStream implements Serializable{
 		int elementCounterForDebugging = 0;
 		if ( queryCached && Main.getWindowStorage().isThereAnyResult( this.rewrittenSQL ) ) {
 			this.currentCount++;
-			AbstractVirtualSensor sensor = null;
 			if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Executing the main query for InputStream : " ).append( this.getInputStreamName( ) ).toString( ) );
 
 			final Enumeration < StreamElement > resultOfTheQuery = Main.getWindowStorage().executeQuery( this.rewrittenSQL , false );
-			try {
-				sensor = pool.borrowVS( );
-				while ( resultOfTheQuery.hasMoreElements( ) ) {
-					elementCounterForDebugging++;
-					StreamElement element= resultOfTheQuery.nextElement( );
-					sensor.dataAvailable( this.getInputStreamName( ) , element );
-				}
-			} catch ( final UnsupportedOperationException e ) {
-				logger.warn( "The stream element produced by the virtual sensor is dropped because of the following error : " );
-				logger.warn( e.getMessage( ) , e );
-			} catch ( final VirtualSensorInitializationFailedException e ) {
-				logger.error( "The stream element can't deliver its data to the virtual sensor " + sensor.getVirtualSensorConfiguration( ).getName( )
-						+ " because initialization of that virtual sensor failed" );
-				logger.error(e.getMessage(),e);
-			} finally {
-				this.pool.returnVS( sensor );
-			}
-
+			elementCounterForDebugging = deliver( resultOfTheQuery );
 		}
 		if ( logger.isDebugEnabled( ) ) {
 			logger.debug( new StringBuilder( ).append( "Input Stream's result has *" ).append( elementCounterForDebugging ).append( "* stream elements" ).toString( ) );
@@ -322,6 +292,76 @@ public class InputStream implements Serializable{
 		return true;
 	}
 
+	/**
+	 * Same as {@link #executeQuery(CharSequence)} for the stream sources whose window is evaluated 
+	 * in memory. The content of the window is handed over to the virtual sensor as is, hence this 
+	 * is only valid for input streams which don't join nor filter their single stream source.
+	 * 
+	 * @param alias The alias of the StreamSource which has new data.
+	 * @param window The content of the window, newest element first.
+	 */
+	public boolean dataAvailable( final CharSequence alias , final List < StreamElement > window ) {
+		if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Notified by StreamSource on the alias: " ).append( alias ).append( " (in memory)" ).toString( ) );
+		if ( !isAcceptingData( ) )
+			return false;
+		if ( !window.isEmpty( ) ) {
+			this.currentCount++;
+			deliver( Collections.enumeration( window ) );
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the pool, the count and the rate limits of this input stream.
+	 */
+	private boolean isAcceptingData( ) {
+		if ( this.pool == null ) {
+			logger.debug( "The input is dropped b/c the VSensorInstance is not set yet." );
+			return false;
+		}
+
+		if ( this.currentCount > this.getCount( ) ) {
+			if ( logger.isInfoEnabled( ) ) logger.info( "Maximum count reached, the value *discarded*" );
+			return false;
+		}
+
+		final long currentTimeMillis = System.currentTimeMillis( );
+		if ( this.rate > 0 && ( currentTimeMillis - this.lastVisited ) < this.rate ) {
+			if ( logger.isInfoEnabled( ) ) logger.info( "Called by *discarded* b/c of the rate limit reached." );
+			return false;
+		}
+		this.lastVisited = currentTimeMillis;
+		return true;
+	}
+
+	/**
+	 * Hands the stream elements over to the virtual sensor, through its mailbox
+	 * once it is started.
+	 * @return The number of delivered stream elements.
+	 */
+	private int deliver( final Enumeration < StreamElement > elements ) {
+		int elementCounter = 0;
+		AbstractVirtualSensor sensor = null;
+		try {
+			sensor = pool.borrowVS( );
+			while ( elements.hasMoreElements( ) ) {
+				elementCounter++;
+				StreamElement element= elements.nextElement( );
+				pool.deliver( this.getInputStreamName( ) , element );
+			}
+		} catch ( final UnsupportedOperationException e ) {
+			logger.warn( "The stream element produced by the virtual sensor is dropped because of the following error : " );
+			logger.warn( e.getMessage( ) , e );
+		} catch ( final VirtualSensorInitializationFailedException e ) {
+			logger.error( "The stream element can't deliver its data to the virtual sensor " + sensor.getVirtualSensorConfiguration( ).getName( )
+					+ " because initialization of that virtual sensor failed" );
+			logger.error(e.getMessage(),e);
+		} finally {
+			this.pool.returnVS( sensor );
+		}
+		return elementCounter;
+	}
+
 	private void rewriteQuery() {
 		String query = getQuery().trim().toLowerCase();
 		for (int i = 0; i < sources.length; i++) {
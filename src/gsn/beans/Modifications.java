@@ -35,6 +35,7 @@ import gsn.http.rest.PushRemoteWrapper;
 import gsn.http.rest.RestRemoteWrapper;
 import gsn.storage.SQLUtils;
 import gsn.utils.ValidityTools;
+import gsn.utils.graph.Edge;
 import gsn.utils.graph.Graph;
 import gsn.utils.graph.Node;
 import gsn.utils.graph.NodeNotExistsExeption;
@@ -196,6 +197,23 @@ public final class Modifications {
 		return graph;
 	}
 
+	/**
+	 * The virtual sensors of the add list the given one reads from, through a
+	 * local wrapper, which should be loaded before it.
+	 */
+	public List<VSensorConfig> getDependencies(VSensorConfig config) {
+		List<VSensorConfig> dependencies = new ArrayList<VSensorConfig>();
+		Node<VSensorConfig> node = graph.findNode(config);
+		if (node == null)
+			return dependencies;
+		for (Edge<VSensorConfig> edge : node.getOutputEdges()) {
+			VSensorConfig dependency = edge.getEndNode().getObject();
+			if (dependency != config && addVirtualSensorConf.contains(dependency))
+				dependencies.add(dependency);
+		}
+		return dependencies;
+	}
+
 	private void buildDependencyGraph ( ) {
 		graph = new Graph<VSensorConfig>();
 		Iterator<VSensorConfig> allVSensorConfigs = Mappings.getAllVSensorConfigs();
@@ -0,0 +1,211 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/StreamColumns.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans;
+
+import java.io.Serializable;
+
+/**
+ * The values of a fixed number of rows of a {@link StreamSchema}, stored by
+ * column in primitive arrays: the integer fields in a long[], the doubles in
+ * a double[] and the other fields as objects. It is the storage shared by
+ * {@link StreamElementBatch} and the window buffers, which decide how the
+ * rows are laid out (in order or as a ring). The slots are addressed by
+ * their index in the arrays, the columns are not thread safe.
+ */
+public final class StreamColumns {
+
+	private final StreamSchema schema;
+
+	private final long[][] longColumns;
+
+	private final double[][] doubleColumns;
+
+	private final Serializable[][] objectColumns;
+
+	private final boolean[][] nulls;
+
+	private final int capacity;
+
+	public StreamColumns(StreamSchema schema, int capacity) {
+		this.schema = schema;
+		this.capacity = capacity;
+		int columns = schema.size();
+		longColumns = new long[columns][];
+		doubleColumns = new double[columns][];
+		objectColumns = new Serializable[columns][];
+		nulls = new boolean[columns][capacity];
+		for (int c = 0; c < columns; c++) {
+			switch (schema.getColumnKind(c)) {
+			case StreamSchema.LONG_COLUMN:
+				longColumns[c] = new long[capacity];
+				break;
+			case StreamSchema.DOUBLE_COLUMN:
+				doubleColumns[c] = new double[capacity];
+				break;
+			default:
+				objectColumns[c] = new Serializable[capacity];
+			}
+		}
+	}
+
+	public StreamSchema getSchema() {
+		return schema;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Copies <code>length</code> slots of <code>source</code>, starting at
+	 * <code>from</code>, to these columns starting at <code>to</code>.
+	 */
+	public void copy(StreamColumns source, int from, int to, int length) {
+		for (int c = 0; c < schema.size(); c++) {
+			System.arraycopy(source.nulls[c], from, nulls[c], to, length);
+			if (longColumns[c] != null)
+				System.arraycopy(source.longColumns[c], from, longColumns[c], to, length);
+			else if (doubleColumns[c] != null)
+				System.arraycopy(source.doubleColumns[c], from, doubleColumns[c], to, length);
+			else
+				System.arraycopy(source.objectColumns[c], from, objectColumns[c], to, length);
+		}
+	}
+
+	/**
+	 * Sets the fields of a slot from the values of the stream element, the
+	 * fields are matched by name unless the element has the layout of the
+	 * schema (see {@link StreamSchema#indexIn(StreamElement, int)}).
+	 */
+	public void set(int index, StreamElement se) {
+		Serializable[] data = se.getData();
+		for (int c = 0; c < schema.size(); c++) {
+			int i = schema.indexIn(se, c);
+			set(index, c, i == -1 ? null : data[i]);
+		}
+	}
+
+	/**
+	 * Sets a field from its boxed value.
+	 */
+	public void set(int index, int column, Serializable value) {
+		if (value == null) {
+			setNull(index, column);
+			return;
+		}
+		if (longColumns[column] != null)
+			longColumns[column][index] = ((Number) value).longValue();
+		else if (doubleColumns[column] != null)
+			doubleColumns[column][index] = ((Number) value).doubleValue();
+		else
+			objectColumns[column][index] = value;
+		nulls[column][index] = false;
+	}
+
+	public void setLong(int index, int column, long value) {
+		if (longColumns[column] != null)
+			longColumns[column][index] = value;
+		else if (doubleColumns[column] != null)
+			doubleColumns[column][index] = value;
+		else
+			throw new IllegalArgumentException("The field " + schema.getFieldName(column) + " is not numeric.");
+		nulls[column][index] = false;
+	}
+
+	public void setDouble(int index, int column, double value) {
+		if (doubleColumns[column] != null)
+			doubleColumns[column][index] = value;
+		else if (longColumns[column] != null)
+			longColumns[column][index] = (long) value;
+		else
+			throw new IllegalArgumentException("The field " + schema.getFieldName(column) + " is not numeric.");
+		nulls[column][index] = false;
+	}
+
+	public void setNull(int index, int column) {
+		nulls[column][index] = true;
+		if (objectColumns[column] != null)
+			objectColumns[column][index] = null;
+	}
+
+	/**
+	 * Sets all the fields of a slot to null, dropping the references it
+	 * holds.
+	 */
+	public void clear(int index) {
+		for (int c = 0; c < schema.size(); c++)
+			setNull(index, c);
+	}
+
+	public boolean isNull(int index, int column) {
+		return nulls[column][index];
+	}
+
+	/**
+	 * @return the value of a numeric field, 0 if it is null.
+	 */
+	public long getLong(int index, int column) {
+		if (longColumns[column] != null)
+			return longColumns[column][index];
+		if (doubleColumns[column] != null)
+			return (long) doubleColumns[column][index];
+		throw new IllegalArgumentException("The field " + schema.getFieldName(column) + " is not numeric.");
+	}
+
+	/**
+	 * @return the value of a numeric field, 0 if it is null.
+	 */
+	public double getDouble(int index, int column) {
+		if (doubleColumns[column] != null)
+			return doubleColumns[column][index];
+		if (longColumns[column] != null)
+			return longColumns[column][index];
+		throw new IllegalArgumentException("The field " + schema.getFieldName(column) + " is not numeric.");
+	}
+
+	/**
+	 * @return the value of the field, boxed into the type of the field.
+	 */
+	public Serializable getValue(int index, int column) {
+		if (nulls[column][index])
+			return null;
+		if (longColumns[column] != null)
+			return schema.boxLong(column, longColumns[column][index]);
+		if (doubleColumns[column] != null)
+			return doubleColumns[column][index];
+		return objectColumns[column][index];
+	}
+
+	/**
+	 * @return the values of all the fields of a slot, boxed.
+	 */
+	public Serializable[] getValues(int index) {
+		Serializable[] values = new Serializable[schema.size()];
+		for (int c = 0; c < values.length; c++)
+			values[c] = getValue(index, c);
+		return values;
+	}
+}
@@ -48,6 +48,12 @@ public final class StreamElement implements Serializable {
 
 	private transient TreeMap < String , Integer > indexedFieldNames = null;
 
+	/**
+	 * The shared structure of the element, null if the element was built
+	 * from its own field names and types (it then indexes them itself).
+	 */
+	private transient StreamSchema                 schema            = null;
+
 	private long                                   timeStamp         = -1;
 
 	private String [ ]                             fieldNames;
@@ -71,6 +77,7 @@ public final class StreamElement implements Serializable {
 		}
 		this.timeStamp=other.timeStamp;
 		this.internalPrimayKey = other.internalPrimayKey;
+		this.schema = other.schema;
 	}
 	
 	public StreamElement(){ //constructor for serialization
@@ -80,14 +87,19 @@ public final class StreamElement implements Serializable {
 		this(outputStructure,data,System.currentTimeMillis());
 	}
 	public StreamElement ( DataField [ ] outputStructure , final Serializable [ ] data , final long timeStamp ) {
-		this.fieldNames = new String [ outputStructure.length ];
-		this.fieldTypes = new Byte [ outputStructure.length ];
+		this( StreamSchema.of( outputStructure ) , data , timeStamp );
+	}
+
+	/**
+	 * Builds an element sharing the field names, types and index of the
+	 * schema, the elements of a same stream should be built this way.
+	 */
+	public StreamElement ( final StreamSchema schema , final Serializable [ ] data , final long timeStamp ) {
+		if ( schema.size( ) != data.length ) throw new IllegalArgumentException( "The length of dataFileNames and the actual data provided in the constructor of StreamElement doesn't match." );
+		this.schema = schema;
+		this.fieldNames = schema.getFieldNames( );
+		this.fieldTypes = schema.getFieldTypes( );
 		this.timeStamp = timeStamp;
-		for ( int i = 0 ; i < this.fieldNames.length ; i++ ) {
-			this.fieldNames[ i ] = outputStructure[ i ].getName( ).toLowerCase( );
-			this.fieldTypes[ i ] = outputStructure[ i ].getDataTypeID( );
-		}
-		if ( this.fieldNames.length != data.length ) throw new IllegalArgumentException( "The length of dataFileNames and the actual data provided in the constructor of StreamElement doesn't match." );
 		this.verifyTypesCompatibility( this.fieldTypes , data );
 		this.fieldValues = data;
 	}
@@ -276,9 +288,8 @@ public final class StreamElement implements Serializable {
 	 * @return The value corresponding to the named tuple.
 	 */
 	public final Serializable getData ( final String fieldName ) {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = getFieldIndex( fieldName );
+		if (index == -1) {
 			logger.info("There is a request for field "+fieldName+" for StreamElement: "+this.toString()+". As the requested field doesn't exist, GSN returns Null to the callee.");
 			return null;
 		}
@@ -293,9 +304,8 @@ public final class StreamElement implements Serializable {
 	 * @return The type of the value corresponding to the named tuple.
 	 */
 	public final Byte getType ( final String fieldName ) {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = getFieldIndex( fieldName );
+		if (index == -1) {
 			logger.warn("There is a request for type of field "+fieldName+" for StreamElement: "+this.toString()+". As the requested field doesn't exist, GSN returns Null to the callee.");
 			return null;
 		}
@@ -464,6 +474,30 @@ public final class StreamElement implements Serializable {
 		return toReturn;
 	}
 	
+	/**
+	 * Returns the position of the field in the arrays returned by
+	 * {@link #getData()} and {@link #getFieldTypes()}, to access the fields by
+	 * index rather than by name in the loops.
+	 * 
+	 * @param fieldName The name of the field (case insensitive).
+	 * @return The index of the field or -1 if it doesn't exist.
+	 */
+	public final int getFieldIndex ( final String fieldName ) {
+		if ( schema != null )
+			return schema.indexOf( fieldName );
+		generateIndex();
+		Integer index = indexedFieldNames.get( fieldName );
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @return The shared structure of this element or null if the element
+	 *         was built from its own field names and types.
+	 */
+	public StreamSchema getSchema ( ) {
+		return schema;
+	}
+
 	/**
 	 * Build the index for mapping field name to their positions in the array if it is not yet built
 	 * This assumes that StreamElements cannot change their structure
@@ -483,9 +517,8 @@ public final class StreamElement implements Serializable {
 	 * @throws IllegalArgumentException
 	 */
 	protected void setData(String fieldName, Serializable data) throws IllegalArgumentException {
-		generateIndex();
-		Integer index = indexedFieldNames.get( fieldName );
-		if (index == null) {
+		int index = getFieldIndex( fieldName );
+		if (index == -1) {
 			logger.warn("There is a request for setting field "+fieldName+" for StreamElement: "+this.toString()+". But the requested field doesn't exist.");
 		}
 		verifyTypeCompatibility(fieldTypes[index], data);
@@ -0,0 +1,227 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/StreamElementBatch.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A batch of stream elements sharing a {@link StreamSchema}, stored by column
+ * in primitive arrays (see {@link StreamColumns}): the integer fields in a
+ * long[], the doubles in a double[] and the other fields as objects. The
+ * values can be written and read by index without being boxed, the
+ * {@link StreamElement} of a row is only built when it is requested (see
+ * {@link #get(int)}).
+ * A batch is not thread safe.
+ */
+public class StreamElementBatch {
+
+	public static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+	private final StreamSchema schema;
+
+	private long[] timestamps;
+
+	private long[] primaryKeys;
+
+	private StreamColumns columns;
+
+	private int size = 0;
+
+	public StreamElementBatch(StreamSchema schema) {
+		this(schema, DEFAULT_INITIAL_CAPACITY);
+	}
+
+	public StreamElementBatch(StreamSchema schema, int initialCapacity) {
+		this.schema = schema;
+		int capacity = Math.max(initialCapacity, 1);
+		timestamps = new long[capacity];
+		primaryKeys = new long[capacity];
+		columns = new StreamColumns(schema, capacity);
+	}
+
+	public StreamSchema getSchema() {
+		return schema;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= timestamps.length)
+			return;
+		int newCapacity = Math.max(capacity, timestamps.length * 2);
+		timestamps = copyOf(timestamps, newCapacity);
+		primaryKeys = copyOf(primaryKeys, newCapacity);
+		StreamColumns grown = new StreamColumns(schema, newCapacity);
+		grown.copy(columns, 0, 0, size);
+		columns = grown;
+	}
+
+	private long[] copyOf(long[] array, int capacity) {
+		long[] toReturn = new long[capacity];
+		System.arraycopy(array, 0, toReturn, 0, size);
+		return toReturn;
+	}
+
+	/**
+	 * Appends an empty row (all the fields are null).
+	 *
+	 * @return the index of the row.
+	 */
+	public int addRow(long timestamp) {
+		ensureCapacity(size + 1);
+		int row = size++;
+		timestamps[row] = timestamp;
+		primaryKeys[row] = -1;
+		columns.clear(row);
+		return row;
+	}
+
+	/**
+	 * Appends the values of the stream element, the fields are matched by
+	 * name unless the element has the layout of the schema (see
+	 * {@link StreamSchema#indexIn(StreamElement, int)}).
+	 *
+	 * @return the index of the row.
+	 */
+	public int add(StreamElement se) {
+		int row = addRow(se.getTimeStamp());
+		primaryKeys[row] = se.getInternalPrimayKey();
+		columns.set(row, se);
+		return row;
+	}
+
+	/**
+	 * Sets a field from its boxed value.
+	 */
+	public void set(int row, int column, Serializable value) {
+		checkRow(row);
+		columns.set(row, column, value);
+	}
+
+	public void setLong(int row, int column, long value) {
+		checkRow(row);
+		columns.setLong(row, column, value);
+	}
+
+	public void setDouble(int row, int column, double value) {
+		checkRow(row);
+		columns.setDouble(row, column, value);
+	}
+
+	public void setNull(int row, int column) {
+		checkRow(row);
+		columns.setNull(row, column);
+	}
+
+	public void setPrimaryKey(int row, long pk) {
+		checkRow(row);
+		primaryKeys[row] = pk;
+	}
+
+	public boolean isNull(int row, int column) {
+		checkRow(row);
+		return columns.isNull(row, column);
+	}
+
+	/**
+	 * @return the value of a numeric field, 0 if it is null.
+	 */
+	public long getLong(int row, int column) {
+		checkRow(row);
+		return columns.getLong(row, column);
+	}
+
+	/**
+	 * @return the value of a numeric field, 0 if it is null.
+	 */
+	public double getDouble(int row, int column) {
+		checkRow(row);
+		return columns.getDouble(row, column);
+	}
+
+	/**
+	 * @return the value of the field, boxed into the type of the field.
+	 */
+	public Serializable getValue(int row, int column) {
+		checkRow(row);
+		return columns.getValue(row, column);
+	}
+
+	public long getTimeStamp(int row) {
+		checkRow(row);
+		return timestamps[row];
+	}
+
+	public long getPrimaryKey(int row) {
+		checkRow(row);
+		return primaryKeys[row];
+	}
+
+	/**
+	 * @return a new stream element holding the values of the row.
+	 */
+	public StreamElement get(int row) {
+		checkRow(row);
+		StreamElement toReturn = new StreamElement(schema, columns.getValues(row), timestamps[row]);
+		toReturn.setInternalPrimayKey(primaryKeys[row]);
+		return toReturn;
+	}
+
+	/**
+	 * @return a read only view of the batch as stream elements, built when
+	 *         they are accessed.
+	 */
+	public List<StreamElement> asList() {
+		return new AbstractList<StreamElement>() {
+			public StreamElement get(int row) {
+				return StreamElementBatch.this.get(row);
+			}
+
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	public void clear() {
+		for (int row = 0; row < size; row++)
+			columns.clear(row);
+		size = 0;
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row: " + row + ", size: " + size);
+	}
+}
@@ -0,0 +1,218 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/StreamSchema.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The immutable structure of stream elements (field names and types), shared
+ * by all the elements produced with the same output structure. It holds the
+ * case insensitive index of the fields so that the elements don't have to
+ * build their own, and tells in which kind of primitive column each field can
+ * be stored (see {@link StreamElementBatch}).
+ */
+public final class StreamSchema {
+
+	/**
+	 * The kinds of column a field is stored in.
+	 */
+	public static final byte LONG_COLUMN = 0;
+
+	public static final byte DOUBLE_COLUMN = 1;
+
+	public static final byte OBJECT_COLUMN = 2;
+
+	private static final int MAX_CACHED_SCHEMAS = 1024;
+
+	/**
+	 * The schemas of the output structures, by identity.
+	 */
+	private static final Map<DataField[], StreamSchema> schemas = new IdentityHashMap<DataField[], StreamSchema>();
+
+	private final String[] fieldNames;
+
+	private final Byte[] fieldTypes;
+
+	private final byte[] columnKinds;
+
+	private final HashMap<String, Integer> index;
+
+	public StreamSchema(DataField[] outputStructure) {
+		this(namesOf(outputStructure), typesOf(outputStructure));
+	}
+
+	public StreamSchema(String[] fieldNames, Byte[] fieldTypes) {
+		if (fieldNames.length != fieldTypes.length)
+			throw new IllegalArgumentException("The length of the field names and the field types doesn't match.");
+		this.fieldNames = fieldNames.clone();
+		this.fieldTypes = fieldTypes.clone();
+		columnKinds = new byte[fieldNames.length];
+		index = new HashMap<String, Integer>(fieldNames.length * 2);
+		for (int i = 0; i < fieldNames.length; i++) {
+			columnKinds[i] = columnKindOf(fieldTypes[i]);
+			String key = fieldNames[i].toLowerCase();
+			if (!index.containsKey(key))
+				index.put(key, i);
+		}
+	}
+
+	/**
+	 * @return the schema of the output structure, shared as long as the same
+	 *         array is used.
+	 */
+	public static StreamSchema of(DataField[] outputStructure) {
+		synchronized (schemas) {
+			StreamSchema schema = schemas.get(outputStructure);
+			if (schema != null && schema.matches(outputStructure))
+				return schema;
+			if (schemas.size() >= MAX_CACHED_SCHEMAS)
+				schemas.clear();
+			schema = new StreamSchema(outputStructure);
+			schemas.put(outputStructure, schema);
+			return schema;
+		}
+	}
+
+	private static String[] namesOf(DataField[] outputStructure) {
+		String[] names = new String[outputStructure.length];
+		for (int i = 0; i < names.length; i++)
+			names[i] = outputStructure[i].getName().toLowerCase();
+		return names;
+	}
+
+	private static Byte[] typesOf(DataField[] outputStructure) {
+		Byte[] types = new Byte[outputStructure.length];
+		for (int i = 0; i < types.length; i++)
+			types[i] = outputStructure[i].getDataTypeID();
+		return types;
+	}
+
+	/**
+	 * @return the kind of primitive column a field of the given GSN type is
+	 *         stored in.
+	 */
+	public static byte columnKindOf(byte type) {
+		switch (type) {
+		case DataTypes.TINYINT:
+		case DataTypes.SMALLINT:
+		case DataTypes.INTEGER:
+		case DataTypes.BIGINT:
+			return LONG_COLUMN;
+		case DataTypes.DOUBLE:
+			return DOUBLE_COLUMN;
+		default:
+			return OBJECT_COLUMN;
+		}
+	}
+
+	/**
+	 * The output structures are mutable, the cached schema is only reused if
+	 * it still describes the array.
+	 */
+	private boolean matches(DataField[] outputStructure) {
+		if (outputStructure.length != fieldNames.length)
+			return false;
+		for (int i = 0; i < fieldNames.length; i++)
+			if (fieldTypes[i] != outputStructure[i].getDataTypeID() || !fieldNames[i].equalsIgnoreCase(outputStructure[i].getName()))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return the position of the field (case insensitive) or -1 if there is
+	 *         no such field.
+	 */
+	public int indexOf(String fieldName) {
+		if (fieldName == null)
+			return -1;
+		Integer i = index.get(fieldName.toLowerCase());
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * Finds a field of this schema in a stream element, without lookup when
+	 * the element has the layout of the schema.
+	 *
+	 * @return the index of the field in the element or -1 if the element
+	 *         doesn't have it.
+	 */
+	public int indexIn(StreamElement se, int column) {
+		if (se.getSchema() == this)
+			return column;
+		String[] names = se.getFieldNames();
+		if (column < names.length && fieldNames[column].equalsIgnoreCase(names[column]))
+			return column;
+		return se.getFieldIndex(fieldNames[column]);
+	}
+
+	public int size() {
+		return fieldNames.length;
+	}
+
+	/**
+	 * The returned array is shared, it must not be modified.
+	 */
+	public String[] getFieldNames() {
+		return fieldNames;
+	}
+
+	/**
+	 * The returned array is shared, it must not be modified.
+	 */
+	public Byte[] getFieldTypes() {
+		return fieldTypes;
+	}
+
+	public String getFieldName(int i) {
+		return fieldNames[i];
+	}
+
+	public byte getFieldType(int i) {
+		return fieldTypes[i];
+	}
+
+	public byte getColumnKind(int i) {
+		return columnKinds[i];
+	}
+
+	/**
+	 * Boxes a value read from a long column into the type of the field.
+	 */
+	public Number boxLong(int i, long value) {
+		switch (fieldTypes[i]) {
+		case DataTypes.TINYINT:
+			return (byte) value;
+		case DataTypes.SMALLINT:
+			return (short) value;
+		case DataTypes.INTEGER:
+			return (int) value;
+		default:
+			return value;
+		}
+	}
+}
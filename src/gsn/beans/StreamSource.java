@@ -41,6 +41,7 @@ import gsn.wrappers.AbstractWrapper;
 import java.io.Serializable;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
@@ -355,6 +356,16 @@ public static final String DEFAULT_QUERY = "select * from wrapper";
 	  
   }
   
+  /**
+   * Called when the window is evaluated in memory (see {@link gsn.beans.windowing.MemoryQueryRewriter}), 
+   * the content of the window is handed over to the input stream without going through the database.
+   * @param window The content of the window, newest element first.
+   */
+  public boolean windowSlided(List<StreamElement> window) throws SQLException{
+	  if ( logger.isDebugEnabled( ) ) logger.debug( new StringBuilder( ).append( "Data availble in the stream *" ).append( getAlias( ) ).append( "* (in memory)" ).toString( ) );
+	  return inputStream.dataAvailable( getUIDStr() , window );
+  }
+  
   public void setQueryRewriter(QueryRewriter rewriter){
 	  this.queryRewriter = rewriter;
   }
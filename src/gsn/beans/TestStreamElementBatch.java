@@ -0,0 +1,90 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/TestStreamElementBatch.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+
+import org.junit.Test;
+
+public class TestStreamElementBatch {
+
+	private DataField[] fields = new DataField[] { new DataField("Temperature", DataTypes.DOUBLE), new DataField("node", DataTypes.SMALLINT),
+			new DataField("label", DataTypes.VARCHAR) };
+
+	@Test
+	public void testSharedSchema() {
+		StreamElement first = new StreamElement(fields, new Serializable[] { 1.5, (short) 1, "a" }, 1);
+		StreamElement second = new StreamElement(fields, new Serializable[] { 2.5, (short) 2, "b" }, 2);
+		assertSame(first.getSchema(), second.getSchema());
+		assertSame(first.getFieldNames(), second.getFieldNames());
+		assertEquals("temperature", first.getFieldNames()[0]);
+		assertEquals(0, second.getFieldIndex("TEMPERATURE"));
+		assertEquals(-1, second.getFieldIndex("unknown"));
+		assertEquals("b", second.getData("Label"));
+		assertEquals(DataTypes.SMALLINT, (byte) second.getType("node"));
+	}
+
+	@Test
+	public void testColumns() {
+		StreamSchema schema = StreamSchema.of(fields);
+		StreamElementBatch batch = new StreamElementBatch(schema, 1);
+		for (int i = 0; i < 10; i++) {
+			int row = batch.addRow(100 + i);
+			batch.setDouble(row, 0, i * 0.5);
+			batch.setLong(row, 1, i);
+			if (i % 2 == 0)
+				batch.set(row, 2, "even");
+		}
+		// an element with another layout
+		StreamElement se = new StreamElement(new String[] { "LABEL", "node" }, new Byte[] { DataTypes.VARCHAR, DataTypes.SMALLINT }, new Serializable[] {
+				"other", (short) 42 }, 200);
+		se.setInternalPrimayKey(7);
+		batch.add(se);
+
+		assertEquals(11, batch.size());
+		assertEquals(4.5, batch.getDouble(9, 0), 0);
+		assertEquals(9L, batch.getLong(9, 1));
+		assertTrue(batch.isNull(9, 2));
+		assertTrue(batch.isNull(10, 0));
+
+		StreamElement row = batch.get(10);
+		assertSame(schema, row.getSchema());
+		assertNull(row.getData("temperature"));
+		assertEquals((short) 42, row.getData("node"));
+		assertEquals("other", row.getData("label"));
+		assertEquals(200L, row.getTimeStamp());
+		assertEquals(7L, row.getInternalPrimayKey());
+		assertEquals("even", batch.asList().get(4).getData("label"));
+
+		batch.clear();
+		assertEquals(0, batch.size());
+	}
+}
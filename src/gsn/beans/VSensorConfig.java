@@ -380,6 +380,10 @@ public class VSensorConfig implements Serializable {
         return storage;
     }
 
+    public void setStorage(StorageConfig storage) {
+        this.storage = storage;
+    }
+
     public boolean isStorageCountBased ( ) {
 		return this.isStorageCountBased;
 	}
@@ -37,18 +37,14 @@ import gsn.storage.SQLUtils;
 import gsn.storage.StorageManager;
 import gsn.utils.CaseInsensitiveComparator;
 import gsn.utils.GSNRuntimeException;
+import gsn.utils.TimingWheel;
 import gsn.wrappers.AbstractWrapper;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.TreeMap;
 
 import org.apache.log4j.Logger;
@@ -56,22 +52,23 @@ import org.apache.log4j.Logger;
 public class LocalTimeBasedSlidingHandler implements SlidingHandler {
 
     private static final transient Logger logger = Logger.getLogger(LocalTimeBasedSlidingHandler.class);
-    private static int timerCount = 0;
     private List<StreamSource> streamSources;
     private AbstractWrapper wrapper;
-    private Timer timer;
+    private TimingWheel.Timeout timer;
+    private final TimingWheel.Mailbox mailbox;
     private long timerTick = -1;
     private Map<StreamSource, Long> slidingHashMap;
 
     public LocalTimeBasedSlidingHandler(AbstractWrapper wrapper) {
         streamSources = Collections.synchronizedList(new ArrayList<StreamSource>());
         slidingHashMap = Collections.synchronizedMap(new HashMap<StreamSource, Long>());
-        timer = new Timer("LocalTimeBasedSlidingHandlerTimer" + (++timerCount));
         this.wrapper = wrapper;
+        mailbox = new TimingWheel.Mailbox(wrapper.getDBAliasInStr() + "-sliding");
     }
 
     public void addStreamSource(StreamSource streamSource) {
-        SQLViewQueryRewriter rewriter = new LTBSQLViewQueryRewriter();
+        QueryRewriter rewriter = wrapper.isWindowInMemory(streamSource) ? new MemoryQueryRewriter(wrapper.getWindowBuffer(), true)
+                : new LTBSQLViewQueryRewriter();
         rewriter.setStreamSource(streamSource);
         rewriter.initialize();
         if (streamSource.getWindowingType() != WindowType.TIME_BASED_SLIDE_ON_EACH_TUPLE) {
@@ -91,14 +88,8 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
                     timerTick = GCD(timerTick, streamSource.getParsedSlideValue());
                 }
             }
-            if (oldTimerTick != timerTick) {
-                timer.cancel();
-                timer = new Timer();
-                if (logger.isDebugEnabled()) {
-                    logger.debug("About to schedule new timer task at period " + timerTick + "ms in the " + wrapper.getDBAliasInStr() + " wrapper");
-                }
-                timer.schedule(new LTBTimerTask(), 500, timerTick);
-            }
+            if (oldTimerTick != timerTick)
+                scheduleTimer();
         } else {
             streamSources.add(streamSource);
         }
@@ -108,13 +99,16 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
         return WindowingUtil.GCD(a, b);
     }
 
-    private class LTBTimerTask extends TimerTask {
+    /**
+     * Slides the windows due, the expiries coalesced while the wrapper was
+     * late count for as many ticks but slide a window once.
+     */
+    private class LTBTimerTask implements TimingWheel.Task {
 
-        @Override
-        public void run() {
+        public void run(int expiries) {
             synchronized (slidingHashMap) {
                 for (StreamSource streamSource : slidingHashMap.keySet()) {
-                    long slideVar = slidingHashMap.get(streamSource) + timerTick;
+                    long slideVar = slidingHashMap.get(streamSource) + timerTick * expiries;
                     if (slideVar >= streamSource.getParsedSlideValue()) {
                         slideVar = 0;
                         streamSource.getQueryRewriter().dataAvailable(System.currentTimeMillis());
@@ -166,32 +160,9 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
         }
 
         if (maxTupleCount > 0) {
-            StringBuilder query = new StringBuilder();
-            if (Main.getWindowStorage().isH2() || Main.getWindowStorage().isMysqlDB()) {
-                query.append(" select timed from ").append(wrapper.getDBAliasInStr()).append(" where timed <= ");
-                query.append(System.currentTimeMillis() - maxSlideForTupleBased).append(" order by timed desc limit 1 offset ").append(
-                        maxTupleCount - 1);
-            } else if (Main.getWindowStorage().isSqlServer()) {
-                query.append(" select min(timed) from (select top ").append(maxTupleCount).append(" * ").append(" from ").append(
-                        wrapper.getDBAliasInStr()).append(" where timed <= ").append(System.currentTimeMillis() - maxSlideForTupleBased).append(" order by timed desc) as X  ");
-            }
-
-            if (logger.isDebugEnabled()) {
-                logger.debug("Query for getting oldest timestamp : " + query);
-            }
-            Connection conn = null;
-            try {
-            	ResultSet resultSet = Main.getWindowStorage().executeQueryWithResultSet(query,conn=Main.getWindowStorage().getConnection());
-                if (resultSet.next()) {
-                    timed2 = resultSet.getLong(1);
-                } else {
-                    return -1;
-                }
-            } catch (SQLException e) {
-                logger.error(e.getMessage(), e);
-            } finally {
-               	Main.getWindowStorage().close(conn);
-            }
+            timed2 = wrapper.getTimestamp(System.currentTimeMillis() - maxSlideForTupleBased, maxTupleCount - 1);
+            if (timed2 == -1)
+                return -1;
         }
 
         if (timed1 >= 0 && timed2 >= 0) {
@@ -231,17 +202,28 @@ public class LocalTimeBasedSlidingHandler implements SlidingHandler {
                 }
             }
         }
-        if (oldTimerTick != timerTick && timerTick > 0) {
-            timer.cancel();
-            timer = new Timer();
-            if (logger.isDebugEnabled()) {
-                logger.debug("About to schedule new timer task at period " + timerTick + "ms in the " + wrapper.getDBAliasInStr() + " wrapper");
-            }
-            timer.schedule(new LTBTimerTask(), 500, timerTick);
+        if (oldTimerTick != timerTick && timerTick > 0)
+            scheduleTimer();
+        else if (timerTick <= 0)
+            cancelTimer();
+    }
+
+    private synchronized void scheduleTimer() {
+        cancelTimer();
+        if (logger.isDebugEnabled()) {
+            logger.debug("About to schedule new timer task at period " + timerTick + "ms in the " + wrapper.getDBAliasInStr() + " wrapper");
         }
+        timer = TimingWheel.getInstance().scheduleAtFixedRate(mailbox, new LTBTimerTask(), 500, timerTick);
+    }
+
+    private synchronized void cancelTimer() {
+        if (timer != null)
+            timer.cancel();
+        timer = null;
     }
 
     public void dispose() {
+        cancelTimer();
         synchronized (streamSources) {
             for (StreamSource streamSource : streamSources) {
                 streamSource.getQueryRewriter().dispose();
@@ -0,0 +1,190 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/MemoryQueryRewriter.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+import gsn.storage.CompiledSelect;
+import gsn.storage.SQLUtils;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Evaluates the windows of a stream source in the JVM instead of going
+ * through the SQL views, either against the {@link WindowBuffer} of its
+ * wrapper or, for the windows made of the latest element only, directly on
+ * the element produced by the wrapper. It reproduces the content of the views
+ * created by the SQL rewriters of the sliding handlers, the query of the
+ * stream source being applied on the window by a {@link CompiledSelect}, and
+ * hands the window over to the input stream.
+ * Only the stream sources for which {@link #isApplicable(StreamSource, boolean)}
+ * holds can use it, the others fall back to the SQL views.
+ */
+public class MemoryQueryRewriter extends QueryRewriter {
+
+	private static final transient Logger logger = Logger.getLogger(MemoryQueryRewriter.class);
+
+	private final WindowBuffer buffer;
+
+	private final boolean localTime;
+
+	private CompiledSelect select;
+
+	/**
+	 * @param buffer the window buffer of the wrapper, null if the window only
+	 *            holds the latest element (see {@link #isLatestElementWindow(StreamSource)}).
+	 * @param localTime true if the windows are evaluated against the local
+	 *            clock (as done by {@link LocalTimeBasedSlidingHandler}).
+	 */
+	public MemoryQueryRewriter(WindowBuffer buffer, boolean localTime) {
+		this.buffer = buffer;
+		this.localTime = localTime;
+	}
+
+	/**
+	 * A stream source can be evaluated in memory if its query can be compiled
+	 * (see {@link CompiledSelect}) and if it is the only source of an input
+	 * stream which doesn't join nor filter it (<code>select * from alias</code>).
+	 * Without a window buffer, its window must also hold the latest element
+	 * only.
+	 *
+	 * @param buffered true if the wrapper keeps a window buffer.
+	 */
+	public static boolean isApplicable(StreamSource streamSource, boolean buffered) {
+		if (!buffered && !isLatestElementWindow(streamSource))
+			return false;
+		if (streamSource.getInputStream() == null || streamSource.getInputStream().getSources() == null
+				|| streamSource.getInputStream().getSources().length != 1)
+			return false;
+		if (!SQLUtils.isSelectAll(streamSource.getInputStream().getQuery(), streamSource.getAlias()))
+			return false;
+		return compile(streamSource) != null;
+	}
+
+	/**
+	 * @return true for the windows made of the newest element produced by the
+	 *         wrapper (<code>storage-size=1</code> sliding on each tuple), the
+	 *         elements being produced in increasing timestamp order.
+	 */
+	public static boolean isLatestElementWindow(StreamSource streamSource) {
+		return streamSource.getWindowingType() == WindowType.TUPLE_BASED_SLIDE_ON_EACH_TUPLE && streamSource.getParsedStorageSize() == 1;
+	}
+
+	private static CompiledSelect compile(StreamSource streamSource) {
+		return CompiledSelect.compile(streamSource.getSqlQuery(), "wrapper", streamSource.getWrapper().getOutputFormat());
+	}
+
+	@Override
+	public boolean initialize() {
+		if (streamSource == null) {
+			throw new RuntimeException("Null Pointer Exception: streamSource is null");
+		}
+		select = compile(streamSource);
+		if (select == null) {
+			logger.error("The query of the stream source " + streamSource.getAlias() + " can't be evaluated in memory.");
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public StringBuilder rewrite(String query) {
+		if (streamSource == null) {
+			throw new RuntimeException("Null Pointer Exception: streamSource is null");
+		}
+		return SQLUtils.newRewrite(query, streamSource.getAlias(), streamSource.getUIDStr());
+	}
+
+	@Override
+	public void dispose() {
+	}
+
+	@Override
+	public boolean dataAvailable(long timestamp) {
+		return windowSlided(getWindow(timestamp));
+	}
+
+	@Override
+	public boolean dataAvailable(StreamElement se) {
+		if (buffer != null)
+			return dataAvailable(se.getTimeStamp());
+		float samplingRate = streamSource.getSamplingRate();
+		if (samplingRate <= 0 || (samplingRate < 1 && se.getTimeStamp() % 100 >= samplingRate * 100))
+			return false;
+		// the element as it would be read back from the wrapper table
+		DataField[] outputFormat = streamSource.getWrapper().getOutputFormat();
+		Serializable[] values = new Serializable[outputFormat.length];
+		for (int i = 0; i < outputFormat.length; i++)
+			values[i] = se.getData(outputFormat[i].getName());
+		return windowSlided(Collections.singletonList(new StreamElement(outputFormat, values, se.getTimeStamp())));
+	}
+
+	private boolean windowSlided(List<StreamElement> window) {
+		if (select == null)
+			return false;
+		window = select.apply(window);
+		if (window.isEmpty())
+			return false;
+		if (logger.isDebugEnabled()) {
+			logger.debug(streamSource.getWrapper().getWrapperName() + " - Output stream produced/received from a wrapper (in memory) " + streamSource.toString());
+		}
+		try {
+			return streamSource.windowSlided(window);
+		} catch (SQLException e) {
+			logger.error(e.getMessage(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * @param timestamp the value the SQL rewriters store in the view helper
+	 *            table for this slide.
+	 * @return the content of the window, newest element first.
+	 */
+	public List<StreamElement> getWindow(long timestamp) {
+		long windowSize = streamSource.getParsedStorageSize();
+		float samplingRate = streamSource.getSamplingRate();
+		switch (streamSource.getWindowingType()) {
+		case TUPLE_BASED_SLIDE_ON_EACH_TUPLE:
+			return buffer.select(Long.MIN_VALUE, Long.MAX_VALUE, windowSize, samplingRate);
+		case TUPLE_BASED:
+		case TUPLE_BASED_WIN_TIME_BASED_SLIDE:
+			return buffer.select(Long.MIN_VALUE, timestamp, windowSize, samplingRate);
+		case TIME_BASED_SLIDE_ON_EACH_TUPLE:
+			if (localTime)
+				return buffer.select(System.currentTimeMillis() - windowSize + 1, Long.MAX_VALUE, Long.MAX_VALUE, samplingRate);
+			return buffer.select(timestamp - windowSize, Long.MAX_VALUE, Long.MAX_VALUE, samplingRate);
+		default: // TIME_BASED and TIME_BASED_WIN_TUPLE_BASED_SLIDE
+			return buffer.select(timestamp - windowSize, timestamp, Long.MAX_VALUE, samplingRate);
+		}
+	}
+}
@@ -26,6 +26,7 @@
 
 package gsn.beans.windowing;
 
+import gsn.beans.StreamElement;
 import gsn.beans.StreamSource;
 
 public abstract class QueryRewriter {
@@ -46,6 +47,15 @@ public abstract class QueryRewriter {
 	public abstract void dispose();
 
 	public abstract boolean dataAvailable(long timestamp);
+
+	/**
+	 * Called for each element stored by the wrapper when the window slides on
+	 * each tuple, the rewriters which don't need the element itself only use
+	 * its timestamp.
+	 */
+	public boolean dataAvailable(StreamElement se) {
+		return dataAvailable(se.getTimeStamp());
+	}
 	
 	public StreamSource getStreamSource() {
 		return streamSource;
@@ -38,9 +38,6 @@ import gsn.utils.CaseInsensitiveComparator;
 import gsn.utils.GSNRuntimeException;
 import gsn.wrappers.AbstractWrapper;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -66,7 +63,8 @@ public class RemoteTimeBasedSlidingHandler implements SlidingHandler {
 	}
 
 	public void addStreamSource(StreamSource streamSource) {
-		SQLViewQueryRewriter rewriter = new RTBSQLViewQueryRewriter();
+		QueryRewriter rewriter = wrapper.isWindowInMemory(streamSource) ? new MemoryQueryRewriter(wrapper.getWindowBuffer(), false)
+				: new RTBSQLViewQueryRewriter();
 		rewriter.setStreamSource(streamSource);
 		streamSource.setQueryRewriter(rewriter);
 		rewriter.initialize();
@@ -145,53 +143,15 @@ public class RemoteTimeBasedSlidingHandler implements SlidingHandler {
 		}
 
 		if (maxWindowSize > 0) {
-			StringBuilder query = new StringBuilder();
-			query.append("select max(timed) - ").append(maxWindowSize).append(" from ").append(wrapper.getDBAliasInStr());
-
-			if (logger.isDebugEnabled()) {
-				logger.debug("Query1 for getting oldest timestamp : " + query);
-			}
-			Connection conn = null;
-			try {
-				ResultSet resultSet = Main.getWindowStorage().executeQueryWithResultSet(query,conn = Main.getWindowStorage().getConnection());
-				if (resultSet.next()) {
-					timed1 = resultSet.getLong(1);
-				} else {
-					return -1;
-				}
-			} catch (SQLException e) {
-				logger.error(e.getMessage(), e);
-			} finally {
-				Main.getWindowStorage().close(conn);
-			}
+			long newest = wrapper.getNewestTimestamp();
+			if (newest == -1)
+				return -1;
+			timed1 = newest - maxWindowSize;
 		}
 		if (maxTupleCount > 0) {
-			StringBuilder query = new StringBuilder();
-			if (Main.getWindowStorage().isH2() || Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
-				query.append(" select timed from ").append(wrapper.getDBAliasInStr()).append(" where timed <= ");
-				query.append(System.currentTimeMillis() - timediff - maxSlideForTupleBased).append(" order by timed desc limit 1 offset ").append(
-						maxTupleCount - 1);
-			} else if (Main.getWindowStorage().isSqlServer()) {
-				query.append(" select min(timed) from (select top ").append(maxTupleCount).append(" * ").append(" from ").append(
-						wrapper.getDBAliasInStr()).append(" where timed <= ").append(System.currentTimeMillis() - timediff - maxSlideForTupleBased).append(" order by timed desc) as X  ");
-			}
-
-			if (logger.isDebugEnabled()) {
-				logger.debug("Query2 for getting oldest timestamp : " + query);
-			}
-			Connection conn = null;
-			try {
-				ResultSet resultSet = Main.getWindowStorage().executeQueryWithResultSet(query,conn=Main.getWindowStorage().getConnection());
-				if (resultSet.next()) {
-					timed2 = resultSet.getLong(1);
-				} else {
-					return -1;
-				}
-			} catch (SQLException e) {
-				logger.error(e.getMessage(), e);
-			} finally {
-				Main.getWindowStorage().close(conn);
-			}
+			timed2 = wrapper.getTimestamp(System.currentTimeMillis() - timediff - maxSlideForTupleBased, maxTupleCount - 1);
+			if (timed2 == -1)
+				return -1;
 		}
 
 		if (timed1 >= 0 && timed2 >= 0) {
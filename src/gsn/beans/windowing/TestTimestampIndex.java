@@ -0,0 +1,58 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/TestTimestampIndex.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TestTimestampIndex {
+
+	@Test
+	public void testTimestamps() {
+		// small initial capacity to go through the growth of the ring
+		TimestampIndex index = new TimestampIndex(2);
+		assertEquals(-1L, index.getNewestTimestamp());
+		assertEquals(-1L, index.getTimestamp(Long.MAX_VALUE, 0));
+		for (int i = 1; i <= 10; i++)
+			index.append(i * 100);
+		assertEquals(1000L, index.getNewestTimestamp());
+		assertEquals(700L, index.getTimestamp(Long.MAX_VALUE, 3));
+		assertEquals(100L, index.getTimestamp(Long.MAX_VALUE, 9));
+		assertEquals(-1L, index.getTimestamp(Long.MAX_VALUE, 10));
+		assertEquals(400L, index.getTimestamp(550, 1));
+		assertEquals(-1L, index.getTimestamp(50, 0));
+
+		assertEquals(4, index.removeOlderThan(500));
+		assertEquals(6, index.size());
+		for (int i = 11; i <= 14; i++)
+			index.append(i * 100);
+		assertEquals(500L, index.getTimestamp(Long.MAX_VALUE, 9));
+		assertEquals(1400L, index.getNewestTimestamp());
+		index.clear();
+		assertEquals(0, index.size());
+	}
+}
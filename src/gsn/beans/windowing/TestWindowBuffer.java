@@ -0,0 +1,109 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/TestWindowBuffer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestWindowBuffer {
+
+	private DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE), new DataField("counter", DataTypes.INTEGER),
+			new DataField("label", DataTypes.VARCHAR) };
+
+	private WindowBuffer buffer;
+
+	@Before
+	public void setUp() {
+		// small initial capacity to go through the growth of the ring
+		buffer = new WindowBuffer(fields, 2);
+		for (int i = 1; i <= 10; i++)
+			buffer.append(new StreamElement(fields, new Serializable[] { i * 1.5, i, i % 2 == 0 ? null : "odd" }, i * 100));
+	}
+
+	@Test
+	public void testTimestamps() {
+		assertEquals(10, buffer.size());
+		assertEquals(1000L, buffer.getNewestTimestamp());
+		assertEquals(1000L, buffer.getTimestamp(0));
+		assertEquals(700L, buffer.getTimestamp(3));
+		assertEquals(100L, buffer.getTimestamp(9));
+		assertEquals(-1L, buffer.getTimestamp(10));
+		assertEquals(400L, buffer.getTimestamp(450, 0));
+		assertEquals(200L, buffer.getTimestamp(450, 2));
+		assertEquals(-1L, buffer.getTimestamp(50, 0));
+	}
+
+	@Test
+	public void testSelect() {
+		List<StreamElement> window = buffer.select(Long.MIN_VALUE, Long.MAX_VALUE, 3, 1);
+		assertEquals(3, window.size());
+		assertEquals(1000L, window.get(0).getTimeStamp());
+		assertEquals(800L, window.get(2).getTimeStamp());
+		assertEquals(10, window.get(0).getData("counter"));
+		assertEquals(15.0, window.get(0).getData("temperature"));
+		assertNull(window.get(0).getData("label"));
+		assertEquals("odd", window.get(1).getData("label"));
+
+		window = buffer.select(300, 600, Long.MAX_VALUE, 1);
+		assertEquals(4, window.size());
+		assertEquals(600L, window.get(0).getTimeStamp());
+		assertEquals(300L, window.get(3).getTimeStamp());
+
+		assertEquals(0, buffer.select(Long.MIN_VALUE, Long.MAX_VALUE, 3, 0).size());
+	}
+
+	@Test
+	public void testSelectBeforeTheWindowIsFull() {
+		// as the SQL views, a count window is empty until it holds enough elements
+		assertEquals(0, buffer.select(Long.MIN_VALUE, Long.MAX_VALUE, 11, 1).size());
+		assertEquals(0, buffer.select(Long.MIN_VALUE, 250, 3, 1).size());
+		assertEquals(3, buffer.select(Long.MIN_VALUE, 350, 3, 1).size());
+		buffer.append(new StreamElement(fields, new Serializable[] { 0.0, 11, "odd" }, 1100));
+		assertEquals(11, buffer.select(Long.MIN_VALUE, Long.MAX_VALUE, 11, 1).size());
+	}
+
+	@Test
+	public void testRemoveOlderThan() {
+		assertEquals(4, buffer.removeOlderThan(500));
+		assertEquals(6, buffer.size());
+		assertEquals(500L, buffer.getTimestamp(5));
+		buffer.append(new StreamElement(fields, new Serializable[] { 0.0, 11, "odd" }, 1100));
+		assertEquals(1100L, buffer.getNewestTimestamp());
+		assertEquals(7, buffer.select(Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 1).size());
+		buffer.clear();
+		assertEquals(0, buffer.size());
+		assertEquals(-1L, buffer.getNewestTimestamp());
+	}
+}
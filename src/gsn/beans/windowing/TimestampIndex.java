@@ -0,0 +1,169 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/TimestampIndex.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+/**
+ * The timestamps of the rows of a wrapper table, in increasing order, kept in
+ * a ring buffer so that the windows can be located without querying the
+ * table. The timestamps are appended as the rows are inserted, the out of
+ * order ones being filtered by the wrapper beforehand, and removed as the
+ * garbage collection of the wrapper decides the rows are not needed anymore,
+ * even if they are deleted from the table later.
+ * The ring is shared with {@link WindowBuffer} which keeps the values of the
+ * rows next to their timestamps, see {@link #resize(int)} and
+ * {@link #release(int)}.
+ */
+public class TimestampIndex {
+
+	public static final int DEFAULT_INITIAL_CAPACITY = 64;
+
+	protected long[] timestamps;
+
+	/**
+	 * Index of the oldest timestamp in the array.
+	 */
+	protected int head = 0;
+
+	protected int size = 0;
+
+	public TimestampIndex() {
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	public TimestampIndex(int initialCapacity) {
+		timestamps = new long[Math.max(initialCapacity, 1)];
+	}
+
+	protected int capacity() {
+		return timestamps.length;
+	}
+
+	protected int physicalIndex(int logicalIndex) {
+		return (head + logicalIndex) % timestamps.length;
+	}
+
+	/**
+	 * Copies the timestamps, from the oldest to the newest, in an array of
+	 * the given capacity. The head is reset to zero by the caller once the
+	 * subclasses have moved their own arrays.
+	 */
+	protected void resize(int newCapacity) {
+		long[] resized = new long[newCapacity];
+		for (int i = 0; i < size; i++)
+			resized[i] = timestamps[physicalIndex(i)];
+		timestamps = resized;
+	}
+
+	/**
+	 * Called for each slot of the ring leaving the window, so that the
+	 * subclasses can drop the references they keep in it.
+	 */
+	protected void release(int physicalIndex) {
+	}
+
+	/**
+	 * Adds a timestamp at the end of the ring, growing it if needed.
+	 *
+	 * @return The physical index of the new slot.
+	 */
+	protected int add(long timestamp) {
+		if (size == timestamps.length) {
+			resize(timestamps.length * 2);
+			head = 0;
+		}
+		int index = physicalIndex(size++);
+		timestamps[index] = timestamp;
+		return index;
+	}
+
+	public synchronized void append(long timestamp) {
+		add(timestamp);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return The newest timestamp or -1 if the index is empty.
+	 */
+	public synchronized long getNewestTimestamp() {
+		if (size == 0)
+			return -1;
+		return timestamps[physicalIndex(size - 1)];
+	}
+
+	/**
+	 * Equivalent of
+	 * <code>select timed from wrapper where timed &lt;= upTo order by timed desc limit 1 offset N</code>.
+	 *
+	 * @return The timestamp found or -1 if there is not enough elements.
+	 */
+	public synchronized long getTimestamp(long upTo, long offsetFromNewest) {
+		int last = lastIndexUpTo(upTo);
+		if (offsetFromNewest < 0 || last - offsetFromNewest < 0)
+			return -1;
+		return timestamps[physicalIndex((int) (last - offsetFromNewest))];
+	}
+
+	/**
+	 * @return the logical index of the newest element whose timestamp is lower
+	 *         or equal to the given one, -1 if there is no such element.
+	 */
+	protected int lastIndexUpTo(long upTo) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (timestamps[physicalIndex(middle)] <= upTo)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high;
+	}
+
+	/**
+	 * Equivalent of <code>delete from wrapper where timed &lt; minTimed</code>.
+	 *
+	 * @return The number of removed timestamps.
+	 */
+	public synchronized int removeOlderThan(long minTimed) {
+		int removed = 0;
+		while (size > 0 && timestamps[head] < minTimed) {
+			release(head);
+			head = (head + 1) % timestamps.length;
+			size--;
+			removed++;
+		}
+		return removed;
+	}
+
+	public synchronized void clear() {
+		removeOlderThan(Long.MAX_VALUE);
+		head = 0;
+	}
+}
@@ -38,9 +38,6 @@ import gsn.utils.CaseInsensitiveComparator;
 import gsn.utils.GSNRuntimeException;
 import gsn.wrappers.AbstractWrapper;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -73,7 +70,8 @@ public class TupleBasedSlidingHandler implements SlidingHandler {
 		} else {
 			streamSources.add(streamSource);
 		}
-		SQLViewQueryRewriter rewriter = new TupleBasedSQLViewQueryRewriter();
+		QueryRewriter rewriter = wrapper.isWindowInMemory(streamSource) ? new MemoryQueryRewriter(wrapper.getWindowBuffer(), false)
+				: new TupleBasedSQLViewQueryRewriter();
 		rewriter.setStreamSource(streamSource);
 		rewriter.initialize();
 	}
@@ -82,7 +80,7 @@ public class TupleBasedSlidingHandler implements SlidingHandler {
 		boolean toReturn = false;
 		synchronized (streamSources) {
 			for (StreamSource streamSource : streamSources) {
-				toReturn = streamSource.getQueryRewriter().dataAvailable(streamElement.getTimeStamp()) || toReturn;
+				toReturn = streamSource.getQueryRewriter().dataAvailable(streamElement) || toReturn;
 			}
 		}
 		synchronized (slidingHashMap) {
@@ -124,96 +122,16 @@ public class TupleBasedSlidingHandler implements SlidingHandler {
 		}
 
 		if (maxTupleCount > 0) {
-			StringBuilder query = new StringBuilder();
-			if (Main.getWindowStorage().isH2() || Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
-				query.append(" select timed from ").append(wrapper.getDBAliasInStr());
-				query.append(" order by timed desc limit 1 offset ").append(maxTupleCount - 1);
-			} else if (Main.getWindowStorage().isSqlServer()) {
-				query.append(" select min(timed) from (select top ").append(maxTupleCount).append(" * ").append(" from ").append(
-						wrapper.getDBAliasInStr()).append(" order by timed desc )as X  ");
-			}else if (Main.getWindowStorage().isOracle()) {
-				query.append(" select timed from (select timed from ").append(Main.getWindowStorage().tableNameGeneratorInString(wrapper.getDBAliasInStr()));
-				query.append(" order by timed desc) where rownum = ").append(maxTupleCount);
-			}
-			if (logger.isDebugEnabled()) {
-				logger.debug("Query1 for getting oldest timestamp : " + query);
-			}
-			Connection conn = null;
-			try {
-				ResultSet resultSet = Main.getWindowStorage().executeQueryWithResultSet(query,conn=Main.getWindowStorage().getConnection());
-				if (resultSet.next()) {
-					timed1 = resultSet.getLong(1);
-				} else {
-					return -1;
-				}
-			} catch (SQLException e) {
-				logger.error(e.getMessage(), e);
-			} finally {
-				Main.getWindowStorage().close(conn);
-			}
-		}
-
-		if (maxTupleCount > 0) {
-			StringBuilder query = new StringBuilder();
-			if (Main.getWindowStorage().isH2() || Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
-				query.append(" select timed from ").append(wrapper.getDBAliasInStr());
-				query.append(" order by timed desc limit 1 offset ").append(maxTupleCount - 1);
-			} else if (Main.getWindowStorage().isSqlServer()) {
-				query.append(" select min(timed) from (select top ").append(maxTupleCount).append(" * ").append(" from ").append(
-						wrapper.getDBAliasInStr()).append(" order by timed desc )as X  ");
-			}else if (Main.getWindowStorage().isOracle()) {
-				query.append(" select timed from ( select timed from ").append(Main.getWindowStorage().tableNameGeneratorInString(wrapper.getDBAliasInStr()));
-				query.append(" order by timed desc) where rownum = ").append(maxTupleCount);
-			}
-			if (logger.isDebugEnabled()) {
-				logger.debug("Query1 for getting oldest timestamp : " + query);
-			}
-			Connection conn = null;
-			try {
-				ResultSet resultSet = Main.getWindowStorage().executeQueryWithResultSet(query,conn=Main.getWindowStorage().getConnection());
-				if (resultSet.next()) {
-					timed1 = resultSet.getLong(1);
-				} else {
-					return -1;
-				}
-			} catch (SQLException e) {
-				logger.error(e.getMessage(), e);
-			} finally {
-				Main.getWindowStorage().close(conn);
-			}
+			timed1 = wrapper.getTimestamp(Long.MAX_VALUE, maxTupleCount - 1);
+			if (timed1 == -1)
+				return -1;
 		}
 
 		if (maxWindowSize > 0) {
-			StringBuilder query = new StringBuilder();
-			if (Main.getWindowStorage().isMysqlDB() || Main.getWindowStorage().isPostgres()) {
-				query.append(" select timed - ").append(maxWindowSize).append(" from (select timed from ").append(wrapper.getDBAliasInStr());
-				query.append(" order by timed desc limit 1 offset ").append(maxTupleForTimeBased - 1).append(" ) as X ");
-			} else if (Main.getWindowStorage().isH2()) {
-				query.append(" select timed - ").append(maxWindowSize).append(" from ").append(wrapper.getDBAliasInStr()).append(
-				" where timed in (select timed from ").append(wrapper.getDBAliasInStr());
-				query.append(" order by timed desc limit 1 offset ").append(maxTupleForTimeBased - 1).append(" ) ");
-			} else if (Main.getWindowStorage().isSqlServer()) {
-				query.append(" select min(timed) - ").append(maxWindowSize).append(" from (select top ").append(maxTupleForTimeBased).append(" * ").append(" from ").append(wrapper.getDBAliasInStr()).append(" order by timed desc ) as X  ");
-			}else if (Main.getWindowStorage().isOracle()){
-				query.append(" select timed - ").append(maxWindowSize).append(" from (select timed from (select timed from ").append(Main.getWindowStorage().tableNameGeneratorInString(wrapper.getDBAliasInStr()));
-				query.append(" order by timed desc) where rownum = ").append(maxTupleForTimeBased).append(") ) ");
-			}
-			if (logger.isDebugEnabled()) {
-				logger.debug("Query2 for getting oldest timestamp : " + query);
-			}
-			Connection conn = null;
-			try {
-				ResultSet resultSet = Main.getWindowStorage().executeQueryWithResultSet(query,conn=Main.getWindowStorage().getConnection());
-				if (resultSet.next()) {
-					timed2 = resultSet.getLong(1);
-				} else {
-					return -1;
-				}
-			} catch (SQLException e) {
-				logger.error(e.getMessage(), e);
-			} finally {
-				Main.getWindowStorage().close(conn);
-			}
+			long timed = wrapper.getTimestamp(Long.MAX_VALUE, maxTupleForTimeBased - 1);
+			if (timed == -1)
+				return -1;
+			timed2 = timed - maxWindowSize;
 		}
 
 		if (timed1 >= 0 && timed2 >= 0) {
@@ -0,0 +1,128 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/beans/windowing/WindowBuffer.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.beans.windowing;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamColumns;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory replacement of the wrapper table used for the sliding windows.
+ * The stream elements are kept in a ring buffer (see {@link TimestampIndex}),
+ * one primitive array per numeric column (see {@link StreamColumns}) so that
+ * the readings are not kept boxed while they are waiting in the window. The
+ * buffer grows when it is full and is trimmed by the garbage collection of
+ * the wrapper (see {@link #removeOlderThan(long)}).
+ * Elements are expected to be appended in increasing timestamp order, the
+ * out of order ones being filtered by the wrapper beforehand.
+ */
+public class WindowBuffer extends TimestampIndex {
+
+	private final StreamSchema schema;
+
+	private StreamColumns columns;
+
+	public WindowBuffer(DataField[] outputStructure) {
+		this(outputStructure, DEFAULT_INITIAL_CAPACITY);
+	}
+
+	public WindowBuffer(DataField[] outputStructure, int initialCapacity) {
+		super(initialCapacity);
+		schema = StreamSchema.of(outputStructure);
+		columns = new StreamColumns(schema, capacity());
+	}
+
+	/**
+	 * Copies the columns along with the timestamps, from the oldest to the
+	 * newest element.
+	 */
+	protected void resize(int newCapacity) {
+		StreamColumns resized = new StreamColumns(schema, newCapacity);
+		int firstPart = Math.min(size, capacity() - head);
+		resized.copy(columns, head, 0, firstPart);
+		resized.copy(columns, 0, firstPart, size - firstPart);
+		columns = resized;
+		super.resize(newCapacity);
+	}
+
+	protected void release(int physicalIndex) {
+		columns.clear(physicalIndex);
+	}
+
+	public synchronized void append(StreamElement se) {
+		int index = add(se.getTimeStamp());
+		columns.set(index, se);
+	}
+
+	/**
+	 * Equivalent of
+	 * <code>select timed from wrapper order by timed desc limit 1 offset N</code>.
+	 *
+	 * @return The timestamp of the element at the specified offset from the
+	 *         newest one or -1 if there is not enough elements.
+	 */
+	public long getTimestamp(long offsetFromNewest) {
+		return getTimestamp(Long.MAX_VALUE, offsetFromNewest);
+	}
+
+	/**
+	 * Returns the content of a window, ordered by timed desc as the SQL views
+	 * do. An element is part of the window if its timestamp is within
+	 * [from,to] and if it is among the <code>maxCount</code> newest elements
+	 * having a timestamp lower or equal to <code>to</code>. As in the views of
+	 * the tuple based windows, the window is empty as long as there are less
+	 * than <code>maxCount</code> such elements, <code>Long.MAX_VALUE</code>
+	 * meaning no bound on the count. The sampling rate is applied on the
+	 * result as in the SQL views (<code>timed mod 100</code>).
+	 */
+	public synchronized List<StreamElement> select(long from, long to, long maxCount, float samplingRate) {
+		ArrayList<StreamElement> toReturn = new ArrayList<StreamElement>();
+		if (samplingRate <= 0 || maxCount <= 0)
+			return toReturn;
+		int last = lastIndexUpTo(to);
+		if (maxCount != Long.MAX_VALUE && last + 1 < maxCount)
+			return toReturn;
+		int count = 0;
+		for (int i = last; i >= 0 && count < maxCount; i--, count++) {
+			int index = physicalIndex(i);
+			long timed = timestamps[index];
+			if (timed < from)
+				break;
+			if (samplingRate < 1 && timed % 100 >= samplingRate * 100)
+				continue;
+			toReturn.add(toStreamElement(index));
+		}
+		return toReturn;
+	}
+
+	private StreamElement toStreamElement(int index) {
+		return new StreamElement(schema, columns.getValues(index), timestamps[index]);
+	}
+}
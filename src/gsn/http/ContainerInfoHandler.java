@@ -31,6 +31,7 @@ package gsn.http;
 
 import gsn.Main;
 import gsn.Mappings;
+import gsn.VirtualSensor;
 import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.beans.VSensorConfig;
@@ -139,6 +140,14 @@ public class ContainerInfoHandler implements RequestHandler {
           if (sensorConfig.getDescription() != null) {
               sb.append(" description=\"").append(StringEscapeUtils.escapeXml(sensorConfig.getDescription())).append("\"");
           }
+          VirtualSensor pool = Mappings.getVSensorInstanceByVSName(sensorConfig.getName());
+          if (pool != null) {
+              sb.append(" queue-depth=\"").append(pool.getQueueDepth()).append("\"");
+              sb.append(" processed=\"").append(pool.getProcessedCount()).append("\"");
+              sb.append(" processing-time=\"").append(pool.getMeanProcessingTime()).append("\"");
+              sb.append(" latency=\"").append(pool.getMeanLatency()).append("\"");
+              sb.append(" startup-time=\"").append(pool.getStartupTime()).append("\"");
+          }
           sb.append( ">\n" );
           ArrayList<StreamElement> ses = null;
           if (omitLatestValues == false) ses = getMostRecentValueFor(sensorConfig.getName());
@@ -132,7 +132,7 @@ public class ModelServlet extends HttpServlet {
 				}
 			}
 			 
-			StreamElement[] se = modelClass.query(new StreamElement(df,sr));
+			StreamElement[] se = modelClass.evaluate(new StreamElement(df,sr));
 	        
 	        StringBuilder str = new StringBuilder();
 	        
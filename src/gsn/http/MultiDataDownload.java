@@ -46,6 +46,7 @@ import java.text.SimpleDateFormat;
 import java.text.DateFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -61,6 +62,8 @@ public class MultiDataDownload extends HttpServlet {
 
     private static transient Logger logger = Logger.getLogger(MultiDataDownload.class);
 
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
     public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
         doPost(req, res);
     }
@@ -93,7 +96,7 @@ public class MultiDataDownload extends HttpServlet {
             Date currentDate = Calendar.getInstance().getTime();
             String filename = vsName+"_"+dateFormat.format(currentDate);
 
-            if ("csv".equals(downloadFormat)) {
+            if ("csv".equals(downloadFormat) || "xml".equals(downloadFormat) || "binary".equals(downloadFormat)) {
                 gsn.http.datarequest.DownloadData dd = new gsn.http.datarequest.DownloadData(parameterMap);
                 //
                 if (Main.getContainerConfig().isAcEnabled()) {
@@ -105,32 +108,31 @@ public class MultiDataDownload extends HttpServlet {
                 }
                 //
                 dd.process();
-                if (! "inline".equals(downloadMode)) {
+                if ("xml".equals(downloadFormat)) {
+                    res.setContentType("text/xml");
+                    if (! "inline".equals(downloadMode))
+                        res.setHeader("content-disposition","attachment; filename="+filename+".xml");
+                }
+                else if ("binary".equals(downloadFormat)) {
+                    res.setContentType("application/octet-stream");
+                    res.setHeader("content-disposition","attachment; filename="+filename+".gsnb");
+                }
+                else if (! "inline".equals(downloadMode)) {
                     res.setContentType("application/x-download");
                     res.setHeader("content-disposition","attachment; filename="+filename+".csv");
                 }
                 else
                     res.setContentType("text");
-                dd.outputResult(res.getOutputStream());
-                //res.getOutputStream().flush();
-            }
-            else if ("xml".equals(downloadFormat)) {
-                gsn.http.datarequest.DownloadData dd = new gsn.http.datarequest.DownloadData(parameterMap);
-                //
-                if (Main.getContainerConfig().isAcEnabled()) {
-                    ArrayList<String> noAccess = checkAccessControl(user, dd.getQueryBuilder());
-                    if (noAccess != null && noAccess.size() > 0) {
-                        res.sendError(WebConstants.ACCESS_DENIED, "Access Control failed for vsNames:" + noAccess + " and user: " + (user == null ? "not logged in" : user.getUserName()));
-                        return;
-                    }
+                // the rows are compressed as they are written when the client accepts it
+                String acceptEncoding = req.getHeader("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip")) {
+                    res.setHeader("Content-Encoding", "gzip");
+                    GZIPOutputStream gzip = new GZIPOutputStream(res.getOutputStream(), GZIP_BUFFER_SIZE);
+                    dd.outputResult(gzip);
+                    gzip.finish();
                 }
-                //
-                dd.process();
-                res.setContentType("text/xml");
-                if (! "inline".equals(downloadMode))
-                    res.setHeader("content-disposition","attachment; filename="+filename+".xml");
-                dd.outputResult(res.getOutputStream());
-                //res.getOutputStream().flush();
+                else
+                    dd.outputResult(res.getOutputStream());
             }
             else if ("pdf".equals(downloadFormat)) {
                 DownloadReport rpd = new DownloadReport (parameterMap) ;
@@ -264,6 +266,12 @@ public class MultiDataDownload extends HttpServlet {
         // Download format
         parameterMap.put("outputtype", new String[] { downloadFormat });
 
+        // RESUME, after the timestamp of the last row received
+        String req_resume = req.getParameter("resume");
+        if (req_resume != null) {
+            parameterMap.put("resume", new String[] { req_resume });
+        }
+
         // CRITFIELDS
         // TIME LIMITS
         ArrayList<String> critFields = new ArrayList<String> () ;
@@ -522,4 +530,4 @@ public class MultiDataDownload extends HttpServlet {
         }
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,211 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/ac/AccessControlCache.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.ac;
+
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps in memory what the access control layer reads from its tables to
+ * authorize a request: the names of the managed data sources, the users
+ * logging in with a given password and the decisions about the access of a
+ * user to a virtual sensor, so that checking a request is a lookup in a hash
+ * table instead of a few queries per virtual sensor.
+ * <p>
+ * The cached state is a snapshot of the tables, replaced by an empty one by
+ * {@link #invalidate()} each time {@link ConnectToDB} changes the tables. A
+ * lookup that started before an invalidation fills the old snapshot, never
+ * the new one, so it can't bring back a stale decision. A snapshot is also
+ * dropped once older than <code>accessControlCacheTtl</code> milliseconds
+ * (one minute by default), for the changes made to the tables by another
+ * process, and holds at most <code>accessControlCacheSize</code> users and
+ * as many decisions.
+ */
+public class AccessControlCache {
+
+    private static transient Logger logger = Logger.getLogger(AccessControlCache.class);
+
+    /**
+     * Stands for a failed login in the users of a snapshot.
+     */
+    private static final Object NO_USER = new Object();
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final long DEFAULT_TTL = 60 * 1000;
+
+    static int maxEntries = System.getProperty("accessControlCacheSize") == null ? DEFAULT_MAX_ENTRIES : Integer.parseInt(System
+            .getProperty("accessControlCacheSize"));
+
+    static long ttl = System.getProperty("accessControlCacheTtl") == null ? DEFAULT_TTL : Long.parseLong(System.getProperty("accessControlCacheTtl"));
+
+    private static volatile Snapshot current = new Snapshot(0);
+
+    private static class Snapshot {
+        final long version;
+
+        final long created = System.currentTimeMillis();
+
+        volatile Set<String> managed = null;
+
+        /**
+         * The key is the user name and the password, the value the
+         * {@link User} or {@link AccessControlCache#NO_USER}.
+         */
+        final ConcurrentHashMap<String, Object> users = new ConcurrentHashMap<String, Object>();
+
+        /**
+         * The key is the user name, the password and the virtual sensor.
+         */
+        final ConcurrentHashMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+        Snapshot(long version) {
+            this.version = version;
+        }
+    }
+
+    /**
+     * Drops the cached state, called after any change to the access control
+     * tables.
+     */
+    public static synchronized void invalidate() {
+        current = new Snapshot(current.version + 1);
+    }
+
+    /**
+     * @return the current snapshot, a new one if it expired.
+     */
+    private static Snapshot snapshot() {
+        Snapshot snapshot = current;
+        if (System.currentTimeMillis() - snapshot.created < ttl)
+            return snapshot;
+        synchronized (AccessControlCache.class) {
+            if (current == snapshot)
+                current = new Snapshot(snapshot.version + 1);
+            return current;
+        }
+    }
+
+    /**
+     * @return the number of times the cache has been invalidated or expired.
+     */
+    public static long getVersion() {
+        return current.version;
+    }
+
+    /**
+     * @return the number of users and decisions cached.
+     */
+    static int size() {
+        Snapshot snapshot = current;
+        return snapshot.users.size() + snapshot.decisions.size();
+    }
+
+    public static boolean isVSManaged(String vsname) {
+        return getManagedDataSources().contains(vsname);
+    }
+
+    private static Set<String> getManagedDataSources() {
+        Snapshot snapshot = snapshot();
+        Set<String> managed = snapshot.managed;
+        if (managed == null) {
+            ConnectToDB ctdb = null;
+            try {
+                ctdb = new ConnectToDB();
+                managed = Collections.unmodifiableSet(ctdb.getDataSourceNames());
+                snapshot.managed = managed;
+            } catch (Exception e) {
+                logger.error("ERROR IN getManagedDataSources METHOD :");
+                logger.error(e.getMessage(), e);
+                // not cached, the next request tries again
+                return Collections.emptySet();
+            } finally {
+                if (ctdb != null) {
+                    ctdb.closeStatement();
+                    ctdb.closeConnection();
+                }
+            }
+        }
+        return managed;
+    }
+
+    /**
+     * The passwords are only kept as a digest in the keys.
+     */
+    private static String key(String username, String password, String... others) {
+        StringBuilder key = new StringBuilder(username).append('\u0000');
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(String.valueOf(password).getBytes("UTF-8"));
+            for (byte b : digest)
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        for (String other : others)
+            key.append('\u0000').append(other);
+        return key.toString();
+    }
+
+    private static <V> void put(ConcurrentHashMap<String, V> map, String key, V value) {
+        // bounds the memory used by requests with random credentials
+        if (map.size() >= maxEntries)
+            map.clear();
+        map.put(key, value);
+    }
+
+    /**
+     * @return the user logging in with these credentials, or null if they are
+     *         not valid.
+     */
+    public static User getUser(String username, String password) {
+        Snapshot snapshot = snapshot();
+        String key = key(username, password);
+        Object user = snapshot.users.get(key);
+        if (user == null) {
+            user = UserUtils.allowUserToLogin(username, password);
+            if (user == null)
+                user = NO_USER;
+            put(snapshot.users, key, user);
+        }
+        return user == NO_USER ? null : (User) user;
+    }
+
+    public static boolean userHasAccessToVirtualSensor(String username, String password, String vsname) {
+        Snapshot snapshot = snapshot();
+        String key = key(username, password, vsname);
+        Boolean decision = snapshot.decisions.get(key);
+        if (decision == null) {
+            User user = getUser(username, password);
+            decision = user != null && (user.hasReadAccessRight(vsname) || user.isAdmin());
+            put(snapshot.decisions, key, decision);
+        }
+        return decision;
+    }
+}
@@ -36,6 +36,9 @@ package gsn.http.ac;
 
 
 
+import gsn.storage.DataSources;
+import gsn.storage.hibernate.DBConnectionInfo;
+
 import java.text.SimpleDateFormat;
 import org.apache.log4j.Logger;
 
@@ -78,10 +81,8 @@ public class ConnectToDB
     
 	public ConnectToDB()throws ClassNotFoundException,SQLException
 	{
-        //Load and register the MySQL driver
-        Class.forName(driverName);
-        //Get a connection to the database
-        con = DriverManager.getConnection(connectionname,dbUser,dbPassword);
+        //Get a connection to the database, from the pool of the access control DB
+        con = DataSources.getDataSource(new DBConnectionInfo(driverName,connectionname,dbUser,dbPassword)).getConnection();
         //create a statement object
         stmt= con.createStatement();  ///// changed 20.03.2013
         meta= this.con.getMetaData();
@@ -644,7 +645,7 @@ public class ConnectToDB
 	{
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+col.columnLabel+") VALUES ('" + col.columnValue +"')";
-        int t =stmt.executeUpdate(request);
+        int t =executeACUpdate(request);
 		if(t!=0)
 		{
             insertOK=true;
@@ -655,7 +656,7 @@ public class ConnectToDB
 	{
 		boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeACUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -667,7 +668,7 @@ public class ConnectToDB
 	{
 		boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeACUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -679,7 +680,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+" VALUES ('" + firstCol + "','"+ secondCol+ "','"+thirdCol+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeACUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -691,7 +692,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+ fourthCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeACUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -703,7 +704,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+","+fifthCol.columnLabel+","+sixthCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+ fourthCol.columnValue+ "','"+fifthCol.columnValue+ "','"+sixthCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeACUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -715,7 +716,7 @@ public class ConnectToDB
     {
         boolean insertOK=false;
         String request = "INSERT INTO "+tableName+"("+firstCol.columnLabel+","+secondCol.columnLabel+","+thirdCol.columnLabel+","+fourthCol.columnLabel+","+fifthCol.columnLabel+","+sixthCol.columnLabel+","+seventhCol.columnLabel+") VALUES ('" + firstCol.columnValue + "','"+ secondCol.columnValue+ "','"+thirdCol.columnValue+"','"+fourthCol.columnValue+ "','"+fifthCol.columnValue+ "','"+sixthCol.columnValue+ "','"+seventhCol.columnValue+"')";
-        int f =stmt.executeUpdate(request);
+        int f =executeACUpdate(request);
         if(f!=0)
         {
             insertOK=true;
@@ -1270,7 +1271,7 @@ public class ConnectToDB
     boolean updateOneColumnUnderOneCondition(Column col,Column cond,String tableName)throws SQLException
    {
        String query = "UPDATE "+tableName+" SET "+col.columnLabel+"= '"+col.columnValue+"' WHERE "+cond.columnLabel+"= '"+cond.columnValue+"'";
-       if(stmt.executeUpdate(query) !=0)
+       if(executeACUpdate(query) !=0)
            return true;
        else
            return false;
@@ -1278,7 +1279,7 @@ public class ConnectToDB
     boolean updateOneColumnUnderTwoConditions(Column col,Column firstCond,Column secondCond,String tableName)throws SQLException
    {
        String query = "UPDATE "+tableName+" SET "+col.columnLabel+"= '"+col.columnValue+"' WHERE "+firstCond.columnLabel+"= '"+firstCond.columnValue+"' AND "+secondCond.columnLabel+"= '"+secondCond.columnValue+"'";
-       if(stmt.executeUpdate(query) !=0)
+       if(executeACUpdate(query) !=0)
            return true;
        else
            return false;
@@ -1324,7 +1325,7 @@ public class ConnectToDB
             .append("' WHERE USERNAME='")
             .append(user.getUserName())
             .append("'");
-       if(stmt.executeUpdate(query.toString()) !=0)
+       if(executeACUpdate(query.toString()) !=0)
            return true;
        else
            return false;
@@ -1340,13 +1341,13 @@ public class ConnectToDB
     int deleteUnderOneCondition(Column cond,String tableName)throws SQLException
    {
        String query = "DELETE FROM "+tableName+" WHERE "+cond.columnLabel+"= '"+cond.columnValue+"'";
-       return stmt.executeUpdate(query);
+       return executeACUpdate(query);
       
    }
     int deleteUnderTwoConditions(Column firstCond,Column secondCond,String tableName)throws SQLException
    {
        String query = "DELETE FROM "+tableName+" WHERE "+firstCond.columnLabel+"= '"+firstCond.columnValue+"' AND "+secondCond.columnLabel+"= '"+secondCond.columnValue+"'";
-       return stmt.executeUpdate(query);
+       return executeACUpdate(query);
    }
     void deleteUserCandidate(String userName)throws SQLException
     {
@@ -1385,6 +1386,31 @@ public class ConnectToDB
         }
     }
 
+    /* executes a statement changing the AC tables, the decisions cached from them are dropped */
+    private int executeACUpdate(String query) throws SQLException
+    {
+        try
+        {
+            return stmt.executeUpdate(query);
+        }
+        finally
+        {
+            AccessControlCache.invalidate();
+        }
+    }
+
+    /* returns the names of all the data sources managed by the access control */
+    Set<String> getDataSourceNames() throws SQLException
+    {
+        Set<String> names = new HashSet<String>();
+        rs = selectOneColumn(new Column("DATASOURCENAME"), "ACDATASOURCE");
+        while(rs.next())
+        {
+            names.add(rs.getString("DATASOURCENAME"));
+        }
+        return names;
+    }
+
     /****************************************** Other Methods*******************************************/
      /***************************************************************************************************/
 
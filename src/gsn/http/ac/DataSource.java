@@ -209,26 +209,7 @@ public class DataSource {
     }
 
     public static boolean isVSManaged(String vsname) {
-        ConnectToDB ctdb = null;
-        boolean isManaged = false;
-        try {
-            ctdb = new ConnectToDB();
-            if (ctdb.valueExistsForThisColumn(new Column("DATASOURCENAME", vsname), "ACDATASOURCE") == true) {
-                isManaged = true;
-            } else {
-                isManaged = false;
-            }
-        } catch (Exception e) {
-            logger.error("ERROR IN isVSManaged METHOD :");
-            logger.error(e.getMessage(), e);
-        } finally {
-            if (ctdb != null) {
-                ctdb.closeStatement();
-                ctdb.closeConnection();
-            }
-        }
-        return isManaged;
-
+        return AccessControlCache.isVSManaged(vsname);
     }
 
     /*
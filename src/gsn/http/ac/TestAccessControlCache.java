@@ -0,0 +1,107 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/ac/TestAccessControlCache.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.ac;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Statement;
+import java.util.Vector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAccessControlCache {
+
+	private ConnectToDB ctdb;
+
+	private User user;
+
+	@Before
+	public void setUp() throws Exception {
+		ConnectToDB.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:accesscontrol;DB_CLOSE_DELAY=-1");
+		ctdb = new ConnectToDB();
+		user = new User("alice", Protector.encrypt("secret"), "Alice", "A", "alice@example.org", new Vector(), "no");
+		assertTrue(ctdb.registerUserCandidate(user));
+		assertTrue(ctdb.insertTwoColumnsValues(new Column("DATASOURCENAME", "managed_vs"), new Column("ISCANDIDATE", "no"), "ACDATASOURCE"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ctdb.deleteDataSourceCandidate("managed_vs");
+		ctdb.deleteUserCandidate("alice");
+		ctdb.closeStatement();
+		ctdb.closeConnection();
+		AccessControlCache.ttl = AccessControlCache.DEFAULT_TTL;
+		AccessControlCache.maxEntries = AccessControlCache.DEFAULT_MAX_ENTRIES;
+	}
+
+	@Test
+	public void testGrantAndRevoke() throws Exception {
+		assertNotNull(AccessControlCache.getUser("alice", "secret"));
+		assertNull(AccessControlCache.getUser("alice", "wrong"));
+		assertFalse(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "managed_vs"));
+		assertTrue(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "unmanaged_vs"));
+
+		// the changes made through ConnectToDB are seen by the next lookup
+		long version = AccessControlCache.getVersion();
+		assertTrue(ctdb.registerDataSourceForUser(user, new DataSource("managed_vs", "1", "", "", "")));
+		assertTrue(AccessControlCache.getVersion() > version);
+		assertTrue(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "managed_vs"));
+		ctdb.deleteDataSourceForUser(new DataSource("managed_vs"), user);
+		assertFalse(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "managed_vs"));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		AccessControlCache.ttl = 1000;
+		AccessControlCache.invalidate();
+		assertFalse(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "managed_vs"));
+
+		// a change made by another process is only seen once the snapshot expired
+		Statement stmt = ctdb.getConnection().createStatement();
+		stmt.executeUpdate("INSERT INTO ACUSER_ACDATASOURCE(USERNAME, DATASOURCENAME, DATASOURCETYPE, ISUSERWAITING) VALUES ('alice', 'managed_vs', '1', 'no')");
+		stmt.close();
+		assertFalse(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "managed_vs"));
+		Thread.sleep(1100);
+		assertTrue(AccessControlCache.userHasAccessToVirtualSensor("alice", "secret", "managed_vs"));
+	}
+
+	@Test
+	public void testSizeBound() throws Exception {
+		AccessControlCache.maxEntries = 3;
+		AccessControlCache.invalidate();
+		for (int i = 0; i < 10; i++) {
+			assertNull(AccessControlCache.getUser("user" + i, "secret"));
+			assertTrue(AccessControlCache.size() <= 3);
+		}
+		assertNotNull(AccessControlCache.getUser("alice", "secret"));
+		assertTrue(AccessControlCache.size() <= 3);
+	}
+}
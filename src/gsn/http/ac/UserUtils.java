@@ -80,14 +80,7 @@ public class UserUtils {
     }
 
     public static boolean userHasAccessToVirtualSensor(String username, String password, String vsname) {
-        User user = allowUserToLogin(username, password);
-        if (user == null)
-            return false;
-        else {
-            logger.warn("user.isAdmin => " + user.isAdmin());
-            logger.warn("user.hasReadAccessRight(" + vsname + ") => " + user.hasReadAccessRight(vsname));
-            return (user.hasReadAccessRight(vsname) || user.isAdmin());
-        }
+        return AccessControlCache.userHasAccessToVirtualSensor(username, password, vsname);
     }
 
     public static boolean userHasAccessToAllVirtualSensorsInList(String reqUsername, String reqPassword, List<String> listOfVirtualSensors) {
@@ -26,6 +26,8 @@
 
 package gsn.http.datarequest;
 
+import gsn.storage.RollupManager;
+
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
@@ -38,6 +40,8 @@ public class AbstractQuery {
     private AggregationCriterion aggregation;
     private String vsName;
     private ArrayList<StandardCriterion> criteria;
+    private boolean ascending = false;
+    private Long resumeAfter = null;
 
     private static transient Logger logger = Logger.getLogger(AbstractQuery.class);
 
@@ -51,6 +55,13 @@ public class AbstractQuery {
 	}
 	
 	public StringBuilder getStandardQuery() {
+			if (aggregation != null) {
+				StringBuilder rollupQuery = getRollupQuery();
+				if (rollupQuery != null) {
+					logger.debug("SQL Query built on the rollups >" + rollupQuery.toString() + "<");
+					return rollupQuery;
+				}
+			}
 		    // Standard Criteria
 			StringBuilder partStandardCriteria = new StringBuilder () ;
 			if (criteria != null) {
@@ -77,8 +88,10 @@ public class AbstractQuery {
 						partStandardCriteria.append(" ");
 					}
 				}
-				if (lastStandardCriterionLinkedToVs != null) partStandardCriteria.insert(0, "where ");
+				if (lastStandardCriterionLinkedToVs != null && resumeAfter != null) partStandardCriteria.insert(0, "(").append(") and ");
+				if (lastStandardCriterionLinkedToVs != null && resumeAfter == null) partStandardCriteria.insert(0, "where ");
 			}
+			if (resumeAfter != null) partStandardCriteria.insert(0, "where ").append("timed > " + resumeAfter + " ");
 
 			StringBuilder partFields = new StringBuilder () ;
 			for (int i = 0 ; i < fields.length ; i++) {
@@ -105,12 +118,97 @@ public class AbstractQuery {
 			sqlQuery.append(partFields);
 			sqlQuery.append("from ").append(vsName).append(" ");
 			sqlQuery.append(partStandardCriteria);
-			if (aggregation == null)	sqlQuery.append("order by timed desc ");
-			else 								sqlQuery.append("group by aggregation_interval desc ");
+			if (aggregation == null)	sqlQuery.append("order by timed " + (ascending ? "asc " : "desc "));
+			else 								sqlQuery.append("group by aggregation_interval " + (ascending ? "asc " : "desc "));
 
 			logger.debug("SQL Query built >" + sqlQuery.toString() + "<");
         return sqlQuery;
 	}
+
+	/**
+	 * Rewrites the aggregation on the coarsest rollup table of the virtual
+	 * sensor able to answer it (see {@link RollupManager}), that is if all the
+	 * fields have rollups and the criteria are only bounds on timed falling on
+	 * the buckets of the rollup, joined with and, starting after the rows
+	 * trimmed from the virtual sensor table if any.
+	 *
+	 * @return the query, or null if the aggregation needs the raw rows.
+	 */
+	private StringBuilder getRollupQuery() {
+		if (resumeAfter != null)
+			return null;
+		RollupManager rollups = RollupManager.getInstance();
+		long range;
+		try {
+			range = Long.parseLong(aggregation.getTimeRange());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		ArrayList<StandardCriterion> timeCriteria = new ArrayList<StandardCriterion>();
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		long from = Long.MIN_VALUE;
+		if (criteria != null) {
+			StandardCriterion last = null;
+			for (StandardCriterion cc : criteria) {
+				if (cc.getVsname().compareTo("") != 0 && cc.getVsname().compareToIgnoreCase(vsName) != 0)
+					continue;
+				if (last != null && !last.getCritJoin().equalsIgnoreCase("and"))
+					return null;
+				if (!cc.getField().equalsIgnoreCase("timed") || cc.getNegation().length() > 0)
+					return null;
+				long value;
+				try {
+					value = Long.parseLong(cc.getValue().trim());
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				// the bounds are turned into the first timestamp in or out of the range
+				if (cc.getOperator().equals(">=") || cc.getOperator().equals("<"))
+					bounds.add(value);
+				else if (cc.getOperator().equals(">") || cc.getOperator().equals("<="))
+					bounds.add(value + 1);
+				else
+					return null;
+				if (cc.getOperator().startsWith(">"))
+					from = Math.max(from, bounds.get(bounds.size() - 1));
+				timeCriteria.add(cc);
+				last = cc;
+			}
+		}
+		String op = aggregation.getGroupOperator();
+		for (String field : fields)
+			if (!field.equalsIgnoreCase("timed") && !rollups.hasRollups(vsName, field))
+				return null;
+		long[] boundsArray = new long[bounds.size()];
+		for (int i = 0; i < boundsArray.length; i++)
+			boundsArray[i] = bounds.get(i);
+		long resolution = rollups.getResolution(vsName, range, from, boundsArray);
+		if (resolution < 0)
+			return null;
+
+		StringBuilder sqlQuery = new StringBuilder("select ");
+		for (String field : fields) {
+			String column = field.equalsIgnoreCase("timed") ? "timed" : field.toLowerCase();
+			if (op.equalsIgnoreCase("min"))
+				sqlQuery.append("min(").append(column).append("_min)");
+			else if (op.equalsIgnoreCase("max"))
+				sqlQuery.append("max(").append(column).append("_max)");
+			else if (field.equalsIgnoreCase("timed"))
+				sqlQuery.append("sum(timed_sum)/sum(row_count)");
+			else
+				sqlQuery.append("sum(").append(column).append("_sum)/nullif(sum(").append(column).append("_count), 0)");
+			sqlQuery.append(" as ").append(field).append(", ");
+		}
+		sqlQuery.append("floor(timed/").append(range).append(") as aggregation_interval ");
+		sqlQuery.append("from ").append(RollupManager.getTableName(vsName, resolution)).append(" ");
+		for (int i = 0; i < timeCriteria.size(); i++) {
+			StandardCriterion cc = timeCriteria.get(i);
+			sqlQuery.append(i == 0 ? "where " : "and ").append("timed ").append(cc.getOperator()).append(" ").append(cc.getValue().trim()).append(" ");
+		}
+		sqlQuery.append("group by aggregation_interval order by aggregation_interval " + (ascending ? "asc " : "desc "));
+		return sqlQuery;
+	}
+
 	/*public void setStandardQuery(StringBuilder standardQuery) {
 		this.standardQuery = standardQuery;
 	}*/
@@ -146,6 +244,30 @@ public class AbstractQuery {
             criteria.add(criterion);
     }
 
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    /**
+     * Sorts the rows from the oldest to the most recent, instead of the most
+     * recent first.
+     */
+    public void setAscending(boolean ascending) {
+        this.ascending = ascending;
+    }
+
+    public Long getResumeAfter() {
+        return resumeAfter;
+    }
+
+    /**
+     * Only selects the rows more recent than the given timestamp, as when
+     * resuming a download after the last row received, null selects all rows.
+     */
+    public void setResumeAfter(Long resumeAfter) {
+        this.resumeAfter = resumeAfter;
+    }
+
     public ArrayList<StandardCriterion> getCriteria() {
         return criteria;
     }
@@ -35,17 +35,18 @@ import gsn.beans.VSensorConfig;
 import gsn.beans.DataField;
 import gsn.http.MultiDataDownload;
 import gsn.storage.DataEnumerator;
+import gsn.storage.StorageManager;
+import gsn.storage.db.ArchiveStorageManager;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.LinkedList;
 import java.util.Map.Entry;
 import java.util.*;
 
 import org.apache.commons.collections.KeyValue;
-import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.log4j.Logger;
 
 public class DownloadData extends AbstractDataRequest {
@@ -54,15 +55,24 @@ public class DownloadData extends AbstractDataRequest {
 
     private static final String PARAM_OUTPUT_TYPE = "outputtype";
 
+    private static final String PARAM_RESUME = "resume";
+
     public enum AllowedOutputType {
         csv,
-        xml
+        xml,
+        binary
     }
 
     private AllowedOutputType ot;
 
     private String csvDelimiter = ",";
 
+    /**
+     * The timestamp of the last row the client already has, null for a
+     * complete download.
+     */
+    private Long resumeAfter = null;
+
     public DownloadData(Map<String, String[]> requestParameters) throws DataRequestException {
         super(requestParameters);
     }
@@ -78,6 +88,15 @@ public class DownloadData extends AbstractDataRequest {
 
             ot = AllowedOutputType.valueOf(outputType);
 
+            String resume = QueriesBuilder.getParameter(requestParameters, PARAM_RESUME);
+            if (resume != null && resume.trim().length() > 0) {
+                try {
+                    resumeAfter = Long.parseLong(resume.trim());
+                } catch (NumberFormatException e) {
+                    throw new DataRequestException("The >" + PARAM_RESUME + "< parameter must be the timestamp of the last row received.");
+                }
+            }
+
             if (ot == AllowedOutputType.csv) {
                 //
                 if (QueriesBuilder.getParameter(requestParameters, "delimiter") != null && !QueriesBuilder.getParameter(requestParameters, "delimiter").equals("")) {
@@ -107,145 +126,102 @@ public class DownloadData extends AbstractDataRequest {
 
     @Override
     public void outputResult(OutputStream os) {
-        PrintWriter respond = new PrintWriter(os);
-        Iterator<Entry<String, AbstractQuery>> iter = qbuilder.getSqlQueries().entrySet().iterator();
-        Entry<String, AbstractQuery> nextSqlQuery;
-        DataEnumerator de = null;
+        ExportWriter writer = ExportWriter.create(ot, os, qbuilder.getSdf(), csvDelimiter);
         try {
-            if (ot == AllowedOutputType.xml) {
-                respond.println("<result>");
-            }
-            while (iter.hasNext()) {
-                nextSqlQuery = iter.next();
-                Connection connection = null;
-
-                connection = Main.getStorage(nextSqlQuery.getKey()).getConnection();
-                de = Main.getStorage(nextSqlQuery.getKey()).streamedExecuteQuery(nextSqlQuery.getValue(), true, connection);
+            writer.begin();
+            for (Entry<String, AbstractQuery> nextSqlQuery : qbuilder.getSqlQueries().entrySet()) {
+                String vsName = nextSqlQuery.getKey();
+                AbstractQuery query = nextSqlQuery.getValue();
+                // without a limit the rows are written as they are read, from the oldest
+                query.setAscending(query.getLimitCriterion() == null);
+                query.setResumeAfter(resumeAfter);
 
                 //get units in hash map
-                Iterator< VSensorConfig > vsIterator = Mappings.getAllVSensorConfigs();
                 HashMap<String, String> fieldToUnitMap = new HashMap<String, String>();
-                VSensorConfig sensorConfig = null;
-                while ( vsIterator.hasNext( ) ) {
-                    VSensorConfig senConfig = vsIterator.next( );
-                    if (nextSqlQuery.getKey().equalsIgnoreCase(senConfig.getName())){
-                        sensorConfig = senConfig;
-                        DataField[] dataFieldArray = senConfig.getOutputStructure();
-                        for (DataField df: dataFieldArray){
-                            String unit = df.getUnit();
-                            if (unit == null || unit.trim().length() == 0)
-                                unit = "";
-
-                            fieldToUnitMap.put(df.getName().toLowerCase(), unit);
-                        }
-                        break;
+                VSensorConfig sensorConfig = getSensorConfig(vsName);
+                if (sensorConfig != null)
+                    for (DataField df : sensorConfig.getOutputStructure()) {
+                        String unit = df.getUnit();
+                        if (unit == null || unit.trim().length() == 0)
+                            unit = "";
+                        fieldToUnitMap.put(df.getName().toLowerCase(), unit);
                     }
-                }
 
-                logger.debug("Data Enumerator: " + de);
                 if (ot == AllowedOutputType.csv) {
-                    respond.println("# vsname:" + nextSqlQuery.getKey());
-                    respond.println("# query:" + nextSqlQuery.getValue().getStandardQuery() + (nextSqlQuery.getValue().getLimitCriterion() == null ? "" : "(" + nextSqlQuery.getValue().getLimitCriterion() + ")"));
-                    for ( KeyValue df : sensorConfig.getAddressing()){
-                        respond.println("# " + df.getKey().toString().toLowerCase() + ":" + df.getValue().toString());
-                    }
-                    respond.println("# description:" + sensorConfig.getDescription());
-                } else if (ot == AllowedOutputType.xml) {
-                    respond.println("\t<!-- " + nextSqlQuery.getValue().getStandardQuery() + " -->");
-                    for ( KeyValue df : sensorConfig.getAddressing()){
-                        respond.println("\t<!-- " + StringEscapeUtils.escapeXml(df.getKey().toString().toLowerCase()) + ":" + StringEscapeUtils.escapeXml(df.getValue().toString()) + " -->");
-                    }
-                    respond.println("\t<!-- description:" + StringEscapeUtils.escapeXml(sensorConfig.getDescription()) + " -->");
-                    respond.println("\t<data vsname=\"" + nextSqlQuery.getKey() + "\">");
-                 }
-
-                FieldsCollection fc = qbuilder.getVsnamesAndStreams().get(nextSqlQuery.getKey());
-                boolean wantTimed = true;
-                boolean firstLine = true;
-                LinkedList<StreamElement> streamElements = new LinkedList<StreamElement>();
-                while (de.hasMoreElements()) {
-                    streamElements.add(de.nextElement());
-                }
-                while (!streamElements.isEmpty()) {
-                    if (ot == AllowedOutputType.csv) {
-                        formatCSVElement(respond, streamElements.removeLast(), wantTimed, csvDelimiter, firstLine, fieldToUnitMap);
-                    } else if (ot == AllowedOutputType.xml) {
-                        formatXMLElement(respond, streamElements.removeLast(), wantTimed, firstLine, fieldToUnitMap);
-                    }
-                    firstLine = false;
+                    writer.comment("vsname:" + vsName);
+                    writer.comment("query:" + query.getStandardQuery() + (query.getLimitCriterion() == null ? "" : "(" + query.getLimitCriterion() + ")"));
+                } else
+                    writer.comment(query.getStandardQuery().toString());
+                if (sensorConfig != null) {
+                    for (KeyValue df : sensorConfig.getAddressing())
+                        writer.comment(df.getKey().toString().toLowerCase() + ":" + df.getValue().toString());
+                    writer.comment("description:" + sensorConfig.getDescription());
                 }
-                if (ot == AllowedOutputType.xml)
-                    respond.println("\t</data>");
-            }
-            if (ot == AllowedOutputType.xml) {
-                respond.println("</result>");
+                writer.startSection(vsName);
+                if (query.getLimitCriterion() != null)
+                    writer.holdRows();
+                StorageManager storage = Main.getStorage(vsName);
+                if (storage instanceof ArchiveStorageManager)
+                    writeArchivedRows(writer, storage, vsName, query, fieldToUnitMap);
+                else
+                    writeRows(writer, storage, query, fieldToUnitMap);
+                writer.endSection();
             }
+            writer.end();
         } catch (SQLException e) {
-            logger.debug(e.getMessage());
-        } finally {
-            respond.flush();
-            if (de != null)
-                de.close();
+            logger.error(e.getMessage(), e);
+        } catch (IOException e) {
+            // most likely the client closed the connection, it can resume from the last row it got
+            logger.debug(e.getMessage(), e);
         }
     }
 
-
-    private void formatCSVElement(PrintWriter respond, StreamElement se, boolean wantTimed, String cvsDelimiter, boolean firstLine, HashMap<String, String> fieldToUnitMap) {
-        if (firstLine) {
-            //names of vs fields (first line)
-            respond.print("# ");
-            if (wantTimed)
-                respond.print("time");
-            for (int i = 0; i < se.getData().length; i++) {
-                respond.print(cvsDelimiter);
-                respond.print(se.getFieldNames()[i]);
-            }
-            respond.println();
-
-            //units (second line)
-            respond.print("# ");
-            if (wantTimed)
-                respond.print("");
-            for (int i = 0; i < se.getData().length; i++) {
-                respond.print(cvsDelimiter);
-                respond.print(fieldToUnitMap.get(se.getFieldNames()[i].toLowerCase()));
+    private void writeRows(ExportWriter writer, StorageManager storage, AbstractQuery query, HashMap<String, String> fieldToUnitMap) throws SQLException, IOException {
+        Connection connection = null;
+        ResultSet rs = null;
+        try {
+            connection = storage.getConnection();
+            rs = storage.streamedExecuteQueryWithResultSet(query, connection);
+            writer.setColumns(rs, storage);
+            while (rs.next())
+                writer.writeRow(rs, fieldToUnitMap);
+        } finally {
+            if (rs != null) {
+                storage.closeStatement(rs.getStatement());
+                storage.close(rs);
             }
-            respond.println();
+            storage.close(connection);
         }
-        if (wantTimed) {
-            respond.print(qbuilder.getSdf() == null ? timestampInUTC(se.getTimeStamp()) : qbuilder.getSdf().format(new Date(se.getTimeStamp())));
-        }
-        for (int i = 0; i < se.getData().length; i++) {
-            respond.print(cvsDelimiter);
-            respond.print(se.getData()[i]);
-        }
-        respond.println();
     }
 
-    private void formatXMLElement(PrintWriter respond, StreamElement se, boolean wantTimed, boolean firstLine, HashMap<String, String> fieldToUnitMap) {
-        if (firstLine) {
-            respond.println("\t\t<header>");
-            if (wantTimed)
-                respond.println("\t\t\t<field unit=\"\">time</field>");
-            for (int i = 0; i < se.getData().length; i++) {
-                respond.print("\t\t\t<field unit=\"" + fieldToUnitMap.get(se.getFieldNames()[i].toLowerCase()));
-                respond.println("\">"+se.getFieldNames()[i]+"</field>");
+    /**
+     * The archive answers the queries from its own files, its rows come as
+     * stream elements.
+     */
+    private void writeArchivedRows(ExportWriter writer, StorageManager storage, String vsName, AbstractQuery query, HashMap<String, String> fieldToUnitMap) throws SQLException, IOException {
+        DataEnumerator de = storage.streamedExecuteQuery(query, true, storage.getConnection());
+        try {
+            boolean first = true;
+            while (de.hasMoreElements()) {
+                StreamElement se = de.nextElement();
+                if (first)
+                    writer.setColumns(se);
+                first = false;
+                writer.writeRow(se, fieldToUnitMap);
             }
-            respond.println("\t\t</header>");
-        }
-        respond.println("\t\t<tuple>");
-        if (wantTimed)
-            respond.println("\t\t\t<field>" + (qbuilder.getSdf() == null ? timestampInUTC(se.getTimeStamp()) : qbuilder.getSdf().format(new Date(se.getTimeStamp()))) + "</field>");
-        for (int i = 0; i < se.getData().length; i++) {
-            respond.println("\t\t\t<field>" + se.getData()[i] + "</field>");
+        } finally {
+            de.close();
         }
-        respond.println("\t\t</tuple>");
     }
 
-    private long timestampInUTC(long timestamp) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(timestamp);
-        return cal.getTimeInMillis() + cal.getTimeZone().getOffset(cal.getTimeInMillis());
+    private static VSensorConfig getSensorConfig(String vsName) {
+        Iterator<VSensorConfig> vsIterator = Mappings.getAllVSensorConfigs();
+        while (vsIterator.hasNext()) {
+            VSensorConfig senConfig = vsIterator.next();
+            if (vsName.equalsIgnoreCase(senConfig.getName()))
+                return senConfig;
+        }
+        return null;
     }
 
     public AllowedOutputType getOt() {
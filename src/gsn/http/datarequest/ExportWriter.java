@@ -0,0 +1,591 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/datarequest/ExportWriter.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.datarequest;
+
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.storage.StorageManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Writes the result of the queries of a download, one virtual sensor after
+ * the other, reading the rows straight from their result set. Each row is
+ * formatted into a buffer reused from one row to the next and then copied to
+ * the output, so that the memory used doesn't depend on the size of the
+ * download.
+ * <p>
+ * Three formats are available, the csv and xml formats of
+ * {@link DownloadData} and a compact binary format written with a
+ * {@link DataOutputStream}:
+ * <pre>
+ * int magic ('GSNB'), byte version
+ * for each virtual sensor:
+ *   byte 1, utf name, int fields, for each field: utf name, byte type, utf unit
+ *   for each row: byte 2, long timed, for each field: boolean null, the value
+ *   byte 3
+ * byte 0
+ * </pre>
+ * The integers are written as longs, the doubles as doubles and the strings
+ * (and the links to the binary fields) as an int length followed by their
+ * UTF-8 bytes.
+ */
+public abstract class ExportWriter {
+
+    public static final int BINARY_MAGIC = 0x47534e42;
+
+    public static final byte BINARY_VERSION = 1;
+
+    /**
+     * The buffer a row is formatted in, reset after each row.
+     */
+    protected final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+    private final OutputStream out;
+
+    protected final SimpleDateFormat sdf;
+
+    /**
+     * The rows kept to be written in the reverse order, null if the rows are
+     * written as they come.
+     */
+    private List<byte[]> held = null;
+
+    private String vsName;
+
+    private String[] names;
+
+    private byte[] types;
+
+    private int[] columns;
+
+    /**
+     * The beginning of the links to the binary fields, the primary key of the
+     * row completes them.
+     */
+    private String[] links;
+
+    private int timedColumn;
+
+    private int pkColumn;
+
+    private boolean headerWritten;
+
+    protected ExportWriter(OutputStream out, SimpleDateFormat sdf) {
+        this.out = out;
+        this.sdf = sdf;
+    }
+
+    public static ExportWriter create(DownloadData.AllowedOutputType type, OutputStream out, SimpleDateFormat sdf, String csvDelimiter) {
+        switch (type) {
+            case xml:
+                return new XmlWriter(out, sdf);
+            case binary:
+                return new BinaryWriter(out, sdf);
+            default:
+                return new CsvWriter(out, sdf, csvDelimiter);
+        }
+    }
+
+    /**
+     * Starts the rows of a virtual sensor, the comments describing them must
+     * have been written with {@link #comment(String)} before.
+     */
+    public void startSection(String vsName) throws IOException {
+        this.vsName = vsName;
+        headerWritten = false;
+    }
+
+    /**
+     * Takes the fields of the rows from the result set they are read from.
+     */
+    public void setColumns(ResultSet rs, StorageManager storage) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        timedColumn = -1;
+        pkColumn = -1;
+        ArrayList<Integer> dataColumns = new ArrayList<Integer>();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            String label = metaData.getColumnLabel(i);
+            if (label.equalsIgnoreCase("pk"))
+                pkColumn = i;
+            else if (label.equalsIgnoreCase("timed"))
+                timedColumn = i;
+            else
+                dataColumns.add(i);
+        }
+        columns = new int[dataColumns.size()];
+        names = new String[columns.length];
+        types = new byte[columns.length];
+        links = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = dataColumns.get(i);
+            names[i] = metaData.getColumnLabel(columns[i]);
+            types[i] = storage.convertLocalTypeToGSN(metaData.getColumnType(columns[i]), metaData.getScale(columns[i]));
+            if (types[i] == DataTypes.BINARY)
+                links[i] = "field?vs=" + metaData.getTableName(columns[i]) + "&amp;field=" + names[i] + "&amp;pk=";
+        }
+    }
+
+    /**
+     * Takes the fields of the rows from the first of the stream elements.
+     */
+    public void setColumns(StreamElement first) {
+        names = first.getFieldNames();
+        types = new byte[names.length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = first.getFieldTypes()[i];
+        columns = null;
+        links = null;
+    }
+
+    /**
+     * From now on, the rows are kept until {@link #releaseRows()} writes them
+     * in the reverse order. The memory used is then proportional to the number
+     * of rows, this is meant for queries with a limit.
+     */
+    public void holdRows() {
+        held = new ArrayList<byte[]>();
+    }
+
+    public void releaseRows() throws IOException {
+        List<byte[]> rows = held;
+        held = null;
+        if (rows != null)
+            for (int i = rows.size() - 1; i >= 0; i--)
+                out.write(rows.get(i));
+    }
+
+    /**
+     * Writes the row the result set is on.
+     */
+    public void writeRow(ResultSet rs, Map<String, String> units) throws SQLException, IOException {
+        writeHeaderOnce(units);
+        long timed = timedColumn == -1 ? System.currentTimeMillis() : rs.getLong(timedColumn);
+        long pk = pkColumn == -1 ? -1 : rs.getLong(pkColumn);
+        startRow(timed);
+        for (int i = 0; i < columns.length; i++) {
+            int c = columns[i];
+            switch (types[i]) {
+                case DataTypes.DOUBLE:
+                    double d = rs.getDouble(c);
+                    if (rs.wasNull())
+                        nullValue(i);
+                    else
+                        doubleValue(i, d);
+                    break;
+                case DataTypes.TINYINT:
+                case DataTypes.SMALLINT:
+                case DataTypes.INTEGER:
+                case DataTypes.BIGINT:
+                    long l = rs.getLong(c);
+                    if (rs.wasNull())
+                        nullValue(i);
+                    else
+                        longValue(i, l);
+                    break;
+                case DataTypes.BINARY:
+                    // like DataEnumerator, the binary fields are given as links
+                    linkValue(i, links[i] + pk);
+                    break;
+                default:
+                    String s = rs.getString(c);
+                    if (s == null)
+                        nullValue(i);
+                    else
+                        stringValue(i, s);
+            }
+        }
+        endRow();
+        emit(true);
+    }
+
+    public void writeRow(StreamElement se, Map<String, String> units) throws IOException {
+        writeHeaderOnce(units);
+        startRow(se.getTimeStamp());
+        Serializable[] data = se.getData();
+        for (int i = 0; i < data.length; i++) {
+            Serializable value = data[i];
+            if (value == null)
+                nullValue(i);
+            else if (value instanceof Double || value instanceof Float)
+                doubleValue(i, ((Number) value).doubleValue());
+            else if (value instanceof Number)
+                longValue(i, ((Number) value).longValue());
+            else if (value instanceof byte[])
+                linkValue(i, "field?vs=" + vsName + "&amp;field=" + names[i] + "&amp;pk=" + se.getInternalPrimayKey());
+            else
+                stringValue(i, value.toString());
+        }
+        endRow();
+        emit(true);
+    }
+
+    private void writeHeaderOnce(Map<String, String> units) throws IOException {
+        if (headerWritten)
+            return;
+        headerWritten = true;
+        String[] fieldUnits = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String unit = units.get(names[i].toLowerCase());
+            fieldUnits[i] = unit == null ? "" : unit;
+        }
+        header(vsName, names, types, fieldUnits);
+        emit(false);
+    }
+
+    /**
+     * Copies the buffer to the output, or to the held rows, and resets it.
+     */
+    protected void emit(boolean row) throws IOException {
+        flushBuffer();
+        if (row && held != null)
+            held.add(buffer.toByteArray());
+        else
+            buffer.writeTo(out);
+        buffer.reset();
+    }
+
+    protected String formatTime(long timed) {
+        if (sdf != null)
+            return sdf.format(new Date(timed));
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(timed);
+        return Long.toString(cal.getTimeInMillis() + cal.getTimeZone().getOffset(cal.getTimeInMillis()));
+    }
+
+    public void begin() throws IOException {
+    }
+
+    /**
+     * Writes a comment about the next virtual sensor, ignored by the formats
+     * without comments.
+     */
+    public void comment(String text) throws IOException {
+    }
+
+    /**
+     * Writes the header of the rows of a virtual sensor, called before its
+     * first row.
+     */
+    protected abstract void header(String vsName, String[] names, byte[] types, String[] units) throws IOException;
+
+    protected abstract void startRow(long timed) throws IOException;
+
+    protected abstract void nullValue(int field) throws IOException;
+
+    protected abstract void doubleValue(int field, double value) throws IOException;
+
+    protected abstract void longValue(int field, long value) throws IOException;
+
+    protected abstract void stringValue(int field, String value) throws IOException;
+
+    protected void linkValue(int field, String link) throws IOException {
+        stringValue(field, link);
+    }
+
+    protected abstract void endRow() throws IOException;
+
+    /**
+     * Ends the rows of a virtual sensor.
+     */
+    public void endSection() throws IOException {
+        releaseRows();
+    }
+
+    public void end() throws IOException {
+        flushBuffer();
+        buffer.writeTo(out);
+        buffer.reset();
+        out.flush();
+    }
+
+    /**
+     * Pushes the characters or bytes pending in the encoder of the format to
+     * the buffer.
+     */
+    protected abstract void flushBuffer() throws IOException;
+
+    /**
+     * The formats written as text, encoded in UTF-8.
+     */
+    private static abstract class TextWriter extends ExportWriter {
+
+        protected final Writer writer;
+
+        TextWriter(OutputStream out, SimpleDateFormat sdf) {
+            super(out, sdf);
+            writer = new OutputStreamWriter(buffer, Charset.forName("UTF-8"));
+        }
+
+        protected void flushBuffer() throws IOException {
+            writer.flush();
+        }
+    }
+
+    private static class CsvWriter extends TextWriter {
+
+        private final String delimiter;
+
+        CsvWriter(OutputStream out, SimpleDateFormat sdf, String delimiter) {
+            super(out, sdf);
+            this.delimiter = delimiter;
+        }
+
+        public void comment(String text) throws IOException {
+            writer.write("# ");
+            writer.write(text);
+            writer.write('\n');
+            emit(false);
+        }
+
+        protected void header(String vsName, String[] names, byte[] types, String[] units) throws IOException {
+            writer.write("# time");
+            for (String name : names) {
+                writer.write(delimiter);
+                writer.write(name);
+            }
+            writer.write("\n# ");
+            for (String unit : units) {
+                writer.write(delimiter);
+                writer.write(unit);
+            }
+            writer.write('\n');
+        }
+
+        protected void startRow(long timed) throws IOException {
+            writer.write(formatTime(timed));
+        }
+
+        protected void nullValue(int field) throws IOException {
+            writer.write(delimiter);
+            writer.write("null");
+        }
+
+        protected void doubleValue(int field, double value) throws IOException {
+            writer.write(delimiter);
+            writer.write(Double.toString(value));
+        }
+
+        protected void longValue(int field, long value) throws IOException {
+            writer.write(delimiter);
+            writer.write(Long.toString(value));
+        }
+
+        protected void stringValue(int field, String value) throws IOException {
+            writer.write(delimiter);
+            writer.write(value);
+        }
+
+        protected void endRow() throws IOException {
+            writer.write('\n');
+        }
+    }
+
+    private static class XmlWriter extends TextWriter {
+
+        private boolean inSection = false;
+
+        XmlWriter(OutputStream out, SimpleDateFormat sdf) {
+            super(out, sdf);
+        }
+
+        public void begin() throws IOException {
+            writer.write("<result>\n");
+            emit(false);
+        }
+
+        public void comment(String text) throws IOException {
+            writer.write("\t<!-- ");
+            writer.write(StringEscapeUtils.escapeXml(text));
+            writer.write(" -->\n");
+            emit(false);
+        }
+
+        public void startSection(String vsName) throws IOException {
+            super.startSection(vsName);
+            writer.write("\t<data vsname=\"");
+            writer.write(vsName);
+            writer.write("\">\n");
+            emit(false);
+            inSection = true;
+        }
+
+        protected void header(String vsName, String[] names, byte[] types, String[] units) throws IOException {
+            writer.write("\t\t<header>\n\t\t\t<field unit=\"\">time</field>\n");
+            for (int i = 0; i < names.length; i++) {
+                writer.write("\t\t\t<field unit=\"");
+                writer.write(StringEscapeUtils.escapeXml(units[i]));
+                writer.write("\">");
+                writer.write(names[i]);
+                writer.write("</field>\n");
+            }
+            writer.write("\t\t</header>\n");
+        }
+
+        protected void startRow(long timed) throws IOException {
+            writer.write("\t\t<tuple>\n\t\t\t<field>");
+            writer.write(formatTime(timed));
+            writer.write("</field>\n");
+        }
+
+        private void value(String value) throws IOException {
+            writer.write("\t\t\t<field>");
+            writer.write(value);
+            writer.write("</field>\n");
+        }
+
+        protected void nullValue(int field) throws IOException {
+            value("null");
+        }
+
+        protected void doubleValue(int field, double value) throws IOException {
+            value(Double.toString(value));
+        }
+
+        protected void longValue(int field, long value) throws IOException {
+            value(Long.toString(value));
+        }
+
+        protected void stringValue(int field, String value) throws IOException {
+            value(StringEscapeUtils.escapeXml(value));
+        }
+
+        protected void linkValue(int field, String link) throws IOException {
+            value(link);
+        }
+
+        protected void endRow() throws IOException {
+            writer.write("\t\t</tuple>\n");
+        }
+
+        public void endSection() throws IOException {
+            super.endSection();
+            if (inSection) {
+                writer.write("\t</data>\n");
+                emit(false);
+                inSection = false;
+            }
+        }
+
+        public void end() throws IOException {
+            writer.write("</result>\n");
+            super.end();
+        }
+    }
+
+    private static class BinaryWriter extends ExportWriter {
+
+        private final DataOutputStream data = new DataOutputStream(buffer);
+
+        private boolean inSection = false;
+
+        BinaryWriter(OutputStream out, SimpleDateFormat sdf) {
+            super(out, sdf);
+        }
+
+        public void begin() throws IOException {
+            data.writeInt(BINARY_MAGIC);
+            data.writeByte(BINARY_VERSION);
+            emit(false);
+        }
+
+        protected void header(String vsName, String[] names, byte[] types, String[] units) throws IOException {
+            data.writeByte(1);
+            data.writeUTF(vsName);
+            data.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                data.writeUTF(names[i]);
+                data.writeByte(types[i]);
+                data.writeUTF(units[i]);
+            }
+            inSection = true;
+        }
+
+        protected void startRow(long timed) throws IOException {
+            data.writeByte(2);
+            data.writeLong(timed);
+        }
+
+        protected void nullValue(int field) throws IOException {
+            data.writeBoolean(true);
+        }
+
+        protected void doubleValue(int field, double value) throws IOException {
+            data.writeBoolean(false);
+            data.writeDouble(value);
+        }
+
+        protected void longValue(int field, long value) throws IOException {
+            data.writeBoolean(false);
+            data.writeLong(value);
+        }
+
+        protected void stringValue(int field, String value) throws IOException {
+            data.writeBoolean(false);
+            byte[] bytes = value.getBytes("UTF-8");
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+
+        protected void endRow() throws IOException {
+        }
+
+        public void endSection() throws IOException {
+            super.endSection();
+            if (inSection) {
+                data.writeByte(3);
+                emit(false);
+                inSection = false;
+            }
+        }
+
+        public void end() throws IOException {
+            data.writeByte(0);
+            super.end();
+        }
+
+        protected void flushBuffer() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/datarequest/TestExportWriter.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.datarequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExportWriter {
+
+	private DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE), new DataField("label", DataTypes.VARCHAR) };
+
+	private static final String TABLE = "export_writer_test";
+
+	private StorageManager sm;
+
+	@Before
+	public void setUp() throws Exception {
+		DriverManager.registerDriver(new org.h2.Driver());
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:exportwriter", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable(TABLE, fields, true);
+		for (long t = 1; t <= 3; t++)
+			sm.executeInsert(TABLE, fields, new StreamElement(fields, new Serializable[] { t == 2 ? null : t / 2.0, "t" + t }, t));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sm.executeDropTable(TABLE);
+	}
+
+	private void export(ExportWriter writer, String query, boolean hold) throws Exception {
+		Connection conn = sm.getConnection();
+		ResultSet rs = conn.prepareStatement(query).executeQuery();
+		HashMap<String, String> units = new HashMap<String, String>();
+		units.put("temperature", "C");
+		writer.begin();
+		writer.startSection(TABLE);
+		writer.setColumns(rs, sm);
+		if (hold)
+			writer.holdRows();
+		while (rs.next())
+			writer.writeRow(rs, units);
+		writer.endSection();
+		writer.end();
+		rs.close();
+		sm.close(conn);
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExportWriter writer = ExportWriter.create(DownloadData.AllowedOutputType.csv, out, new java.text.SimpleDateFormat("S"), ";");
+		export(writer, "select pk, timed, temperature, label from " + TABLE + " order by timed desc", true);
+		assertEquals("# time;TEMPERATURE;LABEL\n# ;C;\n1;0.5;t1\n2;null;t2\n3;1.5;t3\n", out.toString("UTF-8"));
+	}
+
+	@Test
+	public void testBinary() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		export(ExportWriter.create(DownloadData.AllowedOutputType.binary, out, null, null), "select timed, temperature, label from " + TABLE
+				+ " order by timed asc", false);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(ExportWriter.BINARY_MAGIC, in.readInt());
+		assertEquals(ExportWriter.BINARY_VERSION, in.readByte());
+		assertEquals((byte) 1, in.readByte());
+		assertEquals(TABLE, in.readUTF());
+		assertEquals(2, in.readInt());
+		assertEquals("TEMPERATURE", in.readUTF());
+		assertEquals(DataTypes.DOUBLE, in.readByte());
+		assertEquals("C", in.readUTF());
+		assertEquals("LABEL", in.readUTF());
+		assertEquals(DataTypes.VARCHAR, in.readByte());
+		assertEquals("", in.readUTF());
+		for (long t = 1; t <= 3; t++) {
+			assertEquals((byte) 2, in.readByte());
+			assertEquals(t, in.readLong());
+			boolean isNull = in.readBoolean();
+			assertEquals(t == 2, isNull);
+			if (!isNull)
+				assertEquals(t / 2.0, in.readDouble(), 0);
+			assertFalse(in.readBoolean());
+			byte[] label = new byte[in.readInt()];
+			in.readFully(label);
+			assertEquals("t" + t, new String(label, "UTF-8"));
+		}
+		assertEquals((byte) 3, in.readByte());
+		assertEquals((byte) 0, in.readByte());
+	}
+}
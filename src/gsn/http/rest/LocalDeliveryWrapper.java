@@ -28,6 +28,7 @@
 package gsn.http.rest;
 
 import gsn.DataDistributer;
+import gsn.DistributionSubscription.OverflowPolicy;
 import gsn.Mappings;
 import gsn.VirtualSensorInitializationFailedException;
 import gsn.beans.AddressBean;
@@ -66,6 +67,8 @@ public class LocalDeliveryWrapper extends AbstractWrapper implements DeliverySys
 	
 	private DefaultDistributionRequest distributionRequest;
 
+	private OverflowPolicy overflowPolicy;
+
 	public String getWrapperName() {
 		return "Local-wrapper";
 	}
@@ -76,6 +79,7 @@ public class LocalDeliveryWrapper extends AbstractWrapper implements DeliverySys
 		
 		String vsName = params.getPredicateValue( "name" );
 		String startTime = params.getPredicateValueWithDefault("start-time",CURRENT_TIME );
+		overflowPolicy = OverflowPolicy.parse(params.getPredicateValue("overflow-policy"), DataDistributer.getDefaultOverflowPolicy());
 
 		if (query==null && vsName == null) {
 			logger.error("For using local-wrapper, either >query< or >name< parameters should be specified"); 
@@ -133,7 +137,7 @@ public class LocalDeliveryWrapper extends AbstractWrapper implements DeliverySys
 	
 	public void run() {
 		DataDistributer localDistributer = DataDistributer.getInstance(LocalDeliveryWrapper.class);
-		localDistributer.addListener(this.distributionRequest);
+		localDistributer.addListener(this.distributionRequest, overflowPolicy);
 	}
 
 	public void writeStructure(DataField[] fields) throws IOException {
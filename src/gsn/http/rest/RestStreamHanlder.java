@@ -29,6 +29,7 @@
 package gsn.http.rest;
 
 import gsn.DataDistributer;
+import gsn.DistributionSubscription.OverflowPolicy;
 import gsn.Main;
 import gsn.Mappings;
 import gsn.ModelDistributer;
@@ -71,6 +72,13 @@ public class RestStreamHanlder extends HttpServlet {
 
 	private static final String STREAMING = "/streaming/";
 
+	/**
+	 * Optional request parameter selecting what happens when the client
+	 * doesn't keep up with the data (block, drop-oldest, disconnect or
+	 * catch-up).
+	 */
+	public static final String OVERFLOW_POLICY = "overflow";
+
 	private static transient Logger       logger     = Logger.getLogger ( RestStreamHanlder.class );
 
 	public void doGet ( HttpServletRequest request , HttpServletResponse response ) throws ServletException{
@@ -122,7 +130,7 @@ public class RestStreamHanlder extends HttpServlet {
                 //
                 RestDelivery deliverySystem = new RestDelivery(continuation);
                 streamingReq = DefaultDistributionRequest.create(deliverySystem, parser.getVSensorConfig(), parser.getQuery(), parser.getStartTime());
-                DataDistributer.getInstance(deliverySystem.getClass()).addListener(streamingReq);
+                DataDistributer.getInstance(deliverySystem.getClass()).addListener(streamingReq, parser.getOverflowPolicy());
 			}catch (Exception e) {
 				logger.warn(e.getMessage());
                 continuation.complete();
@@ -197,7 +205,7 @@ public class RestStreamHanlder extends HttpServlet {
 			if (parser.getModelClass()==null){ //query on the database
 				DefaultDistributionRequest distributionReq = DefaultDistributionRequest.create(delivery, parser.getVSensorConfig(), parser.getQuery(), parser.getStartTime());
 				logger.debug("Rest request received: "+distributionReq.toString());
-				DataDistributer.getInstance(delivery.getClass()).addListener(distributionReq);
+				DataDistributer.getInstance(delivery.getClass()).addListener(distributionReq, parser.getOverflowPolicy());
 				logger.debug("Streaming request received and registered:"+distributionReq.toString());
 			}else{ // query on a model
 				ModelDistributionRequest distributionReq = ModelDistributionRequest.create(delivery, parser.getVSensorConfig(), parser.getQuery(), parser.getModelClass());
@@ -273,7 +281,9 @@ public class RestStreamHanlder extends HttpServlet {
 		private long startTime;
 		private String nMessage = "";
 		private VSensorConfig config;
+		private OverflowPolicy overflowPolicy;
 		public URLParser(HttpServletRequest request) throws UnsupportedEncodingException, Exception {
+			overflowPolicy = OverflowPolicy.parse(request.getParameter(OVERFLOW_POLICY), DataDistributer.getDefaultOverflowPolicy());
 			String requestURI = request.getRequestURI().substring(request.getRequestURI().toLowerCase().indexOf(STREAMING)+STREAMING.length());
 			StringTokenizer tokens = new StringTokenizer(requestURI,"/");
 			startTime = System.currentTimeMillis();
@@ -320,6 +330,9 @@ public class RestStreamHanlder extends HttpServlet {
 		public VSensorConfig getVSensorConfig() {
 			return config;
 		}
+		public OverflowPolicy getOverflowPolicy() {
+			return overflowPolicy;
+		}
 		public String getQuery() {
 			return query;
 		}
@@ -17,54 +17,178 @@
  * You should have received a copy of the GNU General Public License
  * along with GSN.  If not, see <http://www.gnu.org/licenses/>.
  *
- * File: src/gsn/http/restapi/RequestHandler.java
+ * File: src/gsn/http/restapi/Caching.java
  *
  * @author Milos Stojanovic
  *
  */
 
-
 package gsn.http.restapi;
 
+import gsn.Main;
+import gsn.VSensorStateChangeListener;
+import gsn.VirtualSensorDataListener;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.storage.StorageManager;
 
-import java.util.HashMap;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The latest values of the virtual sensors, kept up to date by listening to
+ * the elements they publish, so that they are served without querying the
+ * database. The values of a virtual sensor are only read from its table the
+ * first time they are asked for, if it didn't publish anything since it was
+ * loaded. Nothing is cached if that read fails.
+ */
+public class Caching implements VirtualSensorDataListener, VSensorStateChangeListener {
+
+    private static transient Logger logger = Logger.getLogger(Caching.class);
+
+    private static final Caching singleton = new Caching();
+
+    /**
+     * The latest values of a virtual sensor, never modified once built.
+     */
+    private static final class Latest {
+        /**
+         * The output structure the values follow.
+         */
+        final DataField[] structure;
+
+        final long timestamp;
+
+        /**
+         * The values in the order of the structure, NaN for the null and
+         * non numeric values. Empty if the virtual sensor has no data.
+         */
+        final double[] values;
 
-public class Caching {
-    private static final long TIME_DIFFERENCE = 3600000; //after 1 hour cach is old
-    private static HashMap<String, List<Double>> sensorToLatestVals = new HashMap<String, List<Double>>();
-    private static HashMap<String, Long> sensorToTimestamp = new HashMap<String, Long>();
-    //TODO use specific diff per sensor
-    //private static HashMap<String, Long> sensorToTimeDiff = new HashMap<String, Long>();
-    private static boolean isEnabled = false;
+        Latest(DataField[] structure, long timestamp, double[] values) {
+            this.structure = structure;
+            this.timestamp = timestamp;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The key is the lower case name of the virtual sensor.
+     */
+    private final ConcurrentHashMap<String, Latest> latest = new ConcurrentHashMap<String, Latest>();
+
+    Caching() {
+    }
+
+    public static Caching getInstance() {
+        return singleton;
+    }
+
+    private static Latest toLatest(DataField[] structure, StreamElement se) {
+        double[] values = new double[structure.length];
+        for (int i = 0; i < structure.length; i++) {
+            Serializable value = se.getData(structure[i].getName());
+            values[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+        }
+        return new Latest(structure, se.getTimeStamp(), values);
+    }
+
+    public void consume(StreamElement se, VSensorConfig config) {
+        put(config.getName().toLowerCase(), toLatest(config.getOutputStructure(), se));
+    }
 
-    public static List<Double> getLatestValsForSensor(String sensor){
-        return sensorToLatestVals.get(sensor);
+    private void put(String name, Latest update) {
+        while (true) {
+            Latest current = latest.putIfAbsent(name, update);
+            if (current == null)
+                return;
+            // an element older than the latest one doesn't change anything
+            if (current.structure == update.structure && current.timestamp > update.timestamp)
+                return;
+            if (latest.replace(name, current, update))
+                return;
+        }
     }
 
-    public static void setLatestValsForSensor(String sensor, List<Double> latestVals){
-        sensorToLatestVals.put(sensor, latestVals);
-        setTimestamp(sensor, System.currentTimeMillis());
+    /**
+     * @return the latest values of the fields of the virtual sensor, in the
+     *         order of its output structure, with null for the missing values.
+     *         Empty if the virtual sensor has no data or its table can't be
+     *         read.
+     */
+    public List<Double> getLatestValues(VSensorConfig config) {
+        String name = config.getName().toLowerCase();
+        Latest values = latest.get(name);
+        if (values == null || values.structure != config.getOutputStructure()) {
+            try {
+                values = readLatest(config);
+            } catch (SQLException e) {
+                // not cached, the next request reads the table again
+                logger.error("Can't read the latest values of " + config.getName() + ": " + e.getMessage(), e);
+                return new ArrayList<Double>();
+            }
+            put(name, values);
+            // unless an element published meanwhile is more recent
+            Latest current = latest.get(name);
+            if (current != null && current.structure == values.structure)
+                values = current;
+        }
+        List<Double> toReturn = new ArrayList<Double>(values.values.length);
+        for (double value : values.values)
+            toReturn.add(Double.isNaN(value) ? null : value);
+        return toReturn;
     }
 
-    public static boolean isEnabled(){
-        return isEnabled;
+    StorageManager getStorage(VSensorConfig config) {
+        return Main.getStorage(config.getName());
     }
 
-    public static void enable(){
-        isEnabled = true;
+    /**
+     * Reads the most recent row of the virtual sensor, a failure being
+     * reported instead of read as an empty table.
+     */
+    private Latest readLatest(VSensorConfig config) throws SQLException {
+        DataField[] structure = config.getOutputStructure();
+        String vsName = config.getName();
+        StringBuilder query = new StringBuilder("select * from ").append(vsName).append(" where timed = (select max(timed) from ").append(vsName).append(")");
+        StorageManager storage = getStorage(config);
+        Connection conn = null;
+        ResultSet rs = null;
+        try {
+            conn = storage.getConnection();
+            rs = storage.executeQueryWithResultSet(query, conn);
+            if (!rs.next())
+                return new Latest(structure, Long.MIN_VALUE, new double[0]);
+            double[] values = new double[structure.length];
+            for (int i = 0; i < structure.length; i++) {
+                Object value = rs.getObject(structure[i].getName());
+                values[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+            }
+            return new Latest(structure, rs.getLong("timed"), values);
+        } finally {
+            storage.close(rs);
+            storage.close(conn);
+        }
     }
 
-    public static void disable(){
-        isEnabled = false;
+    public boolean vsLoading(VSensorConfig config) {
+        return true;
     }
 
-    public static void setTimestamp(String sensor, long ts){
-        sensorToTimestamp.put(sensor, ts);
+    public boolean vsUnLoading(VSensorConfig config) {
+        latest.remove(config.getName().toLowerCase());
+        return true;
     }
 
-    public static boolean isCacheValid(String sensor){
-        if (!sensorToTimestamp.containsKey(sensor)) return false;
-        return (System.currentTimeMillis() - sensorToTimestamp.get(sensor)) < TIME_DIFFERENCE;
+    public void release() throws Exception {
+        latest.clear();
     }
 }
@@ -36,11 +36,14 @@ import gsn.beans.VSensorConfig;
 import gsn.http.ac.DataSource;
 import gsn.http.ac.User;
 import gsn.storage.DataEnumerator;
+import gsn.storage.Downsampler;
 import gsn.utils.geo.GridTools;
 import gsn.xpr.XprConditions;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -98,26 +101,7 @@ public class RequestHandler {
             }
             */
             if (includeLatestVals){
-                if (Caching.isEnabled()){
-                    if (!Caching.isCacheValid(sensorConfig.getName())){
-                        Map<String, Double> se = getMostRecentValueFor(sensorConfig.getName());
-                        List<Double> latestValsList = new ArrayList<Double>();
-                        if (se != null){
-                            for (DataField df: sensorConfig.getOutputStructure()){
-                                latestValsList.add(se.get(df.getName().toLowerCase()));
-                            }
-                        }
-                        Caching.setLatestValsForSensor(sensorConfig.getName(), latestValsList);
-                    }
-                    sensor.setLatestValues(Caching.getLatestValsForSensor(sensorConfig.getName()));
-                } else {
-                    Map<String, Double> se = getMostRecentValueFor(sensorConfig.getName());
-                    if (se != null){
-                        for (DataField df: sensorConfig.getOutputStructure()){
-                            sensor.addLatestValue(se.get(df.getName().toLowerCase()));
-                        }
-                    }
-                }
+                sensor.setLatestValues(Caching.getInstance().getLatestValues(sensorConfig));
             }
             
             sensor.setMetadata(createHeaderMap(sensorConfig));
@@ -179,8 +163,6 @@ public class RequestHandler {
         sensorObj.appendField(new DataField(stringConstantsProperties.getProperty("TIME"), "Time"));
         sensorObj.appendField(new DataField(stringConstantsProperties.getProperty("TIMESTAMP"), "BigInt"));
 
-        Vector<Long> timestamps = new Vector<Long>();
-        ArrayList<Vector<Double>> elements  = new ArrayList<Vector<Double>>();
         ArrayList<String> fields = new ArrayList<String>();
         ArrayList<String> allfields = new ArrayList<String>();
 
@@ -211,18 +193,11 @@ public class RequestHandler {
         	}
         }
         
-        boolean errorFlag = !getData(sensor, fields, fromAsLong, toAsLong, window, elements, timestamps,conditionList);
+        boolean errorFlag = !streamData(restResponse, sensorObj, sensor, fields, fromAsLong, toAsLong, window, conditionList);
         
         if (errorFlag){
         	return errorResponse(ErrorType.ERROR_IN_REQUEST, user, sensor);
         }
-        
-        sensorObj.setValues(elements, timestamps);
-
-        List<VirtualSensor> listSens = new LinkedList<VirtualSensor>();
-        listSens.add(sensorObj);
-
-        restResponse.setResponse(VirtualSensor.generateFileContent(listSens, format));
 
         return restResponse;
     }
@@ -268,24 +243,14 @@ public class RequestHandler {
         	}
         }
         
-        ArrayList<Vector<Double>> elements  = new ArrayList<Vector<Double>>();
-        Vector<Long> timestamps = new Vector<Long>();
-        
         ArrayList<String> fieldList = new ArrayList<String>();
         fieldList.add(field);
 
-        boolean errorFlag = !getData(sensor, fieldList, fromAsLong, toAsLong, window, elements, timestamps);
+        boolean errorFlag = !streamData(restResponse, sensorObj, sensor, fieldList, fromAsLong, toAsLong, window, null);
         
         if (errorFlag){
         	return errorResponse(ErrorType.ERROR_IN_REQUEST, user, sensor);
         }
- 
-        sensorObj.setValues(elements, timestamps);
-
-        List<VirtualSensor> listSens = new LinkedList<VirtualSensor>();
-        listSens.add(sensorObj);
-
-        restResponse.setResponse(VirtualSensor.generateFileContent(listSens, format));
 
         return restResponse;
     }
@@ -574,73 +539,78 @@ public class RequestHandler {
     	restResponse.setHttpStatus(RestResponse.HTTP_STATUS_OK);
     }
 
-    private boolean getData(String sensor, List<String> fields, long from, long to, int size, 
-            List<Vector<Double>> elements, Vector<Long> timestamps){
-    	return getData(sensor,fields,from,to,size,elements,timestamps,new String[]{});
-    }
-
-    private boolean getData(String sensor, List<String> fields, long from, long to, int size, 
-        List<Vector<Double>> elements, Vector<Long> timestamps, String[] conditions){
-    	Connection connection = null;
-        ResultSet resultSet = null;
-
-        boolean result = true;
+    /**
+     * Sets the content of the response to the values of the fields between
+     * from and to, written while they are read from the database, the last
+     * size ones only if size is positive.
+     */
+    private boolean streamData(RestResponse restResponse, final VirtualSensor sensorObj, String sensor, final List<String> fields, long from, long to,
+            final int size, String[] conditions) {
+        StringBuilder query = new StringBuilder("select timed");
+        for (int i=0; i<fields.size(); i++){
+        	query.append(", " + fields.get(i));
+        }
+        query.append(" from ")
+            .append(sensor)
+        	.append(" where timed >=")
+        	.append(from)
+        	.append(" and timed <=")
+        	.append(to);
+        if (conditions!=null){
+        	for (String cond:conditions){
+        		query.append(" and "+cond);
+        	}
+        }
+        if (size > 0) {
+        	query.append(" order by timed desc")
+            	.append(" limit 0," + size);
+        }
 
+        final DataEnumerator result;
         try {
-        	connection = Main.getStorage(sensor).getConnection();
-            StringBuilder query = new StringBuilder("select timed");
-            
-            for (int i=0; i<fields.size(); i++){
-            	query.append(", " + fields.get(i));
-            }
-            query.append(" from ")
-                .append(sensor)
-            	.append(" where timed >=")
-            	.append(from)
-            	.append(" and timed <=")
-            	.append(to);
-            if (conditions!=null){
-            	for (String cond:conditions){
-            		query.append(" and "+cond);
-            	}
-            }
-            
-            if (size > 0) {
-            	query.append(" order by timed desc")
-                	.append(" limit 0," + size);
-            }
-            
-            resultSet = Main.getStorage(sensor).executeQueryWithResultSet(query, connection);
-            
-            if (size > 0) {
-            	resultSet.afterLast();
-            	while (resultSet.previous()) {
-            		Vector<Double> stream = new Vector<Double>();
-                    timestamps.add(resultSet.getLong(1));
-                    for (int i=0; i<fields.size(); i++){
-                    	stream.add(getDouble(resultSet, fields.get(i)));
-                    }
-                    elements.add(stream);
-                }
-            } else {
-            	while (resultSet.next()) {
-                	Vector<Double> stream = new Vector<Double>();
-            		timestamps.add(resultSet.getLong("timed"));
-            		for (int i=0; i<fields.size(); i++){
-                    	stream.add(getDouble(resultSet, fields.get(i)));
-                    }
-                    elements.add(stream);
-                }
-            }
+            // an archive storage answers the range query from its archive, the others stream it
+            result = Main.getStorage(sensor).streamedExecuteQuery(query.toString(), false);
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
-            result = false;
-        } finally {
-            Main.getStorage(sensor).close(resultSet);
-            Main.getStorage(sensor).close(connection);
-        }
+            return false;
+        }
+
+        final String responseFormat = format;
+        restResponse.setContent(new RestResponse.Content() {
+            public void writeTo(Writer out) throws IOException {
+                VirtualSensorWriter writer = VirtualSensorWriter.create(responseFormat, out);
+                double[] values = new double[fields.size()];
+                writer.begin();
+                writer.startSensor(sensorObj);
+                if (size > 0) {
+                    // the rows come from the latest, there are at most size of them
+                    LinkedList<StreamElement> rows = new LinkedList<StreamElement>();
+                    while (result.hasMoreElements())
+                        rows.addFirst(result.nextElement());
+                    for (StreamElement se : rows)
+                        writeValues(writer, se, fields, values);
+                } else {
+                    while (result.hasMoreElements())
+                        writeValues(writer, result.nextElement(), fields, values);
+                }
+                writer.endSensor();
+                writer.end();
+            }
 
-        return result;
+            // called once written, or if the response is dropped
+            public void release() {
+                result.close();
+            }
+        });
+        return true;
+    }
+
+    private static void writeValues(VirtualSensorWriter writer, StreamElement se, List<String> fields, double[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            Serializable value = se.getData(fields.get(i));
+            values[i] = value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+        }
+        writer.writeValues(se.getTimeStamp(), values);
     }
 
     public static Map<String, Double> getMostRecentValueFor(String virtual_sensor_name) {
@@ -663,88 +633,20 @@ public class RequestHandler {
     }
 
     private boolean getDataPreview(String sensor, String field, long from, long to, List<Vector<Double>> elements, Vector<Long> timestamps, long size) {
-        Connection conn = null;
-        ResultSet resultSet = null;
-
-        boolean result = true;
-
-        long skip = getTableSize(sensor) / size;
-
-        /*
-        logger.warn("skip = " + skip);
-        logger.warn("size = " + size);
-        logger.warn("getTableSize(sensor) = " + getTableSize(sensor));
-        */
-
         try {
-            conn = Main.getStorage(sensor).getConnection();
-            StringBuilder query = new StringBuilder("select timed, ")
-                    .append(field)
-                    .append(" from ")
-                    .append(sensor);
-            if (skip > 1)
-                query.append(" where mod(pk,")
-                        .append(skip)
-                        .append(")=1");
-
-            resultSet = Main.getStorage(sensor).executeQueryWithResultSet(query, conn);
-
-            while (resultSet.next()) {
-                //int ncols = resultSet.getMetaData().getColumnCount();
-                long timestamp = resultSet.getLong(1);
-                double value = resultSet.getDouble(2);
-                //logger.warn(ncols + " cols, value: " + value + " ts: " + timestamp);
-                Vector<Double> stream = new  Vector<Double>();
-                stream.add(value);
-                timestamps.add(timestamp);
+            Downsampler.Series series = Downsampler.query(Main.getStorage(sensor), sensor, field, from, to, (int) Math.min(size, Integer.MAX_VALUE),
+                    Downsampler.Mode.lttb);
+            for (int i = 0; i < series.size(); i++) {
+                Vector<Double> stream = new Vector<Double>(1);
+                stream.add(series.getValue(i));
+                timestamps.add(series.getTimestamp(i));
                 elements.add(stream);
             }
-
-        } catch (SQLException e) {
-            logger.error(e.getMessage(), e);
-            result = false;
-        } finally {
-            Main.getStorage(sensor).close(resultSet);
-            Main.getStorage(sensor).close(conn);
-        }
-
-        return result;
-    }
-
-    private long getTableSize(String sensor) {
-        Connection conn = null;
-        ResultSet resultSet = null;
-
-        //boolean result = true;
-        long timestamp = -1;
-
-        try {
-            conn = Main.getDefaultStorage().getConnection();
-            StringBuilder query = new StringBuilder("select count(*) from ").append(sensor);
-
-            resultSet = Main.getStorage(sensor).executeQueryWithResultSet(query, conn);
-
-            if (resultSet.next()) {
-
-                timestamp = resultSet.getLong(1);
-            }
-
         } catch (SQLException e) {
             logger.error(e.getMessage(), e);
-            //result = false;
-        } finally {
-            Main.getStorage(sensor).close(resultSet);
-            Main.getStorage(sensor).close(conn);
+            return false;
         }
-
-        return timestamp;
-    }
-
-    private Double getDouble(ResultSet rs,String fieldName) throws SQLException{
-        Double d=rs.getDouble(fieldName);
-        if (rs.wasNull()) return null;
-            //if (o!=null) return rs.getDouble(fieldName);
-        else return d;
+        return true;
     }
 
     private long getMinTimestampForSensorField(String sensor, String field) {
@@ -26,6 +26,8 @@
 
 package gsn.http.restapi;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -41,7 +43,22 @@ public class RestResponse {
     public static final String RESPONSE_HEADER_CONTENT_DISPOSITION_NAME = "Content-Disposition";
     public static final String RESPONSE_HEADER_CONTENT_DISPOSITION_VALUE = "attachment;filename=\"%s\"";
 
+    /**
+     * The body of a response written while it is sent, instead of being built
+     * as a string first.
+     */
+    public interface Content {
+        void writeTo(Writer out) throws IOException;
+
+        /**
+         * Frees what the content holds, called once the response is written
+         * or dropped without being written.
+         */
+        void release();
+    }
+
     private String response;
+    private Content content;
     private String type;     // json, xml, csv, image
     private int httpStatus;
     private HashMap<String, String> headers = new HashMap<String, String>();
@@ -54,6 +71,36 @@ public class RestResponse {
         this.response = response;
     }
 
+    public void setContent(Content content) {
+        this.content = content;
+    }
+
+    /**
+     * Writes the body of the response, streaming its content if it has one.
+     */
+    public void writeTo(Writer out) throws IOException {
+        if (content == null) {
+            out.write(response);
+            return;
+        }
+        try {
+            content.writeTo(out);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases the content of the response, if it has one and it wasn't
+     * released yet.
+     */
+    public void release() {
+        Content toRelease = content;
+        content = null;
+        if (toRelease != null)
+            toRelease.release();
+    }
+
     public String getType() {
         return type;
     }
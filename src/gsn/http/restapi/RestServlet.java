@@ -100,8 +100,6 @@ public class RestServlet extends HttpServlet {
        
         RequestHandler requestHandler = new RequestHandler(format);
 
-        Caching.enable();
-
         if (Main.getContainerConfig().isAcEnabled()) {     // added
             str_user = request.getParameter(PARAMETER_USERNAME);
             str_pass = request.getParameter(PARAMETER_PASSWORD);
@@ -154,12 +152,17 @@ public class RestServlet extends HttpServlet {
                 break;
         }
 
-        response.setStatus(restResponse.getHttpStatus());
-        response.setContentType(restResponse.getType());
-    	for (String key: restResponse.getHeaders().keySet()){
-    		response.setHeader(key, restResponse.getHeaderValue(key));
-    	}
-        response.getWriter().write(restResponse.getResponse());
+        try {
+            response.setStatus(restResponse.getHttpStatus());
+            response.setContentType(restResponse.getType());
+            for (String key: restResponse.getHeaders().keySet()){
+                response.setHeader(key, restResponse.getHeaderValue(key));
+            }
+            restResponse.writeTo(response.getWriter());
+        } finally {
+            // the content holds a connection until it is written
+            restResponse.release();
+        }
 
         requestHandler.finish();
     }
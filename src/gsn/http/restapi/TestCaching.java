@@ -0,0 +1,110 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/restapi/TestCaching.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.restapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.VSensorConfig;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestCaching {
+
+	private DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE), new DataField("label", DataTypes.VARCHAR) };
+
+	private final StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:caching", Main.DEFAULT_MAX_DB_CONNECTIONS);
+
+	private final Caching caching = new Caching() {
+		StorageManager getStorage(VSensorConfig config) {
+			return sm;
+		}
+	};
+
+	private VSensorConfig config(String name) {
+		VSensorConfig config = new VSensorConfig();
+		config.setName(name);
+		config.setOutputStructure(fields);
+		return config;
+	}
+
+	private StreamElement element(double temperature, long timestamp) {
+		return new StreamElement(fields, new Serializable[] { temperature, "t" }, timestamp);
+	}
+
+	@Test
+	public void testCacheHitsAndConsume() throws Exception {
+		VSensorConfig config = config("cached");
+		sm.executeCreateTable("cached", fields, true);
+		sm.executeInsert("cached", fields, element(1.5, 1000));
+		assertEquals(Arrays.asList(1.5, null), caching.getLatestValues(config));
+
+		// served from the cache, the table isn't read again
+		sm.executeInsert("cached", fields, element(2.5, 2000));
+		assertEquals(Arrays.asList(1.5, null), caching.getLatestValues(config));
+
+		// the published elements replace the cached values, unless older
+		caching.consume(element(3.5, 3000), config);
+		assertEquals(Arrays.asList(3.5, null), caching.getLatestValues(config));
+		caching.consume(element(0.5, 500), config);
+		assertEquals(Arrays.asList(3.5, null), caching.getLatestValues(config));
+
+		// read again once unloaded
+		caching.vsUnLoading(config);
+		assertEquals(Arrays.asList(2.5, null), caching.getLatestValues(config));
+		sm.executeDropTable("cached");
+	}
+
+	@Test
+	public void testEmptyAndFailedReads() throws Exception {
+		VSensorConfig config = config("not_yet_created");
+		// the table can't be read yet
+		assertTrue(caching.getLatestValues(config).isEmpty());
+		sm.executeCreateTable("not_yet_created", fields, true);
+		// a virtual sensor without data has no values
+		assertTrue(caching.getLatestValues(config).isEmpty());
+		caching.consume(element(1.5, 1000), config);
+		assertEquals(Arrays.asList(1.5, null), caching.getLatestValues(config));
+
+		caching.vsUnLoading(config);
+		sm.executeInsert("not_yet_created", fields, element(2.5, 2000));
+		sm.executeDropTable("not_yet_created");
+		// a failed read isn't cached, the next request reads the table again
+		assertTrue(caching.getLatestValues(config).isEmpty());
+		sm.executeCreateTable("not_yet_created", fields, true);
+		sm.executeInsert("not_yet_created", fields, element(4.5, 4000));
+		assertEquals(Arrays.asList(4.5, null), caching.getLatestValues(config));
+		sm.executeDropTable("not_yet_created");
+	}
+}
@@ -0,0 +1,71 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/restapi/TestRestResponse.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.http.restapi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Test;
+
+public class TestRestResponse {
+
+	private static class CountingContent implements RestResponse.Content {
+		int released = 0;
+
+		public void writeTo(Writer out) throws IOException {
+			out.write("content");
+		}
+
+		public void release() {
+			released++;
+		}
+	}
+
+	@Test
+	public void testReleasedOnceWritten() throws Exception {
+		RestResponse response = new RestResponse();
+		CountingContent content = new CountingContent();
+		response.setContent(content);
+		StringWriter out = new StringWriter();
+		response.writeTo(out);
+		assertEquals("content", out.toString());
+		assertEquals(1, content.released);
+		response.release();
+		assertEquals(1, content.released);
+	}
+
+	@Test
+	public void testReleasedWithoutBeingWritten() throws Exception {
+		RestResponse response = new RestResponse();
+		CountingContent content = new CountingContent();
+		response.setContent(content);
+		response.release();
+		assertEquals(1, content.released);
+	}
+}
@@ -0,0 +1,110 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/http/restapi/TestVirtualSensorWriter.java
+*
+* @author gsn_devs
+*
+*/
+
+
+package gsn.http.restapi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.DataField;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+public class TestVirtualSensorWriter {
+
+	private VirtualSensor createSensor() {
+		// loads the constants of the responses
+		new RequestHandler(RestServlet.FORMAT_JSON).finish();
+		VirtualSensor sensor = new VirtualSensor();
+		sensor.addMetadata("vs_name", "station \"1\"");
+		sensor.addMetadata("latitude", "46.5");
+		sensor.addMetadata("longitude", "6.5");
+		sensor.appendField(new DataField("time", "Time"));
+		sensor.appendField(new DataField("timestamp", "BigInt"));
+		sensor.appendField(new DataField("temperature", "double"));
+		sensor.appendField(new DataField("humidity", "double"));
+		return sensor;
+	}
+
+	private String write(String format, VirtualSensor sensor) throws Exception {
+		StringWriter out = new StringWriter();
+		VirtualSensorWriter writer = VirtualSensorWriter.create(format, out);
+		writer.begin();
+		writer.startSensor(sensor);
+		writer.writeValues(1000, new double[] { 1.5, Double.NaN });
+		writer.writeValues(2000, new double[] { 2.5, 3 });
+		writer.endSensor();
+		writer.end();
+		return out.toString();
+	}
+
+	@Test
+	public void testJson() throws Exception {
+		JSONArray sensors = (JSONArray) JSONValue.parse(write(RestServlet.FORMAT_JSON, createSensor()));
+		assertEquals(1, sensors.size());
+		JSONObject sensor = (JSONObject) sensors.get(0);
+		assertEquals("station \"1\"", sensor.get("vs_name"));
+		assertEquals(4, ((JSONArray) sensor.get("fields")).size());
+		JSONArray values = (JSONArray) sensor.get("values");
+		assertEquals(2, values.size());
+		assertEquals(Arrays.asList(1000L, 1.5, null), ((List<?>) values.get(0)).subList(1, 4));
+		assertEquals(Arrays.asList(2000L, 2.5, 3.0), ((List<?>) values.get(1)).subList(1, 4));
+	}
+
+	@Test
+	public void testGeoJson() throws Exception {
+		JSONObject collection = (JSONObject) JSONValue.parse(write(RestServlet.FORMAT_GEOJSON, createSensor()));
+		JSONObject feature = (JSONObject) ((JSONArray) collection.get("features")).get(0);
+		assertEquals(Arrays.asList(6.5, 46.5), ((JSONObject) feature.get("geometry")).get("coordinates"));
+		Map<?, ?> properties = (Map<?, ?>) feature.get("properties");
+		assertTrue(!properties.containsKey("latitude"));
+		assertEquals(2, ((JSONArray) properties.get("values")).size());
+	}
+
+	@Test
+	public void testCsv() throws Exception {
+		String[] lines = write(RestServlet.FORMAT_CSV, createSensor()).split("\n");
+		assertEquals("# fields:time,timestamp,temperature,humidity", lines[3]);
+		assertTrue(lines[6].endsWith(",1000,1.5,null"));
+		assertTrue(lines[7].endsWith(",2000,2.5,3.0"));
+	}
+
+	@Test
+	public void testLatestValues() throws Exception {
+		VirtualSensor sensor = createSensor();
+		sensor.setLatestValues(Arrays.asList(4.5, null));
+		String content = VirtualSensor.generateFileContent(Arrays.asList(sensor), RestServlet.FORMAT_JSON);
+		JSONObject parsed = (JSONObject) ((JSONArray) JSONValue.parse(content)).get(0);
+		assertEquals(Arrays.asList(Arrays.asList(4.5, null)), parsed.get("values"));
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ * Global Sensor Networks (GSN) Source Code
+ * Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+ *
+ * This file is part of GSN.
+ *
+ * GSN is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * GSN is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * File: src/gsn/http/restapi/VirtualSensorWriter.java
+ *
+ * @author gsn_devs
+ *
+ */
+
+package gsn.http.restapi;
+
+import gsn.beans.DataField;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Writes the virtual sensors of a response in one of the formats of the REST
+ * API, a value at a time, so that the rows of a query can be sent as they are
+ * read from the database instead of being collected first.
+ * <p>
+ * The sensors are written between {@link #begin()} and {@link #end()}, each
+ * one with {@link #startSensor(VirtualSensor)}, its rows with
+ * {@link #writeValues(long, double[])} and {@link #endSensor()}. The values of
+ * a row are given as primitives, NaN standing for a null value.
+ */
+public abstract class VirtualSensorWriter {
+
+    protected final Writer out;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat(RequestHandler.getConst("ISO_FORMAT"));
+
+    protected VirtualSensor sensor;
+
+    protected int rows;
+
+    protected VirtualSensorWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * @return the writer of the format, or null if the format is unknown.
+     */
+    public static VirtualSensorWriter create(String format, Writer out) {
+        if (RestServlet.FORMAT_CSV.equals(format))
+            return new CsvWriter(out);
+        else if (RestServlet.FORMAT_JSON.equals(format))
+            return new JsonWriter(out);
+        else if (RestServlet.FORMAT_GEOJSON.equals(format))
+            return new GeoJsonWriter(out);
+        return null;
+    }
+
+    public void begin() throws IOException {
+    }
+
+    public void startSensor(VirtualSensor sensor) throws IOException {
+        this.sensor = sensor;
+        this.rows = 0;
+    }
+
+    public abstract void writeValues(long timestamp, double[] values) throws IOException;
+
+    /**
+     * Ends the current sensor, writing its latest values if it has some.
+     */
+    public abstract void endSensor() throws IOException;
+
+    public void end() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes a whole sensor, with the values it holds.
+     */
+    public void writeSensor(VirtualSensor sensor) throws IOException {
+        startSensor(sensor);
+        List<Vector<Double>> values = sensor.getValues();
+        List<Long> timestamps = sensor.getTimestamps();
+        double[] row = null;
+        for (int i = 0; i < timestamps.size(); i++) {
+            List<Double> rowValues = values.get(i);
+            if (row == null || row.length != rowValues.size())
+                row = new double[rowValues.size()];
+            for (int j = 0; j < row.length; j++)
+                row[j] = toDouble(rowValues.get(j));
+            writeValues(timestamps.get(i), row);
+        }
+        endSensor();
+    }
+
+    protected static double toDouble(Double value) {
+        return value == null ? Double.NaN : value;
+    }
+
+    protected String formatTime(long timestamp) {
+        return dateFormat.format(new Date(timestamp)).replace('T', ' ');
+    }
+
+    protected static String formatValue(double value) {
+        return Double.isNaN(value) ? "null" : Double.toString(value);
+    }
+
+    protected void writeString(String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        out.write(JSONValue.escape(value));
+        out.write('"');
+    }
+
+    protected void writeKey(String key) throws IOException {
+        writeString(key);
+        out.write(':');
+    }
+
+    protected void writeFields() throws IOException {
+        writeKey(RequestHandler.getConst("FIELDS"));
+        out.write('[');
+        boolean first = true;
+        for (DataField field : sensor.getFields()) {
+            if (!first)
+                out.write(',');
+            first = false;
+            String unit = field.getUnit();
+            if (unit == null || unit.trim().length() == 0)
+                unit = "";
+            out.write('{');
+            writeKey(RequestHandler.getConst("NAME"));
+            writeString(field.getName().toLowerCase());
+            out.write(',');
+            writeKey(RequestHandler.getConst("UNIT"));
+            writeString(unit);
+            out.write(',');
+            writeKey(RequestHandler.getConst("TYPE"));
+            writeString(field.getType().toLowerCase());
+            out.write('}');
+        }
+        out.write(']');
+    }
+
+    /**
+     * Writes a row as a json array, the values array being opened before the
+     * first one.
+     */
+    protected void writeJsonValues(long timestamp, double[] values) throws IOException {
+        out.write(',');
+        if (rows == 0) {
+            writeKey(RequestHandler.getConst("VALUES"));
+            out.write('[');
+        }
+        out.write('[');
+        writeString(formatTime(timestamp));
+        out.write(',');
+        out.write(Long.toString(timestamp));
+        for (double value : values) {
+            out.write(',');
+            out.write(formatValue(value));
+        }
+        out.write(']');
+        rows++;
+    }
+
+    /**
+     * Closes the values array, or writes the latest values in its place if
+     * the sensor has no rows.
+     */
+    protected void endJsonValues() throws IOException {
+        if (rows > 0) {
+            out.write(']');
+            return;
+        }
+        List<Double> latestValues = sensor.getLatestValues();
+        if (latestValues.size() > 0) {
+            out.write(',');
+            writeKey(RequestHandler.getConst("VALUES"));
+            out.write("[[");
+            boolean first = true;
+            for (Double value : latestValues) {
+                if (!first)
+                    out.write(',');
+                first = false;
+                out.write(formatValue(toDouble(value)));
+            }
+            out.write("]]");
+        }
+    }
+
+    private static class JsonWriter extends VirtualSensorWriter {
+
+        private int sensors = 0;
+
+        JsonWriter(Writer out) {
+            super(out);
+        }
+
+        public void begin() throws IOException {
+            out.write('[');
+        }
+
+        public void startSensor(VirtualSensor sensor) throws IOException {
+            super.startSensor(sensor);
+            if (sensors++ > 0)
+                out.write(',');
+            out.write('{');
+            for (Map.Entry<String, String> elem : sensor.getMetadata().entrySet()) {
+                writeKey(elem.getKey());
+                writeString(elem.getValue());
+                out.write(',');
+            }
+            writeFields();
+        }
+
+        public void writeValues(long timestamp, double[] values) throws IOException {
+            writeJsonValues(timestamp, values);
+        }
+
+        public void endSensor() throws IOException {
+            endJsonValues();
+            out.write('}');
+        }
+
+        public void end() throws IOException {
+            out.write(']');
+            super.end();
+        }
+    }
+
+    private static class GeoJsonWriter extends VirtualSensorWriter {
+
+        private int sensors = 0;
+
+        GeoJsonWriter(Writer out) {
+            super(out);
+        }
+
+        public void begin() throws IOException {
+            out.write('{');
+            writeKey(RequestHandler.getConst("TYPE_GEOJSON"));
+            writeString(RequestHandler.getConst("FEATURE_COLLECTION"));
+            out.write(',');
+            writeKey(RequestHandler.getConst("FEATURES"));
+            out.write('[');
+        }
+
+        public void startSensor(VirtualSensor sensor) throws IOException {
+            super.startSensor(sensor);
+            if (sensors++ > 0)
+                out.write(',');
+            double longitude = 0;
+            double latitude = 0;
+            double altitude = -1;
+            for (Map.Entry<String, String> elem : sensor.getMetadata().entrySet()) {
+                if (RequestHandler.getConst("LONGITUDE").equalsIgnoreCase(elem.getKey())) longitude = Double.parseDouble(elem.getValue());
+                else if (RequestHandler.getConst("LATITUDE").equalsIgnoreCase(elem.getKey())) latitude = Double.parseDouble(elem.getValue());
+                else if (RequestHandler.getConst("ALTITUDE").equalsIgnoreCase(elem.getKey())) altitude = Double.parseDouble(elem.getValue());
+            }
+            out.write('{');
+            writeKey(RequestHandler.getConst("TYPE_GEOJSON"));
+            writeString(RequestHandler.getConst("FEATURE"));
+            out.write(',');
+            writeKey(RequestHandler.getConst("GEOMETRY"));
+            out.write('{');
+            writeKey(RequestHandler.getConst("TYPE_GEOJSON"));
+            writeString(RequestHandler.getConst("POINT"));
+            out.write(',');
+            writeKey(RequestHandler.getConst("COORDINATES"));
+            out.write('[');
+            out.write(Double.toString(longitude));
+            out.write(',');
+            out.write(Double.toString(latitude));
+            if (altitude != -1) {
+                out.write(',');
+                out.write(Double.toString(altitude));
+            }
+            out.write("]},");
+            writeKey(RequestHandler.getConst("PROPERTIES"));
+            out.write('{');
+            for (Map.Entry<String, String> elem : sensor.getMetadata().entrySet()) {
+                if (RequestHandler.getConst("LONGITUDE").equalsIgnoreCase(elem.getKey()) || RequestHandler.getConst("LATITUDE").equalsIgnoreCase(elem.getKey())
+                        || RequestHandler.getConst("ALTITUDE").equalsIgnoreCase(elem.getKey()))
+                    continue;
+                writeKey(elem.getKey());
+                writeString(elem.getValue());
+                out.write(',');
+            }
+            writeFields();
+        }
+
+        public void writeValues(long timestamp, double[] values) throws IOException {
+            writeJsonValues(timestamp, values);
+        }
+
+        public void endSensor() throws IOException {
+            endJsonValues();
+            out.write("}}");
+        }
+
+        public void end() throws IOException {
+            out.write("]}");
+            super.end();
+        }
+    }
+
+    private static class CsvWriter extends VirtualSensorWriter {
+
+        CsvWriter(Writer out) {
+            super(out);
+        }
+
+        public void startSensor(VirtualSensor sensor) throws IOException {
+            super.startSensor(sensor);
+            for (Map.Entry<String, String> elem : sensor.getMetadata().entrySet())
+                out.write("# " + elem.getKey() + ":" + elem.getValue() + "\n");
+            StringBuilder fieldNames = new StringBuilder("# " + RequestHandler.getConst("FIELDS") + ":");
+            StringBuilder fieldUnits = new StringBuilder("# " + RequestHandler.getConst("UNITS") + ":");
+            StringBuilder fieldTypes = new StringBuilder("# " + RequestHandler.getConst("TYPES") + ":");
+            boolean first = true;
+            for (DataField field : sensor.getFields()) {
+                String unit = field.getUnit();
+                if (unit == null || unit.trim().length() == 0)
+                    unit = "";
+                if (!first) {
+                    fieldNames.append(',');
+                    fieldUnits.append(',');
+                    fieldTypes.append(',');
+                }
+                first = false;
+                fieldNames.append(field.getName().toLowerCase());
+                fieldUnits.append(unit);
+                fieldTypes.append(field.getType().toLowerCase());
+            }
+            out.write(fieldNames.append('\n').toString());
+            out.write(fieldUnits.append('\n').toString());
+            out.write(fieldTypes.append('\n').toString());
+        }
+
+        public void writeValues(long timestamp, double[] values) throws IOException {
+            out.write(formatTime(timestamp));
+            out.write(',');
+            out.write(Long.toString(timestamp));
+            for (double value : values) {
+                out.write(',');
+                out.write(formatValue(value));
+            }
+            out.write('\n');
+            rows++;
+        }
+
+        public void endSensor() throws IOException {
+            List<Double> latestValues = sensor.getLatestValues();
+            if (latestValues.size() > 0) {
+                for (Double value : latestValues) {
+                    out.write(',');
+                    out.write(formatValue(toDouble(value)));
+                }
+                out.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/BatchedInsertWriter.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamElementBatch;
+import gsn.beans.StreamSchema;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the stream elements of one table using JDBC batches.
+ * The elements are accumulated until either <code>batchSize</code> elements
+ * are pending or the oldest pending element waited for
+ * <code>maxLatency</code> milliseconds. A batch size of 1 writes every
+ * element synchronously, as {@link StorageManager#executeInsert} does.
+ * A connection is only borrowed from the pool while a batch is written, the
+ * insert statement being cached as a string by the storage manager.
+ * The batches are inserted with
+ * {@link StorageManager#executeInsert(CharSequence, DataField[], StreamElementBatch, Connection)},
+ * so that the storage managers keeping a copy of the rows (the archive) see
+ * them too.
+ * The batches are written one at a time, in the order they were taken from
+ * the pending elements, but without holding the lock of the writer: the
+ * elements keep being accepted while a batch is on its way to the database
+ * or waiting for a retry. The flush listener is called in the same order,
+ * outside of the lock too.
+ * The tables derived from the rows of a table are updated by a transaction
+ * listener, within the transaction of each batch.
+ */
+public class BatchedInsertWriter {
+
+	private static final transient Logger logger = Logger.getLogger(BatchedInsertWriter.class);
+
+	/**
+	 * The time (in ms) waited before retrying a failed batch, doubled for
+	 * each attempt up to {@link #MAX_RETRY_BACKOFF}.
+	 */
+	public static final long DEFAULT_RETRY_BACKOFF = 100;
+
+	public static final long MAX_RETRY_BACKOFF = 30 * 1000;
+
+	/**
+	 * Called once the elements of a batch are committed to the database.
+	 */
+	public interface FlushListener {
+		public void flushed(List<StreamElement> elements);
+	}
+
+	/**
+	 * Called with the connection of a batch once its elements are inserted,
+	 * before the transaction is committed. A failure rolls back the batch,
+	 * which is then retried like any failed batch.
+	 */
+	public interface TransactionListener {
+		public void inserted(List<StreamElement> elements, Connection connection) throws SQLException;
+	}
+
+	/**
+	 * A batch taken from the pending elements, numbered in the order it has
+	 * to be written and given to the listener.
+	 */
+	private static final class Batch {
+		final ArrayList<StreamElement> elements;
+
+		final long sequence;
+
+		Batch(ArrayList<StreamElement> elements, long sequence) {
+			this.elements = elements;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Lets the batches through one at a time, in the order of their sequence.
+	 */
+	private static final class Turns {
+		private long completed = 0;
+
+		synchronized void await(long sequence) {
+			boolean interrupted = false;
+			while (completed != sequence - 1) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		synchronized void complete(long sequence) {
+			completed = sequence;
+			notifyAll();
+		}
+	}
+
+	private final StorageManager storageManager;
+
+	private final String tableName;
+
+	private final DataField[] fields;
+
+	private final StreamSchema schema;
+
+	private final int batchSize;
+
+	private final long maxLatency;
+
+	private final Timer timer;
+
+	private final FlushListener flushListener;
+
+	private ArrayList<StreamElement> pending = new ArrayList<StreamElement>();
+
+	private TimerTask deadline;
+
+	private boolean closed = false;
+
+	private volatile boolean assignPrimaryKeys = false;
+
+	private volatile TransactionListener transactionListener;
+
+	private volatile int retries = 1;
+
+	private volatile long retryBackoff = DEFAULT_RETRY_BACKOFF;
+
+	/**
+	 * The rows of the batch being written if its commit was reported as
+	 * failed, see {@link #isCommitted(List)}. Only used by the batch whose
+	 * turn it is to be written.
+	 */
+	private StreamElementBatch uncommitted;
+
+	/**
+	 * The number of rows having the timestamp of the last uncommitted row,
+	 * counted within its transaction, or -1 if its key was reported.
+	 */
+	private long uncommittedCount = -1;
+
+	private long takenBatches = 0;
+
+	private final Turns writes = new Turns();
+
+	private final Turns deliveries = new Turns();
+
+	/*
+	 * Metrics
+	 */
+	private final long creationTime = System.currentTimeMillis();
+
+	private long insertedCount = 0;
+
+	private long droppedCount = 0;
+
+	private long flushCount = 0;
+
+	private long totalFlushLatency = 0;
+
+	private long maxFlushLatency = 0;
+
+	private long lastFlushLatency = 0;
+
+	/**
+	 * @param timer used for the latency deadlines, can be shared among the
+	 *            writers. Can be null if <code>batchSize</code> is 1.
+	 * @param flushListener can be null.
+	 */
+	public BatchedInsertWriter(StorageManager storageManager, CharSequence tableName, DataField[] fields, int batchSize, long maxLatency, Timer timer,
+			FlushListener flushListener) {
+		this.storageManager = storageManager;
+		this.tableName = tableName.toString();
+		this.fields = fields;
+		this.schema = new StreamSchema(fields);
+		this.batchSize = Math.max(batchSize, 1);
+		this.maxLatency = maxLatency;
+		this.timer = timer;
+		this.flushListener = flushListener;
+	}
+
+	/**
+	 * Adds the stream element to the current batch. The batch is written
+	 * immediately if it is full, in which case the insertion errors are
+	 * reported to the caller.
+	 */
+	public void insert(StreamElement se) throws SQLException {
+		Batch batch;
+		synchronized (this) {
+			if (closed)
+				throw new SQLException("The insert writer of " + tableName + " is closed.");
+			pending.add(se);
+			if (pending.size() < batchSize && timer != null) {
+				if (deadline == null) {
+					deadline = new TimerTask() {
+						public void run() {
+							try {
+								flush();
+							} catch (SQLException e) {
+								logger.error(e.getMessage(), e);
+							} catch (RuntimeException e) {
+								// the timer is shared with the other writers, it must survive
+								logger.error(e.getMessage(), e);
+							}
+						}
+					};
+					timer.schedule(deadline, maxLatency);
+				}
+				return;
+			}
+			batch = takePending();
+		}
+		write(batch);
+	}
+
+	/**
+	 * Adds the stream elements to the current batch and writes it.
+	 */
+	public void write(List<StreamElement> elements) throws SQLException {
+		Batch batch;
+		synchronized (this) {
+			if (closed)
+				throw new SQLException("The insert writer of " + tableName + " is closed.");
+			pending.addAll(elements);
+			batch = takePending();
+		}
+		write(batch);
+	}
+
+	/**
+	 * Writes the pending elements. If the batch fails, it is retried with
+	 * another connection, once by default (see
+	 * {@link #setRetries(int, long)}), before the elements are dropped.
+	 */
+	public void flush() throws SQLException {
+		write(takePending());
+	}
+
+	/**
+	 * @return the pending elements as the next batch to write, or null if
+	 *         nothing is pending.
+	 */
+	private synchronized Batch takePending() {
+		if (deadline != null) {
+			deadline.cancel();
+			deadline = null;
+		}
+		if (pending.isEmpty())
+			return null;
+		Batch batch = new Batch(pending, ++takenBatches);
+		pending = new ArrayList<StreamElement>();
+		return batch;
+	}
+
+	/**
+	 * Writes the batch once the batches taken before it are written, then
+	 * gives it to the flush listener once they have been given to it.
+	 */
+	private void write(Batch batch) throws SQLException {
+		if (batch == null)
+			return;
+		boolean written = false;
+		writes.await(batch.sequence);
+		try {
+			writeBatch(batch.elements);
+			written = true;
+		} finally {
+			writes.complete(batch.sequence);
+			if (!written) {
+				deliveries.await(batch.sequence);
+				deliveries.complete(batch.sequence);
+			}
+		}
+		deliveries.await(batch.sequence);
+		try {
+			if (flushListener != null)
+				flushListener.flushed(batch.elements);
+		} finally {
+			deliveries.complete(batch.sequence);
+		}
+	}
+
+	/**
+	 * Writes a batch, retrying it if it fails. The elements of a batch which
+	 * can't be written, whatever the reason, are counted as dropped and the
+	 * failure is reported as an SQLException.
+	 */
+	private void writeBatch(ArrayList<StreamElement> batch) throws SQLException {
+		long start = System.currentTimeMillis();
+		try {
+			uncommitted = null;
+			for (int attempt = 0;; attempt++) {
+				try {
+					if (attempt > 0 && isCommitted(batch)) {
+						logger.info("The failed commit of a batch in " + tableName + " went through, not writing it again.");
+						break;
+					}
+					executeBatch(batch);
+					break;
+				} catch (SQLException e) {
+					if (attempt >= retries || !backOff(attempt))
+						throw e;
+					if (logger.isDebugEnabled())
+						logger.debug("Writing a batch in " + tableName + " failed, retrying with a new connection: " + e.getMessage());
+				}
+			}
+		} catch (SQLException e) {
+			synchronized (this) {
+				droppedCount += batch.size();
+			}
+			if (e.getMessage() != null && e.getMessage().toLowerCase().contains("duplicate entry"))
+				logger.info("Error occurred on inserting data to the database, " + batch.size() + " stream element(s) dropped from " + tableName + " due to: "
+						+ e.getMessage());
+			else
+				logger.warn("Error occurred on inserting data to the database, " + batch.size() + " stream element(s) dropped from " + tableName + " due to: "
+						+ e.getMessage());
+			throw e;
+		} catch (RuntimeException e) {
+			// e.g. a value which doesn't match the type of its column
+			synchronized (this) {
+				droppedCount += batch.size();
+			}
+			logger.error("Error occurred on inserting data to the database, " + batch.size() + " stream element(s) dropped from " + tableName + " due to: "
+					+ e.getMessage(), e);
+			throw new SQLException("Invalid batch for " + tableName + ": " + e.getMessage(), e);
+		}
+		long latency = System.currentTimeMillis() - start;
+		synchronized (this) {
+			lastFlushLatency = latency;
+			totalFlushLatency += lastFlushLatency;
+			maxFlushLatency = Math.max(maxFlushLatency, lastFlushLatency);
+			insertedCount += batch.size();
+			flushCount++;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug(new StringBuilder("Flushed ").append(batch.size()).append(" element(s) in ").append(tableName).append(" (").append(latency)
+					.append(" ms)."));
+	}
+
+	/**
+	 * Writes the batch with a connection borrowed from the pool for this
+	 * attempt only.
+	 */
+	private void executeBatch(List<StreamElement> batch) throws SQLException {
+		Connection connection = storageManager.getConnection();
+		try {
+			executeBatch(batch, connection);
+		} finally {
+			storageManager.close(connection);
+		}
+	}
+
+	private void executeBatch(List<StreamElement> batch, Connection connection) throws SQLException {
+		StreamElementBatch rows = new StreamElementBatch(schema, batch.size());
+		for (StreamElement se : batch)
+			rows.add(se);
+		TransactionListener listener = transactionListener;
+		if (batch.size() == 1 && listener == null) {
+			storageManager.executeInsert(tableName, fields, rows, connection);
+			assignPrimaryKeys(batch, rows);
+			return;
+		}
+		boolean autoCommit = connection.getAutoCommit();
+		try {
+			if (autoCommit)
+				connection.setAutoCommit(false);
+			storageManager.executeInsert(tableName, fields, rows, connection);
+			if (listener != null)
+				listener.inserted(batch, connection);
+			int last = rows.size() - 1;
+			// without a key, a failed commit is told from the rows having the timestamp of the last one
+			long count = retries > 0 && rows.getPrimaryKey(last) < 0 ? countRows(connection, -1, rows.getTimeStamp(last)) : -1;
+			try {
+				storageManager.commit(connection);
+			} catch (SQLException e) {
+				uncommitted = rows;
+				uncommittedCount = count;
+				throw e;
+			}
+			assignPrimaryKeys(batch, rows);
+		} catch (SQLException e) {
+			rollback(connection);
+			throw e;
+		} catch (RuntimeException e) {
+			// re-enabling the auto-commit would commit what was inserted so far
+			rollback(connection);
+			throw e;
+		} finally {
+			if (autoCommit)
+				connection.setAutoCommit(true);
+		}
+	}
+
+	private void rollback(Connection connection) {
+		try {
+			storageManager.rollback(connection);
+		} catch (SQLException e) {
+			logger.debug(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Tells whether the batch whose commit was reported as failed has been
+	 * committed anyway, by looking for the row having the key the database
+	 * generated for its last element. If the driver didn't report the key,
+	 * the batch is committed if the rows having the timestamp of its last
+	 * element are as many as counted within its transaction, so that it
+	 * isn't written twice.
+	 */
+	private boolean isCommitted(List<StreamElement> batch) throws SQLException {
+		StreamElementBatch rows = uncommitted;
+		long count = uncommittedCount;
+		uncommitted = null;
+		uncommittedCount = -1;
+		if (rows == null)
+			return false;
+		int last = rows.size() - 1;
+		long pk = rows.getPrimaryKey(last);
+		if (pk < 0 && count < 0) {
+			logger.warn("Can't tell whether the failed commit of a batch in " + tableName + " went through, writing it again.");
+			return false;
+		}
+		Connection connection = storageManager.getConnection();
+		try {
+			if (pk >= 0 ? countRows(connection, pk, rows.getTimeStamp(last)) == 0 : countRows(connection, -1, rows.getTimeStamp(last)) < count)
+				return false;
+		} finally {
+			storageManager.close(connection);
+		}
+		assignPrimaryKeys(batch, rows);
+		return true;
+	}
+
+	/**
+	 * @return the number of rows having the timestamp, and the key unless it
+	 *         is negative.
+	 */
+	private long countRows(Connection connection, long pk, long timed) throws SQLException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			ps = connection.prepareStatement("select count(*) from " + tableName + " where " + (pk < 0 ? "" : "pk = ? and ") + "timed = ?");
+			int index = 1;
+			if (pk >= 0)
+				ps.setLong(index++, pk);
+			ps.setLong(index, timed);
+			rs = ps.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			storageManager.close(rs);
+			storageManager.close(ps);
+		}
+	}
+
+	/**
+	 * Waits before the next attempt, twice as long as before the previous one.
+	 * The lock of the writer is not held meanwhile, only the next batches
+	 * wait for their turn.
+	 *
+	 * @return false if the writer has been interrupted.
+	 */
+	private boolean backOff(int attempt) {
+		long delay = Math.min(retryBackoff << Math.min(attempt, 16), MAX_RETRY_BACKOFF);
+		if (delay <= 0)
+			return true;
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Sets the keys generated by the database for the rows of the batch, -1
+	 * for the rows the driver doesn't report a key for.
+	 */
+	private void assignPrimaryKeys(List<StreamElement> batch, StreamElementBatch rows) {
+		if (!assignPrimaryKeys)
+			return;
+		for (int i = 0; i < batch.size(); i++)
+			batch.get(i).setInternalPrimayKey(rows.getPrimaryKey(i));
+	}
+
+	/**
+	 * If set, the internal primary key of the stream elements is set once
+	 * they are written, before the flush listener is called, from the keys
+	 * the database generated for them (see
+	 * {@link StorageManager#executeInsert(CharSequence, DataField[], StreamElementBatch, Connection)}).
+	 */
+	public synchronized void setAssignPrimaryKeys(boolean assignPrimaryKeys) {
+		this.assignPrimaryKeys = assignPrimaryKeys;
+	}
+
+	/**
+	 * @param transactionListener called within the transaction of each
+	 *            batch, even of a single element, can be null.
+	 */
+	public synchronized void setTransactionListener(TransactionListener transactionListener) {
+		this.transactionListener = transactionListener;
+	}
+
+	/**
+	 * A batch whose commit was reported as failed is only written again if
+	 * it wasn't committed anyway, see {@link #isCommitted(List)}.
+	 *
+	 * @param retries the number of times a failed batch is retried before
+	 *            its elements are dropped, 1 by default.
+	 * @param backoff the time (in ms) waited before the first retry,
+	 *            {@link #DEFAULT_RETRY_BACKOFF} by default.
+	 */
+	public synchronized void setRetries(int retries, long backoff) {
+		this.retries = Math.max(retries, 0);
+		this.retryBackoff = Math.max(backoff, 0);
+	}
+
+	/**
+	 * Flushes the pending elements. Further insertions are rejected.
+	 */
+	public void close() {
+		Batch batch;
+		synchronized (this) {
+			batch = takePending();
+			closed = true;
+		}
+		try {
+			write(batch);
+		} catch (SQLException e) {
+			logger.error(e.getMessage(), e);
+		}
+		if (logger.isInfoEnabled())
+			logger.info("Insert writer of " + tableName + " closed: " + toString());
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	public synchronized long getInsertedCount() {
+		return insertedCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return droppedCount;
+	}
+
+	public synchronized long getFlushCount() {
+		return flushCount;
+	}
+
+	/**
+	 * @return the duration of the last flush, in milliseconds.
+	 */
+	public synchronized long getLastFlushLatency() {
+		return lastFlushLatency;
+	}
+
+	public synchronized long getMaxFlushLatency() {
+		return maxFlushLatency;
+	}
+
+	public synchronized double getAverageFlushLatency() {
+		return flushCount == 0 ? 0 : (double) totalFlushLatency / flushCount;
+	}
+
+	/**
+	 * @return the number of elements written per second since the creation
+	 *         of the writer.
+	 */
+	public synchronized double getThroughput() {
+		long elapsed = System.currentTimeMillis() - creationTime;
+		return elapsed <= 0 ? 0 : insertedCount * 1000.0 / elapsed;
+	}
+
+	public String toString() {
+		return new StringBuilder("BatchedInsertWriter{table=").append(tableName).append(", inserted=").append(getInsertedCount()).append(", dropped=")
+				.append(getDroppedCount()).append(", flushes=").append(getFlushCount()).append(", avgFlushLatency=").append(getAverageFlushLatency())
+				.append("ms, maxFlushLatency=").append(getMaxFlushLatency()).append("ms, throughput=").append(getThroughput()).append("/s}").toString();
+	}
+}
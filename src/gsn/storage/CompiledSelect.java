@@ -0,0 +1,824 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/CompiledSelect.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A single table query compiled into a filter and a projection evaluated
+ * directly on the stream elements, without going through the database.
+ * Only the simple queries are supported:
+ * <pre>
+ * select * | column [[as] alias], ... from table [where condition]
+ * </pre>
+ * where the condition combines with <code>and</code>, <code>or</code>,
+ * <code>not</code> and parentheses the comparisons (<code>= &lt;&gt; != &lt;
+ * &lt;= &gt; &gt;=</code>), <code>[not] between</code>, <code>[not] in</code>
+ * and <code>is [not] null</code> of columns and numeric or string literals.
+ * Like in SQL, a comparison involving a null value is unknown and the element
+ * is filtered out. Strings are compared case sensitively, as H2 does.
+ * {@link #compile(String, CharSequence, DataField[])} returns null for any
+ * other query, which has to be evaluated by the database.
+ * <p>
+ * {@link #compileScan(String, CharSequence, DataField[])} also accepts an
+ * <code>order by timed [asc|desc]</code> and a <code>limit</code> clause, and
+ * computes the range of timestamps the where clause can be true for, so that
+ * a storage reading the rows by time can only read this range.
+ */
+public class CompiledSelect {
+
+	private static final transient Logger logger = Logger.getLogger(CompiledSelect.class);
+
+	private static final HashSet<String> KEYWORDS = new HashSet<String>(Arrays.asList(new String[] { "select", "from", "where", "and", "or", "not",
+			"is", "null", "between", "in", "as", "like", "true", "false", "distinct", "exists", "order", "by", "limit", "offset" }));
+
+	private final DataField[] structure;
+
+	/**
+	 * Indexes of the projected columns in the structure, null for
+	 * <code>select *</code>.
+	 */
+	private final int[] projection;
+
+	private final String[] projectedNames;
+
+	private final Byte[] projectedTypes;
+
+	/**
+	 * Null if the query has no where clause, set once by the parser.
+	 */
+	private Condition condition;
+
+	/**
+	 * The columns of the structure read by the query, set by the parser.
+	 */
+	private boolean[] referenced;
+
+	private boolean ordered = false;
+
+	private boolean descending = false;
+
+	private long limit = -1;
+
+	private long offset = 0;
+
+	private CompiledSelect(DataField[] structure, int[] projection, String[] projectedNames) {
+		this.structure = structure;
+		this.projection = projection;
+		this.projectedNames = projectedNames;
+		if (projection == null) {
+			projectedTypes = null;
+		} else {
+			projectedTypes = new Byte[projection.length];
+			for (int i = 0; i < projection.length; i++)
+				projectedTypes[i] = structure[projection[i]].getDataTypeID();
+		}
+	}
+
+	/**
+	 * @param query the query to compile.
+	 * @param tableName the only table the query may read from.
+	 * @param structure the columns of the table (in addition to timed).
+	 * @return the compiled query or null if it can't be evaluated in memory.
+	 */
+	public static CompiledSelect compile(String query, CharSequence tableName, DataField[] structure) {
+		if (query == null || !SQLValidator.isValid(query))
+			return null;
+		try {
+			return new QueryParser(query, tableName.toString(), structure, false).parse();
+		} catch (NotCompilableException e) {
+			if (logger.isDebugEnabled())
+				logger.debug("The query " + query + " can't be compiled (" + e.getMessage() + "), it is evaluated by the database.");
+			return null;
+		}
+	}
+
+	/**
+	 * Compiles a query which may be ordered by timestamp and limited.
+	 *
+	 * @return the compiled query or null if it isn't supported.
+	 * @see #compile(String, CharSequence, DataField[])
+	 */
+	public static CompiledSelect compileScan(String query, CharSequence tableName, DataField[] structure) {
+		// the parser rejects the sub queries and the other clauses by itself
+		if (query == null)
+			return null;
+		try {
+			return new QueryParser(query, tableName.toString(), structure, true).parse();
+		} catch (NotCompilableException e) {
+			if (logger.isDebugEnabled())
+				logger.debug("The query " + query + " can't be compiled for a scan (" + e.getMessage() + ").");
+			return null;
+		}
+	}
+
+	public boolean isSelectAll() {
+		return projection == null;
+	}
+
+	public boolean hasCondition() {
+		return condition != null;
+	}
+
+	/**
+	 * @return true if the columns at this index in the structure is projected
+	 *         or used by the where clause.
+	 */
+	public boolean isReferenced(int column) {
+		return referenced[column];
+	}
+
+	/**
+	 * @return true if the query has an <code>order by timed</code> clause.
+	 */
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * @return the maximum number of rows or -1 if there is no limit.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return a lower bound of the timestamps the where clause can be true
+	 *         for.
+	 */
+	public long getMinTimed() {
+		return condition == null ? Long.MIN_VALUE : condition.minTimed;
+	}
+
+	/**
+	 * @return an upper bound of the timestamps the where clause can be true
+	 *         for.
+	 */
+	public long getMaxTimed() {
+		return condition == null ? Long.MAX_VALUE : condition.maxTimed;
+	}
+
+	public boolean matches(StreamElement se) {
+		return condition == null || condition.evaluate(se) == Boolean.TRUE;
+	}
+
+	/**
+	 * @return the projected element or null if it doesn't satisfy the where
+	 *         clause.
+	 */
+	public StreamElement apply(StreamElement se) {
+		if (!matches(se))
+			return null;
+		if (projection == null)
+			return se;
+		Serializable[] values = new Serializable[projection.length];
+		for (int i = 0; i < projection.length; i++)
+			values[i] = getValue(se, projection[i]);
+		return new StreamElement(projectedNames, projectedTypes, values, se.getTimeStamp());
+	}
+
+	/**
+	 * Applies the query to each of the elements, the order is kept.
+	 */
+	public List<StreamElement> apply(List<StreamElement> elements) {
+		if (condition == null && projection == null)
+			return elements;
+		ArrayList<StreamElement> toReturn = new ArrayList<StreamElement>(elements.size());
+		for (StreamElement se : elements) {
+			StreamElement result = apply(se);
+			if (result != null)
+				toReturn.add(result);
+		}
+		return toReturn;
+	}
+
+	/**
+	 * Reads a column, avoiding the lookup by name when the element has the
+	 * layout of the table.
+	 */
+	private Serializable getValue(StreamElement se, int column) {
+		String name = structure[column].getName();
+		String[] names = se.getFieldNames();
+		if (column < names.length && name.equalsIgnoreCase(names[column]))
+			return se.getData()[column];
+		return se.getData(name);
+	}
+
+	private static boolean isNumeric(byte type) {
+		switch (type) {
+		case DataTypes.TINYINT:
+		case DataTypes.SMALLINT:
+		case DataTypes.INTEGER:
+		case DataTypes.BIGINT:
+		case DataTypes.DOUBLE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isString(byte type) {
+		return type == DataTypes.VARCHAR || type == DataTypes.CHAR;
+	}
+
+	private static int compareNumbers(Number left, Number right) {
+		if (left instanceof Double || left instanceof Float || right instanceof Double || right instanceof Float)
+			return Double.compare(left.doubleValue(), right.doubleValue());
+		long l = left.longValue();
+		long r = right.longValue();
+		return l < r ? -1 : (l == r ? 0 : 1);
+	}
+
+	private static Boolean and(Boolean left, Boolean right) {
+		if (left == Boolean.FALSE || right == Boolean.FALSE)
+			return Boolean.FALSE;
+		if (left == null || right == null)
+			return null;
+		return Boolean.TRUE;
+	}
+
+	private static Boolean or(Boolean left, Boolean right) {
+		if (left == Boolean.TRUE || right == Boolean.TRUE)
+			return Boolean.TRUE;
+		if (left == null || right == null)
+			return null;
+		return Boolean.FALSE;
+	}
+
+	private static Boolean not(Boolean value) {
+		return value == null ? null : Boolean.valueOf(!value.booleanValue());
+	}
+
+	/**
+	 * A condition in the three-valued logic of SQL, null being unknown. The
+	 * bounds are a superset of the timestamps it can be true for.
+	 */
+	private static abstract class Condition {
+		long minTimed = Long.MIN_VALUE;
+
+		long maxTimed = Long.MAX_VALUE;
+
+		abstract Boolean evaluate(StreamElement se);
+	}
+
+	private abstract class Operand {
+		final boolean numeric;
+
+		Operand(boolean numeric) {
+			this.numeric = numeric;
+		}
+
+		abstract Object getValue(StreamElement se);
+
+		/**
+		 * @return the result of the comparison or null if one of the values is
+		 *         null.
+		 */
+		Integer compareTo(StreamElement se, Operand other) {
+			Object left = getValue(se);
+			Object right = other.getValue(se);
+			if (left == null || right == null)
+				return null;
+			if (numeric)
+				return compareNumbers((Number) left, (Number) right);
+			return left.toString().compareTo(right.toString());
+		}
+	}
+
+	private class Column extends Operand {
+		private final int index;
+
+		Column(int index) {
+			super(isNumeric(structure[index].getDataTypeID()));
+			this.index = index;
+		}
+
+		Object getValue(StreamElement se) {
+			return CompiledSelect.this.getValue(se, index);
+		}
+	}
+
+	private class Timed extends Operand {
+		Timed() {
+			super(true);
+		}
+
+		Object getValue(StreamElement se) {
+			return se.getTimeStamp();
+		}
+	}
+
+	private class Literal extends Operand {
+		private final Object value;
+
+		Literal(Object value) {
+			super(value instanceof Number);
+			this.value = value;
+		}
+
+		Object getValue(StreamElement se) {
+			return value;
+		}
+	}
+
+	private static class NotCompilableException extends Exception {
+		private static final long serialVersionUID = 4528317720162385911L;
+
+		NotCompilableException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Recursive descent parser of the supported subset of SQL.
+	 */
+	private static class QueryParser {
+		private final String query;
+
+		private final String tableName;
+
+		private final DataField[] structure;
+
+		private final boolean scan;
+
+		private final boolean[] referenced;
+
+		private final List<String> tokens = new ArrayList<String>();
+
+		private int position = 0;
+
+		/**
+		 * The result, which the operands are bound to, created once the
+		 * projection is known.
+		 */
+		private CompiledSelect compiled;
+
+		QueryParser(String query, String tableName, DataField[] structure, boolean scan) {
+			this.query = query;
+			this.tableName = tableName;
+			this.structure = structure;
+			this.scan = scan;
+			referenced = new boolean[structure.length];
+		}
+
+		CompiledSelect parse() throws NotCompilableException {
+			tokenize();
+			expect("select");
+			int[] projection = null;
+			String[] names = null;
+			if (accept("*")) {
+				Arrays.fill(referenced, true);
+				expect("from");
+			} else {
+				ArrayList<Integer> columns = new ArrayList<Integer>();
+				ArrayList<String> aliases = new ArrayList<String>();
+				do {
+					String name = identifier();
+					String alias = name;
+					if (accept("as") || !isKeyword(peek()) && !",".equals(peek()))
+						alias = identifier();
+					if (name.equalsIgnoreCase("timed"))
+						continue; // the timestamp of the stream element
+					columns.add(columnIndex(name));
+					aliases.add(alias);
+				} while (accept(","));
+				expect("from");
+				projection = new int[columns.size()];
+				for (int i = 0; i < projection.length; i++)
+					projection[i] = columns.get(i);
+				names = aliases.toArray(new String[aliases.size()]);
+			}
+			if (!identifier().equalsIgnoreCase(tableName))
+				throw new NotCompilableException("unexpected table");
+			compiled = new CompiledSelect(structure, projection, names);
+			if (accept("where"))
+				compiled.condition = parseOr();
+			if (scan)
+				parseOrderAndLimit();
+			compiled.referenced = referenced;
+			if (position != tokens.size())
+				throw new NotCompilableException("unexpected " + peek());
+			return compiled;
+		}
+
+		private void parseOrderAndLimit() throws NotCompilableException {
+			if (accept("order")) {
+				expect("by");
+				if (!identifier().equalsIgnoreCase("timed"))
+					throw new NotCompilableException("only the order by timed is supported");
+				compiled.ordered = true;
+				if (accept("desc"))
+					compiled.descending = true;
+				else
+					accept("asc");
+			}
+			if (accept("limit")) {
+				long first = count();
+				if (accept(",")) {
+					compiled.offset = first;
+					compiled.limit = count();
+				} else {
+					compiled.limit = first;
+					if (accept("offset"))
+						compiled.offset = count();
+				}
+			}
+		}
+
+		private long count() throws NotCompilableException {
+			String token = peek();
+			if (token == null || !Character.isDigit(token.charAt(0)))
+				throw new NotCompilableException("expected a number instead of " + token);
+			position++;
+			try {
+				return Long.parseLong(token);
+			} catch (NumberFormatException e) {
+				throw new NotCompilableException("invalid number " + token);
+			}
+		}
+
+		private void tokenize() throws NotCompilableException {
+			int i = 0;
+			int length = query.length();
+			while (i < length) {
+				char c = query.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (Character.isLetter(c) || c == '_') {
+					int start = i;
+					while (i < length && (Character.isLetterOrDigit(query.charAt(i)) || query.charAt(i) == '_'))
+						i++;
+					tokens.add(query.substring(start, i));
+				} else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(query.charAt(i + 1)))) {
+					int start = i;
+					while (i < length && (Character.isDigit(query.charAt(i)) || query.charAt(i) == '.'))
+						i++;
+					if (i < length && (query.charAt(i) == 'e' || query.charAt(i) == 'E')) {
+						i++;
+						if (i < length && (query.charAt(i) == '+' || query.charAt(i) == '-'))
+							i++;
+						while (i < length && Character.isDigit(query.charAt(i)))
+							i++;
+					}
+					tokens.add(query.substring(start, i));
+				} else if (c == '\'') {
+					StringBuilder literal = new StringBuilder("'");
+					i++;
+					while (true) {
+						if (i >= length)
+							throw new NotCompilableException("unterminated string");
+						if (query.charAt(i) == '\'') {
+							if (i + 1 < length && query.charAt(i + 1) == '\'') {
+								literal.append('\'');
+								i += 2;
+								continue;
+							}
+							i++;
+							break;
+						}
+						literal.append(query.charAt(i++));
+					}
+					tokens.add(literal.toString());
+				} else if (c == '<' || c == '>' || c == '!') {
+					if (i + 1 < length && (query.charAt(i + 1) == '=' || (c == '<' && query.charAt(i + 1) == '>'))) {
+						tokens.add(query.substring(i, i + 2));
+						i += 2;
+					} else if (c == '!') {
+						throw new NotCompilableException("unexpected !");
+					} else {
+						tokens.add(String.valueOf(c));
+						i++;
+					}
+				} else if (c == '=' || c == '(' || c == ')' || c == ',' || c == '*' || c == '-') {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else {
+					// quoted identifiers, arithmetic, parameters, ...
+					throw new NotCompilableException("unsupported character " + c);
+				}
+			}
+		}
+
+		private String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private boolean accept(String token) {
+			if (token.equalsIgnoreCase(peek())) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(String token) throws NotCompilableException {
+			if (!accept(token))
+				throw new NotCompilableException("expected " + token + " instead of " + peek());
+		}
+
+		private static boolean isKeyword(String token) {
+			return token == null || KEYWORDS.contains(token.toLowerCase());
+		}
+
+		private static boolean isIdentifier(String token) {
+			return token != null && (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_') && !isKeyword(token);
+		}
+
+		private String identifier() throws NotCompilableException {
+			String token = peek();
+			if (!isIdentifier(token))
+				throw new NotCompilableException("expected an identifier instead of " + token);
+			position++;
+			return token;
+		}
+
+		private int columnIndex(String name) throws NotCompilableException {
+			for (int i = 0; i < structure.length; i++)
+				if (structure[i].getName().equalsIgnoreCase(name)) {
+					byte type = structure[i].getDataTypeID();
+					if (!isNumeric(type) && !isString(type))
+						throw new NotCompilableException("unsupported type of " + name);
+					referenced[i] = true;
+					return i;
+				}
+			throw new NotCompilableException("unknown column " + name);
+		}
+
+		private Condition parseOr() throws NotCompilableException {
+			Condition condition = parseAnd();
+			while (accept("or")) {
+				final Condition left = condition;
+				final Condition right = parseAnd();
+				condition = new Condition() {
+					public Boolean evaluate(StreamElement se) {
+						Boolean value = left.evaluate(se);
+						if (value == Boolean.TRUE)
+							return value;
+						return or(value, right.evaluate(se));
+					}
+				};
+				condition.minTimed = Math.min(left.minTimed, right.minTimed);
+				condition.maxTimed = Math.max(left.maxTimed, right.maxTimed);
+			}
+			return condition;
+		}
+
+		private Condition parseAnd() throws NotCompilableException {
+			Condition condition = parseNot();
+			while (accept("and")) {
+				final Condition left = condition;
+				final Condition right = parseNot();
+				condition = new Condition() {
+					public Boolean evaluate(StreamElement se) {
+						Boolean value = left.evaluate(se);
+						if (value == Boolean.FALSE)
+							return value;
+						return and(value, right.evaluate(se));
+					}
+				};
+				condition.minTimed = Math.max(left.minTimed, right.minTimed);
+				condition.maxTimed = Math.min(left.maxTimed, right.maxTimed);
+			}
+			return condition;
+		}
+
+		private Condition parseNot() throws NotCompilableException {
+			if (accept("not")) {
+				final Condition condition = parseNot();
+				return new Condition() {
+					public Boolean evaluate(StreamElement se) {
+						return not(condition.evaluate(se));
+					}
+				};
+			}
+			return parsePredicate();
+		}
+
+		private Condition parsePredicate() throws NotCompilableException {
+			if (accept("(")) {
+				Condition condition = parseOr();
+				expect(")");
+				return condition;
+			}
+			final Operand left = parseOperand();
+			if (accept("is")) {
+				final boolean negated = accept("not");
+				expect("null");
+				return new Condition() {
+					public Boolean evaluate(StreamElement se) {
+						return (left.getValue(se) == null) != negated;
+					}
+				};
+			}
+			boolean negated = accept("not");
+			Condition condition;
+			if (accept("between")) {
+				final Operand low = parseOperand();
+				expect("and");
+				final Operand high = parseOperand();
+				checkComparable(left, low);
+				checkComparable(left, high);
+				condition = new Condition() {
+					public Boolean evaluate(StreamElement se) {
+						Integer fromLow = left.compareTo(se, low);
+						Integer fromHigh = left.compareTo(se, high);
+						return and(fromLow == null ? null : fromLow >= 0, fromHigh == null ? null : fromHigh <= 0);
+					}
+				};
+				if (!negated) {
+					bound(condition, left, ">=", low);
+					bound(condition, left, "<=", high);
+				}
+			} else if (accept("in")) {
+				expect("(");
+				final ArrayList<Operand> values = new ArrayList<Operand>();
+				do {
+					Operand value = parseOperand();
+					checkComparable(left, value);
+					values.add(value);
+				} while (accept(","));
+				expect(")");
+				condition = new Condition() {
+					public Boolean evaluate(StreamElement se) {
+						Boolean toReturn = Boolean.FALSE;
+						for (Operand value : values) {
+							Integer comparison = left.compareTo(se, value);
+							if (comparison == null)
+								toReturn = null;
+							else if (comparison == 0)
+								return Boolean.TRUE;
+						}
+						return toReturn;
+					}
+				};
+			} else {
+				if (negated)
+					throw new NotCompilableException("unexpected not");
+				return parseComparison(left);
+			}
+			if (!negated)
+				return condition;
+			final Condition positive = condition;
+			return new Condition() {
+				public Boolean evaluate(StreamElement se) {
+					return not(positive.evaluate(se));
+				}
+			};
+		}
+
+		private Condition parseComparison(final Operand left) throws NotCompilableException {
+			final String operator = peek();
+			if (operator == null || !Arrays.asList("=", "<>", "!=", "<", "<=", ">", ">=").contains(operator))
+				throw new NotCompilableException("unsupported operator " + operator);
+			position++;
+			final Operand right = parseOperand();
+			checkComparable(left, right);
+			final int kind = "=".equals(operator) ? 0 : ("<>".equals(operator) || "!=".equals(operator)) ? 1 : "<".equals(operator) ? 2 : "<="
+					.equals(operator) ? 3 : ">".equals(operator) ? 4 : 5;
+			Condition condition = new Condition() {
+				public Boolean evaluate(StreamElement se) {
+					Integer comparison = left.compareTo(se, right);
+					if (comparison == null)
+						return null;
+					int c = comparison;
+					switch (kind) {
+					case 0:
+						return c == 0;
+					case 1:
+						return c != 0;
+					case 2:
+						return c < 0;
+					case 3:
+						return c <= 0;
+					case 4:
+						return c > 0;
+					default:
+						return c >= 0;
+					}
+				}
+			};
+			bound(condition, left, operator, right);
+			return condition;
+		}
+
+		/**
+		 * Narrows the bounds of the timestamps of a comparison of timed with a
+		 * number.
+		 */
+		private static void bound(Condition condition, Operand left, String operator, Operand right) {
+			if (right instanceof Timed && left instanceof Literal) {
+				Operand swap = left;
+				left = right;
+				right = swap;
+				if (operator.equals("<") || operator.equals("<="))
+					operator = operator.replace('<', '>');
+				else if (operator.equals(">") || operator.equals(">="))
+					operator = operator.replace('>', '<');
+			}
+			if (!(left instanceof Timed) || !(right instanceof Literal) || !right.numeric)
+				return;
+			Number value = (Number) ((Literal) right).value;
+			double d = value.doubleValue();
+			boolean exact = value instanceof Long;
+			long ceil = exact ? value.longValue() : (long) Math.ceil(d);
+			long floor = exact ? value.longValue() : (long) Math.floor(d);
+			if ("=".equals(operator)) {
+				condition.minTimed = Math.max(condition.minTimed, ceil);
+				condition.maxTimed = Math.min(condition.maxTimed, floor);
+			} else if ("<".equals(operator) && ceil != Long.MIN_VALUE) {
+				condition.maxTimed = Math.min(condition.maxTimed, ceil - 1);
+			} else if ("<=".equals(operator)) {
+				condition.maxTimed = Math.min(condition.maxTimed, floor);
+			} else if (">".equals(operator) && floor != Long.MAX_VALUE) {
+				condition.minTimed = Math.max(condition.minTimed, floor + 1);
+			} else if (">=".equals(operator)) {
+				condition.minTimed = Math.max(condition.minTimed, ceil);
+			}
+		}
+
+		/**
+		 * The implicit conversions of the database are not reproduced, both
+		 * sides have to be numbers or strings.
+		 */
+		private void checkComparable(Operand left, Operand right) throws NotCompilableException {
+			if (left.numeric != right.numeric)
+				throw new NotCompilableException("comparison of a number and a string");
+		}
+
+		private Operand parseOperand() throws NotCompilableException {
+			String token = peek();
+			if (token == null)
+				throw new NotCompilableException("unexpected end of the query");
+			boolean negative = false;
+			if ("-".equals(token)) {
+				negative = true;
+				position++;
+				token = peek();
+				if (token == null || !(Character.isDigit(token.charAt(0)) || token.charAt(0) == '.'))
+					throw new NotCompilableException("unsupported expression");
+			}
+			if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.') {
+				position++;
+				String number = negative ? "-" + token : token;
+				try {
+					if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0)
+						return compiled.new Literal(Long.valueOf(number));
+					return compiled.new Literal(Double.valueOf(number));
+				} catch (NumberFormatException e) {
+					throw new NotCompilableException("invalid number " + number);
+				}
+			}
+			if (token.charAt(0) == '\'') {
+				position++;
+				return compiled.new Literal(token.substring(1));
+			}
+			String name = identifier();
+			if ("(".equals(peek()))
+				throw new NotCompilableException("unsupported function " + name);
+			if (name.equalsIgnoreCase("timed"))
+				return compiled.new Timed();
+			return compiled.new Column(columnIndex(name));
+		}
+	}
+}
@@ -34,6 +34,7 @@ package gsn.storage;
 import gsn.Main;
 import gsn.beans.DataTypes;
 import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
 
 import java.io.Serializable;
 import java.sql.PreparedStatement;
@@ -64,6 +65,8 @@ public class DataEnumerator implements DataEnumeratorIF {
 
 	private Byte [ ]      dataFieldTypes;
 
+	private StreamSchema     schema;
+
 	private boolean          hasNext                  = false;
 
 	boolean                  hasTimedFieldInResultSet = false;
@@ -153,6 +156,7 @@ public class DataEnumerator implements DataEnumeratorIF {
             }
 			dataFieldNames = fieldNames.toArray( new String [ ] {} );
 			dataFieldTypes = fieldTypes.toArray( new Byte [ ] {} );
+			schema = new StreamSchema( dataFieldNames , dataFieldTypes );
 			if ( indexofPK == -1 && linkBinaryData ) throw new RuntimeException( "The specified query can't be used with binaryLinked paramter set to true." );
 		} catch ( Exception e ) {
 			logger.error("Trying to create DataEnumerator with:\n"+preparedStatement.toString());
@@ -221,7 +225,7 @@ public class DataEnumerator implements DataEnumeratorIF {
 					innerIndex++;
 				}
 			}
-			streamElement = new StreamElement( dataFieldNames , dataFieldTypes , output , indexOfTimedField == -1 ? System.currentTimeMillis( ) : timestamp );
+			streamElement = new StreamElement( schema , output , indexOfTimedField == -1 ? System.currentTimeMillis( ) : timestamp );
 			if ( indexofPK != -1 ) streamElement.setInternalPrimayKey( pkValue );
 			hasNext = resultSet.next( );
 			if ( hasNext == false )
@@ -0,0 +1,233 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/Downsampler.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reduces the values of a field over a time range to a given number of points
+ * which keep the shape of the curve, for the previews and the charts.
+ * <p>
+ * The rows of the range are read in the order of time into primitive arrays,
+ * then reduced with either the Largest-Triangle-Three-Buckets algorithm, which
+ * keeps the points that change the look of the curve the most, or the minimum
+ * and the maximum of each bucket, which keeps the peaks.
+ */
+public class Downsampler {
+
+	private static final transient Logger logger = Logger.getLogger(Downsampler.class);
+
+	public static enum Mode {
+		lttb, minmax
+	}
+
+	/**
+	 * Points of a series, ordered by time.
+	 */
+	public static class Series {
+		private final long[] timestamps;
+
+		private final double[] values;
+
+		private final int size;
+
+		Series(long[] timestamps, double[] values, int size) {
+			this.timestamps = timestamps;
+			this.values = values;
+			this.size = size;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public long getTimestamp(int i) {
+			return timestamps[i];
+		}
+
+		public double getValue(int i) {
+			return values[i];
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Reads the non null values of a field between from and to (inclusive) and
+	 * reduces them to at most size points. The range is read with
+	 * {@link StorageManager#streamedExecuteQuery(String, boolean)}, like the
+	 * raw data of the REST API, so that an archive storage answers it from
+	 * its archive.
+	 */
+	public static Series query(StorageManager storage, String vsName, String field, long from, long to, int size, Mode mode) throws SQLException {
+		StringBuilder query = new StringBuilder("select timed, ").append(field).append(" from ").append(vsName).append(" where timed >= ").append(from)
+				.append(" and timed <= ").append(to).append(" and ").append(field).append(" is not null order by timed asc");
+		long[] timestamps = new long[INITIAL_CAPACITY];
+		double[] values = new double[INITIAL_CAPACITY];
+		int count = 0;
+		if (logger.isDebugEnabled())
+			logger.debug("Executing query: " + query);
+		DataEnumerator result = storage.streamedExecuteQuery(query.toString(), false);
+		try {
+			while (result.hasMoreElements()) {
+				StreamElement se = result.nextElement();
+				Serializable value = se.getData(field);
+				if (!(value instanceof Number))
+					continue;
+				if (count == timestamps.length) {
+					timestamps = Arrays.copyOf(timestamps, count * 2);
+					values = Arrays.copyOf(values, count * 2);
+				}
+				timestamps[count] = se.getTimeStamp();
+				values[count] = ((Number) value).doubleValue();
+				count++;
+			}
+		} finally {
+			result.close();
+		}
+		return downsample(timestamps, values, count, size, mode);
+	}
+
+	public static Series downsample(long[] timestamps, double[] values, int count, int size, Mode mode) {
+		if (count <= size)
+			return new Series(timestamps, values, count);
+		return mode == Mode.minmax ? minMax(timestamps, values, count, size) : lttb(timestamps, values, count, size);
+	}
+
+	/**
+	 * Largest-Triangle-Three-Buckets: keeps the first and the last point, and
+	 * from each of the size - 2 buckets in between, the point forming the
+	 * largest triangle with the point kept in the previous bucket and the
+	 * average of the next one.
+	 *
+	 * @return exactly size points if count > size.
+	 */
+	static Series lttb(long[] timestamps, double[] values, int count, int size) {
+		if (size < 3)
+			return firstAndLast(timestamps, values, count, size);
+		long[] sampledTimestamps = new long[size];
+		double[] sampledValues = new double[size];
+		sampledTimestamps[0] = timestamps[0];
+		sampledValues[0] = values[0];
+		double bucketSize = (double) (count - 2) / (size - 2);
+		int a = 0;
+		for (int i = 0; i < size - 2; i++) {
+			int start = (int) (i * bucketSize) + 1;
+			int end = (int) ((i + 1) * bucketSize) + 1;
+			int nextEnd = Math.min((int) ((i + 2) * bucketSize) + 1, count);
+			// the average of the next bucket, the last point for the last one
+			double avgTime = 0;
+			double avgValue = 0;
+			for (int j = end; j < nextEnd; j++) {
+				avgTime += timestamps[j];
+				avgValue += values[j];
+			}
+			int nextCount = nextEnd - end;
+			if (nextCount > 0) {
+				avgTime /= nextCount;
+				avgValue /= nextCount;
+			} else {
+				avgTime = timestamps[count - 1];
+				avgValue = values[count - 1];
+			}
+			double aTime = timestamps[a];
+			double aValue = values[a];
+			double maxArea = -1;
+			int selected = start;
+			for (int j = start; j < end; j++) {
+				double area = Math.abs((aTime - avgTime) * (values[j] - aValue) - (aTime - timestamps[j]) * (avgValue - aValue));
+				if (area > maxArea) {
+					maxArea = area;
+					selected = j;
+				}
+			}
+			sampledTimestamps[i + 1] = timestamps[selected];
+			sampledValues[i + 1] = values[selected];
+			a = selected;
+		}
+		sampledTimestamps[size - 1] = timestamps[count - 1];
+		sampledValues[size - 1] = values[count - 1];
+		return new Series(sampledTimestamps, sampledValues, size);
+	}
+
+	/**
+	 * Keeps the minimum and the maximum of size / 2 buckets of the same number
+	 * of points, in the order of time, and the first point if size is odd.
+	 *
+	 * @return exactly size points if count > size.
+	 */
+	static Series minMax(long[] timestamps, double[] values, int count, int size) {
+		if (size < 2)
+			return firstAndLast(timestamps, values, count, size);
+		long[] sampledTimestamps = new long[size];
+		double[] sampledValues = new double[size];
+		int k = 0;
+		int first = 0;
+		if (size % 2 == 1) {
+			sampledTimestamps[k] = timestamps[0];
+			sampledValues[k++] = values[0];
+			first = 1;
+		}
+		int buckets = size / 2;
+		double bucketSize = (double) (count - first) / buckets;
+		for (int i = 0; i < buckets; i++) {
+			int start = (int) (i * bucketSize) + first;
+			int end = i == buckets - 1 ? count : (int) ((i + 1) * bucketSize) + first;
+			int min = start;
+			int max = start;
+			for (int j = start + 1; j < end; j++) {
+				if (values[j] < values[min])
+					min = j;
+				if (values[j] > values[max])
+					max = j;
+			}
+			// a flat bucket still gives two points
+			if (min == max)
+				max = end - 1 == min ? start : end - 1;
+			int lower = Math.min(min, max);
+			int upper = Math.max(min, max);
+			sampledTimestamps[k] = timestamps[lower];
+			sampledValues[k++] = values[lower];
+			sampledTimestamps[k] = timestamps[upper];
+			sampledValues[k++] = values[upper];
+		}
+		return new Series(sampledTimestamps, sampledValues, size);
+	}
+
+	private static Series firstAndLast(long[] timestamps, double[] values, int count, int size) {
+		if (size <= 0)
+			return new Series(new long[0], new double[0], 0);
+		if (size == 1)
+			return new Series(new long[] { timestamps[count - 1] }, new double[] { values[count - 1] }, 1);
+		return new Series(new long[] { timestamps[0], timestamps[count - 1] }, new double[] { values[0], values[count - 1] }, 2);
+	}
+}
@@ -54,7 +54,7 @@ public class ModelEnumerator implements DataEnumeratorIF {
 			i ++;
 		}
 		ptr = -1;
-		results = model.query(new StreamElement(df,sr));
+		results = model.evaluate(new StreamElement(df,sr));
 	}
 
 	@Override
@@ -0,0 +1,621 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/RollupManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.storage.db.ArchiveStorageManager;
+import gsn.utils.GSNRuntimeException;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Maintains, next to the table of each virtual sensor, rollup tables holding
+ * the minimum, maximum, sum and count of its numeric fields per time bucket,
+ * for a few resolutions (by default one minute, one hour and one day). A
+ * rollup row is keyed by the start of its bucket in the <code>timed</code>
+ * column and has, for a field <code>f</code>, the columns <code>f_min</code>,
+ * <code>f_max</code>, <code>f_sum</code> and <code>f_count</code>, as well as
+ * <code>timed_min</code>, <code>timed_max</code>, <code>timed_sum</code> and
+ * <code>row_count</code> for the timestamps.
+ * <p>
+ * The tables are created and filled from the existing rows when a virtual
+ * sensor first publishes data, and then updated incrementally with each
+ * written batch, within the transaction inserting it (see
+ * {@link #update(String, List, Connection)}). Existing tables are compared
+ * with the raw rows when registered and rebuilt if they don't match. An
+ * aggregation over a range which is a multiple of a
+ * resolution can then be computed from the rollup rows instead of the raw
+ * ones (see {@link #getResolution(String, long, long, long[])}).
+ * <p>
+ * The resolutions, in milliseconds, are set by the
+ * <code>rollupResolutions</code> system property as a comma separated
+ * list, an empty list or <code>none</code> disables the rollups. The rollups
+ * are trimmed with the raw rows (see {@link #trim(String)}), the buckets
+ * older than the oldest raw row being deleted. As the bucket of the oldest raw
+ * row may still count trimmed rows, an aggregation of a trimmed virtual sensor
+ * is only answered from the rollups if its range starts after that row.
+ */
+public class RollupManager {
+
+	private static final transient Logger logger = Logger.getLogger(RollupManager.class);
+
+	public static final String RESOLUTIONS_PROPERTY = "rollupResolutions";
+
+	public static final String DEFAULT_RESOLUTIONS = "60000,3600000,86400000";
+
+	private static RollupManager singleton;
+
+	/**
+	 * The resolutions in milliseconds, in increasing order.
+	 */
+	private final long[] resolutions;
+
+	/**
+	 * The rollups of the registered virtual sensors, the key is the lower case
+	 * name of the virtual sensor.
+	 */
+	private final ConcurrentHashMap<String, Rollups> rollups = new ConcurrentHashMap<String, Rollups>();
+
+	public RollupManager(long[] resolutions) {
+		this.resolutions = resolutions.clone();
+		Arrays.sort(this.resolutions);
+	}
+
+	public static synchronized RollupManager getInstance() {
+		if (singleton == null)
+			singleton = new RollupManager(parseResolutions(System.getProperty(RESOLUTIONS_PROPERTY, DEFAULT_RESOLUTIONS)));
+		return singleton;
+	}
+
+	static long[] parseResolutions(String property) {
+		ArrayList<Long> values = new ArrayList<Long>();
+		if (!property.trim().equalsIgnoreCase("none"))
+			for (String value : property.split(",")) {
+				if (value.trim().length() == 0)
+					continue;
+				try {
+					long resolution = Long.parseLong(value.trim());
+					if (resolution > 0)
+						values.add(resolution);
+					else
+						logger.warn("Ignoring the rollup resolution " + value + ", it must be positive.");
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring the rollup resolution " + value + ", it isn't a number of milliseconds.");
+				}
+			}
+		long[] toReturn = new long[values.size()];
+		for (int i = 0; i < toReturn.length; i++)
+			toReturn[i] = values.get(i);
+		return toReturn;
+	}
+
+	public long[] getResolutions() {
+		return resolutions.clone();
+	}
+
+	public static String getTableName(String vsName, long resolution) {
+		return vsName.toLowerCase() + "_rollup_" + resolution;
+	}
+
+	/**
+	 * The state of the rollup tables of one virtual sensor.
+	 */
+	private static class Rollups {
+		final String vsName;
+
+		final StorageManager storage;
+
+		final DataField[] structure;
+
+		/**
+		 * The indexes, in the structure of the virtual sensor, of its numeric
+		 * fields.
+		 */
+		final int[] numeric;
+
+		final DataField[] rollupStructure;
+
+		final String updateStatement;
+
+		/**
+		 * The oldest timestamp of the raw rows once trimmed, the rollups
+		 * matching the raw rows from there on only. Long.MIN_VALUE while
+		 * nothing was trimmed.
+		 */
+		volatile long trimmedBefore = Long.MIN_VALUE;
+
+		/**
+		 * Set once an update failed, the rollups are then not used until they
+		 * are rebuilt from the raw rows.
+		 */
+		volatile boolean dirty = false;
+
+		/**
+		 * The batch whose transaction rebuilt the rollups, null if none is
+		 * waiting to be committed.
+		 */
+		List<StreamElement> rebuiltWith;
+
+		Rollups(String vsName, StorageManager storage, DataField[] structure) {
+			this.vsName = vsName;
+			this.storage = storage;
+			this.structure = structure;
+			ArrayList<Integer> indexes = new ArrayList<Integer>();
+			for (int i = 0; i < structure.length; i++)
+				if (isNumeric(structure[i].getDataTypeID()))
+					indexes.add(i);
+			numeric = new int[indexes.size()];
+			ArrayList<DataField> fields = new ArrayList<DataField>();
+			fields.add(new DataField("timed_min", DataTypes.BIGINT));
+			fields.add(new DataField("timed_max", DataTypes.BIGINT));
+			fields.add(new DataField("timed_sum", DataTypes.BIGINT));
+			fields.add(new DataField("row_count", DataTypes.BIGINT));
+			StringBuilder update = new StringBuilder("set timed_min = case when timed_min > ? then ? else timed_min end, ");
+			update.append("timed_max = case when timed_max < ? then ? else timed_max end, ");
+			update.append("timed_sum = timed_sum + ?, row_count = row_count + ?");
+			for (int i = 0; i < numeric.length; i++) {
+				numeric[i] = indexes.get(i);
+				String name = structure[numeric[i]].getName().toLowerCase();
+				fields.add(new DataField(name + "_min", DataTypes.DOUBLE));
+				fields.add(new DataField(name + "_max", DataTypes.DOUBLE));
+				fields.add(new DataField(name + "_sum", DataTypes.DOUBLE));
+				fields.add(new DataField(name + "_count", DataTypes.BIGINT));
+				update.append(", ").append(name).append("_min = case when ? = 0 then ").append(name).append("_min when ").append(name)
+						.append("_min is null or ").append(name).append("_min > ? then ? else ").append(name).append("_min end");
+				update.append(", ").append(name).append("_max = case when ? = 0 then ").append(name).append("_max when ").append(name)
+						.append("_max is null or ").append(name).append("_max < ? then ? else ").append(name).append("_max end");
+				update.append(", ").append(name).append("_sum = case when ? = 0 then ").append(name).append("_sum else coalesce(").append(name)
+						.append("_sum, 0) + ? end");
+				update.append(", ").append(name).append("_count = ").append(name).append("_count + ?");
+			}
+			rollupStructure = fields.toArray(new DataField[fields.size()]);
+			updateStatement = update.append(" where timed = ?").toString();
+		}
+
+		boolean hasField(String name) {
+			for (int index : numeric)
+				if (structure[index].getName().equalsIgnoreCase(name))
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * The aggregates of the elements of one bucket.
+	 */
+	private static class Delta {
+		long timedMin = Long.MAX_VALUE;
+
+		long timedMax = Long.MIN_VALUE;
+
+		long timedSum;
+
+		long rows;
+
+		final double[] min;
+
+		final double[] max;
+
+		final double[] sum;
+
+		final long[] count;
+
+		Delta(int fields) {
+			min = new double[fields];
+			max = new double[fields];
+			sum = new double[fields];
+			count = new long[fields];
+		}
+
+		void add(StreamElement se, Rollups rollups) {
+			long timed = se.getTimeStamp();
+			timedMin = Math.min(timedMin, timed);
+			timedMax = Math.max(timedMax, timed);
+			timedSum += timed;
+			rows++;
+			for (int i = 0; i < rollups.numeric.length; i++) {
+				Serializable value = se.getData()[rollups.numeric[i]];
+				if (!(value instanceof Number))
+					continue;
+				double v = ((Number) value).doubleValue();
+				if (count[i] == 0 || v < min[i])
+					min[i] = v;
+				if (count[i] == 0 || v > max[i])
+					max[i] = v;
+				sum[i] += v;
+				count[i]++;
+			}
+		}
+	}
+
+	private static boolean isNumeric(byte type) {
+		return type == DataTypes.TINYINT || type == DataTypes.SMALLINT || type == DataTypes.INTEGER || type == DataTypes.BIGINT
+				|| type == DataTypes.DOUBLE;
+	}
+
+	/**
+	 * Creates the rollup tables of a virtual sensor if they don't exist,
+	 * filling them from the rows already in its table.
+	 */
+	public void register(StorageManager storage, String vsName, DataField[] structure) {
+		if (resolutions.length == 0 || rollups.containsKey(vsName.toLowerCase()))
+			return;
+		if (storage instanceof ArchiveStorageManager) {
+			// the archive answers the range queries itself and only keeps the recent rows of its tables
+			logger.info("No rollups for " + vsName + ", its storage is an archive.");
+			return;
+		}
+		Rollups toRegister = new Rollups(vsName.toLowerCase(), storage, structure);
+		if (toRegister.numeric.length == 0)
+			return;
+		boolean trimmed = false;
+		ArrayList<Long> existing = new ArrayList<Long>();
+		try {
+			for (long resolution : resolutions) {
+				String table = getTableName(vsName, resolution);
+				boolean exists;
+				try {
+					exists = storage.tableExists(table, toRegister.rollupStructure);
+				} catch (GSNRuntimeException e) {
+					logger.warn("Recreating the rollup table " + table + ", its structure changed: " + e.getMessage());
+					storage.executeDropTable(table);
+					exists = false;
+				}
+				if (!exists) {
+					storage.executeCreateTable(table, toRegister.rollupStructure, true);
+					storage.executeUpdate(getStatementBackfill(toRegister, table, resolution));
+				} else {
+					existing.add(resolution);
+					// the raw rows were trimmed since the rollups were last updated
+					if (getOldest(storage, "min(timed_min)", table) < getOldest(storage, "min(timed)", toRegister.vsName))
+						trimmed = true;
+				}
+			}
+			if (trimmed)
+				trim(toRegister);
+			for (long resolution : existing)
+				if (!isConsistent(toRegister, resolution)) {
+					logger.warn("Rebuilding the rollup table " + getTableName(vsName, resolution) + ", it doesn't match the rows of " + vsName + ".");
+					rebuild(toRegister, resolution);
+				}
+		} catch (SQLException e) {
+			logger.error("Can't create the rollup tables of " + vsName + ", its aggregations will use the raw rows: " + e.getMessage(), e);
+			return;
+		}
+		rollups.putIfAbsent(toRegister.vsName, toRegister);
+	}
+
+	/**
+	 * @return the value of the aggregate over the table, Long.MAX_VALUE if the
+	 *         table is empty.
+	 */
+	private static long getOldest(StorageManager storage, String aggregate, String table) throws SQLException {
+		Connection conn = null;
+		ResultSet rs = null;
+		try {
+			conn = storage.getConnection();
+			rs = storage.executeQueryWithResultSet(new StringBuilder("select ").append(aggregate).append(" from ").append(table), conn);
+			if (rs.next()) {
+				long oldest = rs.getLong(1);
+				if (!rs.wasNull())
+					return oldest;
+			}
+			return Long.MAX_VALUE;
+		} finally {
+			storage.close(rs);
+			storage.close(conn);
+		}
+	}
+
+	/**
+	 * Compares the number of rows and the newest timestamp counted by a rollup
+	 * table with the raw rows. Once trimmed, the bucket of the oldest raw row
+	 * is left out as it may still count trimmed rows.
+	 */
+	private boolean isConsistent(Rollups r, long resolution) throws SQLException {
+		long from = Long.MIN_VALUE;
+		if (r.trimmedBefore != Long.MIN_VALUE && r.trimmedBefore != Long.MAX_VALUE)
+			from = bucket(r.trimmedBefore, resolution) + resolution;
+		long[] raw = getCountAndNewest(r.storage, "count(*), max(timed)", r.vsName, from);
+		long[] rolled = getCountAndNewest(r.storage, "sum(row_count), max(timed_max)", getTableName(r.vsName, resolution), from);
+		return raw[0] == rolled[0] && raw[1] == rolled[1];
+	}
+
+	/**
+	 * @return the values of the two aggregates over the rows of the table
+	 *         from the given timestamp on, 0 for a null value.
+	 */
+	private static long[] getCountAndNewest(StorageManager storage, String aggregates, String table, long from) throws SQLException {
+		Connection conn = null;
+		ResultSet rs = null;
+		try {
+			conn = storage.getConnection();
+			rs = storage.executeQueryWithResultSet(new StringBuilder("select ").append(aggregates).append(" from ").append(table).append(
+					" where timed >= ").append(from), conn);
+			if (!rs.next())
+				return new long[] { 0, 0 };
+			return new long[] { rs.getLong(1), rs.getLong(2) };
+		} finally {
+			storage.close(rs);
+			storage.close(conn);
+		}
+	}
+
+	/**
+	 * Rebuilds a rollup table from the raw rows in a transaction of its own.
+	 */
+	private void rebuild(Rollups r, long resolution) throws SQLException {
+		Connection conn = r.storage.getConnection();
+		try {
+			conn.setAutoCommit(false);
+			try {
+				rebuild(r, resolution, conn);
+				r.storage.commit(conn);
+			} catch (SQLException e) {
+				r.storage.rollback(conn);
+				throw e;
+			} finally {
+				conn.setAutoCommit(true);
+			}
+		} finally {
+			r.storage.close(conn);
+		}
+	}
+
+	private void rebuild(Rollups r, long resolution, Connection conn) throws SQLException {
+		String table = getTableName(r.vsName, resolution);
+		execute(new StringBuilder("delete from ").append(table), conn);
+		execute(getStatementBackfill(r, table, resolution), conn);
+	}
+
+	private static void execute(CharSequence statement, Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.executeUpdate(statement.toString());
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Deletes the buckets older than the oldest raw row of the virtual
+	 * sensor, to be called once its table was trimmed.
+	 */
+	public void trim(String vsName) {
+		Rollups r = rollups.get(vsName.toLowerCase());
+		if (r == null)
+			return;
+		try {
+			trim(r);
+		} catch (SQLException e) {
+			logger.error("Can't trim the rollups of " + vsName + ": " + e.getMessage(), e);
+		}
+	}
+
+	private void trim(Rollups r) throws SQLException {
+		// read outside of the lock, an update holds it within the transaction writing the raw rows
+		long oldest = getOldest(r.storage, "min(timed)", r.vsName);
+		synchronized (r) {
+			// until the next trim if the table is empty
+			r.trimmedBefore = oldest;
+			if (oldest == Long.MAX_VALUE)
+				return;
+			for (long resolution : resolutions)
+				r.storage.executeUpdate(new StringBuilder("delete from ").append(getTableName(r.vsName, resolution)).append(" where timed < ").append(
+						bucket(oldest, resolution)));
+		}
+	}
+
+	private StringBuilder getStatementBackfill(Rollups r, String table, long resolution) {
+		StringBuilder insert = new StringBuilder("insert into ").append(table).append(" (timed");
+		StringBuilder select = new StringBuilder(" select floor(timed/").append(resolution).append(")*").append(resolution);
+		select.append(", min(timed), max(timed), sum(timed), count(*)");
+		for (DataField field : r.rollupStructure)
+			insert.append(", ").append(field.getName());
+		for (int index : r.numeric) {
+			String name = r.structure[index].getName();
+			select.append(", min(").append(name).append("), max(").append(name).append("), sum(").append(name).append("), count(").append(name)
+					.append(")");
+		}
+		select.append(" from ").append(r.vsName).append(" group by floor(timed/").append(resolution).append(")*").append(resolution);
+		return insert.append(")").append(select);
+	}
+
+	public void unregister(String vsName) {
+		rollups.remove(vsName.toLowerCase());
+	}
+
+	/**
+	 * Adds the elements just inserted in the table of a virtual sensor to its
+	 * rollups, within the transaction inserting them so that both are
+	 * committed or rolled back together. A failed update is rolled back to a
+	 * savepoint and the rollups aren't used until the next update rebuilds
+	 * them from the raw rows, see {@link #committed(String, List)}. Without
+	 * a savepoint, the failure is thrown and the insertion rolled back too.
+	 */
+	public void update(String vsName, List<StreamElement> elements, Connection conn) throws SQLException {
+		Rollups r = rollups.get(vsName.toLowerCase());
+		if (r == null || elements.isEmpty())
+			return;
+		synchronized (r) {
+			Savepoint savepoint = null;
+			try {
+				savepoint = conn.setSavepoint();
+			} catch (SQLException e) {
+				logger.debug("No savepoint for the rollups of " + vsName + ": " + e.getMessage(), e);
+			}
+			try {
+				if (r.dirty) {
+					// the raw rows seen by the transaction include the elements
+					for (long resolution : resolutions)
+						rebuild(r, resolution, conn);
+					r.rebuiltWith = elements;
+				} else {
+					for (long resolution : resolutions)
+						update(r, getTableName(vsName, resolution), resolution, elements, conn);
+				}
+			} catch (SQLException e) {
+				r.dirty = true;
+				r.rebuiltWith = null;
+				if (savepoint == null)
+					throw e;
+				conn.rollback(savepoint);
+				logger.error("Can't update the rollups of " + vsName + ", they won't be used until rebuilt: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Called once the transaction of an update is committed, the rollups it
+	 * rebuilt can then be used again.
+	 */
+	public void committed(String vsName, List<StreamElement> elements) {
+		Rollups r = rollups.get(vsName.toLowerCase());
+		if (r == null)
+			return;
+		synchronized (r) {
+			if (r.rebuiltWith == elements && elements != null) {
+				r.rebuiltWith = null;
+				r.dirty = false;
+			}
+		}
+	}
+
+	private void update(Rollups r, String table, long resolution, List<StreamElement> elements, Connection conn) throws SQLException {
+		TreeMap<Long, Delta> deltas = new TreeMap<Long, Delta>();
+		for (StreamElement se : elements) {
+			long bucket = bucket(se.getTimeStamp(), resolution);
+			Delta delta = deltas.get(bucket);
+			if (delta == null)
+				deltas.put(bucket, delta = new Delta(r.numeric.length));
+			delta.add(se, r);
+		}
+		PreparedStatement ps = null;
+		try {
+			ps = conn.prepareStatement("update " + table + " " + r.updateStatement);
+			for (Map.Entry<Long, Delta> entry : deltas.entrySet()) {
+				Delta d = entry.getValue();
+				int p = 1;
+				ps.setLong(p++, d.timedMin);
+				ps.setLong(p++, d.timedMin);
+				ps.setLong(p++, d.timedMax);
+				ps.setLong(p++, d.timedMax);
+				ps.setLong(p++, d.timedSum);
+				ps.setLong(p++, d.rows);
+				for (int i = 0; i < r.numeric.length; i++) {
+					ps.setLong(p++, d.count[i]);
+					ps.setDouble(p++, d.min[i]);
+					ps.setDouble(p++, d.min[i]);
+					ps.setLong(p++, d.count[i]);
+					ps.setDouble(p++, d.max[i]);
+					ps.setDouble(p++, d.max[i]);
+					ps.setLong(p++, d.count[i]);
+					ps.setDouble(p++, d.sum[i]);
+					ps.setLong(p++, d.count[i]);
+				}
+				ps.setLong(p, entry.getKey());
+				if (ps.executeUpdate() == 0)
+					r.storage.executeInsert(table, r.rollupStructure, toStreamElement(r, entry.getKey(), d), conn);
+			}
+		} finally {
+			r.storage.close(ps);
+		}
+	}
+
+	private static StreamElement toStreamElement(Rollups r, long bucket, Delta d) {
+		Serializable[] values = new Serializable[r.rollupStructure.length];
+		values[0] = d.timedMin;
+		values[1] = d.timedMax;
+		values[2] = d.timedSum;
+		values[3] = d.rows;
+		for (int i = 0; i < r.numeric.length; i++) {
+			boolean empty = d.count[i] == 0;
+			values[4 + 4 * i] = empty ? null : d.min[i];
+			values[5 + 4 * i] = empty ? null : d.max[i];
+			values[6 + 4 * i] = empty ? null : d.sum[i];
+			values[7 + 4 * i] = d.count[i];
+		}
+		return new StreamElement(r.rollupStructure, values, bucket);
+	}
+
+	static long bucket(long timed, long resolution) {
+		long remainder = timed % resolution;
+		return remainder < 0 ? timed - remainder - resolution : timed - remainder;
+	}
+
+	/**
+	 * @return true if the field of the virtual sensor has rollups.
+	 */
+	public boolean hasRollups(String vsName, String field) {
+		Rollups r = rollups.get(vsName.toLowerCase());
+		return r != null && r.hasField(field);
+	}
+
+	/**
+	 * Picks the coarsest resolution able to answer an aggregation of the
+	 * virtual sensor over the given range, constrained to the given bounds on
+	 * <code>timed</code>. A resolution fits if it divides the range and if
+	 * every bound falls on a bucket boundary, so that a bucket is either
+	 * completely in or completely out of the aggregation. Once the raw rows
+	 * were trimmed, the aggregation must also start after the oldest of them.
+	 *
+	 * @param from the lowest timestamp included by the bounds, Long.MIN_VALUE
+	 *            if the range has no lower bound.
+	 * @param bounds the lowest timestamp included by each lower bound and the
+	 *            first timestamp excluded by each upper bound.
+	 * @return the resolution, or -1 if none fits.
+	 */
+	public long getResolution(String vsName, long range, long from, long[] bounds) {
+		Rollups r = rollups.get(vsName.toLowerCase());
+		if (r == null || r.dirty || range <= 0 || from < r.trimmedBefore)
+			return -1;
+		nextResolution: for (int i = resolutions.length - 1; i >= 0; i--) {
+			if (range % resolutions[i] != 0)
+				continue;
+			for (long bound : bounds)
+				if (bucket(bound, resolutions[i]) != bound)
+					continue nextResolution;
+			return resolutions[i];
+		}
+		return -1;
+	}
+}
@@ -155,6 +155,20 @@ public class SQLUtils {
 		return toReturn;
 	}
 
+	/**
+	 * @return true if the query is exactly <code>select * from tableName</code>
+	 *         (case and white spaces are ignored), i.e. it neither filters nor
+	 *         projects the table.
+	 */
+	public static boolean isSelectAll ( String query , CharSequence tableName ) {
+		if ( query == null )
+			return false;
+		String normalized = query.trim( ).toLowerCase( ).replaceAll( "\\s+" , " " );
+		if ( normalized.endsWith( ";" ) )
+			normalized = normalized.substring( 0 , normalized.length( ) - 1 ).trim( );
+		return normalized.equals( "select * from " + tableName.toString( ).toLowerCase( ) );
+	}
+
 	public static void main ( String [ ] args ) {
 		TreeMap < CharSequence , CharSequence > map = new TreeMap < CharSequence , CharSequence >( new CaseInsensitiveComparator( ) );
 		String query ="seLect ali.fd, x.x, fdfd.fdfd, *.r, * from x,x, bla, x whEre k";
@@ -102,7 +102,7 @@ public class SQLValidator implements VSensorStateChangeListener {
 		return in.replaceAll("'([^']|.)*'", "");
 	}
 
-	private static boolean isValid(String query) {
+	static boolean isValid(String query) {
 		String simplified = removeSingleQuotes(removeQuotes(query)).toLowerCase().trim();
 		if (simplified.lastIndexOf("select") != simplified.indexOf("select"))
 			return false;
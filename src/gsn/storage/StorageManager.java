@@ -37,6 +37,8 @@ import gsn.Main;
 import gsn.beans.DataField;
 import gsn.beans.DataTypes;
 import gsn.beans.StreamElement;
+import gsn.beans.StreamElementBatch;
+import gsn.beans.StreamSchema;
 import gsn.http.datarequest.AbstractQuery;
 import gsn.storage.hibernate.DBConnectionInfo;
 import gsn.utils.GSNRuntimeException;
@@ -45,6 +47,7 @@ import gsn.utils.ValidityTools;
 import java.io.Serializable;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.dbcp.*;
 import org.apache.log4j.Logger;
@@ -53,10 +56,17 @@ public abstract class StorageManager {
 
     private static final transient Logger logger = Logger.getLogger(StorageManager.class);
 
+    /**
+     * Number of rows fetched at once by the streamed queries.
+     */
+    public static final int DEFAULT_STREAMING_FETCH_SIZE = 1000;
+
     private String databaseDriver;
 
     private BasicDataSource pool;
 
+    private final ConcurrentHashMap<String, CachedInsert> insertStatements = new ConcurrentHashMap<String, CachedInsert>();
+
     public void init(String databaseDriver, String username, String password, String databaseURL, int maxDBConnections) {
         this.databaseDriver = databaseDriver;
         pool = DataSources.getDataSource(new DBConnectionInfo(databaseDriver,databaseURL,username,password));
@@ -362,6 +372,23 @@ public abstract class StorageManager {
         }
     }
 
+    /**
+     * Commits the transaction of the connection. The storages keeping a copy
+     * of the rows outside of the database write the rows inserted by the
+     * transaction once it is committed.
+     */
+    public void commit(Connection connection) throws SQLException {
+        connection.commit();
+    }
+
+    /**
+     * Rolls back the transaction of the connection, the rows it inserted are
+     * not copied.
+     */
+    public void rollback(Connection connection) throws SQLException {
+        connection.rollback();
+    }
+
     public void close(Connection conn) {
         try {
             if (conn != null && !conn.isClosed()) {
@@ -532,12 +559,43 @@ public abstract class StorageManager {
         return streamedExecuteQuery(query, binaryFieldsLinked, connection);
     }
 
+    /**
+     * Executes a query whose rows are read once, in order, like an export.
+     * The rows are fetched from the database by batches of
+     * {@link #getStreamingFetchSize()} rows instead of all at once.
+     * Attention: Caller should close the result set, its statement and the
+     * connection.
+     */
+    public ResultSet streamedExecuteQueryWithResultSet(AbstractQuery abstractQuery, Connection connection) throws SQLException {
+        String query = abstractQuery.getStandardQuery().toString();
+        if (abstractQuery.getLimitCriterion() != null)
+            query = addLimit(query, abstractQuery.getLimitCriterion().getSize(), abstractQuery.getLimitCriterion().getOffset());
+        if (logger.isDebugEnabled())
+            logger.debug("Executing query: " + query + " (streamed)");
+        PreparedStatement ps = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(getStreamingFetchSize());
+        return ps.executeQuery();
+    }
+
+    /**
+     * @return the fetch size of the streamed queries.
+     */
+    public int getStreamingFetchSize() {
+        return DEFAULT_STREAMING_FETCH_SIZE;
+    }
+
     public DataEnumerator executeQuery(StringBuilder query, boolean binaryFieldsLinked) throws SQLException {
         return executeQuery(query, binaryFieldsLinked, getConnection());
     }
 
+    /**
+     * Executes a query whose rows are read from the database
+     * {@link #getStreamingFetchSize()} at a time.
+     */
     public DataEnumerator streamedExecuteQuery(String query, boolean binaryFieldsLinked, Connection conn) throws SQLException {
-        return new DataEnumerator(this, conn.prepareStatement(query), binaryFieldsLinked);
+        PreparedStatement ps = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        ps.setFetchSize(getStreamingFetchSize());
+        return new DataEnumerator(this, ps, binaryFieldsLinked);
     }
 
 
@@ -633,72 +691,10 @@ public abstract class StorageManager {
 
     public void executeInsert(CharSequence tableName, DataField[] fields, StreamElement streamElement, Connection connection) throws SQLException {
         PreparedStatement ps = null;
-        String query = getStatementInsert(tableName, fields).toString();
+        String query = getCachedStatementInsert(tableName, fields);
         try {
             ps = connection.prepareStatement(query);
-            int counter = 1;
-            for (DataField dataField : fields) {
-                if (dataField.getName().equalsIgnoreCase("timed"))
-                    continue;
-                Serializable value = streamElement.getData(dataField.getName());
-
-                switch (dataField.getDataTypeID()) {
-                    case DataTypes.VARCHAR:
-                        if (value == null)
-                            ps.setNull(counter, Types.VARCHAR);
-                        else
-                            ps.setString(counter, value.toString());
-                        break;
-                    case DataTypes.CHAR:
-                        if (value == null)
-                            ps.setNull(counter, Types.CHAR);
-                        else
-                            ps.setString(counter, value.toString());
-                        break;
-                    case DataTypes.INTEGER:
-                        if (value == null)
-                            ps.setNull(counter, Types.INTEGER);
-                        else
-                            ps.setInt(counter, ((Number) value).intValue());
-                        break;
-                    case DataTypes.SMALLINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.SMALLINT);
-                        else
-                            ps.setShort(counter, ((Number) value).shortValue());
-                        break;
-                    case DataTypes.TINYINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.TINYINT);
-                        else
-                            ps.setByte(counter, ((Number) value).byteValue());
-                        break;
-                    case DataTypes.DOUBLE:
-                        if (value == null)
-                            ps.setNull(counter, Types.DOUBLE);
-                        else
-                            ps.setDouble(counter, ((Number) value).doubleValue());
-                        break;
-                    case DataTypes.BIGINT:
-                        if (value == null)
-                            ps.setNull(counter, Types.BIGINT);
-                        else
-                            ps.setLong(counter, ((Number) value).longValue());
-                        break;
-                    case DataTypes.BINARY:
-                        if (value == null)
-                            ps.setNull(counter, Types.BINARY);
-                        else
-                            ps.setBytes(counter, (byte[]) value);
-                        break;
-                    default:
-                        logger.error("The type conversion is not supported for : "
-                                + dataField.getName() + "("
-                                + dataField.getDataTypeID() + ") : ");
-                }
-                counter++;
-            }
-            ps.setLong(counter, streamElement.getTimeStamp());
+            setInsertParameters(ps, fields, streamElement);
             ps.execute();
         } catch (GSNRuntimeException e) {
             //if (e.getType() == GSNRuntimeException.UNEXPECTED_VIRTUAL_SENSOR_REMOVAL) {
@@ -719,6 +715,257 @@ public abstract class StorageManager {
         }
     }
 
+    /**
+     * Binds the values of the stream element to the parameters of a statement
+     * created from {@link #getStatementInsert(CharSequence, DataField[])} with
+     * the same fields.
+     */
+    public void setInsertParameters(PreparedStatement ps, DataField[] fields, StreamElement streamElement) throws SQLException {
+        int counter = 1;
+        String[] names = streamElement.getFieldNames();
+        for (int i = 0; i < fields.length; i++) {
+            DataField dataField = fields[i];
+            if (dataField.getName().equalsIgnoreCase("timed"))
+                continue;
+            Serializable value;
+            if (i < names.length && dataField.getName().equalsIgnoreCase(names[i]))
+                value = streamElement.getData()[i];
+            else
+                value = streamElement.getData(dataField.getName());
+            long longValue = 0;
+            double doubleValue = 0;
+            if (value != null) {
+                switch (StreamSchema.columnKindOf(dataField.getDataTypeID())) {
+                    case StreamSchema.LONG_COLUMN:
+                        longValue = ((Number) value).longValue();
+                        break;
+                    case StreamSchema.DOUBLE_COLUMN:
+                        doubleValue = ((Number) value).doubleValue();
+                        break;
+                }
+            }
+            setInsertParameter(ps, counter++, dataField, value == null, value, longValue, doubleValue);
+        }
+        ps.setLong(counter, streamElement.getTimeStamp());
+    }
+
+    /**
+     * Binds one field of a row, the integer types from <code>longValue</code>,
+     * the doubles from <code>doubleValue</code> and the others from
+     * <code>value</code>, so that the primitive columns of a batch are bound
+     * without being boxed.
+     */
+    private void setInsertParameter(PreparedStatement ps, int counter, DataField dataField, boolean isNull, Serializable value, long longValue, double doubleValue) throws SQLException {
+        switch (dataField.getDataTypeID()) {
+            case DataTypes.VARCHAR:
+                if (isNull)
+                    ps.setNull(counter, Types.VARCHAR);
+                else
+                    ps.setString(counter, value.toString());
+                break;
+            case DataTypes.CHAR:
+                if (isNull)
+                    ps.setNull(counter, Types.CHAR);
+                else
+                    ps.setString(counter, value.toString());
+                break;
+            case DataTypes.INTEGER:
+                if (isNull)
+                    ps.setNull(counter, Types.INTEGER);
+                else
+                    ps.setInt(counter, (int) longValue);
+                break;
+            case DataTypes.SMALLINT:
+                if (isNull)
+                    ps.setNull(counter, Types.SMALLINT);
+                else
+                    ps.setShort(counter, (short) longValue);
+                break;
+            case DataTypes.TINYINT:
+                if (isNull)
+                    ps.setNull(counter, Types.TINYINT);
+                else
+                    ps.setByte(counter, (byte) longValue);
+                break;
+            case DataTypes.DOUBLE:
+                if (isNull)
+                    ps.setNull(counter, Types.DOUBLE);
+                else
+                    ps.setDouble(counter, doubleValue);
+                break;
+            case DataTypes.BIGINT:
+                if (isNull)
+                    ps.setNull(counter, Types.BIGINT);
+                else
+                    ps.setLong(counter, longValue);
+                break;
+            case DataTypes.BINARY:
+                if (isNull)
+                    ps.setNull(counter, Types.BINARY);
+                else
+                    ps.setBytes(counter, (byte[]) value);
+                break;
+            default:
+                logger.error("The type conversion is not supported for : "
+                        + dataField.getName() + "("
+                        + dataField.getDataTypeID() + ") : ");
+        }
+    }
+
+    /**
+     * Inserts all the rows of the batch with a single JDBC batch, the numeric
+     * values are bound from the primitive columns without being boxed.
+     * The primary keys generated for the rows are set in the batch, see
+     * {@link #setGeneratedKeys(CharSequence, Connection, PreparedStatement, StreamElementBatch)}.
+     */
+    public void executeInsert(CharSequence tableName, DataField[] fields, StreamElementBatch batch, Connection connection) throws SQLException {
+        if (batch.isEmpty())
+            return;
+        PreparedStatement ps = null;
+        String query = getCachedStatementInsert(tableName, fields);
+        try {
+            ps = connection.prepareStatement(query, Statement.RETURN_GENERATED_KEYS);
+            int[] columns = new int[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                columns[i] = batch.getSchema().indexOf(fields[i].getName());
+            for (int row = 0; row < batch.size(); row++) {
+                setInsertParameters(ps, fields, columns, batch, row);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            setGeneratedKeys(tableName, connection, ps, batch);
+        } catch (SQLException e) {
+            logger.warn("Error occurred on inserting data to the database, " + batch.size() + " stream elements dropped due to: " + e.getMessage() + ". Query: " + query);
+            throw e;
+        } finally {
+            close(ps);
+        }
+    }
+
+    /**
+     * Sets the primary keys the driver reports for the rows of a batch just
+     * inserted. Some drivers (H2) only report the key of the last row of a
+     * batch, the keys of the other rows are then derived from it, the
+     * identity of the table being consecutive within the batch, and checked
+     * against the timestamps read back with the connection of the insert.
+     * The rows whose key can't be told get -1.
+     */
+    private void setGeneratedKeys(CharSequence tableName, Connection connection, PreparedStatement ps, StreamElementBatch batch) {
+        ArrayList<Long> keys = new ArrayList<Long>(batch.size());
+        ResultSet rs = null;
+        try {
+            rs = ps.getGeneratedKeys();
+            while (rs != null && rs.next())
+                keys.add(rs.getLong(1));
+        } catch (SQLException e) {
+            if (logger.isDebugEnabled())
+                logger.debug("The generated keys are not available: " + e.getMessage());
+            keys.clear();
+        } finally {
+            if (rs != null)
+                close(rs);
+        }
+        if (keys.size() > batch.size())
+            keys.clear();
+        int first = batch.size() - keys.size();
+        for (int row = 0; row < batch.size(); row++)
+            batch.setPrimaryKey(row, row < first ? -1 : keys.get(row - first));
+        if (first > 0 && !keys.isEmpty())
+            deriveGeneratedKeys(tableName, connection, batch, first);
+    }
+
+    /**
+     * Sets the keys of the <code>count</code> first rows of the batch from the
+     * key of the row following them, if the rows of the table having these
+     * keys have the timestamps of the batch.
+     */
+    private void deriveGeneratedKeys(CharSequence tableName, Connection connection, StreamElementBatch batch, int count) {
+        long next = batch.getPrimaryKey(count);
+        long from = next - count;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            ps = connection.prepareStatement("select pk, timed from " + tableName + " where pk >= ? and pk < ? order by pk");
+            ps.setLong(1, from);
+            ps.setLong(2, next);
+            rs = ps.executeQuery();
+            int row = 0;
+            while (rs.next()) {
+                if (row == count || rs.getLong(1) != from + row || rs.getLong(2) != batch.getTimeStamp(row))
+                    return;
+                row++;
+            }
+            if (row != count)
+                return;
+        } catch (SQLException e) {
+            if (logger.isDebugEnabled())
+                logger.debug("The generated keys can't be derived: " + e.getMessage());
+            return;
+        } finally {
+            close(rs);
+            close(ps);
+        }
+        for (int row = 0; row < count; row++)
+            batch.setPrimaryKey(row, from + row);
+    }
+
+    /**
+     * Same as {@link #setInsertParameters(PreparedStatement, DataField[], StreamElement)}
+     * for a row of a batch, <code>columns</code> giving the column of the
+     * batch holding each field (-1 if the batch doesn't have it).
+     */
+    public void setInsertParameters(PreparedStatement ps, DataField[] fields, int[] columns, StreamElementBatch batch, int row) throws SQLException {
+        int counter = 1;
+        for (int i = 0; i < fields.length; i++) {
+            DataField dataField = fields[i];
+            if (dataField.getName().equalsIgnoreCase("timed"))
+                continue;
+            int column = columns[i];
+            boolean isNull = column == -1 || batch.isNull(row, column);
+            Serializable value = null;
+            long longValue = 0;
+            double doubleValue = 0;
+            if (!isNull) {
+                switch (StreamSchema.columnKindOf(dataField.getDataTypeID())) {
+                    case StreamSchema.LONG_COLUMN:
+                        longValue = batch.getLong(row, column);
+                        break;
+                    case StreamSchema.DOUBLE_COLUMN:
+                        doubleValue = batch.getDouble(row, column);
+                        break;
+                    default:
+                        value = batch.getValue(row, column);
+                }
+            }
+            setInsertParameter(ps, counter++, dataField, isNull, value, longValue, doubleValue);
+        }
+        ps.setLong(counter, batch.getTimeStamp(row));
+    }
+
+    /**
+     * Same as {@link #getStatementInsert(CharSequence, DataField[])} but the
+     * statement is only generated once per table and output structure.
+     */
+    public String getCachedStatementInsert(CharSequence tableName, DataField[] fields) {
+        String key = tableName.toString();
+        CachedInsert cached = insertStatements.get(key);
+        if (cached == null || cached.fields != fields) {
+            cached = new CachedInsert(fields, getStatementInsert(tableName, fields).toString());
+            insertStatements.put(key, cached);
+        }
+        return cached.query;
+    }
+
+    private static class CachedInsert {
+        private final DataField[] fields;
+        private final String query;
+
+        CachedInsert(DataField[] fields, String query) {
+            this.fields = fields;
+            this.query = query;
+        }
+    }
+
     /***************************************************************************
      * Statement Generators
      **************************************************************************/
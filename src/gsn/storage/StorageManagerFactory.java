@@ -60,6 +60,9 @@ public class StorageManagerFactory {
         }         
         else if ("org.postgresql.Driver".equalsIgnoreCase(driver)) {
             storageManager = new PostgresStorageManager();
+        }
+        else if (ArchiveStorageManager.DRIVER.equalsIgnoreCase(driver)) {
+            storageManager = new ArchiveStorageManager();
         }
 		else {
 			logger.error(new StringBuilder().append("The GSN doesn't support the database driver : ").append(driver).toString());
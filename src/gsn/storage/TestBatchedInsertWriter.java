@@ -0,0 +1,408 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestBatchedInsertWriter.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gsn.DistributionTail;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamElementBatch;
+
+import gsn.storage.db.H2StorageManager;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBatchedInsertWriter {
+
+	private static final String TABLE = "batched_insert_test";
+
+	private DataField[] fields = new DataField[] { new DataField("value", DataTypes.INTEGER), new DataField("label", DataTypes.VARCHAR) };
+
+	private StorageManager sm;
+
+	private Timer timer;
+
+	private List<StreamElement> flushed = new ArrayList<StreamElement>();
+
+	private BatchedInsertWriter.FlushListener listener = new BatchedInsertWriter.FlushListener() {
+		public void flushed(List<StreamElement> elements) {
+			synchronized (flushed) {
+				flushed.addAll(elements);
+			}
+		}
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		DriverManager.registerDriver(new org.h2.Driver());
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:batched", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable(TABLE, fields, false);
+		timer = new Timer(true);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		timer.cancel();
+		sm.executeDropTable(TABLE);
+	}
+
+	private StreamElement element(int i) {
+		return new StreamElement(fields, new Serializable[] { i, i % 2 == 0 ? null : "odd" }, i);
+	}
+
+	private int countRows() throws Exception {
+		DataEnumerator rows = sm.executeQuery(new StringBuilder("select * from ").append(TABLE), false);
+		int count = 0;
+		while (rows.hasMoreElements()) {
+			rows.nextElement();
+			count++;
+		}
+		rows.close();
+		return count;
+	}
+
+	@Test
+	public void testFlushOnBatchSize() throws Exception {
+		BatchedInsertWriter writer = new BatchedInsertWriter(sm, TABLE, fields, 3, 60 * 1000, timer, listener);
+		writer.setAssignPrimaryKeys(true);
+		writer.insert(element(1));
+		writer.insert(element(2));
+		assertEquals(0, countRows());
+		assertEquals(2, writer.getPendingCount());
+		writer.insert(element(3));
+		assertEquals(3, countRows());
+		assertEquals(3, flushed.size());
+		// H2 only reports the last key, the others are derived from it
+		long last = flushed.get(2).getInternalPrimayKey();
+		assertTrue(last > 0);
+		for (int i = 0; i < 2; i++)
+			assertEquals(last - 2 + i, flushed.get(i).getInternalPrimayKey());
+		assertEquals(3L, writer.getInsertedCount());
+		assertEquals(1L, writer.getFlushCount());
+		writer.insert(element(4));
+		writer.close();
+		assertEquals(4, countRows());
+		assertEquals(4L, writer.getInsertedCount());
+	}
+
+	@Test
+	public void testDistributionTailBehindTheWriter() throws Exception {
+		final DistributionTail tail = new DistributionTail(fields, 10);
+		BatchedInsertWriter writer = new BatchedInsertWriter(sm, TABLE, fields, 4, 60 * 1000, timer, new BatchedInsertWriter.FlushListener() {
+			public void flushed(List<StreamElement> elements) {
+				for (StreamElement se : elements)
+					tail.append(se);
+			}
+		});
+		writer.setAssignPrimaryKeys(true);
+		for (int i = 1; i <= 8; i++)
+			writer.insert(element(i));
+		assertEquals(8, tail.size());
+		assertTrue(tail.covers(tail.getLastPk() - 8));
+		List<StreamElement> elements = tail.getElementsAfter(tail.getLastPk() - 8, Long.MIN_VALUE);
+		for (int i = 0; i < 8; i++)
+			assertEquals(i + 1L, elements.get(i).getTimeStamp());
+		writer.close();
+	}
+
+	@Test
+	public void testFlushOnDeadline() throws Exception {
+		BatchedInsertWriter writer = new BatchedInsertWriter(sm, TABLE, fields, 100, 50, timer, listener);
+		writer.insert(element(1));
+		writer.insert(element(2));
+		for (int i = 0; i < 100 && writer.getPendingCount() > 0; i++)
+			Thread.sleep(20);
+		assertEquals(0, writer.getPendingCount());
+		assertEquals(2, countRows());
+		assertEquals(2, flushed.size());
+		assertTrue(writer.getThroughput() > 0);
+		writer.close();
+	}
+
+	@Test
+	public void testListenerOutsideTheLock() throws Exception {
+		final CountDownLatch listening = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final BatchedInsertWriter writer = new BatchedInsertWriter(sm, TABLE, fields, 2, 60 * 1000, timer, new BatchedInsertWriter.FlushListener() {
+			public void flushed(List<StreamElement> elements) {
+				listening.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		Thread flusher = new Thread() {
+			public void run() {
+				try {
+					writer.insert(element(1));
+					writer.insert(element(2));
+				} catch (SQLException e) {
+				}
+			}
+		};
+		flusher.start();
+		assertTrue(listening.await(10, TimeUnit.SECONDS));
+		// the listener is blocked, the writer still accepts elements
+		writer.insert(element(3));
+		assertEquals(1, writer.getPendingCount());
+		release.countDown();
+		flusher.join();
+		writer.close();
+		assertEquals(3, countRows());
+	}
+
+	@Test
+	public void testInvalidBatchOnTheTimer() throws Exception {
+		BatchedInsertWriter writer = new BatchedInsertWriter(sm, TABLE, fields, 100, 50, timer, listener);
+		// a value which can't be written in the integer column
+		DataField[] mismatch = new DataField[] { new DataField("value", DataTypes.VARCHAR) };
+		writer.insert(new StreamElement(mismatch, new Serializable[] { "not a number" }, 1));
+		for (int i = 0; i < 100 && writer.getDroppedCount() == 0; i++)
+			Thread.sleep(20);
+		assertEquals(1L, writer.getDroppedCount());
+		// the shared timer survived
+		writer.insert(element(2));
+		for (int i = 0; i < 100 && writer.getPendingCount() > 0; i++)
+			Thread.sleep(20);
+		assertEquals(1, countRows());
+		assertEquals(1, flushed.size());
+		writer.close();
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		String table = "batched_insert_unique";
+		sm.executeCreateTable(table, fields, true);
+		try {
+			BatchedInsertWriter writer = new BatchedInsertWriter(sm, table, fields, 10, 0, null, null);
+			writer.setRetries(2, 0);
+			List<StreamElement> batch = new ArrayList<StreamElement>();
+			for (int i = 1; i <= 3; i++)
+				batch.add(element(i));
+			writer.write(batch);
+			// the duplicates fail on every attempt
+			try {
+				writer.write(batch);
+				assertTrue(false);
+			} catch (SQLException e) {
+				assertEquals(3L, writer.getDroppedCount());
+			}
+			assertEquals(3L, writer.getInsertedCount());
+			writer.close();
+		} finally {
+			sm.executeDropTable(table);
+		}
+	}
+
+	@Test
+	public void testBackOffOutsideTheLock() throws Exception {
+		String table = "batched_insert_unique";
+		sm.executeCreateTable(table, fields, true);
+		try {
+			final BatchedInsertWriter writer = new BatchedInsertWriter(sm, table, fields, 10, 60 * 1000, timer, null);
+			writer.setRetries(1, 1000);
+			writer.insert(element(1));
+			writer.flush();
+			Thread retrying = new Thread() {
+				public void run() {
+					try {
+						writer.insert(element(1));
+						writer.flush();
+					} catch (SQLException e) {
+					}
+				}
+			};
+			retrying.start();
+			Thread.sleep(300);
+			// the duplicate is waiting for its retry, the writer still accepts elements
+			long start = System.currentTimeMillis();
+			writer.insert(element(2));
+			assertEquals(1, writer.getPendingCount());
+			assertTrue(System.currentTimeMillis() - start < 500);
+			retrying.join();
+			writer.close();
+			assertEquals(1L, writer.getDroppedCount());
+			assertEquals(2L, writer.getInsertedCount());
+		} finally {
+			sm.executeDropTable(table);
+		}
+	}
+
+	@Test
+	public void testRetryAfterCommitFailure() throws Exception {
+		final boolean[] failed = new boolean[1];
+		StorageManager failing = new H2StorageManager() {
+			public Connection getConnection() throws SQLException {
+				final Connection connection = super.getConnection();
+				return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try {
+							Object result = method.invoke(connection, args);
+							if (method.getName().equals("commit") && !failed[0]) {
+								failed[0] = true;
+								throw new SQLException("The connection was lost while committing.");
+							}
+							return result;
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+			}
+		};
+		failing.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:batched", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		BatchedInsertWriter writer = new BatchedInsertWriter(failing, TABLE, fields, 10, 0, null, listener);
+		writer.setRetries(1, 0);
+		writer.setAssignPrimaryKeys(true);
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		for (int i = 1; i <= 3; i++)
+			batch.add(element(i));
+		writer.write(batch);
+		assertTrue(failed[0]);
+		// the batch was committed, so it isn't written again
+		assertEquals(3, countRows());
+		assertEquals(3L, writer.getInsertedCount());
+		assertEquals(0L, writer.getDroppedCount());
+		assertEquals(3, flushed.size());
+		assertTrue(flushed.get(2).getInternalPrimayKey() > 0);
+		writer.close();
+	}
+
+	@Test
+	public void testUnbatched() throws Exception {
+		BatchedInsertWriter writer = new BatchedInsertWriter(sm, TABLE, fields, 1, 0, null, listener);
+		writer.setAssignPrimaryKeys(true);
+		for (int i = 0; i < 5; i++)
+			writer.insert(element(i));
+		assertEquals(5, countRows());
+		assertEquals(5L, writer.getFlushCount());
+		for (int i = 1; i < 5; i++)
+			assertEquals(flushed.get(0).getInternalPrimayKey() + i, flushed.get(i).getInternalPrimayKey());
+		writer.close();
+	}
+
+	@Test
+	public void testRetryAfterCommitFailureWithoutKeys() throws Exception {
+		final boolean[] failed = new boolean[1];
+		// a driver which doesn't report the generated keys
+		StorageManager failing = new H2StorageManager() {
+			public void executeInsert(CharSequence tableName, DataField[] fields, StreamElementBatch batch, Connection connection) throws SQLException {
+				super.executeInsert(tableName, fields, batch, connection);
+				for (int row = 0; row < batch.size(); row++)
+					batch.setPrimaryKey(row, -1);
+			}
+
+			public Connection getConnection() throws SQLException {
+				final Connection connection = super.getConnection();
+				return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try {
+							Object result = method.invoke(connection, args);
+							if (method.getName().equals("commit") && !failed[0]) {
+								failed[0] = true;
+								throw new SQLException("The connection was lost while committing.");
+							}
+							return result;
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+			}
+		};
+		failing.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:batched", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		BatchedInsertWriter writer = new BatchedInsertWriter(failing, TABLE, fields, 10, 0, null, listener);
+		writer.setRetries(1, 0);
+		// a row of another batch with the same timestamp
+		BatchedInsertWriter other = new BatchedInsertWriter(sm, TABLE, fields, 1, 0, null, null);
+		other.write(Collections.singletonList(element(3)));
+		other.close();
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		for (int i = 1; i <= 3; i++)
+			batch.add(element(i));
+		writer.write(batch);
+		assertTrue(failed[0]);
+		// the batch was committed, so it isn't written again
+		assertEquals(4, countRows());
+		failed[0] = false;
+		// the commit fails without going through this time, the batch is written again
+		StorageManager lost = new H2StorageManager() {
+			public void executeInsert(CharSequence tableName, DataField[] fields, StreamElementBatch batch, Connection connection) throws SQLException {
+				super.executeInsert(tableName, fields, batch, connection);
+				for (int row = 0; row < batch.size(); row++)
+					batch.setPrimaryKey(row, -1);
+			}
+
+			public Connection getConnection() throws SQLException {
+				final Connection connection = super.getConnection();
+				return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try {
+							if (method.getName().equals("commit") && !failed[0]) {
+								failed[0] = true;
+								connection.rollback();
+								throw new SQLException("The connection was lost before committing.");
+							}
+							return method.invoke(connection, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+			}
+		};
+		lost.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:batched", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		BatchedInsertWriter retrying = new BatchedInsertWriter(lost, TABLE, fields, 10, 0, null, null);
+		retrying.setRetries(1, 0);
+		retrying.write(batch);
+		assertTrue(failed[0]);
+		assertEquals(7, countRows());
+		assertEquals(0L, retrying.getDroppedCount());
+		writer.close();
+		retrying.close();
+	}
+}
@@ -0,0 +1,153 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestCompiledSelect.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCompiledSelect {
+
+	private static final String TABLE = "compiled_query_test";
+
+	private DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE), new DataField("node", DataTypes.INTEGER),
+			new DataField("label", DataTypes.VARCHAR), new DataField("image", DataTypes.BINARY) };
+
+	private List<StreamElement> elements = new ArrayList<StreamElement>();
+
+	private StorageManager sm;
+
+	@Before
+	public void setUp() throws Exception {
+		DriverManager.registerDriver(new org.h2.Driver());
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:compiled", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable(TABLE, fields, false);
+		String[] labels = new String[] { "a", "B", null, "it's" };
+		for (int i = 0; i < 20; i++) {
+			StreamElement se = new StreamElement(fields, new Serializable[] { i % 7 == 0 ? null : i * 1.5, i % 5, labels[i % 4], null }, 1000 + i);
+			elements.add(se);
+			sm.executeInsert(TABLE, fields, se);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		sm.executeDropTable(TABLE);
+	}
+
+	/**
+	 * Compares the compiled evaluation of the where clause with the one of
+	 * the database.
+	 */
+	private void assertSameResult(String where) throws Exception {
+		String query = "select * from " + TABLE + " where " + where;
+		CompiledSelect select = CompiledSelect.compile(query, TABLE, fields);
+		assertNotNull(where, select);
+		List<Long> expected = new ArrayList<Long>();
+		DataEnumerator rows = sm.executeQuery(new StringBuilder(query).append(" order by timed"), false);
+		while (rows.hasMoreElements())
+			expected.add(rows.nextElement().getTimeStamp());
+		rows.close();
+		List<Long> actual = new ArrayList<Long>();
+		for (StreamElement se : select.apply(elements))
+			actual.add(se.getTimeStamp());
+		assertEquals(where, expected, actual);
+	}
+
+	@Test
+	public void testConditions() throws Exception {
+		assertSameResult("temperature > 10");
+		assertSameResult("temperature <= 9.5 and node <> 2");
+		assertSameResult("not (temperature < 12) or label = 'B'");
+		assertSameResult("not temperature between 3 and 15");
+		assertSameResult("node in (1, 3) and label is not null");
+		assertSameResult("node not in (0, 4)");
+		assertSameResult("temperature is null or timed >= 1015");
+		assertSameResult("label > 'a' or label = 'it''s'");
+		assertSameResult("temperature > -1.5E1 and NODE != 0");
+	}
+
+	@Test
+	public void testProjection() {
+		CompiledSelect select = CompiledSelect.compile("select timed, node as n, label from wrapper where node = 3", "wrapper", fields);
+		assertFalse(select.isSelectAll());
+		assertNull(select.apply(elements.get(0)));
+		StreamElement se = select.apply(elements.get(3));
+		assertEquals(2, se.getFieldNames().length);
+		assertEquals(3, se.getData("n"));
+		assertEquals("it's", se.getData("label"));
+		assertEquals(1003L, se.getTimeStamp());
+		assertTrue(CompiledSelect.compile("SELECT * FROM WRAPPER", "wrapper", fields).isSelectAll());
+	}
+
+	@Test
+	public void testScan() {
+		String query = "select node from wrapper where timed >= 10 and (timed < 20.5 or timed = 30) and node = 1 order by timed desc limit 5 offset 2";
+		assertNull(CompiledSelect.compile(query, "wrapper", fields));
+		CompiledSelect select = CompiledSelect.compileScan(query, "wrapper", fields);
+		assertEquals(10L, select.getMinTimed());
+		assertEquals(30L, select.getMaxTimed());
+		assertTrue(select.isOrdered());
+		assertTrue(select.isDescending());
+		assertEquals(5L, select.getLimit());
+		assertEquals(2L, select.getOffset());
+		assertTrue(select.isReferenced(1));
+		assertFalse(select.isReferenced(0));
+		select = CompiledSelect.compileScan("select * from wrapper where not timed < 5 and 100 > timed limit 2, 10", "wrapper", fields);
+		assertEquals(Long.MIN_VALUE, select.getMinTimed());
+		assertEquals(99L, select.getMaxTimed());
+		assertEquals(10L, select.getLimit());
+		assertNull(CompiledSelect.compileScan("select * from wrapper order by node", "wrapper", fields));
+	}
+
+	@Test
+	public void testNotCompilable() {
+		assertNull(CompiledSelect.compile("select * from other", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select avg(temperature) from wrapper", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper where temperature * 2 > 10", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper where node = '1'", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper where label like 'a%'", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper where image is null", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper where unknown = 1", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper order by timed", "wrapper", fields));
+		assertNull(CompiledSelect.compile("select * from wrapper where node in (select node from wrapper)", "wrapper", fields));
+	}
+}
@@ -0,0 +1,99 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestDownsampler.java
+*
+* @author gsn_devs
+*
+*/
+
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+
+import org.junit.Test;
+
+public class TestDownsampler {
+
+	private long[] timestamps(int count) {
+		long[] timestamps = new long[count];
+		for (int i = 0; i < count; i++)
+			timestamps[i] = i * 10;
+		return timestamps;
+	}
+
+	@Test
+	public void testLttbKeepsPeaks() {
+		double[] values = new double[1000];
+		values[500] = 100;
+		values[750] = -100;
+		Downsampler.Series series = Downsampler.downsample(timestamps(1000), values, 1000, 10, Downsampler.Mode.lttb);
+		assertEquals(10, series.size());
+		assertEquals(0L, series.getTimestamp(0));
+		assertEquals(9990L, series.getTimestamp(9));
+		boolean max = false, min = false;
+		for (int i = 1; i < series.size(); i++) {
+			assertEquals(true, series.getTimestamp(i) > series.getTimestamp(i - 1));
+			max |= series.getValue(i) == 100;
+			min |= series.getValue(i) == -100;
+		}
+		assertEquals(true, max && min);
+	}
+
+	@Test
+	public void testMinMax() {
+		double[] values = new double[101];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i % 10;
+		for (int size : new int[] { 7, 8 }) {
+			Downsampler.Series series = Downsampler.downsample(timestamps(101), values, 101, size, Downsampler.Mode.minmax);
+			assertEquals(size, series.size());
+			double min = series.getValue(0), max = series.getValue(0);
+			for (int i = 1; i < series.size(); i++) {
+				assertEquals(true, series.getTimestamp(i) > series.getTimestamp(i - 1));
+				min = Math.min(min, series.getValue(i));
+				max = Math.max(max, series.getValue(i));
+			}
+			assertEquals(0, min, 0);
+			assertEquals(9, max, 0);
+		}
+		assertEquals(3, Downsampler.downsample(timestamps(3), values, 3, 10, Downsampler.Mode.minmax).size());
+	}
+
+	@Test
+	public void testQueryRange() throws Exception {
+		DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE) };
+		StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:downsampler", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("sampled", fields, true);
+		for (long t = 0; t < 500; t++)
+			sm.executeInsert("sampled", fields, new StreamElement(fields, new Serializable[] { t % 7 == 0 ? null : (double) t }, t));
+		Downsampler.Series series = Downsampler.query(sm, "sampled", "temperature", 100, 299, 20, Downsampler.Mode.lttb);
+		assertEquals(20, series.size());
+		assertEquals(100L, series.getTimestamp(0));
+		assertEquals(299L, series.getTimestamp(19));
+		assertEquals(299, series.getValue(19), 0);
+	}
+}
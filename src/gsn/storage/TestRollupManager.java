@@ -0,0 +1,234 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/TestRollupManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.http.datarequest.AbstractQuery;
+import gsn.http.datarequest.AggregationCriterion;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestRollupManager {
+
+	private DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE), new DataField("counter", DataTypes.INTEGER),
+			new DataField("label", DataTypes.VARCHAR) };
+
+	private StreamElement element(long timestamp) {
+		return new StreamElement(fields, new Serializable[] { timestamp % 3 == 0 ? null : timestamp / 1000.0, (int) (timestamp % 17),
+				"t" + timestamp }, timestamp);
+	}
+
+	@Test
+	public void testResolutions() {
+		assertEquals(0, RollupManager.parseResolutions("none").length);
+		assertEquals(2, RollupManager.parseResolutions("60000, ,x,3600000").length);
+		assertEquals(-60000L, RollupManager.bucket(-1, 60000));
+		assertEquals(120000L, RollupManager.bucket(179999, 60000));
+	}
+
+	@Test
+	public void testRollups() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollups", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("rolled", fields, true);
+		for (long t = 0; t < 300; t++)
+			sm.executeInsert("rolled", fields, element(t * 7000));
+
+		RollupManager rollups = RollupManager.getInstance();
+		rollups.register(sm, "rolled", fields);
+		assertTrue(sm.tableExists(RollupManager.getTableName("rolled", 60000)));
+		assertTrue(rollups.hasRollups("rolled", "temperature"));
+		assertFalse(rollups.hasRollups("rolled", "label"));
+		assertEquals(60000L, rollups.getResolution("rolled", 600000, 120000, new long[] { 120000 }));
+		assertEquals(-1L, rollups.getResolution("rolled", 600000, 120001, new long[] { 120001 }));
+
+		// the new elements are added to the existing buckets, in the transaction inserting them
+		List<StreamElement> batch = new ArrayList<StreamElement>();
+		Connection conn = sm.getConnection();
+		conn.setAutoCommit(false);
+		for (long t = 300; t < 400; t++) {
+			batch.add(element(t * 7000));
+			sm.executeInsert("rolled", fields, batch.get(batch.size() - 1), conn);
+		}
+		rollups.update("rolled", batch, conn);
+		conn.commit();
+		conn.setAutoCommit(true);
+		sm.close(conn);
+
+		for (String op : new String[] { "min", "max", "avg" }) {
+			AbstractQuery query = new AbstractQuery(null, new AggregationCriterion("300000:" + op), "rolled", new String[] { "timed", "temperature",
+					"counter" }, null);
+			StringBuilder sql = query.getStandardQuery();
+			assertTrue(sql.toString().contains(RollupManager.getTableName("rolled", 60000)));
+			DataEnumerator fromRollups = sm.executeQuery(sql, false);
+			DataEnumerator fromRows = sm.executeQuery(new StringBuilder("select " + op + "(timed) as timed, " + op + "(temperature) as temperature, "
+					+ op + "(cast(counter as double)) as counter, floor(timed/300000) as aggregation_interval from rolled "
+					+ "group by aggregation_interval order by aggregation_interval desc"), false);
+			int count = 0;
+			while (fromRows.hasMoreElements()) {
+				StreamElement expected = fromRows.nextElement();
+				StreamElement actual = fromRollups.nextElement();
+				assertEquals(expected.getTimeStamp(), actual.getTimeStamp(), 1);
+				for (String field : new String[] { "temperature", "counter" })
+					assertEquals(((Number) expected.getData(field)).doubleValue(), ((Number) actual.getData(field)).doubleValue(), 1);
+				count++;
+			}
+			assertFalse(fromRollups.hasMoreElements());
+			assertEquals(10, count);
+		}
+
+		// a field without rollups needs the raw rows
+		AbstractQuery query = new AbstractQuery(null, new AggregationCriterion("300000:max"), "rolled", new String[] { "timed", "label" }, null);
+		assertFalse(query.getStandardQuery().toString().contains("rollup"));
+		rollups.unregister("rolled");
+		sm.executeDropTable("rolled");
+		for (long resolution : rollups.getResolutions())
+			sm.executeDropTable(RollupManager.getTableName("rolled", resolution));
+	}
+
+	private long count(StorageManager sm, String sql) throws SQLException {
+		Connection conn = sm.getConnection();
+		ResultSet rs = null;
+		try {
+			rs = sm.executeQueryWithResultSet(new StringBuilder(sql), conn);
+			assertTrue(rs.next());
+			return rs.getLong(1);
+		} finally {
+			sm.close(rs);
+			sm.close(conn);
+		}
+	}
+
+	@Test
+	public void testUpdateWithTheWriter() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollups", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("written", fields, true);
+		final RollupManager rollups = RollupManager.getInstance();
+		rollups.register(sm, "written", fields);
+		String table = RollupManager.getTableName("written", 60000);
+		BatchedInsertWriter writer = new BatchedInsertWriter(sm, "written", fields, 10, 1000, null, new BatchedInsertWriter.FlushListener() {
+			public void flushed(List<StreamElement> elements) {
+				rollups.committed("written", elements);
+			}
+		});
+		writer.setTransactionListener(new BatchedInsertWriter.TransactionListener() {
+			public void inserted(List<StreamElement> elements, Connection connection) throws SQLException {
+				rollups.update("written", elements, connection);
+			}
+		});
+		for (long t = 0; t < 10; t++)
+			writer.insert(element(t * 7000));
+		assertEquals(10L, count(sm, "select sum(row_count) from " + table));
+		assertEquals(60000L, rollups.getResolution("written", 60000, 0, new long[] { 0 }));
+
+		// the failed update is rolled back alone, the rollups aren't used until rebuilt
+		sm.executeUpdate(new StringBuilder("alter table " + table + " rename to broken"));
+		for (long t = 10; t < 20; t++)
+			writer.insert(element(t * 7000));
+		sm.executeUpdate(new StringBuilder("alter table broken rename to " + table));
+		assertEquals(20L, count(sm, "select count(*) from written"));
+		assertEquals(10L, count(sm, "select sum(row_count) from " + table));
+		assertEquals(-1L, rollups.getResolution("written", 60000, 0, new long[] { 0 }));
+
+		// the next batch rebuilds them
+		for (long t = 20; t < 30; t++)
+			writer.insert(element(t * 7000));
+		assertEquals(30L, count(sm, "select sum(row_count) from " + table));
+		assertEquals(60000L, rollups.getResolution("written", 60000, 0, new long[] { 0 }));
+		writer.close();
+
+		rollups.unregister("written");
+		sm.executeDropTable("written");
+		for (long resolution : rollups.getResolutions())
+			sm.executeDropTable(RollupManager.getTableName("written", resolution));
+	}
+
+	@Test
+	public void testReconcileOnRegister() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollups", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("diverged", fields, true);
+		for (long t = 0; t < 100; t++)
+			sm.executeInsert("diverged", fields, element(t * 7000));
+		RollupManager rollups = RollupManager.getInstance();
+		rollups.register(sm, "diverged", fields);
+		rollups.unregister("diverged");
+
+		// rows written while the rollups weren't updated
+		String table = RollupManager.getTableName("diverged", 60000);
+		for (long t = 100; t < 120; t++)
+			sm.executeInsert("diverged", fields, element(t * 7000));
+		assertEquals(100L, count(sm, "select sum(row_count) from " + table));
+		rollups.register(sm, "diverged", fields);
+		assertEquals(120L, count(sm, "select sum(row_count) from " + table));
+		assertEquals(119L * 7000, count(sm, "select max(timed_max) from " + table));
+
+		rollups.unregister("diverged");
+		sm.executeDropTable("diverged");
+		for (long resolution : rollups.getResolutions())
+			sm.executeDropTable(RollupManager.getTableName("diverged", resolution));
+	}
+
+	@Test
+	public void testTrim() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", "jdbc:h2:mem:rollups", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("trimmed", fields, true);
+		for (long t = 0; t < 400; t++)
+			sm.executeInsert("trimmed", fields, element(t * 7000));
+		RollupManager rollups = RollupManager.getInstance();
+		rollups.register(sm, "trimmed", fields);
+		String table = RollupManager.getTableName("trimmed", 60000);
+
+		// as with a storage size, the oldest rows are removed from the middle of a bucket
+		sm.executeUpdate(new StringBuilder("delete from trimmed where timed < 1000000"));
+		rollups.trim("trimmed");
+		DataEnumerator oldest = sm.executeQuery(new StringBuilder("select min(timed) as bucket from ").append(table), false);
+		assertEquals(960000L, ((Number) oldest.nextElement().getData("bucket")).longValue());
+		oldest.close();
+
+		// the first bucket counts trimmed rows, the rollups can't answer a range which includes it
+		AbstractQuery query = new AbstractQuery(null, new AggregationCriterion("300000:max"), "trimmed", new String[] { "timed", "temperature" }, null);
+		assertFalse(query.getStandardQuery().toString().contains("rollup"));
+		assertEquals(-1L, rollups.getResolution("trimmed", 300000, 900000, new long[] { 900000 }));
+		assertEquals(60000L, rollups.getResolution("trimmed", 300000, 1200000, new long[] { 1200000 }));
+
+		rollups.unregister("trimmed");
+		sm.executeDropTable("trimmed");
+		for (long resolution : rollups.getResolutions())
+			sm.executeDropTable(RollupManager.getTableName("trimmed", resolution));
+	}
+}
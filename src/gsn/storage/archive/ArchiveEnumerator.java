@@ -0,0 +1,111 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/ArchiveEnumerator.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+import gsn.beans.StreamElement;
+import gsn.storage.CompiledSelect;
+import gsn.storage.DataEnumerator;
+import gsn.storage.StorageManager;
+
+import java.sql.Connection;
+
+/**
+ * The result of a query answered from a {@link ColumnArchive}: the rows of
+ * the scan filtered and projected by the compiled query, with its offset and
+ * limit applied. Like the {@link DataEnumerator} of a result set, the
+ * connection it is given is closed once the enumeration is over.
+ */
+public class ArchiveEnumerator extends DataEnumerator {
+
+	private final ColumnArchive.Scan scan;
+
+	private final CompiledSelect select;
+
+	private final StorageManager storageManager;
+
+	private final Connection connection;
+
+	private long toSkip;
+
+	/**
+	 * The number of rows still to return, negative if there is no limit.
+	 */
+	private long remaining;
+
+	private StreamElement next = null;
+
+	private boolean closed = false;
+
+	public ArchiveEnumerator(ColumnArchive.Scan scan, CompiledSelect select, StorageManager storageManager, Connection connection) {
+		this.scan = scan;
+		this.select = select;
+		this.storageManager = storageManager;
+		this.connection = connection;
+		toSkip = select.getOffset();
+		remaining = select.getLimit();
+	}
+
+	public boolean hasMoreElements() {
+		if (next == null && !closed)
+			advance();
+		return next != null;
+	}
+
+	public StreamElement nextElement() throws RuntimeException {
+		if (!hasMoreElements())
+			throw new IndexOutOfBoundsException("The archive scan doesn't have anymore elements or is closed.");
+		StreamElement toReturn = next;
+		next = null;
+		return toReturn;
+	}
+
+	private void advance() {
+		while (remaining != 0 && scan.hasNext()) {
+			StreamElement se = select.apply(scan.next());
+			if (se == null)
+				continue;
+			if (toSkip > 0) {
+				toSkip--;
+				continue;
+			}
+			if (remaining > 0)
+				remaining--;
+			next = se;
+			return;
+		}
+		close();
+	}
+
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		next = null;
+		scan.close();
+		if (connection != null)
+			storageManager.close(connection);
+	}
+}
@@ -0,0 +1,206 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/ArchivePartition.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The file holding the rows of an archive for a period of time, as a
+ * sequence of blocks appended one after the other. A block starts with a
+ * header giving its number of rows, the range of its timestamps and the
+ * length of each column, so that a scan can skip the blocks out of its range
+ * and read only the columns it needs.
+ * <pre>
+ * int magic, int rows, long min timed, long max timed, int columns,
+ * int[columns] lengths, the timestamps column, the columns of the structure
+ * </pre>
+ * A block is only added to the index once it is completely written, a block
+ * truncated by a crash is removed when the partition is opened again.
+ */
+final class ArchivePartition {
+
+	private static final transient Logger logger = Logger.getLogger(ArchivePartition.class);
+
+	static final int MAGIC = 0x47534e42;
+
+	private final long start;
+
+	private final File file;
+
+	/**
+	 * The number of columns of a block, timestamps included.
+	 */
+	private final int columns;
+
+	private final List<Block> blocks = new ArrayList<Block>();
+
+	/**
+	 * The position of a block in the file.
+	 */
+	static final class Block {
+		final int rows;
+
+		final long minTimed;
+
+		final long maxTimed;
+
+		final long[] offsets;
+
+		final int[] lengths;
+
+		Block(int rows, long minTimed, long maxTimed, long[] offsets, int[] lengths) {
+			this.rows = rows;
+			this.minTimed = minTimed;
+			this.maxTimed = maxTimed;
+			this.offsets = offsets;
+			this.lengths = lengths;
+		}
+
+		boolean overlaps(long from, long to) {
+			return maxTimed >= from && minTimed <= to;
+		}
+	}
+
+	ArchivePartition(File file, long start, int columns) throws IOException {
+		this.file = file;
+		this.start = start;
+		this.columns = columns;
+		if (file.exists())
+			readIndex();
+	}
+
+	long getStart() {
+		return start;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	private static int headerLength(int columns) {
+		return 4 + 4 + 8 + 8 + 4 + 4 * columns;
+	}
+
+	private void readIndex() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			long position = 0;
+			while (position + headerLength(columns) <= length) {
+				raf.seek(position);
+				if (raf.readInt() != MAGIC)
+					break;
+				int rows = raf.readInt();
+				long minTimed = raf.readLong();
+				long maxTimed = raf.readLong();
+				if (raf.readInt() != columns)
+					break;
+				long[] offsets = new long[columns];
+				int[] lengths = new int[columns];
+				long offset = position + headerLength(columns);
+				for (int c = 0; c < columns; c++) {
+					lengths[c] = raf.readInt();
+					offsets[c] = offset;
+					offset += lengths[c];
+				}
+				if (offset > length)
+					break;
+				blocks.add(new Block(rows, minTimed, maxTimed, offsets, lengths));
+				position = offset;
+			}
+			if (position < length) {
+				logger.warn("Truncating the incomplete block at the end of " + file + " (" + (length - position) + " bytes).");
+				raf.setLength(position);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Appends a block and syncs it to the disk before making it visible to
+	 * the scans.
+	 */
+	void append(int rows, long minTimed, long maxTimed, byte[][] chunks) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(headerLength(columns));
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(MAGIC);
+		header.writeInt(rows);
+		header.writeLong(minTimed);
+		header.writeLong(maxTimed);
+		header.writeInt(columns);
+		for (byte[] chunk : chunks)
+			header.writeInt(chunk.length);
+		header.close();
+		FileOutputStream out = new FileOutputStream(file, true);
+		long position;
+		try {
+			position = out.getChannel().position();
+			out.write(bytes.toByteArray());
+			for (byte[] chunk : chunks)
+				out.write(chunk);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		long[] offsets = new long[columns];
+		int[] lengths = new int[columns];
+		long offset = position + headerLength(columns);
+		for (int c = 0; c < columns; c++) {
+			lengths[c] = chunks[c].length;
+			offsets[c] = offset;
+			offset += lengths[c];
+		}
+		synchronized (blocks) {
+			blocks.add(new Block(rows, minTimed, maxTimed, offsets, lengths));
+		}
+	}
+
+	/**
+	 * @return a copy of the index of the blocks.
+	 */
+	List<Block> getBlocks() {
+		synchronized (blocks) {
+			return new ArrayList<Block>(blocks);
+		}
+	}
+
+	static byte[] readChunk(RandomAccessFile raf, Block block, int column) throws IOException {
+		byte[] chunk = new byte[block.lengths[column]];
+		raf.seek(block.offsets[column]);
+		raf.readFully(chunk);
+		return chunk;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/BitInput.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+/**
+ * Reads the bits written by a {@link BitOutput}.
+ */
+final class BitInput {
+
+	private final byte[] buffer;
+
+	private long position = 0;
+
+	BitInput(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	boolean readBit() {
+		checkAvailable(1);
+		boolean bit = (buffer[(int) (position >>> 3)] & (0x80 >>> (position & 7))) != 0;
+		position++;
+		return bit;
+	}
+
+	/**
+	 * @return the next <code>count</code> bits as the lowest bits of a long.
+	 */
+	long readBits(int count) {
+		checkAvailable(count);
+		long value = 0;
+		while (count > 0) {
+			int index = (int) (position >>> 3);
+			int available = 8 - (int) (position & 7);
+			int n = Math.min(available, count);
+			int bits = ((buffer[index] & 0xff) >>> (available - n)) & ((1 << n) - 1);
+			value = (value << n) | bits;
+			position += n;
+			count -= n;
+		}
+		return value;
+	}
+
+	private void checkAvailable(int count) {
+		if (position + count > ((long) buffer.length << 3))
+			throw new IllegalStateException("Corrupted column, no more bits to read.");
+	}
+}
@@ -0,0 +1,86 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/BitOutput.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+/**
+ * Writes values bit by bit (most significant bit first) into a growable
+ * byte array.
+ */
+final class BitOutput {
+
+	private byte[] buffer;
+
+	/**
+	 * The number of bits written.
+	 */
+	private long position = 0;
+
+	BitOutput(int initialCapacity) {
+		buffer = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	void writeBit(boolean bit) {
+		ensureCapacity(position + 1);
+		if (bit)
+			buffer[(int) (position >>> 3)] |= (byte) (0x80 >>> (position & 7));
+		position++;
+	}
+
+	/**
+	 * Writes the <code>count</code> lowest bits of the value.
+	 */
+	void writeBits(long value, int count) {
+		ensureCapacity(position + count);
+		while (count > 0) {
+			int index = (int) (position >>> 3);
+			int free = 8 - (int) (position & 7);
+			int n = Math.min(free, count);
+			int bits = (int) ((value >>> (count - n)) & ((1 << n) - 1));
+			buffer[index] |= (byte) (bits << (free - n));
+			position += n;
+			count -= n;
+		}
+	}
+
+	private void ensureCapacity(long bits) {
+		int bytes = (int) ((bits + 7) >>> 3);
+		if (bytes <= buffer.length)
+			return;
+		byte[] newBuffer = new byte[Math.max(bytes, buffer.length * 2)];
+		System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+		buffer = newBuffer;
+	}
+
+	/**
+	 * @return the written bytes, the last one padded with zeros.
+	 */
+	byte[] toByteArray() {
+		int length = (int) ((position + 7) >>> 3);
+		byte[] toReturn = new byte[length];
+		System.arraycopy(buffer, 0, toReturn, 0, length);
+		return toReturn;
+	}
+}
@@ -0,0 +1,582 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/ColumnArchive.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamElementBatch;
+import gsn.beans.StreamSchema;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The history of a table kept in append-only column files on the local disk.
+ * The rows are partitioned by time (one file per period, see
+ * {@link ArchivePartition}) and written in compressed blocks (see
+ * {@link ColumnCodec}), the rows being buffered in memory until a block is
+ * full or the flush interval is elapsed. The buffered rows are returned by
+ * the scans but are lost if the process crashes before they are flushed.
+ * <p>
+ * A scan only opens the partitions and reads the blocks overlapping its time
+ * range, and only decodes the requested columns.
+ */
+public class ColumnArchive {
+
+	private static final transient Logger logger = Logger.getLogger(ColumnArchive.class);
+
+	public static final String SCHEMA_FILE = "schema";
+
+	public static final String PARTITION_SUFFIX = ".gca";
+
+	public static final long DEFAULT_PARTITION_SIZE = 24 * 3600 * 1000L;
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 60 * 1000L;
+
+	private static final Comparator<StreamElement> BY_TIMESTAMP = new Comparator<StreamElement>() {
+		public int compare(StreamElement a, StreamElement b) {
+			return a.getTimeStamp() < b.getTimeStamp() ? -1 : (a.getTimeStamp() == b.getTimeStamp() ? 0 : 1);
+		}
+	};
+
+	private final File directory;
+
+	private final DataField[] structure;
+
+	private final StreamSchema schema;
+
+	private final long partitionSize;
+
+	private final int blockSize;
+
+	private final long flushInterval;
+
+	private final TreeMap<Long, ArchivePartition> partitions = new TreeMap<Long, ArchivePartition>();
+
+	private final StreamElementBatch buffer;
+
+	private long bufferedSince = -1;
+
+	private boolean closed = false;
+
+	public ColumnArchive(File directory, DataField[] structure) throws IOException {
+		this(directory, structure, DEFAULT_PARTITION_SIZE, DEFAULT_BLOCK_SIZE, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * Opens the archive stored in the directory, creating it if needed.
+	 *
+	 * @throws IOException if the directory can't be used or if it holds an
+	 *             archive with another structure.
+	 */
+	public ColumnArchive(File directory, DataField[] structure, long partitionSize, int blockSize, long flushInterval) throws IOException {
+		if (partitionSize <= 0 || blockSize <= 0)
+			throw new IllegalArgumentException("The partition size and the block size must be positive.");
+		this.directory = directory;
+		this.structure = structure;
+		this.partitionSize = partitionSize;
+		this.blockSize = blockSize;
+		this.flushInterval = flushInterval;
+		schema = StreamSchema.of(structure);
+		buffer = new StreamElementBatch(schema, Math.min(blockSize, StreamElementBatch.DEFAULT_INITIAL_CAPACITY * 16));
+		directory.mkdirs();
+		if (!directory.isDirectory())
+			throw new IOException("The archive directory " + directory + " can't be created.");
+		DataField[] existing = readStructure(directory);
+		if (existing == null)
+			writeStructure();
+		else if (!sameStructure(existing, structure))
+			throw new IOException("The archive in " + directory + " has a different structure, it has to be moved away to archive the new one.");
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(PARTITION_SUFFIX))
+				continue;
+			try {
+				long start = Long.parseLong(name.substring(0, name.length() - PARTITION_SUFFIX.length()));
+				partitions.put(start, new ArchivePartition(file, start, schema.size() + 1));
+			} catch (NumberFormatException e) {
+				logger.warn("Ignoring the file " + file + " in the archive " + directory);
+			}
+		}
+	}
+
+	/**
+	 * @return the structure of the archive stored in the directory or null if
+	 *         there is none.
+	 */
+	public static DataField[] readStructure(File directory) throws IOException {
+		// one line per field: its name and its GSN type id
+		File file = new File(directory, SCHEMA_FILE);
+		if (!file.isFile())
+			return null;
+		ArrayList<DataField> fields = new ArrayList<DataField>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf('\t');
+				if (separator > 0)
+					fields.add(new DataField(line.substring(0, separator), Byte.parseByte(line.substring(separator + 1).trim())));
+			}
+		} finally {
+			reader.close();
+		}
+		return fields.toArray(new DataField[fields.size()]);
+	}
+
+	private void writeStructure() throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, SCHEMA_FILE)), "UTF-8");
+		try {
+			for (DataField field : structure)
+				writer.write(field.getName() + "\t" + field.getDataTypeID() + "\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static boolean sameStructure(DataField[] a, DataField[] b) {
+		if (a.length != b.length)
+			return false;
+		for (int i = 0; i < a.length; i++)
+			if (!a[i].getName().equalsIgnoreCase(b[i].getName()) || a[i].getDataTypeID() != b[i].getDataTypeID())
+				return false;
+		return true;
+	}
+
+	public DataField[] getStructure() {
+		return structure;
+	}
+
+	public StreamSchema getSchema() {
+		return schema;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private long partitionStart(long timestamp) {
+		long start = (timestamp / partitionSize) * partitionSize;
+		return start > timestamp ? start - partitionSize : start;
+	}
+
+	/**
+	 * Buffers the element, the buffer being flushed when it is full or older
+	 * than the flush interval.
+	 */
+	public synchronized void append(StreamElement se) throws IOException {
+		if (closed)
+			throw new IOException("The archive " + directory + " is closed.");
+		buffer.add(se);
+		long now = System.currentTimeMillis();
+		if (bufferedSince == -1)
+			bufferedSince = now;
+		if (buffer.size() >= blockSize || now - bufferedSince >= flushInterval)
+			flush();
+	}
+
+	/**
+	 * Writes the buffered rows, sorted by timestamp, as one block per
+	 * partition. The buffer is emptied even if the writing fails, to avoid
+	 * writing the same rows twice.
+	 */
+	public synchronized void flush() throws IOException {
+		final int rows = buffer.size();
+		if (rows == 0)
+			return;
+		try {
+			Integer[] order = new Integer[rows];
+			for (int i = 0; i < rows; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					long ta = buffer.getTimeStamp(a);
+					long tb = buffer.getTimeStamp(b);
+					return ta < tb ? -1 : (ta == tb ? 0 : 1);
+				}
+			});
+			int from = 0;
+			while (from < rows) {
+				long start = partitionStart(buffer.getTimeStamp(order[from]));
+				int to = from + 1;
+				while (to < rows && partitionStart(buffer.getTimeStamp(order[to])) == start)
+					to++;
+				writeBlock(getPartition(start), order, from, to);
+				from = to;
+			}
+		} finally {
+			buffer.clear();
+			bufferedSince = -1;
+		}
+	}
+
+	private ArchivePartition getPartition(long start) throws IOException {
+		ArchivePartition partition = partitions.get(start);
+		if (partition == null) {
+			partition = new ArchivePartition(new File(directory, start + PARTITION_SUFFIX), start, schema.size() + 1);
+			partitions.put(start, partition);
+		}
+		return partition;
+	}
+
+	private void writeBlock(ArchivePartition partition, Integer[] order, int from, int to) throws IOException {
+		int rows = to - from;
+		long[] timestamps = new long[rows];
+		for (int i = 0; i < rows; i++)
+			timestamps[i] = buffer.getTimeStamp(order[from + i]);
+		byte[][] chunks = new byte[schema.size() + 1][];
+		chunks[0] = ColumnCodec.encodeTimestamps(timestamps, rows);
+		for (int c = 0; c < schema.size(); c++) {
+			boolean[] nulls = new boolean[rows];
+			for (int i = 0; i < rows; i++)
+				nulls[i] = buffer.isNull(order[from + i], c);
+			switch (schema.getColumnKind(c)) {
+			case StreamSchema.LONG_COLUMN:
+				long[] longs = new long[rows];
+				for (int i = 0; i < rows; i++)
+					if (!nulls[i])
+						longs[i] = buffer.getLong(order[from + i], c);
+				chunks[c + 1] = ColumnCodec.encodeLongs(longs, nulls, rows);
+				break;
+			case StreamSchema.DOUBLE_COLUMN:
+				double[] doubles = new double[rows];
+				for (int i = 0; i < rows; i++)
+					if (!nulls[i])
+						doubles[i] = buffer.getDouble(order[from + i], c);
+				chunks[c + 1] = ColumnCodec.encodeDoubles(doubles, nulls, rows);
+				break;
+			default:
+				Serializable[] objects = new Serializable[rows];
+				for (int i = 0; i < rows; i++)
+					objects[i] = buffer.getValue(order[from + i], c);
+				chunks[c + 1] = ColumnCodec.encodeObjects(objects, schema.getFieldType(c), rows);
+			}
+		}
+		partition.append(rows, timestamps[0], timestamps[rows - 1], chunks);
+	}
+
+	/**
+	 * Flushes the buffered rows, the archive can't be appended to anymore.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		flush();
+	}
+
+	/**
+	 * Scans the rows whose timestamp is in [from, to], in the order of the
+	 * timestamps. The rows contain all the fields of the structure but only
+	 * the requested ones are read, the others are null.
+	 *
+	 * @param columns the fields to read, by index in the structure, null for
+	 *            all of them.
+	 */
+	public Scan scan(long from, long to, boolean[] columns, boolean descending) {
+		LinkedList<PartitionScan> pending = new LinkedList<PartitionScan>();
+		synchronized (this) {
+			TreeMap<Long, PartitionScan> scans = new TreeMap<Long, PartitionScan>();
+			for (ArchivePartition partition : partitions.values()) {
+				if (partition.getStart() > to || partition.getStart() + partitionSize - 1 < from)
+					continue;
+				PartitionScan scan = new PartitionScan(partition);
+				for (ArchivePartition.Block block : partition.getBlocks())
+					if (block.overlaps(from, to))
+						scan.units.add(new Unit(block));
+				scans.put(partition.getStart(), scan);
+			}
+			Map<Long, List<StreamElement>> buffered = new HashMap<Long, List<StreamElement>>();
+			for (int row = 0; row < buffer.size(); row++) {
+				long timestamp = buffer.getTimeStamp(row);
+				if (timestamp < from || timestamp > to)
+					continue;
+				long start = partitionStart(timestamp);
+				List<StreamElement> elements = buffered.get(start);
+				if (elements == null) {
+					elements = new ArrayList<StreamElement>();
+					buffered.put(start, elements);
+				}
+				elements.add(buffer.get(row));
+			}
+			for (Map.Entry<Long, List<StreamElement>> entry : buffered.entrySet()) {
+				PartitionScan scan = scans.get(entry.getKey());
+				if (scan == null) {
+					scan = new PartitionScan(null);
+					scans.put(entry.getKey(), scan);
+				}
+				scan.units.add(new Unit(entry.getValue()));
+			}
+			for (PartitionScan scan : scans.values())
+				if (!scan.units.isEmpty()) {
+					if (descending)
+						pending.addFirst(scan);
+					else
+						pending.addLast(scan);
+				}
+		}
+		return new Scan(pending, from, to, columns, descending);
+	}
+
+	/**
+	 * A block of a partition or buffered rows.
+	 */
+	private static final class Unit {
+		final ArchivePartition.Block block;
+
+		final List<StreamElement> elements;
+
+		final long minTimed;
+
+		final long maxTimed;
+
+		Unit(ArchivePartition.Block block) {
+			this.block = block;
+			elements = null;
+			minTimed = block.minTimed;
+			maxTimed = block.maxTimed;
+		}
+
+		Unit(List<StreamElement> elements) {
+			block = null;
+			this.elements = elements;
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			for (StreamElement se : elements) {
+				min = Math.min(min, se.getTimeStamp());
+				max = Math.max(max, se.getTimeStamp());
+			}
+			minTimed = min;
+			maxTimed = max;
+		}
+	}
+
+	private static final class PartitionScan {
+		final ArchivePartition partition;
+
+		final List<Unit> units = new ArrayList<Unit>();
+
+		PartitionScan(ArchivePartition partition) {
+			this.partition = partition;
+		}
+
+		/**
+		 * Groups the units whose time ranges overlap, the rows of a group
+		 * have to be sorted together.
+		 */
+		LinkedList<List<Unit>> groups(boolean descending) {
+			Collections.sort(units, new Comparator<Unit>() {
+				public int compare(Unit a, Unit b) {
+					return a.minTimed < b.minTimed ? -1 : (a.minTimed == b.minTimed ? 0 : 1);
+				}
+			});
+			LinkedList<List<Unit>> groups = new LinkedList<List<Unit>>();
+			List<Unit> group = null;
+			long groupMax = Long.MIN_VALUE;
+			for (Unit unit : units) {
+				if (group == null || unit.minTimed > groupMax) {
+					group = new ArrayList<Unit>();
+					if (descending)
+						groups.addFirst(group);
+					else
+						groups.addLast(group);
+					groupMax = unit.maxTimed;
+				} else {
+					groupMax = Math.max(groupMax, unit.maxTimed);
+				}
+				group.add(unit);
+			}
+			return groups;
+		}
+	}
+
+	/**
+	 * An iterator over the rows of a scan, reading a group of blocks at a
+	 * time. It has to be closed if it is not read until the end.
+	 */
+	public final class Scan implements Iterator<StreamElement> {
+
+		private final LinkedList<PartitionScan> pending;
+
+		private final long from;
+
+		private final long to;
+
+		private final boolean[] columns;
+
+		private final boolean descending;
+
+		private LinkedList<List<Unit>> groups = new LinkedList<List<Unit>>();
+
+		private RandomAccessFile file;
+
+		private List<StreamElement> current = Collections.emptyList();
+
+		private int index = 0;
+
+		private Scan(LinkedList<PartitionScan> pending, long from, long to, boolean[] columns, boolean descending) {
+			this.pending = pending;
+			this.from = from;
+			this.to = to;
+			this.columns = columns;
+			this.descending = descending;
+		}
+
+		public boolean hasNext() {
+			try {
+				while (index >= current.size())
+					if (!loadNextGroup())
+						return false;
+				return true;
+			} catch (IOException e) {
+				logger.error("Reading the archive " + directory + " failed: " + e.getMessage(), e);
+				close();
+				return false;
+			}
+		}
+
+		public StreamElement next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return current.get(index++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void close() {
+			pending.clear();
+			groups.clear();
+			current = Collections.emptyList();
+			index = 0;
+			closeFile();
+		}
+
+		private void closeFile() {
+			if (file == null)
+				return;
+			try {
+				file.close();
+			} catch (IOException e) {
+				logger.debug(e.getMessage(), e);
+			}
+			file = null;
+		}
+
+		private boolean loadNextGroup() throws IOException {
+			while (groups.isEmpty()) {
+				closeFile();
+				if (pending.isEmpty())
+					return false;
+				PartitionScan scan = pending.removeFirst();
+				groups = scan.groups(descending);
+				if (scan.partition != null)
+					file = new RandomAccessFile(scan.partition.getFile(), "r");
+			}
+			List<StreamElement> rows = new ArrayList<StreamElement>();
+			for (Unit unit : groups.removeFirst()) {
+				if (unit.block != null)
+					decode(unit.block, rows);
+				else
+					rows.addAll(unit.elements);
+			}
+			Collections.sort(rows, BY_TIMESTAMP);
+			if (descending)
+				Collections.reverse(rows);
+			current = rows;
+			index = 0;
+			return true;
+		}
+
+		private void decode(ArchivePartition.Block block, List<StreamElement> rows) throws IOException {
+			int count = block.rows;
+			long[] timestamps = ColumnCodec.decodeTimestamps(ArchivePartition.readChunk(file, block, 0), count);
+			int size = schema.size();
+			long[][] longs = new long[size][];
+			double[][] doubles = new double[size][];
+			Serializable[][] objects = new Serializable[size][];
+			boolean[][] nulls = new boolean[size][];
+			for (int c = 0; c < size; c++) {
+				if (columns != null && !columns[c])
+					continue;
+				byte[] chunk = ArchivePartition.readChunk(file, block, c + 1);
+				switch (schema.getColumnKind(c)) {
+				case StreamSchema.LONG_COLUMN:
+					longs[c] = new long[count];
+					nulls[c] = new boolean[count];
+					ColumnCodec.decodeLongs(chunk, count, longs[c], nulls[c]);
+					break;
+				case StreamSchema.DOUBLE_COLUMN:
+					doubles[c] = new double[count];
+					nulls[c] = new boolean[count];
+					ColumnCodec.decodeDoubles(chunk, count, doubles[c], nulls[c]);
+					break;
+				default:
+					objects[c] = ColumnCodec.decodeObjects(chunk, schema.getFieldType(c), count);
+				}
+			}
+			for (int row = 0; row < count; row++) {
+				if (timestamps[row] < from || timestamps[row] > to)
+					continue;
+				Serializable[] values = new Serializable[size];
+				for (int c = 0; c < size; c++) {
+					if (longs[c] != null)
+						values[c] = nulls[c][row] ? null : schema.boxLong(c, longs[c][row]);
+					else if (doubles[c] != null)
+						values[c] = nulls[c][row] ? null : doubles[c][row];
+					else if (objects[c] != null)
+						values[c] = objects[c][row];
+				}
+				rows.add(new StreamElement(schema, values, timestamps[row]));
+			}
+		}
+	}
+}
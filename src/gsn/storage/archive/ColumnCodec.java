@@ -0,0 +1,339 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/ColumnCodec.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+import gsn.beans.DataTypes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The encodings of the columns of an archive block:
+ * <ul>
+ * <li>the timestamps and the integer columns are stored as the differences
+ * between consecutive deltas (delta-of-delta), which are zero for regular
+ * sampling and take a single bit;</li>
+ * <li>the doubles are XORed with the previous value and only the meaningful
+ * bits of the result are written, slowly changing values taking a few bits;</li>
+ * <li>the other columns (strings, binaries) are length prefixed and
+ * deflated.</li>
+ * </ul>
+ * The numeric columns start with a null bitmap, reduced to a single bit if
+ * there is no null value, and only the non null values are encoded.
+ */
+final class ColumnCodec {
+
+	private ColumnCodec() {
+	}
+
+	static byte[] encodeTimestamps(long[] timestamps, int rows) {
+		BitOutput out = new BitOutput(rows / 4 + 8);
+		writeDeltaOfDeltas(out, timestamps, rows);
+		return out.toByteArray();
+	}
+
+	static long[] decodeTimestamps(byte[] chunk, int rows) {
+		long[] timestamps = new long[rows];
+		readDeltaOfDeltas(new BitInput(chunk), timestamps, rows);
+		return timestamps;
+	}
+
+	static byte[] encodeLongs(long[] values, boolean[] nulls, int rows) {
+		BitOutput out = new BitOutput(rows / 4 + 8);
+		int count = writeNulls(out, nulls, rows);
+		writeDeltaOfDeltas(out, compact(values, nulls, rows, count), count);
+		return out.toByteArray();
+	}
+
+	static void decodeLongs(byte[] chunk, int rows, long[] values, boolean[] nulls) {
+		BitInput in = new BitInput(chunk);
+		int count = readNulls(in, nulls, rows);
+		long[] compacted = new long[count];
+		readDeltaOfDeltas(in, compacted, count);
+		for (int row = 0, i = 0; row < rows; row++)
+			if (!nulls[row])
+				values[row] = compacted[i++];
+	}
+
+	static byte[] encodeDoubles(double[] values, boolean[] nulls, int rows) {
+		BitOutput out = new BitOutput(rows + 8);
+		writeNulls(out, nulls, rows);
+		long previous = 0;
+		int previousLeading = -1;
+		int previousTrailing = 0;
+		boolean first = true;
+		for (int row = 0; row < rows; row++) {
+			if (nulls[row])
+				continue;
+			long bits = Double.doubleToRawLongBits(values[row]);
+			if (first) {
+				out.writeBits(bits, 64);
+				first = false;
+			} else {
+				long xor = bits ^ previous;
+				if (xor == 0) {
+					out.writeBit(false);
+				} else {
+					out.writeBit(true);
+					int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+					int trailing = Long.numberOfTrailingZeros(xor);
+					if (previousLeading != -1 && leading >= previousLeading && trailing >= previousTrailing) {
+						// the meaningful bits fit in the previous window
+						out.writeBit(false);
+						out.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+					} else {
+						int meaningful = 64 - leading - trailing;
+						out.writeBit(true);
+						out.writeBits(leading, 5);
+						out.writeBits(meaningful - 1, 6);
+						out.writeBits(xor >>> trailing, meaningful);
+						previousLeading = leading;
+						previousTrailing = trailing;
+					}
+				}
+			}
+			previous = bits;
+		}
+		return out.toByteArray();
+	}
+
+	static void decodeDoubles(byte[] chunk, int rows, double[] values, boolean[] nulls) {
+		BitInput in = new BitInput(chunk);
+		readNulls(in, nulls, rows);
+		long previous = 0;
+		int leading = 0;
+		int trailing = 0;
+		boolean first = true;
+		for (int row = 0; row < rows; row++) {
+			if (nulls[row])
+				continue;
+			long bits;
+			if (first) {
+				bits = in.readBits(64);
+				first = false;
+			} else if (!in.readBit()) {
+				bits = previous;
+			} else {
+				if (in.readBit()) {
+					leading = (int) in.readBits(5);
+					int meaningful = (int) in.readBits(6) + 1;
+					trailing = 64 - leading - meaningful;
+				}
+				bits = previous ^ (in.readBits(64 - leading - trailing) << trailing);
+			}
+			values[row] = Double.longBitsToDouble(bits);
+			previous = bits;
+		}
+	}
+
+	static byte[] encodeObjects(Serializable[] values, byte type, int rows) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+		for (int row = 0; row < rows; row++) {
+			if (values[row] == null) {
+				out.writeInt(-1);
+				continue;
+			}
+			byte[] value;
+			switch (type) {
+			case DataTypes.VARCHAR:
+			case DataTypes.CHAR:
+				value = values[row].toString().getBytes("UTF-8");
+				break;
+			case DataTypes.BINARY:
+				value = (byte[]) values[row];
+				break;
+			default:
+				ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+				ObjectOutputStream objectOut = new ObjectOutputStream(serialized);
+				objectOut.writeObject(values[row]);
+				objectOut.close();
+				value = serialized.toByteArray();
+			}
+			out.writeInt(value.length);
+			out.write(value);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	static Serializable[] decodeObjects(byte[] chunk, byte type, int rows) throws IOException {
+		Serializable[] values = new Serializable[rows];
+		DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(chunk)));
+		try {
+			for (int row = 0; row < rows; row++) {
+				int length = in.readInt();
+				if (length == -1)
+					continue;
+				byte[] value = new byte[length];
+				in.readFully(value);
+				switch (type) {
+				case DataTypes.VARCHAR:
+				case DataTypes.CHAR:
+					values[row] = new String(value, "UTF-8");
+					break;
+				case DataTypes.BINARY:
+					values[row] = value;
+					break;
+				default:
+					ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(value));
+					try {
+						values[row] = (Serializable) objectIn.readObject();
+					} catch (ClassNotFoundException e) {
+						throw new IOException(e.getMessage());
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return values;
+	}
+
+	/**
+	 * Writes a bit telling if there are null values followed, if so, by one
+	 * bit per row.
+	 *
+	 * @return the number of non null values.
+	 */
+	private static int writeNulls(BitOutput out, boolean[] nulls, int rows) {
+		int count = 0;
+		for (int row = 0; row < rows; row++)
+			if (!nulls[row])
+				count++;
+		out.writeBit(count != rows);
+		if (count != rows)
+			for (int row = 0; row < rows; row++)
+				out.writeBit(nulls[row]);
+		return count;
+	}
+
+	/**
+	 * @return the number of non null values.
+	 */
+	private static int readNulls(BitInput in, boolean[] nulls, int rows) {
+		if (!in.readBit()) {
+			for (int row = 0; row < rows; row++)
+				nulls[row] = false;
+			return rows;
+		}
+		int count = 0;
+		for (int row = 0; row < rows; row++) {
+			nulls[row] = in.readBit();
+			if (!nulls[row])
+				count++;
+		}
+		return count;
+	}
+
+	private static long[] compact(long[] values, boolean[] nulls, int rows, int count) {
+		if (count == rows)
+			return values;
+		long[] toReturn = new long[count];
+		for (int row = 0, i = 0; row < rows; row++)
+			if (!nulls[row])
+				toReturn[i++] = values[row];
+		return toReturn;
+	}
+
+	/**
+	 * The delta-of-deltas are zigzag encoded and written in the smallest of
+	 * the buckets 0, 7, 9, 12, 32 or 64 bits, prefixed by the number of ones
+	 * selecting the bucket.
+	 */
+	private static void writeDeltaOfDeltas(BitOutput out, long[] values, int count) {
+		if (count == 0)
+			return;
+		out.writeBits(values[0], 64);
+		long previous = values[0];
+		long previousDelta = 0;
+		for (int i = 1; i < count; i++) {
+			long delta = values[i] - previous;
+			long deltaOfDelta = delta - previousDelta;
+			long zigzag = (deltaOfDelta << 1) ^ (deltaOfDelta >> 63);
+			if (zigzag == 0) {
+				out.writeBit(false);
+			} else if (zigzag >>> 7 == 0) {
+				out.writeBits(0x2, 2);
+				out.writeBits(zigzag, 7);
+			} else if (zigzag >>> 9 == 0) {
+				out.writeBits(0x6, 3);
+				out.writeBits(zigzag, 9);
+			} else if (zigzag >>> 12 == 0) {
+				out.writeBits(0xe, 4);
+				out.writeBits(zigzag, 12);
+			} else if (zigzag >>> 32 == 0) {
+				out.writeBits(0x1e, 5);
+				out.writeBits(zigzag, 32);
+			} else {
+				out.writeBits(0x1f, 5);
+				out.writeBits(zigzag, 64);
+			}
+			previous = values[i];
+			previousDelta = delta;
+		}
+	}
+
+	private static void readDeltaOfDeltas(BitInput in, long[] values, int count) {
+		if (count == 0)
+			return;
+		values[0] = in.readBits(64);
+		long previousDelta = 0;
+		for (int i = 1; i < count; i++) {
+			int ones = 0;
+			while (ones < 5 && in.readBit())
+				ones++;
+			long zigzag;
+			switch (ones) {
+			case 0:
+				zigzag = 0;
+				break;
+			case 1:
+				zigzag = in.readBits(7);
+				break;
+			case 2:
+				zigzag = in.readBits(9);
+				break;
+			case 3:
+				zigzag = in.readBits(12);
+				break;
+			default:
+				zigzag = ones == 4 ? in.readBits(32) : in.readBits(64);
+			}
+			long deltaOfDelta = (zigzag >>> 1) ^ -(zigzag & 1);
+			previousDelta += deltaOfDelta;
+			values[i] = values[i - 1] + previousDelta;
+		}
+	}
+}
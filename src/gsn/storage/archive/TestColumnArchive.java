@@ -0,0 +1,304 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/archive/TestColumnArchive.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gsn.ContainerImpl;
+import gsn.Main;
+import gsn.Mappings;
+import gsn.VirtualSensor;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.InputStream;
+import gsn.beans.StorageConfig;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamElementBatch;
+import gsn.beans.StreamSchema;
+import gsn.beans.VSensorConfig;
+import gsn.storage.DataEnumerator;
+import gsn.storage.Downsampler;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+import gsn.storage.db.ArchiveStorageManager;
+import gsn.vsensor.AbstractVirtualSensor;
+import gsn.vsensor.BridgeVirtualSensor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestColumnArchive {
+
+	private DataField[] fields = new DataField[] { new DataField("temperature", DataTypes.DOUBLE), new DataField("counter", DataTypes.BIGINT),
+			new DataField("node", DataTypes.SMALLINT), new DataField("label", DataTypes.VARCHAR) };
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("archive", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	@Test
+	public void testCodecs() throws IOException {
+		Random random = new Random(42);
+		int rows = 500;
+		long[] timestamps = new long[rows];
+		long[] longs = new long[rows];
+		double[] doubles = new double[rows];
+		boolean[] nulls = new boolean[rows];
+		for (int i = 0; i < rows; i++) {
+			timestamps[i] = 1000000 + i * 1000 + (i % 10 == 0 ? random.nextInt(100) : 0);
+			longs[i] = i % 50 == 0 ? random.nextLong() : i * 3;
+			doubles[i] = i % 7 == 0 ? random.nextDouble() * 1e6 : 20.5 + (i % 3) * 0.25;
+			nulls[i] = i % 11 == 0;
+		}
+		long[] decodedTimestamps = ColumnCodec.decodeTimestamps(ColumnCodec.encodeTimestamps(timestamps, rows), rows);
+		for (int i = 0; i < rows; i++)
+			assertEquals(timestamps[i], decodedTimestamps[i]);
+
+		long[] decodedLongs = new long[rows];
+		boolean[] decodedNulls = new boolean[rows];
+		ColumnCodec.decodeLongs(ColumnCodec.encodeLongs(longs, nulls, rows), rows, decodedLongs, decodedNulls);
+		double[] decodedDoubles = new double[rows];
+		boolean[] decodedDoubleNulls = new boolean[rows];
+		byte[] encodedDoubles = ColumnCodec.encodeDoubles(doubles, nulls, rows);
+		ColumnCodec.decodeDoubles(encodedDoubles, rows, decodedDoubles, decodedDoubleNulls);
+		for (int i = 0; i < rows; i++) {
+			assertEquals(nulls[i], decodedNulls[i]);
+			assertEquals(nulls[i], decodedDoubleNulls[i]);
+			if (!nulls[i]) {
+				assertEquals(longs[i], decodedLongs[i]);
+				assertEquals(doubles[i], decodedDoubles[i], 0);
+			}
+		}
+		assertTrue(encodedDoubles.length < rows * 8);
+
+		Serializable[] strings = new Serializable[] { "a", null, "", "\u00e9t\u00e9" };
+		Serializable[] decodedStrings = ColumnCodec.decodeObjects(ColumnCodec.encodeObjects(strings, DataTypes.VARCHAR, 4), DataTypes.VARCHAR, 4);
+		for (int i = 0; i < strings.length; i++)
+			assertEquals(strings[i], decodedStrings[i]);
+	}
+
+	private StreamElement element(long timestamp) {
+		return new StreamElement(fields, new Serializable[] { timestamp % 3 == 0 ? null : timestamp / 10.0, timestamp, (short) (timestamp / 10 % 5),
+				"t" + timestamp }, timestamp);
+	}
+
+	private List<Long> timestamps(ColumnArchive.Scan scan) {
+		List<Long> toReturn = new ArrayList<Long>();
+		while (scan.hasNext())
+			toReturn.add(scan.next().getTimeStamp());
+		return toReturn;
+	}
+
+	@Test
+	public void testScans() throws IOException {
+		ColumnArchive archive = new ColumnArchive(directory, fields, 1000, 64, 60000);
+		// 5 partitions, with some elements arriving late
+		for (long t = 0; t < 5000; t += 10)
+			archive.append(element(t % 1000 == 500 ? t - 495 : t));
+		List<Long> all = timestamps(archive.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, false));
+		assertEquals(500, all.size());
+		for (int i = 1; i < all.size(); i++)
+			assertTrue(all.get(i - 1) <= all.get(i));
+
+		List<Long> range = timestamps(archive.scan(1995, 3005, null, true));
+		assertEquals(Long.valueOf(3005), range.get(0));
+		assertEquals(Long.valueOf(2000), range.get(range.size() - 1));
+		assertEquals(102, range.size());
+
+		// only the requested columns are read
+		ColumnArchive.Scan scan = archive.scan(2000, 2000, new boolean[] { false, true, false, false }, false);
+		StreamElement se = scan.next();
+		assertFalse(scan.hasNext());
+		assertNull(se.getData("temperature"));
+		assertEquals(2000L, se.getData("counter"));
+		assertNull(se.getData("label"));
+
+		archive.close();
+		archive = new ColumnArchive(directory, fields, 1000, 64, 60000);
+		assertEquals(all, timestamps(archive.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, false)));
+		se = archive.scan(4010, 4010, null, false).next();
+		assertEquals(401.0, se.getData("temperature"));
+		assertEquals((short) 1, se.getData("node"));
+		assertEquals("t4010", se.getData("label"));
+		assertNull(archive.scan(4020, 4020, null, false).next().getData("temperature"));
+		archive.close();
+	}
+
+	@Test
+	public void testStorageManager() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance(ArchiveStorageManager.DRIVER, "", "", ArchiveStorageManager.URL_PREFIX + directory
+				+ ";partition=1;block=100;recent=50", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("archived", fields, true);
+		for (long t = 0; t < 1000; t++)
+			sm.executeInsert("archived", fields, element(t * 10));
+
+		DataEnumerator result = sm.executeQuery(new StringBuilder("select timed, node from archived where timed >= 1600 and node = 1 order by timed desc limit 0,3"), false);
+		assertTrue(result instanceof ArchiveEnumerator);
+		long[] expected = new long[] { 9960, 9910, 9860 };
+		for (long timestamp : expected) {
+			se(result.nextElement(), timestamp);
+		}
+		assertFalse(result.hasMoreElements());
+
+		// the aggregates are computed by the database, which only has the recent rows
+		try {
+			sm.executeQuery(new StringBuilder("select count(*) from archived"), false);
+			assertTrue(false);
+		} catch (SQLException e) {
+		}
+		result = sm.executeQuery(new StringBuilder("select count(*) from archived where timed >= 9900"), false);
+		assertFalse(result instanceof ArchiveEnumerator);
+		assertEquals(10L, ((Number) result.nextElement().getData()[0]).longValue());
+		result.close();
+		result = sm.executeQuery(new StringBuilder("select * from archived where timed = (select max(timed) from archived)"), false);
+		assertEquals(9990L, result.nextElement().getTimeStamp());
+		result.close();
+		sm.executeDropTable("archived");
+	}
+
+	@Test
+	public void testDownsampled() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance(ArchiveStorageManager.DRIVER, "", "", ArchiveStorageManager.URL_PREFIX + directory
+				+ ";partition=1;recent=50", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("downsampled", fields, true);
+		for (long t = 0; t < 1000; t++)
+			sm.executeInsert("downsampled", fields, element(t * 10));
+		// the range is older than the recent rows kept by the database
+		Downsampler.Series series = Downsampler.query(sm, "downsampled", "temperature", 1000, 2990, 20, Downsampler.Mode.lttb);
+		assertEquals(20, series.size());
+		assertEquals(1000L, series.getTimestamp(0));
+		assertEquals(2990L, series.getTimestamp(19));
+		assertEquals(299, series.getValue(19), 0);
+		sm.executeDropTable("downsampled");
+	}
+
+	@Test
+	public void testArchivedOnCommit() throws Exception {
+		StorageManager sm = StorageManagerFactory.getInstance(ArchiveStorageManager.DRIVER, "", "", ArchiveStorageManager.URL_PREFIX + directory
+				+ ";partition=1;recent=0", Main.DEFAULT_MAX_DB_CONNECTIONS);
+		sm.executeCreateTable("transactions", fields, false);
+		StreamElementBatch batch = new StreamElementBatch(StreamSchema.of(fields));
+		for (long t = 0; t < 10; t++)
+			batch.add(element(t * 10));
+		Connection connection = sm.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			sm.executeInsert("transactions", fields, batch, connection);
+			sm.rollback(connection);
+			// written again, as the insert writers retry a batch
+			sm.executeInsert("transactions", fields, batch, connection);
+			sm.commit(connection);
+			connection.setAutoCommit(true);
+		} finally {
+			sm.close(connection);
+		}
+		DataEnumerator result = sm.executeQuery(new StringBuilder("select timed from transactions where timed >= 0 order by timed asc"), false);
+		assertTrue(result instanceof ArchiveEnumerator);
+		int count = 0;
+		while (result.hasMoreElements()) {
+			result.nextElement();
+			count++;
+		}
+		result.close();
+		assertEquals(10, count);
+		sm.executeDropTable("transactions");
+	}
+
+	@Test
+	public void testPublishedData() throws Exception {
+		VSensorConfig config = new VSensorConfig();
+		config.setName("published");
+		config.setFileName(new File(directory, "published.xml").getPath());
+		config.setMainClass(BridgeVirtualSensor.class.getName());
+		config.setOutputStructure(fields);
+		config.setInputStreams(new InputStream[0]);
+		StorageConfig storage = new StorageConfig();
+		storage.setJdbcDriver(ArchiveStorageManager.DRIVER);
+		storage.setJdbcURL(ArchiveStorageManager.URL_PREFIX + directory + ";partition=1;recent=10");
+		storage.setJdbcUsername("");
+		storage.setJdbcPassword("");
+		config.setStorage(storage);
+		VirtualSensor pool = new VirtualSensor(config);
+		assertTrue(Mappings.addVSensorInstance(pool));
+		try {
+			StorageManager sm = Main.getStorage(config.getName());
+			assertTrue(sm instanceof ArchiveStorageManager);
+			sm.executeCreateTable(config.getName(), fields, true);
+			AbstractVirtualSensor sensor = pool.borrowVS();
+			for (long t = 0; t < 100; t++)
+				ContainerImpl.getInstance().publishData(sensor, element(t * 10));
+			ContainerImpl.getInstance().vsUnLoading(config);
+
+			// the rows published are read back from the archive, not only the recent ones
+			DataEnumerator result = sm.executeQuery(new StringBuilder("select timed, node from published where timed >= 0 order by timed asc"), false);
+			assertTrue(result instanceof ArchiveEnumerator);
+			long count = 0;
+			while (result.hasMoreElements())
+				assertEquals(count++ * 10, result.nextElement().getTimeStamp());
+			result.close();
+			assertEquals(100L, count);
+			sm.executeDropTable(config.getName());
+		} finally {
+			Mappings.removeFilename(config.getFileName());
+		}
+	}
+
+	private void se(StreamElement se, long timestamp) {
+		assertEquals(timestamp, se.getTimeStamp());
+		assertEquals(1, se.getFieldNames().length);
+		assertEquals((short) 1, se.getData("node"));
+	}
+}
@@ -0,0 +1,466 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/storage/db/ArchiveStorageManager.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.storage.db;
+
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamElementBatch;
+import gsn.http.datarequest.AbstractQuery;
+import gsn.storage.CompiledSelect;
+import gsn.storage.DataEnumerator;
+import gsn.storage.archive.ArchiveEnumerator;
+import gsn.storage.archive.ColumnArchive;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A storage keeping the whole history of the tables in a {@link ColumnArchive}
+ * per table, in time partitioned and compressed column files on the local
+ * disk. It is selected for a virtual sensor with its storage element:
+ * <pre>
+ * &lt;storage driver="gsn.storage.archive" url="archive:data/archive;partition=24;recent=10000" user="" password="" /&gt;
+ * </pre>
+ * The url gives the directory of the archives and optionally the duration of
+ * a partition in hours (<code>partition</code>, one day by default), the
+ * number of rows of a block (<code>block</code>), the seconds after which
+ * the buffered rows are flushed (<code>flush</code>) and the number of recent
+ * rows kept in an in-memory H2 database (<code>recent</code>, 0 to keep all
+ * of them).
+ * <p>
+ * The rows are inserted in both, in the archive once their transaction is
+ * committed (see {@link #commit(Connection)}), so that a batch rolled back
+ * and written again is only archived once. The queries reading a single
+ * table that {@link CompiledSelect#compileScan(String, CharSequence, DataField[])}
+ * supports (the range queries of the data downloads and of the REST API) are
+ * answered from the archive, reading only the partitions and the columns they
+ * need. The other queries (aggregates, joins, ...) are executed by the H2
+ * database, which only holds the recent rows (reloaded from the archive when
+ * the table is created at startup): once older rows were removed from it,
+ * such a query is rejected unless it is restricted to the recent rows (see
+ * {@link #isRestrictedToRecentRows(String, String, Connection)}).
+ */
+public class ArchiveStorageManager extends H2StorageManager {
+
+    private static final transient Logger logger = Logger.getLogger(ArchiveStorageManager.class);
+
+    public static final String DRIVER = "gsn.storage.archive";
+
+    public static final String URL_PREFIX = "archive:";
+
+    public static final int DEFAULT_RECENT_SIZE = 10000;
+
+    private static final Pattern FROM_TABLE = Pattern.compile("\\sfrom\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern TIMED_LOWER_BOUND = Pattern.compile("\\btimed\\s*>=?\\s*(-?\\d+)", Pattern.CASE_INSENSITIVE);
+
+    private File directory;
+
+    private long partitionSize = ColumnArchive.DEFAULT_PARTITION_SIZE;
+
+    private int blockSize = ColumnArchive.DEFAULT_BLOCK_SIZE;
+
+    private long flushInterval = ColumnArchive.DEFAULT_FLUSH_INTERVAL;
+
+    private int recentSize = DEFAULT_RECENT_SIZE;
+
+    private final ConcurrentHashMap<String, ColumnArchive> archives = new ConcurrentHashMap<String, ColumnArchive>();
+
+    private final ConcurrentHashMap<String, AtomicInteger> insertsSinceCleanup = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * The tables whose H2 copy doesn't hold all the rows of the archive.
+     */
+    private final Set<String> trimmed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The rows inserted by the transactions in progress, archived when they
+     * are committed.
+     */
+    private final Map<Connection, List<Uncommitted>> uncommitted = new IdentityHashMap<Connection, List<Uncommitted>>();
+
+    private static class Uncommitted {
+        final CharSequence tableName;
+
+        final ColumnArchive archive;
+
+        final List<StreamElement> rows;
+
+        Uncommitted(CharSequence tableName, ColumnArchive archive, List<StreamElement> rows) {
+            this.tableName = tableName;
+            this.archive = archive;
+            this.rows = rows;
+        }
+    }
+
+    @Override
+    public void init(String databaseDriver, String username, String password, String databaseURL, int maxDBConnections) {
+        String location = databaseURL.startsWith(URL_PREFIX) ? databaseURL.substring(URL_PREFIX.length()) : databaseURL;
+        String[] parts = location.split(";");
+        directory = new File(parts[0].trim());
+        for (int i = 1; i < parts.length; i++) {
+            String[] option = parts[i].split("=", 2);
+            if (option.length != 2)
+                continue;
+            String key = option[0].trim().toLowerCase();
+            try {
+                long value = Long.parseLong(option[1].trim());
+                if (key.equals("partition") && value > 0)
+                    partitionSize = value * 3600 * 1000;
+                else if (key.equals("block") && value > 0)
+                    blockSize = (int) value;
+                else if (key.equals("flush") && value >= 0)
+                    flushInterval = value * 1000;
+                else if (key.equals("recent") && value >= 0)
+                    recentSize = (int) value;
+                else
+                    logger.warn("Ignoring the archive option " + parts[i] + " in " + databaseURL);
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring the archive option " + parts[i] + " in " + databaseURL);
+            }
+        }
+        String database = directory.getAbsolutePath().replaceAll("[^A-Za-z0-9_]", "_");
+        super.init("org.h2.Driver", "sa", "", "jdbc:h2:mem:archive" + database + ";DB_CLOSE_DELAY=-1", maxDBConnections);
+        logger.info("Archiving the tables in " + directory.getAbsolutePath());
+    }
+
+    private static String key(CharSequence tableName) {
+        return tableName.toString().toLowerCase();
+    }
+
+    /**
+     * @return the archive of the table, opened with the given structure if it
+     *         isn't yet.
+     */
+    private ColumnArchive getArchive(CharSequence tableName, DataField[] structure) throws SQLException {
+        String key = key(tableName);
+        ColumnArchive archive = archives.get(key);
+        if (archive != null)
+            return archive;
+        synchronized (archives) {
+            archive = archives.get(key);
+            if (archive == null) {
+                try {
+                    archive = new ColumnArchive(new File(directory, key), structure, partitionSize, blockSize, flushInterval);
+                } catch (IOException e) {
+                    throw new SQLException("Opening the archive of " + tableName + " failed: " + e.getMessage());
+                }
+                archives.put(key, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * @return the archive of the table or null if the table isn't archived.
+     */
+    private ColumnArchive findArchive(String tableName) {
+        ColumnArchive archive = archives.get(key(tableName));
+        if (archive != null)
+            return archive;
+        try {
+            DataField[] structure = ColumnArchive.readStructure(new File(directory, key(tableName)));
+            return structure == null ? null : getArchive(tableName, structure);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the table in the H2 database and fills it with the most recent
+     * rows of the archive.
+     */
+    @Override
+    public void executeCreateTable(CharSequence tableName, DataField[] structure, boolean unique, Connection connection) throws SQLException {
+        super.executeCreateTable(tableName, structure, unique, connection);
+        ColumnArchive archive = getArchive(tableName, structure);
+        ColumnArchive.Scan scan = archive.scan(Long.MIN_VALUE, Long.MAX_VALUE, null, true);
+        LinkedList<StreamElement> recent = new LinkedList<StreamElement>();
+        try {
+            while (scan.hasNext() && (recentSize == 0 || recent.size() < recentSize))
+                recent.addFirst(scan.next());
+            if (scan.hasNext())
+                trimmed.add(key(tableName));
+            else
+                trimmed.remove(key(tableName));
+        } finally {
+            scan.close();
+        }
+        for (StreamElement se : recent)
+            super.executeInsert(tableName, structure, se, connection);
+        if (!recent.isEmpty())
+            logger.info("Reloaded " + recent.size() + " rows of " + tableName + " from its archive.");
+    }
+
+    /**
+     * The archive is closed but its files are kept.
+     */
+    @Override
+    public void executeDropTable(CharSequence tableName, Connection connection) {
+        super.executeDropTable(tableName, connection);
+        ColumnArchive archive = archives.remove(key(tableName));
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void executeInsert(CharSequence tableName, DataField[] fields, StreamElement streamElement, Connection connection) throws SQLException {
+        super.executeInsert(tableName, fields, streamElement, connection);
+        ArrayList<StreamElement> rows = new ArrayList<StreamElement>(1);
+        rows.add(streamElement);
+        archive(tableName, fields, rows, connection);
+        removeOldRows(tableName, 1, connection);
+    }
+
+    @Override
+    public void executeInsert(CharSequence tableName, DataField[] fields, StreamElementBatch batch, Connection connection) throws SQLException {
+        super.executeInsert(tableName, fields, batch, connection);
+        ArrayList<StreamElement> rows = new ArrayList<StreamElement>(batch.size());
+        for (int row = 0; row < batch.size(); row++)
+            rows.add(batch.get(row));
+        archive(tableName, fields, rows, connection);
+        removeOldRows(tableName, batch.size(), connection);
+    }
+
+    /**
+     * Appends the rows to the archive of the table, now if the connection
+     * commits every statement, else once its transaction is committed.
+     */
+    private void archive(CharSequence tableName, DataField[] fields, List<StreamElement> rows, Connection connection) throws SQLException {
+        Uncommitted inserted = new Uncommitted(tableName, getArchive(tableName, fields), rows);
+        if (connection.getAutoCommit()) {
+            try {
+                append(inserted);
+            } catch (IOException e) {
+                throw new SQLException("Archiving " + rows.size() + " stream element(s) of " + tableName + " failed: " + e.getMessage());
+            }
+            return;
+        }
+        synchronized (uncommitted) {
+            List<Uncommitted> pending = uncommitted.get(connection);
+            if (pending == null)
+                uncommitted.put(connection, pending = new ArrayList<Uncommitted>());
+            pending.add(inserted);
+        }
+    }
+
+    private void append(Uncommitted inserted) throws IOException {
+        for (StreamElement se : inserted.rows)
+            inserted.archive.append(se);
+    }
+
+    private List<Uncommitted> takeUncommitted(Connection connection) {
+        synchronized (uncommitted) {
+            return uncommitted.remove(connection);
+        }
+    }
+
+    /**
+     * Archives the rows inserted in the transaction once it is committed. The
+     * rows being in the database at this point, a failure of the archive is
+     * only logged.
+     */
+    @Override
+    public void commit(Connection connection) throws SQLException {
+        super.commit(connection);
+        List<Uncommitted> pending = takeUncommitted(connection);
+        if (pending == null)
+            return;
+        for (Uncommitted inserted : pending) {
+            try {
+                append(inserted);
+            } catch (IOException e) {
+                logger.error("Archiving " + inserted.rows.size() + " committed stream element(s) of " + inserted.tableName + " failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void rollback(Connection connection) throws SQLException {
+        takeUncommitted(connection);
+        super.rollback(connection);
+    }
+
+    /**
+     * The rows of a transaction which was neither committed nor rolled back
+     * are not archived.
+     */
+    @Override
+    public void close(Connection connection) {
+        if (connection != null)
+            takeUncommitted(connection);
+        super.close(connection);
+    }
+
+    /**
+     * Keeps about <code>recent</code> rows in the H2 table, the older ones
+     * are deleted every tenth of it.
+     */
+    private void removeOldRows(CharSequence tableName, int inserted, Connection connection) {
+        if (recentSize == 0)
+            return;
+        String key = key(tableName);
+        AtomicInteger counter = insertsSinceCleanup.get(key);
+        if (counter == null) {
+            insertsSinceCleanup.putIfAbsent(key, new AtomicInteger());
+            counter = insertsSinceCleanup.get(key);
+        }
+        if (counter.addAndGet(inserted) < Math.max(recentSize / 10, 1))
+            return;
+        counter.set(0);
+        if (executeUpdate(getStatementRemoveUselessDataCountBased(tableName.toString(), recentSize), connection) > 0)
+            trimmed.add(key);
+    }
+
+    /**
+     * Rejects a query which has to be executed by the H2 database but would
+     * miss rows of a table which are only in its archive.
+     */
+    private void checkRecentRowsSuffice(String query, Connection connection) throws SQLException {
+        for (String table : trimmed) {
+            if (!Pattern.compile("\\b" + Pattern.quote(table) + "\\b", Pattern.CASE_INSENSITIVE).matcher(query).find())
+                continue;
+            if (!isRestrictedToRecentRows(query, table, connection))
+                throw new SQLException("The table " + table + " is archived and only its " + recentSize
+                        + " most recent rows can be queried with SQL, only the range queries on a single table are answered from the archive: " + query);
+        }
+    }
+
+    /**
+     * @return true if the query only reads the most recent row of the table
+     *         (<code>timed = (select max(timed) ...)</code>) or has a lower
+     *         bound on the timestamps which is not older than the rows of the
+     *         H2 table.
+     */
+    private boolean isRestrictedToRecentRows(String query, String table, Connection connection) throws SQLException {
+        String normalized = query.toLowerCase().replaceAll("\\s+", " ");
+        if (normalized.contains("timed = ( select max(timed)") || normalized.contains("timed = (select max(timed)"))
+            return true;
+        Matcher bound = TIMED_LOWER_BOUND.matcher(query);
+        if (!bound.find())
+            return false;
+        ResultSet rs = null;
+        try {
+            rs = super.executeQueryWithResultSet(new StringBuilder("select min(timed) from ").append(table), connection);
+            return rs.next() && Long.parseLong(bound.group(1)) >= rs.getLong(1);
+        } finally {
+            close(rs);
+        }
+    }
+
+    /**
+     * @return the enumeration of the rows read from the archive or null if
+     *         the query can't be answered by an archive.
+     */
+    private DataEnumerator executeArchiveQuery(String query, boolean binaryFieldsLinked, Connection connection) {
+        Matcher matcher = FROM_TABLE.matcher(query);
+        if (!matcher.find())
+            return null;
+        ColumnArchive archive = findArchive(matcher.group(1));
+        if (archive == null)
+            return null;
+        DataField[] structure = archive.getStructure();
+        CompiledSelect select = CompiledSelect.compileScan(query, matcher.group(1), structure);
+        if (select == null)
+            return null;
+        boolean[] columns = new boolean[structure.length];
+        for (int i = 0; i < structure.length; i++) {
+            columns[i] = select.isReferenced(i);
+            // the links to the binary fields need the primary keys of the database
+            if (columns[i] && binaryFieldsLinked && structure[i].getDataTypeID() == DataTypes.BINARY)
+                return null;
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Executing query from the archive: " + query);
+        ColumnArchive.Scan scan = archive.scan(select.getMinTimed(), select.getMaxTimed(), columns, select.isDescending());
+        return new ArchiveEnumerator(scan, select, this, connection);
+    }
+
+    @Override
+    public DataEnumerator executeQuery(StringBuilder query, boolean binaryFieldsLinked, Connection connection) throws SQLException {
+        DataEnumerator toReturn = executeArchiveQuery(query.toString(), binaryFieldsLinked, connection);
+        if (toReturn != null)
+            return toReturn;
+        checkRecentRowsSuffice(query.toString(), connection);
+        return super.executeQuery(query, binaryFieldsLinked, connection);
+    }
+
+    @Override
+    public DataEnumerator executeQuery(AbstractQuery abstractQuery, boolean binaryFieldsLinked, Connection connection) throws SQLException {
+        if (abstractQuery.getLimitCriterion() == null)
+            return executeQuery(abstractQuery.getStandardQuery(), binaryFieldsLinked, connection);
+        String query = addLimit(abstractQuery.getStandardQuery().toString(), abstractQuery.getLimitCriterion().getSize(), abstractQuery.getLimitCriterion().getOffset());
+        return executeQuery(new StringBuilder(query), binaryFieldsLinked, connection);
+    }
+
+    @Override
+    public DataEnumerator streamedExecuteQuery(String query, boolean binaryFieldsLinked, Connection connection) throws SQLException {
+        DataEnumerator toReturn = executeArchiveQuery(query, binaryFieldsLinked, connection);
+        if (toReturn != null)
+            return toReturn;
+        checkRecentRowsSuffice(query, connection);
+        return super.streamedExecuteQuery(query, binaryFieldsLinked, connection);
+    }
+
+    /**
+     * Flushes the buffered rows of the archives before closing the database.
+     */
+    @Override
+    public void shutdown() throws SQLException {
+        for (ColumnArchive archive : archives.values()) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        archives.clear();
+        super.shutdown();
+    }
+}
@@ -229,6 +229,15 @@ public class MySQLStorageManager extends StorageManager {
         return toReturn;
     }
 
+    /**
+     * The MySQL driver only streams the rows of a forward only, read only
+     * statement with this fetch size, one row at a time.
+     */
+    @Override
+    public int getStreamingFetchSize() {
+        return Integer.MIN_VALUE;
+    }
+
     @Override
     public DataEnumerator streamedExecuteQuery(String query, boolean binaryFieldsLinked, Connection conn) throws SQLException {
         PreparedStatement ps = null;
@@ -0,0 +1,191 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/TestTimingWheel.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestTimingWheel {
+
+	@Test
+	public void testSchedule() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final long start = System.currentTimeMillis();
+		final long[] ran = new long[1];
+		TimingWheel.getInstance().schedule(new Runnable() {
+			public void run() {
+				ran[0] = System.currentTimeMillis();
+				done.countDown();
+			}
+		}, 50);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(ran[0] - start >= 50);
+	}
+
+	@Test
+	public void testLongDelay() throws InterruptedException {
+		// beyond the first wheel, the task goes through a cascade
+		final CountDownLatch done = new CountDownLatch(1);
+		long delay = TimingWheel.TICK * 300;
+		long start = System.currentTimeMillis();
+		TimingWheel.getInstance().schedule(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		}, delay);
+		assertTrue(done.await(delay + 5000, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start >= delay);
+	}
+
+	@Test
+	public void testFixedRateAndCancel() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(3);
+		TimingWheel.Timeout timeout = TimingWheel.getInstance().scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+				done.countDown();
+			}
+		}, 20, 20);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		timeout.cancel();
+		assertTrue(timeout.isCancelled());
+		Thread.sleep(100);
+		int afterCancel = runs.get();
+		Thread.sleep(200);
+		assertEquals(afterCancel, runs.get());
+	}
+
+	@Test
+	public void testSlowTaskDoesNotDelayOthers() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		TimingWheel.getInstance().schedule(new Runnable() {
+			public void run() {
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+			}
+		}, 50);
+		TimingWheel.getInstance().schedule(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		}, 50);
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void testCancelledNeverRuns() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		TimingWheel.Timeout timeout = TimingWheel.getInstance().schedule(new Runnable() {
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 50);
+		timeout.cancel();
+		Thread.sleep(200);
+		assertEquals(0, runs.get());
+	}
+
+	@Test
+	public void testNeverRunsOnTheTicker() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final String[] thread = new String[1];
+		TimingWheel.getInstance().schedule(new TimingWheel.Mailbox("owner"), new Runnable() {
+			public void run() {
+				thread[0] = Thread.currentThread().getName();
+				done.countDown();
+			}
+		}, 20);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(!"TimingWheel".equals(thread[0]));
+	}
+
+	@Test
+	public void testCoalescedWhileTheOwnerIsLate() throws InterruptedException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final List<Integer> runs = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(2);
+		TimingWheel.Mailbox mailbox = new TimingWheel.Mailbox("late");
+		TimingWheel.Timeout timeout = TimingWheel.getInstance().scheduleAtFixedRate(mailbox, new TimingWheel.Task() {
+			public void run(int expiries) {
+				if (running.incrementAndGet() > 1)
+					overlaps.incrementAndGet();
+				runs.add(expiries);
+				try {
+					// the first run is late for the next expiries
+					if (runs.size() == 1)
+						Thread.sleep(TimingWheel.TICK * 20);
+				} catch (InterruptedException e) {
+				}
+				running.decrementAndGet();
+				done.countDown();
+			}
+		}, 0, TimingWheel.TICK * 2);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		timeout.cancel();
+		assertEquals(0, overlaps.get());
+		assertEquals(1, runs.get(0).intValue());
+		// the expiries reached during the late run went in a single one
+		assertTrue(runs.get(1) > 1);
+	}
+
+	@Test
+	public void testOwnerTasksRunInTurn() throws InterruptedException {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(10);
+		TimingWheel.Mailbox mailbox = new TimingWheel.Mailbox("owner");
+		for (int i = 0; i < 10; i++)
+			TimingWheel.getInstance().schedule(mailbox, new Runnable() {
+				public void run() {
+					if (running.incrementAndGet() > 1)
+						overlaps.incrementAndGet();
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+					}
+					running.decrementAndGet();
+					done.countDown();
+				}
+			}, 20);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+	}
+}
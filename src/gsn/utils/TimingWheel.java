@@ -0,0 +1,424 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/TimingWheel.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The scheduler shared by the sliding windows, the keep alive messages and
+ * the scheduled virtual sensors, so that they don't need a timer thread each.
+ * <p>
+ * The tasks are kept in a hierarchical timing wheel: the first wheel has a
+ * slot per tick of <code>timerTick</code> milliseconds (10 by default),
+ * each next wheel a slot per turn of the previous one. A single thread
+ * advances the wheels tick by tick, moving the tasks of a slot of an outer
+ * wheel to the inner wheels when its time comes, and posts each task due at a
+ * tick to the {@link Mailbox} of its owner (a wrapper, a virtual sensor). The
+ * wheel never runs a task itself: a mailbox runs the tasks of its owner one at
+ * a time on the executor of the owner, by default a pool shared by the owners
+ * that keeps <code>timerWorkers</code> threads (2 by default) and grows
+ * while owners are busy, so that a slow owner only delays itself.
+ * Scheduling and cancelling a task are constant time.
+ * <p>
+ * The periodic tasks are run at a fixed rate and never concurrently with
+ * themselves. An expiry reached while the previous one is still waiting in the
+ * mailbox is coalesced with it, the run is told how many expiries it stands
+ * for (see {@link Task}): the tasks of a late owner don't pile up, and the
+ * tasks of an owner due at the same instant cost a single hand over.
+ */
+public class TimingWheel {
+
+	private static final transient Logger logger = Logger.getLogger(TimingWheel.class);
+
+	public static final long TICK = System.getProperty("timerTick") == null ? 10 : Math.max(1, Long.parseLong(System.getProperty("timerTick")));
+
+	public static final int WORKERS = System.getProperty("timerWorkers") == null ? 2 : Math.max(1, Integer.parseInt(System.getProperty("timerWorkers")));
+
+	/**
+	 * The number of slots of each wheel.
+	 */
+	private static final int WHEEL_SIZE = 256;
+
+	private static TimingWheel singleton;
+
+	/**
+	 * A periodic task told how many expiries its run stands for, more than
+	 * one if some were coalesced while it was waiting in its mailbox.
+	 */
+	public interface Task {
+		void run(int expiries);
+	}
+
+	/**
+	 * A task scheduled on the wheel.
+	 */
+	public static final class Timeout {
+		private final Task task;
+
+		private final Mailbox mailbox;
+
+		private final long period;
+
+		/**
+		 * The tick at which the task is due.
+		 */
+		private long deadline;
+
+		private volatile boolean cancelled = false;
+
+		/**
+		 * Whether an expiry waits in the mailbox, and the number of expiries
+		 * it stands for, guarded by the mailbox.
+		 */
+		private boolean queued = false;
+
+		private int expiries = 0;
+
+		private Timeout(Task task, Mailbox mailbox, long deadline, long period) {
+			this.task = task;
+			this.mailbox = mailbox;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		/**
+		 * Cancels the next runs of the task, a run in progress is not
+		 * interrupted.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * The tasks of an owner, run one at a time in the order of their
+	 * expiries on the executor of the owner.
+	 */
+	public static final class Mailbox implements Runnable {
+		private final String name;
+
+		private final Executor executor;
+
+		private final LinkedList<Timeout> queue = new LinkedList<Timeout>();
+
+		/**
+		 * Whether the mailbox is handed to the executor or being drained.
+		 */
+		private boolean scheduled = false;
+
+		/**
+		 * A mailbox on the pool shared by the owners.
+		 */
+		public Mailbox(String name) {
+			this(name, getInstance().tasks);
+		}
+
+		public Mailbox(String name, Executor executor) {
+			this.name = name;
+			this.executor = executor;
+		}
+
+		/**
+		 * Queues an expiry of the timeout, called by the ticker, never blocks.
+		 */
+		private void post(Timeout timeout) {
+			synchronized (this) {
+				if (timeout.queued) {
+					timeout.expiries++;
+					return;
+				}
+				timeout.queued = true;
+				timeout.expiries = 1;
+				queue.add(timeout);
+				if (scheduled)
+					return;
+				scheduled = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				logger.error("The executor of " + name + " rejected its timers: " + e.getMessage(), e);
+				synchronized (this) {
+					for (Timeout queued : queue)
+						queued.queued = false;
+					queue.clear();
+					scheduled = false;
+				}
+			}
+		}
+
+		public void run() {
+			while (true) {
+				Timeout timeout;
+				int expiries;
+				synchronized (this) {
+					timeout = queue.poll();
+					if (timeout == null) {
+						scheduled = false;
+						return;
+					}
+					timeout.queued = false;
+					expiries = timeout.expiries;
+				}
+				if (timeout.cancelled)
+					continue;
+				try {
+					timeout.task.run(expiries);
+				} catch (Throwable e) {
+					logger.error(name + ": " + e.getMessage(), e);
+				}
+			}
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Adapts a task that doesn't care about the coalesced expiries.
+	 */
+	private static final class RunnableTask implements Task {
+		private final Runnable runnable;
+
+		RunnableTask(Runnable runnable) {
+			this.runnable = runnable;
+		}
+
+		public void run(int expiries) {
+			runnable.run();
+		}
+	}
+
+	/**
+	 * The slots of the wheels, wheels[level][slot], created as the delays
+	 * require them.
+	 */
+	private final List<List<Timeout>[]> wheels = new ArrayList<List<Timeout>[]>();
+
+	/**
+	 * The executor of the mailboxes created without one.
+	 */
+	private final Executor tasks;
+
+	private final Thread ticker;
+
+	private final long start;
+
+	/**
+	 * The number of ticks since the start.
+	 */
+	private long now = 0;
+
+	private int pending = 0;
+
+	public static synchronized TimingWheel getInstance() {
+		if (singleton == null)
+			singleton = new TimingWheel();
+		return singleton;
+	}
+
+	private TimingWheel() {
+		start = System.nanoTime();
+		final AtomicInteger count = new AtomicInteger();
+		tasks = new ThreadPoolExecutor(WORKERS, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TimingWheel-Worker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker = new Thread(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, "TimingWheel");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Runs the task once after the delay, in milliseconds, in a mailbox of its
+	 * own.
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		return schedule(new Mailbox(task.getClass().getName()), task, delay);
+	}
+
+	/**
+	 * Runs the task once after the delay, in milliseconds, in the mailbox of
+	 * its owner.
+	 */
+	public Timeout schedule(Mailbox mailbox, Runnable task, long delay) {
+		return add(new RunnableTask(task), mailbox, delay, 0);
+	}
+
+	/**
+	 * Runs the task every period milliseconds, the first time after the
+	 * delay, in a mailbox of its own.
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long delay, long period) {
+		return scheduleAtFixedRate(new Mailbox(task.getClass().getName()), task, delay, period);
+	}
+
+	/**
+	 * Runs the task every period milliseconds, the first time after the
+	 * delay, in the mailbox of its owner.
+	 */
+	public Timeout scheduleAtFixedRate(Mailbox mailbox, Runnable task, long delay, long period) {
+		return scheduleAtFixedRate(mailbox, new RunnableTask(task), delay, period);
+	}
+
+	/**
+	 * Runs the task every period milliseconds, the first time after the
+	 * delay, in the mailbox of its owner, telling it how many expiries each
+	 * run stands for.
+	 */
+	public Timeout scheduleAtFixedRate(Mailbox mailbox, Task task, long delay, long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("The period must be positive: " + period);
+		return add(task, mailbox, delay, period);
+	}
+
+	private synchronized Timeout add(Task task, Mailbox mailbox, long delay, long period) {
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		// the wheels are empty, they skip the ticks they were idle
+		if (pending == 0)
+			now = Math.max(now, elapsed / TICK);
+		// rounded up, a task never runs early
+		Timeout timeout = new Timeout(task, mailbox, Math.max(now + 1, (elapsed + Math.max(delay, 0) + TICK - 1) / TICK), period);
+		insert(timeout);
+		pending++;
+		notifyAll();
+		return timeout;
+	}
+
+	/**
+	 * Puts the timeout in the slot of the innermost wheel whose turn covers
+	 * its deadline.
+	 */
+	private void insert(Timeout timeout) {
+		long delay = timeout.deadline - now;
+		int level = 0;
+		long span = WHEEL_SIZE;
+		while (delay >= span) {
+			level++;
+			span *= WHEEL_SIZE;
+		}
+		List<Timeout>[] wheel = getWheel(level);
+		int slot = (int) ((timeout.deadline / (span / WHEEL_SIZE)) % WHEEL_SIZE);
+		if (wheel[slot] == null)
+			wheel[slot] = new ArrayList<Timeout>();
+		wheel[slot].add(timeout);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<Timeout>[] getWheel(int level) {
+		while (wheels.size() <= level)
+			wheels.add(new List[WHEEL_SIZE]);
+		return wheels.get(level);
+	}
+
+	private void tick() {
+		while (true) {
+			List<Timeout> due;
+			try {
+				due = advance();
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (Timeout timeout : due)
+				timeout.mailbox.post(timeout);
+		}
+	}
+
+	/**
+	 * Waits for the next tick and moves the wheels forward.
+	 *
+	 * @return the timeouts due at that tick, the periodic ones already put
+	 *         back for their next expiry.
+	 */
+	private synchronized List<Timeout> advance() throws InterruptedException {
+		while (pending == 0)
+			wait();
+		long next = now + 1;
+		long wait;
+		while ((wait = next * TICK - (System.nanoTime() - start) / 1000000) > 0 && pending > 0)
+			wait(wait);
+		now = next;
+		// the slots of the outer wheels reached at this tick go down
+		long span = WHEEL_SIZE;
+		for (int level = 1; level < wheels.size() && now % span == 0; level++, span *= WHEEL_SIZE) {
+			List<Timeout>[] wheel = wheels.get(level);
+			int slot = (int) ((now / span) % WHEEL_SIZE);
+			List<Timeout> cascaded = wheel[slot];
+			wheel[slot] = null;
+			if (cascaded != null)
+				for (Timeout timeout : cascaded)
+					insert(timeout);
+		}
+		List<Timeout>[] inner = getWheel(0);
+		int slot = (int) (now % WHEEL_SIZE);
+		List<Timeout> slotted = inner[slot];
+		inner[slot] = null;
+		List<Timeout> due = new ArrayList<Timeout>(slotted == null ? 0 : slotted.size());
+		if (slotted == null)
+			return due;
+		pending -= slotted.size();
+		for (Timeout timeout : slotted) {
+			if (timeout.cancelled)
+				continue;
+			due.add(timeout);
+			if (timeout.period > 0)
+				reschedule(timeout);
+		}
+		return due;
+	}
+
+	private void reschedule(Timeout timeout) {
+		timeout.deadline += (timeout.period + TICK - 1) / TICK;
+		// a late expiry is caught up at the next tick
+		if (timeout.deadline <= now)
+			timeout.deadline = now + 1;
+		insert(timeout);
+		pending++;
+	}
+}
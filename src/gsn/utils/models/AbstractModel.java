@@ -29,18 +29,50 @@ import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.vsensor.ModellingVirtualSensor;
 
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 
 /**
  * This class is the base class for all models that need to be linked to a virtual sensor for getting updated in real-time.
  * A reference to the VS allows for accessing the other models if needed.
+ * <p>
+ * The model is trained with {@link #update(StreamElement)} and queried with {@link #evaluate(StreamElement)}, which
+ * call {@link #pushData(StreamElement)} and {@link #query(StreamElement)} under a read-write lock, so that any number
+ * of queries run at the same time, only waiting for the element being pushed. Each pushed element increments the
+ * version of the model, and the results of the queries are cached until the next version.
  * @author jeberle
  *
  */
 public abstract class AbstractModel {
 	
+	private static final int MAX_CACHED_QUERIES = 1000;
+	
 	protected DataField[] outputfield;
 	
 	protected ModellingVirtualSensor vs;
+	
+	private final AtomicLong version = new AtomicLong();
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * The results of the queries to one version of the model.
+	 */
+	private static class CachedResults {
+		final long version;
+		
+		final ConcurrentHashMap<String, StreamElement[]> results = new ConcurrentHashMap<String, StreamElement[]>();
+		
+		CachedResults(long version) {
+			this.version = version;
+		}
+	}
+	
+	private volatile CachedResults cache = new CachedResults(0);
 
 	public DataField[] getOutputFields() {
 		return outputfield;
@@ -51,10 +83,16 @@ public abstract class AbstractModel {
 		
 	}
 
+	/**
+	 * Updates the model with a new element, called by {@link #update(StreamElement)} which ensures no query runs at the same time.
+	 */
 	public abstract StreamElement pushData(StreamElement streamElement);
 
 
-
+	/**
+	 * Queries the model, called by {@link #evaluate(StreamElement)} which ensures the model isn't updated at the same time,
+	 * but other queries may run concurrently.
+	 */
 	public abstract StreamElement[] query(StreamElement params);
 	
 
@@ -64,6 +102,88 @@ public abstract class AbstractModel {
 		return true;
 	}
 	
+	/**
+	 * @return whether the result of a query to a version of the model only depends on the values of the parameters, not on
+	 * their timestamp nor on the time of the query, so that it can be cached.
+	 */
+	protected boolean isCacheable() {
+		return true;
+	}
+	
+	/**
+	 * @return the number of elements pushed to the model.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
+	/**
+	 * Pushes an element to the model and increments its version.
+	 */
+	public StreamElement update(StreamElement streamElement) {
+		lock.writeLock().lock();
+		try {
+			return pushData(streamElement);
+		} finally {
+			version.incrementAndGet();
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Queries the model, returning the cached result if the same query was answered by the current version.
+	 */
+	public StreamElement[] evaluate(StreamElement params) {
+		if (!isCacheable())
+			return queryLocked(params);
+		String key = key(params);
+		CachedResults cached = cache;
+		StreamElement[] result = cached.version == version.get() ? cached.results.get(key) : null;
+		if (result == null) {
+			long queried;
+			lock.readLock().lock();
+			try {
+				// no element can be pushed while the lock is held
+				queried = version.get();
+				result = query(params);
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (result == null)
+				return null;
+			cached = cache;
+			if (cached.version != queried) {
+				if (queried != version.get())
+					return result.clone();
+				cached = new CachedResults(queried);
+				cache = cached;
+			}
+			// bounds the memory used by the queries with many different parameters
+			if (cached.results.size() >= MAX_CACHED_QUERIES)
+				cached.results.clear();
+			cached.results.put(key, result);
+		}
+		return result.clone();
+	}
+	
+	private StreamElement[] queryLocked(StreamElement params) {
+		lock.readLock().lock();
+		try {
+			return query(params);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private static String key(StreamElement params) {
+		StringBuilder key = new StringBuilder();
+		String[] names = params.getFieldNames();
+		Serializable[] values = params.getData();
+		for (int i = 0; i < names.length; i++)
+			key.append(names[i]).append('\u0000').append(values[i]).append('\u0000');
+		return key.toString();
+	}
+	
 	public void setVirtualSensor(ModellingVirtualSensor v){
 		vs = v;
 	}
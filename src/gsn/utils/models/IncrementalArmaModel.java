@@ -0,0 +1,158 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/models/IncrementalArmaModel.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.models;
+
+/**
+ * Auto-regressive model estimated recursively: each sample is compared to
+ * the prediction of the model before being used to update it, in O(order²)
+ * with a recursive least squares step, the variance of the residuals being
+ * tracked the same way.
+ * <p>
+ * This stands for the ARMA-GARCH model of {@link ArmaGarchModel}, which fits
+ * an AR model then a GARCH model with R on each sliding window: the
+ * forgetting factor gives the samples a memory of about the size of the
+ * window, and the exponentially weighted variance is the GARCH(1,1) model
+ * without constant. Unlike the windows of {@link ArmaGarchModel}, the state
+ * is kept from a window to the next, so only the first window of the stream
+ * is used to warm the model up.
+ */
+public class IncrementalArmaModel implements IncrementalModel {
+
+    private static final int ORDER = 2;
+
+    private static final double INITIAL_COVARIANCE = 1e4;
+
+    private final double minVar = 1E-4;
+
+    private final int windowSize;
+
+    private final double errorBound;
+
+    private final double lambda;
+
+    private final double[] stream;
+
+    private final double[] processed;
+
+    private final double[] dirtyness;
+
+    private final double[] quality;
+
+    /**
+     * The coefficients, the first one being the constant.
+     */
+    private final double[] theta = new double[ORDER + 1];
+
+    private final double[][] covariance = new double[ORDER + 1][ORDER + 1];
+
+    private final double[] regressors = new double[ORDER + 1];
+
+    private final double[] gain = new double[ORDER + 1];
+
+    /**
+     * The last processed values, the latest first.
+     */
+    private final double[] lags = new double[ORDER];
+
+    private double variance = 0;
+
+    private long seen = 0;
+
+    private boolean allClean = true;
+
+    public IncrementalArmaModel(int windowSize, double errorBound, double[] stream, double[] processed, double[] dirtyness, double[] quality) {
+        this.windowSize = windowSize;
+        this.errorBound = errorBound;
+        this.stream = stream;
+        this.processed = processed;
+        this.dirtyness = dirtyness;
+        this.quality = quality;
+        this.lambda = windowSize > 1 ? 1 - 1.0 / windowSize : 0.99;
+        for (int i = 0; i <= ORDER; i++)
+            covariance[i][i] = INITIAL_COVARIANCE;
+    }
+
+    public void update(int index) {
+        if (index == 0)
+            allClean = true;
+        double value = stream[index];
+        regressors[0] = 1;
+        System.arraycopy(lags, 0, regressors, 1, ORDER);
+        double prediction = 0;
+        for (int i = 0; i <= ORDER; i++)
+            prediction += theta[i] * regressors[i];
+        double residual = value - prediction;
+
+        processed[index] = value;
+        dirtyness[index] = 0;
+        quality[index] = 0;
+        if (seen >= windowSize) {
+            if (variance != 0.0)
+                quality[index] = 1 / Math.sqrt(2 * Math.PI * variance) * Math.exp(-(residual * residual) / (2 * variance));
+            if (variance > minVar && Math.abs(residual) > errorBound * Math.sqrt(variance)) {
+                processed[index] = prediction;
+                dirtyness[index] = 1;
+                allClean = false;
+            }
+        }
+
+        // the model learns the cleaned series, an outlier only widens the variance
+        variance = seen == 0 ? 0 : lambda * variance + (1 - lambda) * residual * residual;
+        if (seen >= ORDER)
+            learn(processed[index] - prediction);
+        for (int i = ORDER - 1; i > 0; i--)
+            lags[i] = lags[i - 1];
+        lags[0] = processed[index];
+        seen++;
+    }
+
+    /**
+     * One step of recursive least squares with forgetting.
+     */
+    private void learn(double error) {
+        int n = ORDER + 1;
+        double denominator = lambda;
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            for (int j = 0; j < n; j++)
+                sum += covariance[i][j] * regressors[j];
+            gain[i] = sum;
+            denominator += regressors[i] * sum;
+        }
+        for (int i = 0; i < n; i++)
+            gain[i] /= denominator;
+        for (int i = 0; i < n; i++)
+            theta[i] += gain[i] * error;
+        // P = (P - k * (P * phi)^T) / lambda, P * phi being k * denominator
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                covariance[i][j] = (covariance[i][j] - gain[i] * gain[j] * denominator) / lambda;
+    }
+
+    public boolean markDirty(int length) {
+        return allClean;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/models/IncrementalModel.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.models;
+
+/**
+ * A model fitted to the samples of a window while they arrive, instead of
+ * from scratch once the window is full.
+ * <p>
+ * The model works on the buffers it was built with: the timestamps and the
+ * values of the window, and the processed values, the dirtiness and the
+ * quality it computes for them. It doesn't allocate anything once built.
+ */
+public interface IncrementalModel {
+
+    /**
+     * Takes into account the sample at the given index of the window, the
+     * index 0 starting a new window.
+     */
+    void update(int index);
+
+    /**
+     * Computes the processed values, the dirtiness and the quality of the
+     * first length samples of the window, which have all been updated.
+     *
+     * @return whether all the samples are clean.
+     */
+    boolean markDirty(int length);
+}
@@ -0,0 +1,171 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/models/IncrementalPolynomialModel.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.models;
+
+import java.util.Arrays;
+
+/**
+ * Least squares polynomial fitted to the samples of a window, updated with
+ * each sample in O(degree) by adding it to the sums of the normal equations,
+ * the system of degree + 1 equations being solved once when the window is
+ * marked.
+ * <p>
+ * The timestamps are taken relatively to the first one of the window, and
+ * scaled by the span of the window before solving, so that the powers of the
+ * sums stay well conditioned. As the span of the polynomials of a degree is
+ * the same in any basis, this is also the least squares fit of the Chebyshev
+ * polynomials of that degree.
+ */
+public class IncrementalPolynomialModel implements IncrementalModel {
+
+    private final int degree;
+
+    private final double errorBound;
+
+    private final long[] timestamps;
+
+    private final double[] stream;
+
+    private final double[] processed;
+
+    private final double[] dirtyness;
+
+    /**
+     * The sums of u^k for k in [0, 2 * degree] and of u^k * y for k in [0,
+     * degree], u being the time since the first sample of the window.
+     */
+    private final double[] powerSums;
+
+    private final double[] valueSums;
+
+    /**
+     * The augmented matrix of the normal equations.
+     */
+    private final double[][] system;
+
+    private final double[] coefs;
+
+    private int count;
+
+    private double span;
+
+    public IncrementalPolynomialModel(int degree, double errorBound, long[] timestamps, double[] stream, double[] processed, double[] dirtyness) {
+        this.degree = degree;
+        this.errorBound = errorBound;
+        this.timestamps = timestamps;
+        this.stream = stream;
+        this.processed = processed;
+        this.dirtyness = dirtyness;
+        this.powerSums = new double[2 * degree + 1];
+        this.valueSums = new double[degree + 1];
+        this.system = new double[degree + 1][degree + 2];
+        this.coefs = new double[degree + 1];
+    }
+
+    public void update(int index) {
+        if (index == 0) {
+            Arrays.fill(powerSums, 0);
+            Arrays.fill(valueSums, 0);
+            count = 0;
+            span = 0;
+        }
+        double u = timestamps[index] - timestamps[0];
+        double y = stream[index];
+        double power = 1;
+        for (int k = 0; k < powerSums.length; k++) {
+            powerSums[k] += power;
+            if (k <= degree)
+                valueSums[k] += power * y;
+            power *= u;
+        }
+        span = Math.max(span, Math.abs(u));
+        count++;
+    }
+
+    public boolean markDirty(int length) {
+        boolean allClean = true;
+        boolean fitted = count > degree && solve();
+        double scale = span > 0 ? span : 1;
+        for (int i = 0; i < length; i++) {
+            if (fitted) {
+                double u = (timestamps[i] - timestamps[0]) / scale;
+                double value = 0;
+                for (int k = degree; k >= 0; k--)
+                    value = value * u + coefs[k];
+                processed[i] = value;
+            } else {
+                // not enough samples for the degree, as when the regression fails
+                processed[i] = stream[i];
+            }
+            if (Math.abs(processed[i] - stream[i]) <= errorBound) {
+                dirtyness[i] = 0;
+            } else {
+                dirtyness[i] = 1;
+                allClean = false;
+            }
+        }
+        return allClean;
+    }
+
+    /**
+     * Solves the normal equations in the scaled time by gaussian elimination
+     * with partial pivoting.
+     *
+     * @return false if the system is singular.
+     */
+    private boolean solve() {
+        int n = degree + 1;
+        double scale = span > 0 ? span : 1;
+        for (int j = 0; j < n; j++) {
+            for (int k = 0; k < n; k++)
+                system[j][k] = powerSums[j + k] / Math.pow(scale, j + k);
+            system[j][n] = valueSums[j] / Math.pow(scale, j);
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < n; row++)
+                if (Math.abs(system[row][col]) > Math.abs(system[pivot][col]))
+                    pivot = row;
+            if (Math.abs(system[pivot][col]) < 1e-12 * count)
+                return false;
+            double[] swap = system[col];
+            system[col] = system[pivot];
+            system[pivot] = swap;
+            for (int row = col + 1; row < n; row++) {
+                double factor = system[row][col] / system[col][col];
+                for (int k = col; k <= n; k++)
+                    system[row][k] -= factor * system[col][k];
+            }
+        }
+        for (int row = n - 1; row >= 0; row--) {
+            double value = system[row][n];
+            for (int k = row + 1; k < n; k++)
+                value -= system[row][k] * coefs[k];
+            coefs[row] = value / system[row][row];
+        }
+        return true;
+    }
+}
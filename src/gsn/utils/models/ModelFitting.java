@@ -115,6 +115,42 @@ public class ModelFitting {
         return result;
     }
 
+    /*
+    * Returns whether the model fitted while the samples arrive gives the same
+    * output as FitAndMarkDirty. Only the linear and quadratic models are least
+    * squares polynomials in both cases, the Chebyshev models being fitted by
+    * interpolation and the ARMA-GARCH model by R when refitted.
+    * */
+    public static boolean isIncrementalModelExact(int model) {
+        return model == LINEAR || model == QUADRATIC;
+    }
+
+    /*
+    * Returns the model fitted while the samples of a window arrive, working on
+    * the given buffers, or null if the model id is unknown.
+    * The polynomial and Chebyshev models are least squares polynomials of
+    * their degree, the ARMA-GARCH model is estimated recursively as an AR(2)
+    * model with an exponentially weighted variance, see isIncrementalModelExact.
+    * */
+    public static IncrementalModel createIncrementalModel(int model, double errorBound, int windowSize, long[] timestamps, double[] stream, double[] processed, double[] dirtyness, double[] quality) {
+        switch (model) {
+            case CONSTANT:
+                return new IncrementalPolynomialModel(0, errorBound, timestamps, stream, processed, dirtyness);
+            case LINEAR:
+            case CHEBYSHEV_DEG1:
+                return new IncrementalPolynomialModel(1, errorBound, timestamps, stream, processed, dirtyness);
+            case QUADRATIC:
+            case CHEBYSHEV_DEG2:
+                return new IncrementalPolynomialModel(2, errorBound, timestamps, stream, processed, dirtyness);
+            case CHEBYSHEV_DEG3:
+                return new IncrementalPolynomialModel(3, errorBound, timestamps, stream, processed, dirtyness);
+            case ARMA_GARCH:
+                return new IncrementalArmaModel(windowSize, errorBound, stream, processed, dirtyness, quality);
+            default:
+                return null;
+        }
+    }
+
     public static Vector<Double> load_doubles(String fileName) throws IOException {
         File file = new File(fileName);
         BufferedReader bufRdr = new BufferedReader(new FileReader(file));
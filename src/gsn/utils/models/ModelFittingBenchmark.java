@@ -0,0 +1,117 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/models/ModelFittingBenchmark.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.models;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compares the time taken to clean a stream by fitting a model from scratch
+ * on each window, with {@link ModelFitting#FitAndMarkDirty}, and by updating
+ * an {@link IncrementalModel} with each sample.
+ * <p>
+ * Usage: ModelFittingBenchmark model window [samples] [error]. The stream is a
+ * noisy sine with a few spikes. The ARMA-GARCH refit needs R. The results
+ * are logged at the info level.
+ */
+public class ModelFittingBenchmark {
+
+    private static final transient Logger logger = Logger.getLogger(ModelFittingBenchmark.class);
+
+    private static final int WARMUP_ROUNDS = 3;
+
+    private static final int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] argv) {
+        if (argv.length < 2) {
+            logger.error("Usage : ModelFittingBenchmark model window [samples] [error]");
+            System.exit(1);
+        }
+        int model = ModelFitting.getModelIdFromString(argv[0]);
+        int window = Integer.parseInt(argv[1]);
+        int samples = argv.length > 2 ? Integer.parseInt(argv[2]) : 1000000;
+        double error = argv.length > 3 ? Double.parseDouble(argv[3]) : 1;
+
+        Random random = new Random(42);
+        double[] values = new double[samples];
+        long[] times = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            times[i] = i * 10000L;
+            values[i] = 10 * Math.sin(i / 500.0) + random.nextGaussian() * 0.2 + (random.nextInt(1000) == 0 ? 20 : 0);
+        }
+
+        logger.info("model => " + ModelFitting.MODEL_NAMES[model] + ", window => " + window + ", samples => " + samples);
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long refit = refit(model, window, error, values, times);
+            long incremental = incremental(model, window, error, values, times);
+            if (round >= WARMUP_ROUNDS)
+                logger.info("refit: " + refit / samples + " ns/sample, incremental: " + incremental / samples + " ns/sample");
+        }
+    }
+
+    /**
+     * The path of {@link gsn.vsensor.DataCleanVirtualSensor} with refit, in
+     * nanoseconds.
+     */
+    static long refit(int model, int window, double error, double[] values, long[] times) {
+        double[] stream = new double[window];
+        long[] timestamps = new long[window];
+        double[] processed = new double[window];
+        double[] dirtyness = new double[window];
+        double[] quality = new double[window];
+        long start = System.nanoTime();
+        for (int offset = 0; offset + window <= values.length; offset += window) {
+            System.arraycopy(values, offset, stream, 0, window);
+            System.arraycopy(times, offset, timestamps, 0, window);
+            ModelFitting.FitAndMarkDirty(model, error, window, stream, timestamps, processed, dirtyness, quality);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The path of {@link gsn.vsensor.DataCleanVirtualSensor} by default, in
+     * nanoseconds.
+     */
+    static long incremental(int model, int window, double error, double[] values, long[] times) {
+        double[] stream = new double[window];
+        long[] timestamps = new long[window];
+        double[] processed = new double[window];
+        double[] dirtyness = new double[window];
+        double[] quality = new double[window];
+        IncrementalModel fitter = ModelFitting.createIncrementalModel(model, error, window, timestamps, stream, processed, dirtyness, quality);
+        long start = System.nanoTime();
+        for (int offset = 0; offset + window <= values.length; offset += window) {
+            for (int i = 0; i < window; i++) {
+                stream[i] = values[offset + i];
+                timestamps[i] = times[offset + i];
+                fitter.update(i);
+            }
+            fitter.markDirty(window);
+        }
+        return System.nanoTime() - start;
+    }
+}
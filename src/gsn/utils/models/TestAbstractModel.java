@@ -0,0 +1,78 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/models/TestAbstractModel.java
+*
+* @author gsn_devs
+*
+*/
+
+
+package gsn.utils.models;
+
+import static org.junit.Assert.assertEquals;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+
+import java.io.Serializable;
+
+import org.junit.Test;
+
+public class TestAbstractModel {
+
+	private static class CountingModel extends AbstractModel {
+		int queries = 0;
+
+		double last = 0;
+
+		public StreamElement pushData(StreamElement streamElement) {
+			last = (Double) streamElement.getData("value");
+			return streamElement;
+		}
+
+		public StreamElement[] query(StreamElement params) {
+			queries++;
+			double x = (Double) params.getData("x");
+			return new StreamElement[] { element("value", x * last) };
+		}
+
+		public void setParam(String k, String string) {
+		}
+	}
+
+	private static StreamElement element(String name, double value) {
+		return new StreamElement(new DataField[] { new DataField(name, "double") }, new Serializable[] { value });
+	}
+
+	@Test
+	public void testCachedUntilUpdate() {
+		CountingModel model = new CountingModel();
+		model.update(element("value", 2));
+		assertEquals(1L, model.getVersion());
+		assertEquals(6.0, model.evaluate(element("x", 3))[0].getData("value"));
+		assertEquals(6.0, model.evaluate(element("x", 3))[0].getData("value"));
+		assertEquals(1, model.queries);
+		assertEquals(8.0, model.evaluate(element("x", 4))[0].getData("value"));
+		assertEquals(2, model.queries);
+
+		model.update(element("value", 5));
+		assertEquals(15.0, model.evaluate(element("x", 3))[0].getData("value"));
+		assertEquals(3, model.queries);
+	}
+}
@@ -0,0 +1,121 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/utils/models/TestIncrementalModel.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.utils.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestIncrementalModel {
+
+	private static final int WINDOW = 200;
+
+	private long[] timestamps = new long[WINDOW];
+
+	private double[] stream = new double[WINDOW];
+
+	private double[] processed = new double[WINDOW];
+
+	private double[] dirtyness = new double[WINDOW];
+
+	private double[] quality = new double[WINDOW];
+
+	@Test
+	public void testSameFitAsRegression() {
+		Random random = new Random(1);
+		for (int i = 0; i < WINDOW; i++) {
+			timestamps[i] = i * 10000L;
+			double u = i / 100.0;
+			stream[i] = 3 - 2 * u + 0.5 * u * u + random.nextGaussian() * 0.1;
+		}
+		double[] expected = new double[WINDOW];
+		new PolynomialModel(2, WINDOW, 1, timestamps, stream).FitAndMarkDirty(expected, new double[WINDOW], new double[WINDOW]);
+
+		IncrementalModel model = ModelFitting.createIncrementalModel(ModelFitting.QUADRATIC, 1, WINDOW, timestamps, stream, processed, dirtyness, quality);
+		for (int i = 0; i < WINDOW; i++)
+			model.update(i);
+		assertTrue(model.markDirty(WINDOW));
+		for (int i = 0; i < WINDOW; i++)
+			assertEquals(expected[i], processed[i], 1e-6);
+	}
+
+	@Test
+	public void testSameOutputAsRefit() {
+		Random random = new Random(3);
+		for (int model : new int[] { ModelFitting.LINEAR, ModelFitting.QUADRATIC }) {
+			assertTrue(ModelFitting.isIncrementalModelExact(model));
+			for (int i = 0; i < WINDOW; i++) {
+				timestamps[i] = 1000000L + i * 5000L + random.nextInt(1000);
+				double u = i / 50.0;
+				stream[i] = 20 + u - 0.3 * u * u + random.nextGaussian() * 0.2;
+				if (i % 40 == 7)
+					stream[i] += 3;
+			}
+			double[] refitProcessed = new double[WINDOW];
+			double[] refitDirtyness = new double[WINDOW];
+			ModelFitting.FitAndMarkDirty(model, 1, WINDOW, stream, timestamps, refitProcessed, refitDirtyness, new double[WINDOW]);
+
+			IncrementalModel incremental = ModelFitting.createIncrementalModel(model, 1, WINDOW, timestamps, stream, processed, dirtyness, quality);
+			for (int i = 0; i < WINDOW; i++)
+				incremental.update(i);
+			incremental.markDirty(WINDOW);
+			for (int i = 0; i < WINDOW; i++) {
+				assertEquals(refitProcessed[i], processed[i], 1e-6);
+				assertEquals(refitDirtyness[i], dirtyness[i], 0);
+			}
+		}
+		for (int model : new int[] { ModelFitting.CONSTANT, ModelFitting.CHEBYSHEV_DEG1, ModelFitting.CHEBYSHEV_DEG2, ModelFitting.CHEBYSHEV_DEG3,
+				ModelFitting.ARMA_GARCH })
+			assertFalse(ModelFitting.isIncrementalModelExact(model));
+	}
+
+	@Test
+	public void testArmaFlagsSpikes() {
+		IncrementalModel model = ModelFitting.createIncrementalModel(ModelFitting.ARMA_GARCH, 3, WINDOW, timestamps, stream, processed, dirtyness, quality);
+		Random random = new Random(2);
+		for (int window = 0; window < 5; window++) {
+			for (int i = 0; i < WINDOW; i++) {
+				stream[i] = 10 * Math.sin((window * WINDOW + i) / 20.0) + random.nextGaussian() * 0.1;
+				if (window == 4 && i == 100)
+					stream[i] += 10;
+				model.update(i);
+			}
+			if (window < 4)
+				continue;
+			assertFalse(model.markDirty(WINDOW));
+			assertEquals(1, dirtyness[100], 0);
+			assertTrue(Math.abs(processed[100] - (stream[100] - 10)) < 1);
+			int dirty = 0;
+			for (int i = 0; i < WINDOW; i++)
+				dirty += dirtyness[i];
+			assertTrue(dirty < 5);
+		}
+	}
+}
@@ -30,11 +30,11 @@ import gsn.beans.DataField;
 import gsn.beans.DataTypes;
 import gsn.beans.StreamElement;
 import gsn.utils.Helpers;
+import gsn.utils.TimingWheel;
 
 import java.io.Serializable;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.Timer;
 import java.util.TreeMap;
 
 import org.apache.commons.lang.time.DateUtils;
@@ -65,7 +65,8 @@ public abstract class AbstractScheduledVirtualSensor extends AbstractVirtualSens
 	protected StreamElement dataItem	;	//Buffer for most recent stream element
 	protected static final transient Logger logger = Logger
 			.getLogger(AbstractScheduledVirtualSensor.class);
-	protected Timer timer0;
+	private TimingWheel.Timeout timer0;
+	private TimingWheel.Mailbox mailbox;
 	
 	/**
 	 * Called once while initializing an instance of the virtual sensor
@@ -109,11 +110,27 @@ public abstract class AbstractScheduledVirtualSensor extends AbstractVirtualSens
 			
 		logger.warn(getVirtualSensorConfiguration().getName()+ " scheduled to start at " + new Date(startTime).toString());
 		
-		// startTime is used in the virtual sensor class to start a timer
-		timer0 = new Timer();
-		// timer task is started in the sub class
+		// the timer is started in the sub class, with startTimer
 		return true;}
 
+	/**
+	 * Runs the task every clock_rate milliseconds from startTime, in the
+	 * mailbox of the sensor: the runs are never concurrent and those the
+	 * sensor is late for are coalesced.
+	 */
+	protected synchronized void startTimer(Runnable task) {
+		stopTimer();
+		if (mailbox == null)
+			mailbox = new TimingWheel.Mailbox(getVirtualSensorConfiguration().getName());
+		timer0 = TimingWheel.getInstance().scheduleAtFixedRate(mailbox, task, startTime - System.currentTimeMillis(), clock_rate);
+	}
+
+	protected synchronized void stopTimer() {
+		if (timer0 != null)
+			timer0.cancel();
+		timer0 = null;
+	}
+
 	public void dataAvailable(String inputStreamName, StreamElement data) {
 		try {
 //			<TODO> if AbstractVirtualSensor.validateStreamElement() was protected then
@@ -160,6 +160,16 @@ public abstract class AbstractVirtualSensor {
 	 */
 	public abstract void dispose ( );
 
+	/**
+	 * A virtual sensor keeping no state between two calls to
+	 * <code>dataAvailable</code> can return true to have several instances,
+	 * up to its pool size, processing its input streams concurrently. The
+	 * elements are then no longer processed in the order they arrived.
+	 */
+	public boolean isStateless ( ) {
+		return false;
+	}
+
 	public boolean dataFromWeb ( String action,String[] paramNames, Serializable[] paramValues ) {
 		return false;
 	}
@@ -31,24 +31,21 @@ package gsn.vsensor;
 import gsn.Main;
 import gsn.beans.StreamElement;
 import gsn.storage.DataEnumerator;
+import gsn.utils.TimingWheel;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.TreeMap;
 
-import javax.swing.Timer;
-
 import org.apache.log4j.Logger;
 
-public class ClockedBridgeVirtualSensor extends AbstractVirtualSensor implements ActionListener {
+public class ClockedBridgeVirtualSensor extends AbstractVirtualSensor {
 
 	private static final String RATE_PARAM       = "rate";
 	private static final String TABLE_NAME_PARAM = "table_name";
 
-	private Timer timer;
+	private TimingWheel.Timeout timer;
 	private int clock_rate;
 	private String table_name;
 	private long last_updated;
@@ -77,10 +74,6 @@ public class ClockedBridgeVirtualSensor extends AbstractVirtualSensor implements
 
 		table_name = table_name_value;
 
-		timer = new Timer( clock_rate , this );
-
-		timer.start( );
-
 		last_updated = -1 ; // reading the whole table, this value can be overriden, if some tuples were already read 
 
 		/*******************************************/
@@ -110,6 +103,13 @@ public class ClockedBridgeVirtualSensor extends AbstractVirtualSensor implements
 
 		/*******************************************/
 
+		// polled in the mailbox of the sensor, once the last update is known
+		timer = TimingWheel.getInstance().scheduleAtFixedRate(new TimingWheel.Mailbox(output_table_name), new Runnable() {
+			public void run() {
+				readNewTuples();
+			}
+		}, clock_rate, clock_rate);
+
 		return true;
 	}
 
@@ -119,11 +119,12 @@ public class ClockedBridgeVirtualSensor extends AbstractVirtualSensor implements
 	}
 
 	public void dispose ( ) {
-		timer.stop( );
+		if (timer != null)
+			timer.cancel( );
 
 	}
 
-	public void actionPerformed ( ActionEvent actionEvent ) {
+	private void readNewTuples ( ) {
 
 		// check if new data is available since last update then call dataProduced(StreamElement se)
 		StringBuilder query = new StringBuilder("select * from "+table_name+" where timed > "+last_updated+" order by timed asc");
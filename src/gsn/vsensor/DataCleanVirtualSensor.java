@@ -27,7 +27,9 @@ package gsn.vsensor;
 
 import gsn.beans.DataTypes;
 import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
 import gsn.utils.Helpers;
+import gsn.utils.models.IncrementalModel;
 import gsn.utils.models.ModelFitting;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
@@ -83,9 +85,14 @@ public class DataCleanVirtualSensor extends AbstractVirtualSensor {
     private static final String PARAM_METADATA_STATION = "station"; // name of station for metadata server
     private static final String PARAM_METADATA_SENSOR = "sensor"; // name of station for metadata server
     private static final String PARAM_LOGGING_INTERVAL = "logging-interval";
+    private static final String PARAM_REFIT = "refit"; // "true" to fit the model from scratch on each window instead of while the samples arrive
+    private static final String PARAM_INCREMENTAL = "incremental"; // "true" to also fit while the samples arrive the models whose output then differs
 
     private static final int NORMAL_RESULT = 200; // normal result after http post
 
+    private static final StreamSchema OUTPUT_SCHEMA = new StreamSchema(new String[]{"stream", "processed", "dirtiness", "distance", "quality"},
+            new Byte[]{DataTypes.DOUBLE, DataTypes.DOUBLE, DataTypes.DOUBLE, DataTypes.DOUBLE, DataTypes.DOUBLE});
+
     private int model = -1;
     private int window_size = 0;
     private double error_bound = 0;
@@ -96,6 +103,8 @@ public class DataCleanVirtualSensor extends AbstractVirtualSensor {
     private double[] dirtiness;
     private double[] quality;
 
+    private IncrementalModel fitter;
+
     private String metadata_server_url;
     private String username;
     private String password;
@@ -145,7 +154,7 @@ public class DataCleanVirtualSensor extends AbstractVirtualSensor {
             return false;
         }
 
-        if (window_size < 0) {
+        if (window_size <= 0) {
             logger.warn("Window size should always be positive.");
             return false;
         }
@@ -196,6 +205,10 @@ public class DataCleanVirtualSensor extends AbstractVirtualSensor {
         dirtiness = new double[window_size];
         quality = new double[window_size];
 
+        if (!"true".equalsIgnoreCase(params.get(PARAM_REFIT))
+                && (ModelFitting.isIncrementalModelExact(model) || "true".equalsIgnoreCase(params.get(PARAM_INCREMENTAL))))
+            fitter = ModelFitting.createIncrementalModel(model, error_bound, window_size, timestamps, stream, processed, dirtiness, quality);
+
         String logging_interval_str = params.get(PARAM_LOGGING_INTERVAL);
         if (logging_interval_str != null) {
             logging_timestamps = true;
@@ -218,16 +231,20 @@ public class DataCleanVirtualSensor extends AbstractVirtualSensor {
 
         logging_counter++;
 
-        if (bufferCount < window_size) {
-            timestamps[bufferCount] = data.getTimeStamp();
-            stream[bufferCount] = (Double) data.getData()[0];
-            bufferCount++;
-        } else {
-            ModelFitting.FitAndMarkDirty(model, error_bound, window_size, stream, timestamps, processed, dirtiness, quality);
+        timestamps[bufferCount] = data.getTimeStamp();
+        stream[bufferCount] = (Double) data.getData()[0];
+        if (fitter != null)
+            fitter.update(bufferCount);
+        bufferCount++;
+
+        if (bufferCount == window_size) {
+            if (fitter != null)
+                fitter.markDirty(window_size);
+            else
+                ModelFitting.FitAndMarkDirty(model, error_bound, window_size, stream, timestamps, processed, dirtiness, quality);
 
             for (int j = 0; j < processed.length; j++) {
-                StreamElement se = new StreamElement(new String[]{"stream", "processed", "dirtiness", "distance", "quality"},
-                        new Byte[]{DataTypes.DOUBLE, DataTypes.DOUBLE, DataTypes.DOUBLE, DataTypes.DOUBLE, DataTypes.DOUBLE},
+                StreamElement se = new StreamElement(OUTPUT_SCHEMA,
                         new Serializable[]{stream[j], processed[j], dirtiness[j], processed[j] - stream[j], quality[j]},
                         timestamps[j]);
                 dataProduced(se);
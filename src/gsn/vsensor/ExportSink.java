@@ -0,0 +1,325 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/vsensor/ExportSink.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.vsensor;
+
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.storage.BatchedInsertWriter;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+import gsn.utils.GSNRuntimeException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the stream elements of an exporter virtual sensor to a table of any
+ * database GSN has a storage manager for, in the background.
+ * <p>
+ * The elements are queued by {@link #put(StreamElement)} and written by the
+ * thread of the sink in JDBC batches of up to <code>batch-size</code>
+ * elements, a batch being written once full or once its first element waited
+ * for <code>linger</code> milliseconds. The connections come from the pool of
+ * the storage manager and the insert statement is prepared once. A failed
+ * batch is retried <code>retries</code> times, waiting
+ * <code>retry-backoff</code> milliseconds before the first retry and twice as
+ * long before each next one, see {@link BatchedInsertWriter#setRetries(int, long)}.
+ * <p>
+ * While the queue of <code>queue-size</code> elements is full, an element
+ * waits for up to <code>put-timeout</code> milliseconds before being dropped,
+ * so that a slow database doesn't stall the virtual sensor. The elements
+ * dropped, or of a batch which failed, are counted by
+ * {@link #getDroppedCount()} and the sink keeps draining the queue.
+ */
+public class ExportSink {
+
+	private static final transient Logger logger = Logger.getLogger(ExportSink.class);
+
+	public static final String PARAM_USER = "user", PARAM_PASSWD = "password", PARAM_URL = "url", PARAM_TABLE = "table", PARAM_DRIVER = "driver",
+			PARAM_BATCH_SIZE = "batch-size", PARAM_LINGER = "linger", PARAM_RETRIES = "retries", PARAM_QUEUE_SIZE = "queue-size",
+			PARAM_RETRY_BACKOFF = "retry-backoff", PARAM_PUT_TIMEOUT = "put-timeout";
+
+	public static final String[] OBLIGATORY_PARAMS = new String[] { PARAM_USER, PARAM_URL, PARAM_DRIVER };
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	public static final long DEFAULT_LINGER = 1000;
+
+	public static final int DEFAULT_RETRIES = 3;
+
+	public static final long DEFAULT_RETRY_BACKOFF = 1000;
+
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	public static final long DEFAULT_PUT_TIMEOUT = 5000;
+
+	private static final long POLL_INTERVAL = 100;
+
+	private static final class Pending {
+		final StreamElement element;
+
+		final long arrival = System.currentTimeMillis();
+
+		Pending(StreamElement element) {
+			this.element = element;
+		}
+	}
+
+	private final String name;
+
+	private final BatchedInsertWriter writer;
+
+	private final int batchSize;
+
+	private final long linger;
+
+	private final BlockingQueue<Pending> queue;
+
+	private final long putTimeout;
+
+	private final Thread thread;
+
+	private volatile boolean running = true;
+
+	private final AtomicLong totalLatency = new AtomicLong();
+
+	private volatile long maxLatency = 0;
+
+	/**
+	 * The elements dropped by the sink, the writer counting those of the
+	 * batches it couldn't write.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	ExportSink(String name, StorageManager storage, CharSequence table, DataField[] fields, int batchSize, long linger, int retries, long retryBackoff,
+			int queueSize, long putTimeout) {
+		this.name = name;
+		this.putTimeout = Math.max(putTimeout, 0);
+		this.batchSize = Math.max(batchSize, 1);
+		this.linger = Math.max(linger, 0);
+		writer = new BatchedInsertWriter(storage, table, fields, this.batchSize, this.linger, null, null);
+		writer.setRetries(retries, retryBackoff);
+		queue = new ArrayBlockingQueue<Pending>(Math.max(queueSize, 1));
+		thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "ExportSink-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connects to the database of the parameters and creates the table if it
+	 * doesn't exist yet, the table being named after the virtual sensor if
+	 * the <code>table</code> parameter is missing.
+	 * 
+	 * @return the sink or null if it can't be created, the reason being
+	 *         logged.
+	 */
+	public static ExportSink create(String name, Map<String, String> params, DataField[] fields) {
+		for (String param : OBLIGATORY_PARAMS)
+			if (params.get(param) == null || params.get(param).trim().length() == 0) {
+				logger.warn("Initialization Failed, The " + param + " initialization parameter is missing");
+				return null;
+			}
+		String table = params.get(PARAM_TABLE);
+		if (table == null || table.trim().length() == 0)
+			table = name;
+		StorageManager storage = StorageManagerFactory.getInstance(params.get(PARAM_DRIVER), params.get(PARAM_USER), params.get(PARAM_PASSWD),
+				params.get(PARAM_URL), Main.DEFAULT_MAX_DB_CONNECTIONS);
+		if (storage == null) {
+			logger.error("Initialization of the Stream Exporter VS failed !");
+			return null;
+		}
+		try {
+			if (!storage.tableExists(table, fields))
+				storage.executeCreateTable(table, fields, false);
+		} catch (SQLException e) {
+			logger.error(e.getMessage(), e);
+			logger.error("Initialization of the Stream Exporter VS failed !");
+			return null;
+		} catch (GSNRuntimeException e) {
+			logger.error(e.getMessage(), e);
+			logger.error("Initialization failed. There is a table called " + table + " Inside the database but the structure is not compatible with what GSN expects.");
+			return null;
+		}
+		return new ExportSink(name, storage, table, fields, getInt(params, PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE), getInt(params, PARAM_LINGER,
+				(int) DEFAULT_LINGER), getInt(params, PARAM_RETRIES, DEFAULT_RETRIES), getInt(params, PARAM_RETRY_BACKOFF,
+				(int) DEFAULT_RETRY_BACKOFF), getInt(params, PARAM_QUEUE_SIZE, DEFAULT_QUEUE_SIZE), getInt(params, PARAM_PUT_TIMEOUT,
+				(int) DEFAULT_PUT_TIMEOUT));
+	}
+
+	private static int getInt(Map<String, String> params, String param, int defaultValue) {
+		String value = params.get(param);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("The " + param + " parameter is not a number, using " + defaultValue + " instead.");
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Queues the element, waiting for up to <code>put-timeout</code>
+	 * milliseconds while the queue is full.
+	 * 
+	 * @return false if the element was dropped.
+	 */
+	public boolean put(StreamElement se) {
+		if (!running) {
+			logger.warn("The export sink of " + name + " is closed, dropping an element.");
+			dropped.incrementAndGet();
+			return false;
+		}
+		try {
+			if (queue.offer(new Pending(se), putTimeout, TimeUnit.MILLISECONDS))
+				return true;
+			logger.warn("The queue of the export sink of " + name + " is still full after " + putTimeout + " ms, dropping an element.");
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage(), e);
+			Thread.currentThread().interrupt();
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	private void drain() {
+		List<Pending> batch = new ArrayList<Pending>(batchSize);
+		while (running || !queue.isEmpty()) {
+			try {
+				Pending first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				long deadline = first.arrival + linger;
+				while (batch.size() < batchSize) {
+					long wait = running ? deadline - System.currentTimeMillis() : 0;
+					Pending next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				logger.debug(e.getMessage(), e);
+			}
+			try {
+				if (!batch.isEmpty())
+					write(batch);
+			} catch (RuntimeException e) {
+				// the sink keeps draining the next batches
+				logger.error("Dropping a batch of " + batch.size() + " element(s) of " + name + ": " + e.getMessage(), e);
+				dropped.addAndGet(batch.size());
+			}
+			batch.clear();
+		}
+	}
+
+	private void write(List<Pending> batch) {
+		List<StreamElement> elements = new ArrayList<StreamElement>(batch.size());
+		for (Pending pending : batch)
+			elements.add(pending.element);
+		try {
+			writer.write(elements);
+		} catch (SQLException e) {
+			// logged and counted as dropped by the writer
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Pending pending : batch) {
+			long latency = now - pending.arrival;
+			totalLatency.addAndGet(latency);
+			if (latency > maxLatency)
+				maxLatency = latency;
+		}
+	}
+
+	/**
+	 * Writes the queued elements and stops the sink.
+	 */
+	public void close() {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage(), e);
+		}
+		writer.close();
+		if (logger.isInfoEnabled())
+			logger.info("Export sink of " + name + " closed: " + toString());
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	public long getWrittenCount() {
+		return writer.getInsertedCount();
+	}
+
+	public long getDroppedCount() {
+		return writer.getDroppedCount() + dropped.get();
+	}
+
+	/**
+	 * @return the number of elements written per second since the creation
+	 *         of the sink.
+	 */
+	public double getThroughput() {
+		return writer.getThroughput();
+	}
+
+	/**
+	 * @return the mean time in milliseconds between the queuing of an element
+	 *         and the commit of its batch.
+	 */
+	public double getMeanLatency() {
+		long written = getWrittenCount();
+		return written == 0 ? 0 : (double) totalLatency.get() / written;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public String toString() {
+		return new StringBuilder("ExportSink{table=").append(writer.getTableName()).append(", queued=").append(getQueueSize()).append(", written=")
+				.append(getWrittenCount()).append(", dropped=").append(getDroppedCount()).append(", throughput=").append(getThroughput())
+				.append("/s, meanLatency=").append(getMeanLatency()).append("ms, maxLatency=").append(getMaxLatency()).append("ms, flush=")
+				.append(writer.getAverageFlushLatency()).append("ms}").toString();
+	}
+}
@@ -206,7 +206,7 @@ public class GridModelVS extends AbstractVirtualSensor {
 				for(int k=0;k<gridSize;k++){
 					double[] pos = new double[]{y_BL+YCellSize * j, x_BL+XCellSize * k};
 					StreamElement se = new StreamElement(fields, new Serializable[]{pos[0],pos[1]});
-					StreamElement r = modelVS.query(se)[0];
+					StreamElement r = modelVS.evaluate(se)[0];
 					Serializable s = r.getData(field);
 					if (s instanceof Double){
 					    rawData[gridSize-j-1][k] = (Double) r.getData(field);
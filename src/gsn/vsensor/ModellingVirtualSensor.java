@@ -108,11 +108,11 @@ public class ModellingVirtualSensor extends AbstractVirtualSensor {
 	public void dataAvailable(String inputStreamName, StreamElement streamElement) {
 		StreamElement out = streamElement;
 		if (am.length > 0){
-		    out = am[0].pushData(streamElement); //by default returns the result from the first model
+		    out = am[0].update(streamElement); //by default returns the result from the first model
 		}
 		for(int i=1;i<am.length;i++){
 			if (am[i] != null){
-				am[i].pushData(streamElement);//push the data to all other models too
+				am[i].update(streamElement);//push the data to all other models too
 			}
 		}
 		if(out != null)
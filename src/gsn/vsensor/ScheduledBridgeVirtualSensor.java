@@ -28,7 +28,6 @@ package gsn.vsensor;
 
 import gsn.ContainerImpl;
 import java.sql.SQLException;
-import java.util.Date;
 import java.util.TimerTask;
 
 public class ScheduledBridgeVirtualSensor extends AbstractScheduledVirtualSensor {
@@ -36,8 +35,7 @@ public class ScheduledBridgeVirtualSensor extends AbstractScheduledVirtualSensor
 	
 	public boolean initialize() {
 		super.initialize(); 		//get the timer settings
-		TimerTask timerTask = new MyTimerTask();
-		timer0.scheduleAtFixedRate(timerTask, new Date(startTime), clock_rate);
+		startTimer(new MyTimerTask());
 		return true;
 	}
 
@@ -62,7 +60,7 @@ public class ScheduledBridgeVirtualSensor extends AbstractScheduledVirtualSensor
 	}
 
 	public void dispose() {
-		timer0.cancel();
+		stopTimer();
 		
 
 	}
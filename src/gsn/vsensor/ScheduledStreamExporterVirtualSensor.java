@@ -27,76 +27,36 @@
 package gsn.vsensor;
 
 import gsn.ContainerImpl;
-import gsn.Main;
-import gsn.utils.GSNRuntimeException;
+import gsn.beans.StreamElement;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.Date;
-import java.util.TreeMap;
 import java.util.TimerTask;
 
 import org.apache.log4j.Logger;
 
 /**
- * This virtual sensor saves its input stream to any JDBC accessible source.
+ * This virtual sensor saves its latest element to any JDBC accessible source
+ * at a fixed rate, through an {@link ExportSink}.
  */
  public class ScheduledStreamExporterVirtualSensor extends AbstractScheduledVirtualSensor {
 
-	public static final String            PARAM_USER    = "user" , PARAM_PASSWD = "password" , PARAM_URL = "url" , TABLE_NAME = "table",PARAM_DRIVER="driver";
-	public static final String[] OBLIGATORY_PARAMS = new String[] {PARAM_USER,PARAM_URL,PARAM_DRIVER};
+	public static final String            PARAM_USER    = ExportSink.PARAM_USER , PARAM_PASSWD = ExportSink.PARAM_PASSWD , PARAM_URL = ExportSink.PARAM_URL , TABLE_NAME = ExportSink.PARAM_TABLE,PARAM_DRIVER=ExportSink.PARAM_DRIVER;
+	public static final String[] OBLIGATORY_PARAMS = ExportSink.OBLIGATORY_PARAMS;
 
-	private Connection                    connection;
-	private CharSequence table_name;
-	private String password;
-	private String user;
-	private String url;
+	private ExportSink sink;
 
 	private static final transient Logger logger = Logger
 			.getLogger(ScheduledStreamExporterVirtualSensor.class);
 	
 	public boolean initialize() {
 		// Get the StreamExporter parameters
-		TreeMap<String, String> params = getVirtualSensorConfiguration()
-		.getMainClassInitialParams();
-		for (String param : OBLIGATORY_PARAMS)
-			if ( params.get( param ) == null || params.get(param).trim().length()==0) {
-				logger.warn("Initialization Failed, The "+param+ " initialization parameter is missing");
-				return false;
-			}
-		table_name = params.get( TABLE_NAME );
-		user = params.get(PARAM_USER);
-		password = params.get(PARAM_PASSWD);
-		url = params.get(PARAM_URL);
-		try {
-			Class.forName(params.get(PARAM_DRIVER));
-			connection = getConnection();
-			logger.debug( "jdbc connection established." );
-			if (!Main.getStorage(table_name.toString()).tableExists(table_name,getVirtualSensorConfiguration().getOutputStructure() , connection))
-				Main.getStorage(table_name.toString()).executeCreateTable(table_name, getVirtualSensorConfiguration().getOutputStructure(), false,connection);
-		} catch (ClassNotFoundException e) {
-			logger.error(e.getMessage(),e);
-			logger.error("Initialization of the Stream Exporter VS failed !");
-			return false;
-		} catch (SQLException e) {
-			logger.error(e.getMessage(),e);
-			logger.error("Initialization of the Stream Exporter VS failed !");
-			return false;
-		}catch (GSNRuntimeException e) {
-			logger.error(e.getMessage(),e);
-			logger.error("Initialization failed. There is a table called " + TABLE_NAME+ " Inside the database but the structure is not compatible with what GSN expects.");
+		sink = ExportSink.create(getVirtualSensorConfiguration().getName(), getVirtualSensorConfiguration().getMainClassInitialParams(),
+				getVirtualSensorConfiguration().getOutputStructure());
+		if (sink == null)
 			return false;
-		}
-		try {
-			connection.close();
-		} catch (SQLException e) {
-			logger.error(e.getMessage(),e);
-		}
 		super.initialize();   		//get the timer settings
 
-		TimerTask timerTask = new MyTimerTask();
-		timer0.scheduleAtFixedRate(timerTask, new Date(startTime), clock_rate);
+		startTimer(new MyTimerTask());
 		return true;
 	}
 
@@ -109,47 +69,28 @@ import org.apache.log4j.Logger;
 			
 			dataItem.setTimeStamp(System.currentTimeMillis());
 			logger.warn(getVirtualSensorConfiguration().getName() + " Timer Event ");
-			StringBuilder query = Main.getStorage(table_name.toString()).getStatementInsert(table_name, getVirtualSensorConfiguration().getOutputStructure());
-			
+			// the sink writes it later, while dataItem keeps changing
+			sink.put(new StreamElement(dataItem));
 			try {
-				connection = getConnection();
-
-				Main.getStorage(table_name.toString()).executeInsert(table_name ,getVirtualSensorConfiguration().getOutputStructure(),dataItem,getConnection() );
-				logger.warn(getVirtualSensorConfiguration().getName() + " Wrote to database ");
-				connection.close();
+				ContainerImpl.getInstance().publishData(ScheduledStreamExporterVirtualSensor.this, dataItem);
 			} catch (SQLException e) {
-				logger.error(e.getMessage(),e);
-				logger.error("Insertion failed! ("+ query+")");
-			}finally {
-			
-				try {
-					ContainerImpl.getInstance().publishData(ScheduledStreamExporterVirtualSensor.this, dataItem);
-				} catch (SQLException e) {
-					if (e.getMessage().toLowerCase().contains("duplicate entry"))
-						logger.info(e.getMessage(), e);
-					else
-						logger.error(e.getMessage(), e);
-				}
+				if (e.getMessage().toLowerCase().contains("duplicate entry"))
+					logger.info(e.getMessage(), e);
+				else
+					logger.error(e.getMessage(), e);
 			}
 
 		}
 	}
 
-	public Connection getConnection() throws SQLException {
-		if (this.connection==null || this.connection.isClosed())
-			this.connection=DriverManager.getConnection(url,user,password);
-		return connection;
+	public ExportSink getSink() {
+		return sink;
 	}
 
 	public void dispose() {
-		timer0.cancel();
-		try {
-			this.connection.close();
-		} catch (SQLException e) {
-			logger.error(e.getMessage(),e);
-		}
-
-		//<TODO> should we close the database connection here?
+		stopTimer();
+		if (sink != null)
+			sink.close();
 	}
 
 }
@@ -0,0 +1,144 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/vsensor/TestExportSink.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.vsensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gsn.Main;
+import gsn.beans.DataField;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.storage.DataEnumerator;
+import gsn.storage.StorageManager;
+import gsn.storage.StorageManagerFactory;
+import gsn.storage.db.H2StorageManager;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExportSink {
+
+	private static final String URL = "jdbc:h2:mem:exportsink";
+
+	private static final String TABLE = "export_sink_test";
+
+	private DataField[] fields = new DataField[] { new DataField("value", DataTypes.INTEGER) };
+
+	private StorageManager sm;
+
+	@Before
+	public void setUp() throws Exception {
+		DriverManager.registerDriver(new org.h2.Driver());
+		// keeps the in-memory database open
+		sm = StorageManagerFactory.getInstance("org.h2.Driver", "sa", "", URL, Main.DEFAULT_MAX_DB_CONNECTIONS);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (sm.tableExists(TABLE))
+			sm.executeDropTable(TABLE);
+	}
+
+	@Test
+	public void testExport() throws Exception {
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		assertNull(ExportSink.create(TABLE, params, fields));
+		params.put(ExportSink.PARAM_DRIVER, "org.h2.Driver");
+		params.put(ExportSink.PARAM_URL, URL);
+		params.put(ExportSink.PARAM_USER, "sa");
+		params.put(ExportSink.PARAM_PASSWD, "");
+		params.put(ExportSink.PARAM_BATCH_SIZE, "4");
+		params.put(ExportSink.PARAM_LINGER, "50");
+		ExportSink sink = ExportSink.create(TABLE, params, fields);
+		assertNotNull(sink);
+		for (int i = 1; i <= 10; i++)
+			sink.put(new StreamElement(fields, new Serializable[] { i }, i));
+		sink.close();
+		assertEquals(10L, sink.getWrittenCount());
+		assertEquals(0L, sink.getDroppedCount());
+		DataEnumerator rows = sm.executeQuery(new StringBuilder("select count(*) as c from ").append(TABLE), false);
+		assertEquals(10L, ((Number) rows.nextElement().getData("c")).longValue());
+		rows.close();
+	}
+
+	@Test
+	public void testKeepsDrainingAfterAFailedBatch() throws Exception {
+		TreeMap<String, String> params = new TreeMap<String, String>();
+		params.put(ExportSink.PARAM_DRIVER, "org.h2.Driver");
+		params.put(ExportSink.PARAM_URL, URL);
+		params.put(ExportSink.PARAM_USER, "sa");
+		params.put(ExportSink.PARAM_BATCH_SIZE, "1");
+		params.put(ExportSink.PARAM_RETRIES, "0");
+		DataField[] labels = new DataField[] { new DataField("label", "varchar(3)") };
+		ExportSink sink = ExportSink.create(TABLE, params, labels);
+		sink.put(new StreamElement(labels, new Serializable[] { "one" }, 1));
+		// a value which doesn't fit in its column
+		sink.put(new StreamElement(labels, new Serializable[] { "three" }, 2));
+		sink.put(new StreamElement(labels, new Serializable[] { "two" }, 3));
+		sink.close();
+		assertEquals(2L, sink.getWrittenCount());
+		assertEquals(1L, sink.getDroppedCount());
+	}
+
+	@Test
+	public void testPutTimeout() throws Exception {
+		sm.executeCreateTable(TABLE, fields, false);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		StorageManager slow = new H2StorageManager() {
+			public Connection getConnection() throws SQLException {
+				try {
+					stalled.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+				return super.getConnection();
+			}
+		};
+		slow.init("org.h2.Driver", "sa", "", URL, Main.DEFAULT_MAX_DB_CONNECTIONS);
+		ExportSink sink = new ExportSink(TABLE, slow, TABLE, fields, 1, 0, 0, 0, 1, 50);
+		// the first one is being written, the second one fills the queue
+		assertTrue(sink.put(new StreamElement(fields, new Serializable[] { 1 }, 1)));
+		assertTrue(sink.put(new StreamElement(fields, new Serializable[] { 2 }, 2)));
+		long start = System.currentTimeMillis();
+		assertFalse(sink.put(new StreamElement(fields, new Serializable[] { 3 }, 3)));
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		stalled.countDown();
+		sink.close();
+		assertEquals(2L, sink.getWrittenCount());
+		assertEquals(1L, sink.getDroppedCount());
+	}
+}
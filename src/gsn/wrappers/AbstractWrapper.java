@@ -34,15 +34,19 @@ import gsn.beans.DataField;
 import gsn.beans.StreamElement;
 import gsn.beans.StreamSource;
 import gsn.beans.windowing.LocalTimeBasedSlidingHandler;
+import gsn.beans.windowing.MemoryQueryRewriter;
 import gsn.beans.windowing.RemoteTimeBasedSlidingHandler;
 import gsn.beans.windowing.SlidingHandler;
+import gsn.beans.windowing.TimestampIndex;
 import gsn.beans.windowing.TupleBasedSlidingHandler;
+import gsn.beans.windowing.WindowBuffer;
 import gsn.beans.windowing.WindowType;
 import gsn.storage.StorageManager;
 import gsn.utils.GSNRuntimeException;
 
 import java.io.Serializable;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
@@ -78,6 +82,47 @@ public abstract class AbstractWrapper extends Thread {
 
 	public static final int GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS = 2;
 
+	/**
+	 * The number of elements posted between two deletions of the rows of the
+	 * wrapper table which are not needed anymore, set by the
+	 * windowDeleteInterval system property.
+	 */
+	public static final int DELETE_AFTER_SPECIFIED_NO_OF_ELEMENTS = System.getProperty("windowDeleteInterval") == null ? 100 : Integer.parseInt(System
+			.getProperty("windowDeleteInterval"));
+
+	/**
+	 * Predicate of the address selecting where the windows of the wrapper are
+	 * kept, either <code>sql</code> (default, the wrapper table in the window
+	 * storage) or <code>memory</code> (see {@link WindowBuffer}).
+	 */
+	public static final String WINDOW_STORAGE = "window-storage";
+
+	public static final String WINDOW_STORAGE_MEMORY = "memory";
+
+	private WindowBuffer windowBuffer;
+
+	/**
+	 * The timestamps of the rows of the wrapper table, built from the inserts
+	 * once first needed (see {@link #getTimestampIndex()}).
+	 */
+	private volatile TimestampIndex timestampIndex;
+
+	private final Object timestampIndexLock = new Object();
+
+	/**
+	 * The rows of the wrapper table older than this are not needed anymore,
+	 * -1 if there are none.
+	 */
+	private long deleteOlderThan = -1;
+
+	private long noOfCallsToPostSEAtLastDelete = 0;
+
+	/**
+	 * Number of listeners whose window can't be evaluated in memory and still
+	 * rely on the wrapper table.
+	 */
+	private int sqlWindowListeners = 0;
+
 	/**
 	 * Returns the view name created for this listener. Note that, GSN creates
 	 * one view per listener.
@@ -85,6 +130,14 @@ public abstract class AbstractWrapper extends Thread {
 	 * @throws SQLException
 	 */
 	public void addListener(StreamSource ss) throws SQLException {
+		if (windowBuffer == null && activeAddressBean != null
+				&& WINDOW_STORAGE_MEMORY.equalsIgnoreCase(activeAddressBean.getPredicateValue(WINDOW_STORAGE)))
+			windowBuffer = new WindowBuffer(getOutputFormat());
+		if (!isWindowInMemory(ss)) {
+			sqlWindowListeners++;
+			if (windowBuffer != null)
+				logger.info("The stream source " + ss.getAlias() + " can't be evaluated in memory, falling back to the wrapper table.");
+		}
 		if (WindowType.isTimeBased(ss.getWindowingType())) {
 			if (timeBasedSlidingHandler == null) {
 				timeBasedSlidingHandler = isUsingRemoteTimestamp() == false ? new LocalTimeBasedSlidingHandler(
@@ -118,18 +171,152 @@ public abstract class AbstractWrapper extends Thread {
 	 * @throws SQLException
 	 */
 	public void removeListener(StreamSource ss) throws SQLException {
-		listeners.remove(ss);
+		boolean removed = listeners.remove(ss);
+		if (removed && !isWindowInMemory(ss))
+			sqlWindowListeners--;
 		// getStorageManager( ).executeDropView( ss.getUIDStr() );
 		for (SlidingHandler slidingHandler : slidingHandlers.values()) {
 			if (slidingHandler.isInterestedIn(ss))
 				slidingHandler.removeStreamSource(ss);
 		}
-		if (listeners.size() == 0) {
+		// a shared wrapper is released with the last of its references
+		if (removed ? WrapperRegistry.release(this) : listeners.size() == 0) {
 			releaseResources();
 		}
 		
 	}
 
+	/**
+	 * @return the in-memory window storage of this wrapper or null if the
+	 *         windows are kept in the wrapper table.
+	 */
+	public WindowBuffer getWindowBuffer() {
+		return windowBuffer;
+	}
+
+	/**
+	 * @return true if the window of the stream source is evaluated in memory
+	 *         (against the window buffer or on the latest element) rather than
+	 *         with the SQL views.
+	 */
+	public boolean isWindowInMemory(StreamSource ss) {
+		return MemoryQueryRewriter.isApplicable(ss, windowBuffer != null);
+	}
+
+	/**
+	 * The index is built from the inserts. The rows already in the wrapper
+	 * table when it is first needed, left by a previous run when the window
+	 * storage is persistent, are only loaded as far back as the largest window
+	 * of the listeners goes, the older ones being deleted by the garbage
+	 * collection.
+	 */
+	private TimestampIndex getTimestampIndex() throws SQLException {
+		TimestampIndex existing = timestampIndex;
+		if (existing != null)
+			return existing;
+		// the virtual sensors sharing the wrapper may need it at the same time
+		synchronized (timestampIndexLock) {
+			if (timestampIndex != null)
+				return timestampIndex;
+			TimestampIndex index = new TimestampIndex();
+			StorageManager storage = Main.getWindowStorage();
+			Connection conn = null;
+			PreparedStatement ps = null;
+			ResultSet rs = null;
+			try {
+				conn = storage.getConnection();
+				long oldest = getOldestTimestampInWindows(conn);
+				if (oldest != Long.MAX_VALUE) {
+					ps = conn.prepareStatement("select timed from " + aliasCodeS + " where timed >= ? order by timed asc");
+					ps.setLong(1, oldest);
+					rs = ps.executeQuery();
+					while (rs.next())
+						index.append(rs.getLong(1));
+				}
+			} finally {
+				storage.close(rs);
+				storage.close(ps);
+				storage.close(conn);
+			}
+			timestampIndex = index;
+			return index;
+		}
+	}
+
+	/**
+	 * @return the oldest timestamp of the rows of the wrapper table in the
+	 *         largest count based window or in the largest time based window
+	 *         of the listeners, Long.MAX_VALUE if the table is empty.
+	 */
+	private long getOldestTimestampInWindows(Connection conn) throws SQLException {
+		StorageManager storage = Main.getWindowStorage();
+		long newest;
+		ResultSet rs = storage.executeQueryWithResultSet(new StringBuilder("select max(timed) from ").append(aliasCodeS), conn);
+		try {
+			if (!rs.next())
+				return Long.MAX_VALUE;
+			newest = rs.getLong(1);
+			if (rs.wasNull())
+				return Long.MAX_VALUE;
+		} finally {
+			storage.close(rs);
+		}
+		long maxCount = 1;
+		long maxTime = -1;
+		for (StreamSource ss : listeners) {
+			if (ss.getParsedStorageSize() == StreamSource.STORAGE_SIZE_NOT_SET)
+				continue;
+			if (ss.isStorageCountBased())
+				maxCount = Math.max(maxCount, ss.getParsedStorageSize());
+			else
+				maxTime = Math.max(maxTime, ss.getParsedStorageSize());
+		}
+		// the time based windows end at the current time or at the newest timestamp
+		long oldest = maxTime < 0 ? newest : Math.min(newest, System.currentTimeMillis()) - maxTime;
+		if (maxCount > 1) {
+			PreparedStatement ps = null;
+			try {
+				ps = conn.prepareStatement("select distinct(timed) from " + aliasCodeS + " order by timed desc");
+				ps.setMaxRows((int) Math.min(maxCount, Integer.MAX_VALUE));
+				rs = ps.executeQuery();
+				while (rs.next())
+					oldest = Math.min(oldest, rs.getLong(1));
+			} finally {
+				storage.close(rs);
+				storage.close(ps);
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Equivalent of <code>select max(timed) from wrapper</code>.
+	 * 
+	 * @return The timestamp of the newest element kept for the windows or -1
+	 *         if there are none.
+	 */
+	public long getNewestTimestamp() {
+		return getTimestamp(Long.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Equivalent of
+	 * <code>select timed from wrapper where timed &lt;= upTo order by timed desc limit 1 offset N</code>
+	 * , answered from the window buffer or the timestamp index.
+	 * 
+	 * @return The timestamp found or -1 if there is not enough elements.
+	 */
+	public long getTimestamp(long upTo, long offsetFromNewest) {
+		if (windowBuffer != null)
+			return windowBuffer.getTimestamp(upTo, offsetFromNewest);
+		try {
+			return getTimestampIndex().getTimestamp(upTo, offsetFromNewest);
+		} catch (SQLException e) {
+			logger.error(e.getMessage(), e);
+			return -1;
+		}
+	}
+
 	/**
 	 * @return the listeners
 	 */
@@ -186,10 +373,13 @@ public abstract class AbstractWrapper extends Thread {
 					"There is already an active address bean associated with the wrapper.");
 		}
 		this.activeAddressBean = newVal;
+		this.backpressure = new Backpressure(getWrapperName() + "-" + aliasCodeS, newVal);
 	}
 
 	private long noOfCallsToPostSE = 0;
 
+	private volatile Backpressure backpressure;
+
 	private final transient int aliasCode = Main.getWindowStorage().tableNameGenerator();
 	private final CharSequence aliasCodeS = Main.getWindowStorage().tableNameGeneratorInString(aliasCode);
 
@@ -207,6 +397,16 @@ public abstract class AbstractWrapper extends Thread {
 		return isActive;
 	}
 
+	/**
+	 * @return the backpressure policy of the wrapper, set by the predicates of
+	 *         its address.
+	 */
+	public Backpressure getBackpressure() {
+		if (backpressure == null)
+			backpressure = new Backpressure(getWrapperName() + "-" + aliasCodeS, null);
+		return backpressure;
+	}
+
 	protected void postStreamElement(Serializable... values) {
 		StreamElement se = new StreamElement(getOutputFormat(), values, System
 				.currentTimeMillis());
@@ -227,6 +427,7 @@ public abstract class AbstractWrapper extends Thread {
 	 * @param streamElement
 	 * @return If the method returns false, it means the insertion doesn't
 	 *         effected any input stream.
+	 * @see Backpressure
 	 */
 
 	protected Boolean postStreamElement(StreamElement streamElement) {
@@ -235,10 +436,70 @@ public abstract class AbstractWrapper extends Thread {
 					+ getWrapperName() + " might has a problem !");
 			return false;
 		}
+		if (!isActive() || listeners.size() == 0)
+			return false;
+		Backpressure backpressure = getBackpressure();
+		// the spilled elements go first, in the order they were posted
+		if (backpressure.hasSpilled() && !postSpilled(backpressure)) {
+			backpressure.spill(streamElement);
+			return false;
+		}
+		if (backpressure.isOverloaded(listeners))
+			return backpressure.admit(streamElement) && post(streamElement);
+		return post(streamElement);
+	}
+
+	/**
+	 * Propagates an element, spilling it if it fails and the wrapper spills
+	 * the elements which couldn't be posted.
+	 */
+	private boolean post(StreamElement streamElement) {
+		try {
+			return propagate(streamElement);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			Backpressure backpressure = getBackpressure();
+			if (backpressure.isSpilling()) {
+				backpressure.failed();
+				backpressure.spill(streamElement);
+				logger.error("Produced data item from the wrapper is spilled, it will be propagated once the system recovers.");
+			} else
+				logger.error("Produced data item from the wrapper couldn't be propagated inside the system.");
+			return false;
+		}
+	}
+
+	/**
+	 * Propagates the spilled elements in order. The elements which were
+	 * already propagated before failing are dropped as out of order.
+	 * 
+	 * @return true if there are no spilled elements left.
+	 */
+	private boolean postSpilled(Backpressure backpressure) {
+		while (backpressure.hasSpilled()) {
+			if (!backpressure.canRetry() || backpressure.isOverloaded(listeners))
+				return false;
+			StreamElement spilled = backpressure.peekSpilled();
+			if (spilled == null)
+				continue;
+			try {
+				propagate(spilled);
+			} catch (Exception e) {
+				logger.warn("Propagating the spilled elements failed, trying again later: " + e.getMessage(), e);
+				backpressure.failed();
+				return false;
+			}
+			backpressure.unspilled();
+		}
+		return true;
+	}
+
+	private boolean propagate(StreamElement streamElement) throws Exception {
+		long start = System.currentTimeMillis();
 		try {
 			if (!isActive() || listeners.size() == 0)
 				return false;
-			if (!insertIntoWrapperTable(streamElement))
+			if (!insertIntoWindowStorage(streamElement))
 				return false;
 			boolean toReturn = false;
 
@@ -253,15 +514,49 @@ public abstract class AbstractWrapper extends Thread {
 
 			if (++noOfCallsToPostSE
 					% GARBAGE_COLLECT_AFTER_SPECIFIED_NO_OF_ELEMENTS == 0) {
-				int removedRaws = removeUselessValues();
+				try {
+					collectGarbage();
+				} catch (SQLException e) {
+					logger.error(e.getMessage(), e);
+				}
 			}
 			return toReturn;
-		} catch (Exception e) {
-			logger.error(e.getMessage(), e);
-			logger
-					.error("Produced data item from the wrapper couldn't be propagated inside the system.");
+		} finally {
+			getBackpressure().posted(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Stores the stream element where the windows of the listeners are
+	 * evaluated, the in-memory window storage and/or the wrapper table.
+	 * 
+	 * @return true if the stream element is successfully stored.
+	 * @throws SQLException
+	 */
+	private boolean insertIntoWindowStorage(StreamElement se) throws SQLException {
+		if (windowBuffer == null && sqlWindowListeners > 0)
+			return insertIntoWrapperTable(se);
+		if (listeners.size() == 0)
 			return false;
+		if (isOutOfOrder(se)) {
+			logger.debug("Out of order data item detected, it is not propagated into the system : [" + se.toString() + "]");
+			return false;
+		}
+		if (sqlWindowListeners > 0) {
+			TimestampIndex index = getTimestampIndex();
+			Connection conn = null;
+			try {
+				conn = Main.getWindowStorage().getConnection();
+				Main.getWindowStorage().executeInsert(aliasCodeS, getOutputFormat(), se, conn);
+			} finally {
+				Main.getWindowStorage().close(conn);
+			}
+			index.append(se.getTimeStamp());
 		}
+		if (windowBuffer != null)
+			windowBuffer.append(se);
+		lastInOrderTimestamp = se.getTimeStamp();
+		return true;
 	}
 
 	/**
@@ -285,8 +580,10 @@ public abstract class AbstractWrapper extends Thread {
 				logger.debug("Out of order data item detected, it is not propagated into the system : [" + se.toString() + "]");
 				return false;
 			}
+			TimestampIndex index = getTimestampIndex();
 			conn = Main.getWindowStorage().getConnection();
 			Main.getWindowStorage().executeInsert(aliasCodeS, getOutputFormat(), se, conn);
+			index.append(se.getTimeStamp());
             lastInOrderTimestamp = se.getTimeStamp();
             return true;
 		} finally {
@@ -297,26 +594,14 @@ public abstract class AbstractWrapper extends Thread {
     public boolean isOutOfOrder(StreamElement se) throws SQLException {
         if (listeners.size() == 0)
 			return false;
-        Connection conn = null;
-		try {
-			// Checks if the stream element is out of order
-            if (lastInOrderTimestamp == null) {
-                conn = Main.getWindowStorage().getConnection();
-                StringBuilder query = new StringBuilder();
-				query.append("select max(timed) from ").append(aliasCodeS);
-
-				ResultSet rs = Main.getWindowStorage().executeQueryWithResultSet(query,
-						conn);
-				if (rs.next()) {
-					lastInOrderTimestamp = rs.getLong(1);
-				} else {
-					lastInOrderTimestamp = Long.MIN_VALUE; // Table is empty
-				}
-			}
-            return (se.getTimeStamp() <= lastInOrderTimestamp);
-		} finally {
-			Main.getWindowStorage().close(conn);
-		}
+		// Checks if the stream element is out of order
+        if (lastInOrderTimestamp == null && sqlWindowListeners == 0) {
+            lastInOrderTimestamp = Long.MIN_VALUE; // Nothing stored yet
+        } else if (lastInOrderTimestamp == null) {
+            TimestampIndex index = getTimestampIndex();
+            lastInOrderTimestamp = index.size() > 0 ? index.getNewestTimestamp() : Long.MIN_VALUE;
+        }
+        return (se.getTimeStamp() <= lastInOrderTimestamp);
     }
 
 	/**
@@ -347,11 +632,10 @@ public abstract class AbstractWrapper extends Thread {
 	}
 
 	/**
-	 * Removes all the listeners, drops the views representing them, drops the
-	 * sensor table, stops the TableSizeEnforce thread.
-	 * 
+	 * Returns the oldest timestamp still needed by the windows of the
+	 * listeners or -1 if nothing can be removed.
 	 */
-	public StringBuilder getUselessWindow() {
+	public long getOldestNeededTimestamp() {
 		long minTimed = -1;
 		synchronized (slidingHandlers) {
 			for (SlidingHandler slidingHandler : slidingHandlers.values()) {
@@ -368,7 +652,19 @@ public abstract class AbstractWrapper extends Thread {
 		}
 
 		logger.debug("Oldest timestamp : " + minTimed);
+		return minTimed;
+	}
+
+	/**
+	 * Removes all the listeners, drops the views representing them, drops the
+	 * sensor table, stops the TableSizeEnforce thread.
+	 * 
+	 */
+	public StringBuilder getUselessWindow() {
+		return getUselessWindow(getOldestNeededTimestamp());
+	}
 
+	private StringBuilder getUselessWindow(long minTimed) {
 		if (minTimed == -1)
 			return null;
 		StringBuilder sb = new StringBuilder("delete from ").append(
@@ -377,8 +673,52 @@ public abstract class AbstractWrapper extends Thread {
 		return sb;
 	}
 
+	/**
+	 * Drops the elements not needed anymore by the windows from the memory,
+	 * the rows of the wrapper table being deleted every
+	 * {@link #DELETE_AFTER_SPECIFIED_NO_OF_ELEMENTS} elements.
+	 */
+	private void collectGarbage() throws SQLException {
+		removeOlderThan(getOldestNeededTimestamp());
+		if (noOfCallsToPostSE - noOfCallsToPostSEAtLastDelete >= DELETE_AFTER_SPECIFIED_NO_OF_ELEMENTS)
+			deleteUselessRows();
+	}
+
+	/**
+	 * Drops the elements not needed anymore by the windows, from the memory
+	 * and the wrapper table.
+	 * 
+	 * @return The number of elements dropped.
+	 */
 	public int removeUselessValues() throws SQLException {
-		StringBuilder query = getUselessWindow();
+		int removedElements = removeOlderThan(getOldestNeededTimestamp());
+		if (sqlWindowListeners == 0)
+			return removedElements;
+		return deleteUselessRows();
+	}
+
+	private int removeOlderThan(long minTimed) {
+		if (minTimed == -1)
+			return 0;
+		int removedElements = 0;
+		if (windowBuffer != null) {
+			removedElements = windowBuffer.removeOlderThan(minTimed);
+			if (logger.isDebugEnabled())
+				logger.debug(new StringBuilder().append(removedElements).append(
+						" old elements dropped from the window buffer of ").append(getDBAliasInStr())
+						.toString());
+		}
+		if (sqlWindowListeners > 0) {
+			if (timestampIndex != null)
+				removedElements = timestampIndex.removeOlderThan(minTimed);
+			deleteOlderThan = Math.max(deleteOlderThan, minTimed);
+		}
+		return removedElements;
+	}
+
+	private int deleteUselessRows() throws SQLException {
+		noOfCallsToPostSEAtLastDelete = noOfCallsToPostSE;
+		StringBuilder query = getUselessWindow(deleteOlderThan);
 		if (query == null)
 			return 0;
 		if (logger.isDebugEnabled())
@@ -395,13 +735,19 @@ public abstract class AbstractWrapper extends Thread {
 
 	public void releaseResources() throws SQLException {
 		isActive = false;
+		WrapperRegistry.remove(this);
 		dispose();
+		getBackpressure().dispose();
 		if (logger.isInfoEnabled())
 			logger.info("dispose called");
 		listeners.clear();
 		for (SlidingHandler slidingHandler : slidingHandlers.values()) {
 			slidingHandler.dispose();
 		}
+		if (windowBuffer != null)
+			windowBuffer.clear();
+		if (timestampIndex != null)
+			timestampIndex.clear();
 		Main.getWindowStorage().executeDropTable(aliasCodeS);
 	}
 
@@ -455,6 +801,17 @@ public abstract class AbstractWrapper extends Thread {
 		return true;
 	}
 
+	/**
+	 * Returns true (default value) if the wrapper can be shared by the stream
+	 * sources of several virtual sensors having the same address (see
+	 * {@link WrapperRegistry}), unless its <code>shared</code> predicate is
+	 * <code>false</code>. Wrappers whose state depends on the virtual sensor
+	 * using them should return false.
+	 */
+	public boolean isShareable() {
+		return !"false".equalsIgnoreCase(getActiveAddressBean().getPredicateValue(WrapperRegistry.SHARED));
+	}
+
 	public boolean manualDataInsertion(StreamElement se) {
 		throw new RuntimeException(
 				"Manual data insertion is not supported by this wrapper");
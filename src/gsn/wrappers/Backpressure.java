@@ -0,0 +1,344 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/Backpressure.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers;
+
+import gsn.VirtualSensor;
+import gsn.beans.AddressBean;
+import gsn.beans.InputStream;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tells a wrapper when the system can't keep up with the elements it posts,
+ * and what to do with them then. The system is overloaded when the mailbox
+ * of a virtual sensor listening to the wrapper is nearly full, or for a while
+ * after posting an element took too long, which happens when the storage is
+ * slow.
+ * <p>
+ * The policy is set by the predicates of the address of the wrapper in the
+ * virtual sensor descriptor:
+ * <ul>
+ * <li><code>backpressure</code>: <code>block</code> (the default) waits for
+ * the system, <code>sample</code> only posts one element out of
+ * <code>backpressure-sample</code> (10 by default), <code>drop</code> drops
+ * the elements and <code>spill</code> keeps them in a local file, posted once
+ * the system keeps up again.</li>
+ * <li><code>backpressure-latency</code>: the time in milliseconds above which
+ * posting an element is too long, 1000 by default.</li>
+ * <li><code>spill-on-failure</code>: <code>true</code> to also spill the
+ * elements which couldn't be posted because of an error, as the
+ * <code>spill</code> policy does, so that they are posted again once the
+ * storage recovers. The wrapper then tries again every
+ * <code>spill-retry</code> milliseconds (5000 by default).</li>
+ * </ul>
+ * The spilled elements are kept in a {@link SpillQueue} in
+ * <code>spillDirectory</code>, named after the virtual sensor, the input stream
+ * and the wrapper, and are posted again after a restart.
+ */
+public class Backpressure {
+
+	private static final transient Logger logger = Logger.getLogger(Backpressure.class);
+
+	public static final String POLICY = "backpressure";
+
+	public static final String SAMPLE = "backpressure-sample";
+
+	public static final String LATENCY = "backpressure-latency";
+
+	public static final String SPILL_ON_FAILURE = "spill-on-failure";
+
+	public static final String SPILL_RETRY = "spill-retry";
+
+	/**
+	 * The directory of the spill files, set by the spillDirectory system
+	 * property.
+	 */
+	public static final String SPILL_DIRECTORY = System.getProperty("spillDirectory") == null ? "spill" : System.getProperty("spillDirectory");
+
+	public static enum Policy {
+		block, sample, drop, spill
+	}
+
+	private final String name;
+
+	private final Policy policy;
+
+	private final int sampling;
+
+	private final long maxLatency;
+
+	private final int maxQueueDepth = VirtualSensor.MAILBOX_SIZE * 3 / 4;
+
+	private final long retryInterval;
+
+	private volatile long slowUntil = 0;
+
+	private volatile long failedUntil = 0;
+
+	private volatile boolean overloaded = false;
+
+	private final AtomicLong sampleCounter = new AtomicLong();
+
+	/**
+	 * The directory of the spill queue, null if the elements are not spilled.
+	 */
+	private File spillDirectory;
+
+	private SpillQueue spillQueue;
+
+	private boolean spillQueueFailed = false;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong sampledOut = new AtomicLong();
+
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            identifies the wrapper in the logs and its spill file.
+	 * @param address
+	 *            the address of the wrapper, null for the defaults.
+	 */
+	public Backpressure(String name, AddressBean address) {
+		this.name = name;
+		Policy policy = Policy.block;
+		int sampling = 10;
+		long maxLatency = 1000;
+		long retryInterval = 5000;
+		boolean spillOnFailure = false;
+		if (address != null) {
+			String value = address.getPredicateValue(POLICY);
+			if (value != null) {
+				try {
+					policy = Policy.valueOf(value.trim().toLowerCase());
+				} catch (IllegalArgumentException e) {
+					logger.error("Unknown " + POLICY + " policy " + value + " for " + name + ", using " + policy);
+				}
+			}
+			sampling = Math.max(1, address.getPredicateValueAsInt(SAMPLE, sampling));
+			maxLatency = address.getPredicateValueAsInt(LATENCY, (int) maxLatency);
+			retryInterval = address.getPredicateValueAsInt(SPILL_RETRY, (int) retryInterval);
+			spillOnFailure = Boolean.parseBoolean(address.getPredicateValue(SPILL_ON_FAILURE));
+		}
+		this.policy = policy;
+		this.sampling = sampling;
+		this.maxLatency = maxLatency;
+		this.retryInterval = retryInterval;
+		if (policy == Policy.spill || spillOnFailure) {
+			String queueName = name;
+			if (address != null && address.getVirtualSensorName() != null)
+				queueName = address.getVirtualSensorName() + "." + address.getInputStreamName() + "." + address.getWrapper();
+			spillDirectory = new File(SPILL_DIRECTORY, queueName.toLowerCase().replaceAll("[^a-z0-9_.-]", "_"));
+		}
+	}
+
+	/**
+	 * @return the spill queue, opened the first time it is needed, or null if
+	 *         the elements are not spilled.
+	 */
+	private synchronized SpillQueue getSpillQueue() {
+		if (spillQueue == null && spillDirectory != null && !spillQueueFailed) {
+			try {
+				spillQueue = new SpillQueue(spillDirectory);
+			} catch (IOException e) {
+				spillQueueFailed = true;
+				logger.error("Can't open the spill queue of " + name + ", its elements won't be spilled: " + e.getMessage(), e);
+			}
+		}
+		return spillQueue;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return true if the elements are posted faster than the system
+	 *         processes them.
+	 */
+	public boolean isOverloaded(List<StreamSource> listeners) {
+		boolean now = System.currentTimeMillis() < slowUntil || isQueueFull(listeners);
+		if (now != overloaded) {
+			overloaded = now;
+			if (now)
+				logger.warn("The system can't keep up with " + name + ", applying the " + policy + " policy.");
+			else
+				logger.warn("The system keeps up with " + name + " again (dropped: " + dropped + ", sampled out: " + sampledOut + ", spilled: " + spilled + ").");
+		}
+		return now;
+	}
+
+	private boolean isQueueFull(List<StreamSource> listeners) {
+		synchronized (listeners) {
+			for (StreamSource ss : listeners) {
+				InputStream is = ss.getInputStream();
+				VirtualSensor pool = is == null ? null : is.getPool();
+				if (pool != null && pool.getQueueDepth() >= maxQueueDepth)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the elements which couldn't be posted are spilled.
+	 */
+	public boolean isSpilling() {
+		return getSpillQueue() != null;
+	}
+
+	/**
+	 * Records that posting an element failed, the spilled elements are then
+	 * not posted again before the retry interval.
+	 */
+	public void failed() {
+		failedUntil = System.currentTimeMillis() + retryInterval;
+	}
+
+	/**
+	 * @return true if the spilled elements can be posted again.
+	 */
+	public boolean canRetry() {
+		return System.currentTimeMillis() >= failedUntil;
+	}
+
+	/**
+	 * Records the time it took to post an element.
+	 */
+	public void posted(long millis) {
+		if (millis > maxLatency)
+			slowUntil = System.currentTimeMillis() + maxLatency;
+	}
+
+	/**
+	 * Applies the policy to an element posted while the system is overloaded.
+	 *
+	 * @return true if the element is to be posted anyway.
+	 */
+	public boolean admit(StreamElement se) {
+		switch (policy) {
+		case sample:
+			if (sampleCounter.getAndIncrement() % sampling == 0)
+				return true;
+			sampledOut.incrementAndGet();
+			return false;
+		case drop:
+			dropped.incrementAndGet();
+			return false;
+		case spill:
+			if (getSpillQueue() == null)
+				return true;
+			spill(se);
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	public void spill(StreamElement se) {
+		SpillQueue spillQueue = getSpillQueue();
+		if (spillQueue == null) {
+			dropped.incrementAndGet();
+			return;
+		}
+		try {
+			spillQueue.append(se);
+			spilled.incrementAndGet();
+		} catch (IOException e) {
+			dropped.incrementAndGet();
+			logger.error("Can't spill the element of " + name + ", it is dropped: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return true if there are spilled elements waiting to be posted.
+	 */
+	public boolean hasSpilled() {
+		SpillQueue spillQueue = getSpillQueue();
+		return spillQueue != null && !spillQueue.isEmpty();
+	}
+
+	/**
+	 * @return the oldest spilled element, left in the queue until
+	 *         {@link #unspilled()} is called, or null if there are none left.
+	 */
+	public StreamElement peekSpilled() {
+		SpillQueue spillQueue = getSpillQueue();
+		try {
+			return spillQueue.peek();
+		} catch (IOException e) {
+			logger.error("Can't read the spill queue of " + name + ", its elements are dropped: " + e.getMessage(), e);
+			dropped.addAndGet(spillQueue.size());
+			spillQueue.clear();
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the oldest spilled element, once it is posted.
+	 */
+	public void unspilled() {
+		getSpillQueue().remove();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getSampledOutCount() {
+		return sampledOut.get();
+	}
+
+	public long getSpilledCount() {
+		return spilled.get();
+	}
+
+	public synchronized int getSpillQueueSize() {
+		return spillQueue == null ? 0 : spillQueue.size();
+	}
+
+	/**
+	 * Closes the spill queue, called when the wrapper is released. The
+	 * elements left in it are posted by the next wrapper opening it.
+	 */
+	public synchronized void dispose() {
+		if (spillQueue == null)
+			return;
+		if (!spillQueue.isEmpty())
+			logger.warn(spillQueue.size() + " spilled element(s) of " + name + " are kept in " + spillQueue.getDirectory());
+		spillQueue.close();
+		spillQueue = null;
+		spillDirectory = null;
+	}
+}
@@ -84,6 +84,13 @@ public class JDBCWrapper extends AbstractWrapper {
         return "JDBCWrapper";
     }
 
+    /**
+     * Resumes from the output table and the checkpoint of its own virtual sensor.
+     */
+    public boolean isShareable() {
+        return false;
+    }
+
     public void dispose() {
         threadCounter--;
     }
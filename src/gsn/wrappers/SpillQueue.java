@@ -0,0 +1,438 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/SpillQueue.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers;
+
+import gsn.beans.StreamElement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A first in, first out queue of stream elements written ahead to local
+ * files, for the elements a wrapper can't post for now. The elements are kept
+ * across restarts, until they are removed from the queue.
+ * <p>
+ * The queue is a directory of segments, files mapped in memory in which the
+ * elements are appended as records: the length of the encoded element, the
+ * CRC32 of the encoding and the encoding. Removing an element negates its
+ * length in place, and a segment is deleted once all its elements are
+ * removed. An element is on disk as soon as it is appended, unless the
+ * operating system crashes before it writes the pages of the segment, which
+ * are forced at most every <code>spillSyncInterval</code> milliseconds (1000
+ * by default). The segments are <code>spillSegmentSize</code> bytes long (4 MB
+ * by default).
+ * <p>
+ * A queue opened on a directory already in use by this process gets the
+ * directory suffixed with <code>-1</code>, <code>-2</code>, ... instead. The
+ * elements left in these directories are moved to the queue of the directory
+ * the next time it is opened, if they are not in use anymore. A crash while
+ * they are moved may post some of them twice.
+ */
+public class SpillQueue {
+
+	private static final transient Logger logger = Logger.getLogger(SpillQueue.class);
+
+	public static final int SEGMENT_SIZE = System.getProperty("spillSegmentSize") == null ? 4 * 1024 * 1024 : Integer.parseInt(System
+			.getProperty("spillSegmentSize"));
+
+	public static final long SYNC_INTERVAL = System.getProperty("spillSyncInterval") == null ? 1000 : Long.parseLong(System.getProperty("spillSyncInterval"));
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * The directories of the queues opened by this process.
+	 */
+	private static final Set<File> opened = new HashSet<File>();
+
+	private static class Segment {
+		final File file;
+
+		final MappedByteBuffer buffer;
+
+		/**
+		 * The position of the next record to read.
+		 */
+		int head = 0;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				int length = (int) Math.max(raf.length(), size);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private final File directory;
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	private long nextSegment = 0;
+
+	private int size = 0;
+
+	private long lastSync = 0;
+
+	/**
+	 * Opens the queue kept in the directory, with the elements it holds.
+	 */
+	public SpillQueue(File directory) throws IOException {
+		synchronized (opened) {
+			File candidate = directory;
+			for (int i = 1; opened.contains(candidate.getAbsoluteFile()); i++)
+				candidate = new File(directory.getPath() + "-" + i);
+			this.directory = candidate;
+			opened.add(candidate.getAbsoluteFile());
+		}
+		open();
+		if (this.directory == directory)
+			adoptSiblings();
+	}
+
+	/**
+	 * Opens the queue of a directory already added to the opened ones.
+	 */
+	private SpillQueue(File directory, boolean reserved) throws IOException {
+		this.directory = directory;
+		open();
+	}
+
+	private void open() throws IOException {
+		try {
+			if (!directory.exists() && !directory.mkdirs())
+				throw new IOException("Can't create the directory " + directory);
+			recover();
+		} catch (IOException e) {
+			synchronized (opened) {
+				opened.remove(directory.getAbsoluteFile());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Moves to this queue the elements of the suffixed directories which are
+	 * not in use, oldest directory first, and deletes them.
+	 */
+	private void adoptSiblings() {
+		final String prefix = directory.getName() + "-";
+		File[] siblings = directory.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.length() > prefix.length() && name.substring(prefix.length()).matches("\\d{1,9}");
+			}
+		});
+		if (siblings == null)
+			return;
+		Arrays.sort(siblings, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Integer.parseInt(a.getName().substring(prefix.length())) - Integer.parseInt(b.getName().substring(prefix.length()));
+			}
+		});
+		for (File sibling : siblings) {
+			synchronized (opened) {
+				if (!opened.add(sibling.getAbsoluteFile()))
+					continue;
+			}
+			try {
+				SpillQueue queue = new SpillQueue(sibling.getAbsoluteFile(), true);
+				int moved = 0;
+				try {
+					for (StreamElement se = queue.peek(); se != null; se = queue.peek()) {
+						append(se);
+						queue.remove();
+						moved++;
+					}
+				} finally {
+					queue.close();
+				}
+				if (moved > 0)
+					logger.warn(moved + " spilled element(s) moved from " + sibling + " to " + directory);
+				if (!sibling.delete())
+					logger.warn("Can't delete the spill directory " + sibling);
+			} catch (IOException e) {
+				logger.error("Can't move the spilled elements of " + sibling + " to " + directory + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		long[] numbers = new long[files.length];
+		int count = 0;
+		for (File file : files) {
+			try {
+				numbers[count++] = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				count--;
+			}
+		}
+		Arrays.sort(numbers, 0, count);
+		for (int i = 0; i < count; i++) {
+			Segment segment = new Segment(segmentFile(numbers[i]), 0);
+			int records = scan(segment);
+			if (records == 0 && i < count - 1) {
+				delete(segment);
+				continue;
+			}
+			size += records;
+			segments.add(segment);
+			nextSegment = numbers[i] + 1;
+		}
+		if (size > 0)
+			logger.warn(size + " spilled element(s) recovered from " + directory);
+	}
+
+	/**
+	 * Moves the head of the segment to its first record left and its position
+	 * after the last valid one.
+	 *
+	 * @return the number of records left.
+	 */
+	private int scan(Segment segment) {
+		int records = 0;
+		int position = 0;
+		int head = -1;
+		while (position + HEADER_SIZE <= segment.buffer.capacity()) {
+			int length = segment.buffer.getInt(position);
+			if (length == 0)
+				break;
+			int abs = Math.abs(length);
+			if (abs < 0 || position + HEADER_SIZE + abs > segment.buffer.capacity() || crc(segment.buffer, position + HEADER_SIZE, abs) != segment.buffer.getInt(position + 4)) {
+				logger.warn("Ignoring the corrupted end of the spill segment " + segment.file + " from " + position);
+				// the next appends overwrite it
+				segment.buffer.putInt(position, 0);
+				break;
+			}
+			if (length > 0) {
+				records++;
+				if (head == -1)
+					head = position;
+			}
+			position += HEADER_SIZE + abs;
+		}
+		segment.buffer.position(position);
+		segment.head = head == -1 ? position : head;
+		return records;
+	}
+
+	private File segmentFile(long number) {
+		return new File(directory, String.format("%020d", number) + SEGMENT_SUFFIX);
+	}
+
+	private static int crc(MappedByteBuffer buffer, int position, int length) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < length; i++)
+			crc.update(buffer.get(position + i));
+		return (int) crc.getValue();
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	public synchronized void append(StreamElement se) throws IOException {
+		byte[] record = encode(se);
+		Segment tail = segments.isEmpty() ? null : segments.getLast();
+		// a zero length after the record marks the end of the segment
+		if (tail == null || tail.buffer.remaining() < HEADER_SIZE + record.length + 4) {
+			tail = new Segment(segmentFile(nextSegment++), Math.max(SEGMENT_SIZE, HEADER_SIZE + record.length + 4));
+			segments.add(tail);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		int position = tail.buffer.position();
+		tail.buffer.position(position + 4);
+		tail.buffer.putInt((int) crc.getValue());
+		tail.buffer.put(record);
+		// the length goes last, the record is valid once it is written
+		tail.buffer.putInt(position, record.length);
+		size++;
+		long now = System.currentTimeMillis();
+		if (now - lastSync >= SYNC_INTERVAL) {
+			tail.buffer.force();
+			lastSync = now;
+		}
+	}
+
+	/**
+	 * @return the oldest element of the queue, or null if it is empty.
+	 */
+	public synchronized StreamElement peek() throws IOException {
+		Segment segment = first();
+		if (segment == null)
+			return null;
+		int length = segment.buffer.getInt(segment.head);
+		byte[] record = new byte[length];
+		for (int i = 0; i < length; i++)
+			record[i] = segment.buffer.get(segment.head + HEADER_SIZE + i);
+		return decode(record);
+	}
+
+	/**
+	 * Removes the oldest element of the queue.
+	 */
+	public synchronized void remove() {
+		Segment segment = first();
+		if (segment == null)
+			return;
+		int length = segment.buffer.getInt(segment.head);
+		segment.buffer.putInt(segment.head, -length);
+		segment.head += HEADER_SIZE + length;
+		if (--size == 0)
+			clear();
+		else
+			skipRemoved(segment);
+	}
+
+	/**
+	 * @return the oldest element of the queue, removed from it, or null if it
+	 *         is empty.
+	 */
+	public synchronized StreamElement poll() throws IOException {
+		StreamElement se = peek();
+		if (se != null)
+			remove();
+		return se;
+	}
+
+	/**
+	 * @return the segment holding the oldest element, the segments before it
+	 *         being deleted, or null if the queue is empty.
+	 */
+	private Segment first() {
+		if (size == 0)
+			return null;
+		while (!segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			skipRemoved(segment);
+			if (segment.head < segment.buffer.position())
+				return segment;
+			if (segments.size() == 1)
+				return null;
+			delete(segments.removeFirst());
+		}
+		return null;
+	}
+
+	private static void skipRemoved(Segment segment) {
+		while (segment.head < segment.buffer.position()) {
+			int length = segment.buffer.getInt(segment.head);
+			if (length > 0)
+				break;
+			segment.head += HEADER_SIZE - length;
+		}
+	}
+
+	private void delete(Segment segment) {
+		// the mapping is released by the garbage collector
+		if (!segment.file.delete())
+			logger.warn("Can't delete the spill segment " + segment.file);
+	}
+
+	/**
+	 * Drops the elements of the queue and removes its segments.
+	 */
+	public synchronized void clear() {
+		for (Segment segment : segments)
+			delete(segment);
+		segments.clear();
+		size = 0;
+	}
+
+	/**
+	 * Forces the segments to the disk, the elements staying in the queue for
+	 * the next time it is opened.
+	 */
+	public synchronized void close() {
+		for (Segment segment : segments)
+			segment.buffer.force();
+		segments.clear();
+		size = 0;
+		synchronized (opened) {
+			opened.remove(directory.getAbsoluteFile());
+		}
+	}
+
+	static byte[] encode(StreamElement se) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeLong(se.getTimeStamp());
+		oos.writeObject(se.getFieldNames());
+		oos.writeObject(se.getFieldTypes());
+		oos.writeObject(se.getData());
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	static StreamElement decode(byte[] record) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record));
+		try {
+			long timestamp = ois.readLong();
+			String[] names = (String[]) ois.readObject();
+			Byte[] types = (Byte[]) ois.readObject();
+			Serializable[] values = (Serializable[]) ois.readObject();
+			return new StreamElement(names, types, values, timestamp);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+}
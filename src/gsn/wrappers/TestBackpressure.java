@@ -0,0 +1,167 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/TestBackpressure.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.AddressBean;
+import gsn.beans.DataTypes;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSource;
+import gsn.utils.KeyValueImp;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class TestBackpressure {
+
+	private static StreamElement element(long timestamp) {
+		return new StreamElement(new String[] { "value", "label" }, new Byte[] { DataTypes.DOUBLE, DataTypes.VARCHAR }, new Serializable[] { timestamp / 2.0,
+				"t" + timestamp }, timestamp);
+	}
+
+	private static File createDirectory() throws Exception {
+		File directory = File.createTempFile("gsn", ".spill");
+		directory.delete();
+		return directory;
+	}
+
+	@Test
+	public void testSpillQueue() throws Exception {
+		SpillQueue queue = new SpillQueue(createDirectory());
+		for (long t = 1; t <= 3; t++)
+			queue.append(element(t));
+		assertEquals(3, queue.size());
+		StreamElement first = queue.poll();
+		assertEquals(1L, first.getTimeStamp());
+		assertEquals(0.5, (Double) first.getData("value"), 0);
+		assertEquals(DataTypes.VARCHAR, (byte) first.getFieldTypes()[1]);
+		queue.append(element(4));
+		assertEquals("t2", queue.peek().getData("label"));
+		for (long t = 2; t <= 4; t++)
+			assertEquals("t" + t, queue.poll().getData("label"));
+		assertNull(queue.poll());
+		assertEquals(0, queue.getDirectory().list().length);
+	}
+
+	@Test
+	public void testSpillQueueRecovery() throws Exception {
+		File directory = createDirectory();
+		SpillQueue queue = new SpillQueue(directory);
+		for (long t = 1; t <= 5; t++)
+			queue.append(element(t));
+		queue.remove();
+		queue.remove();
+		queue.close();
+		// a record torn by a crash is ignored
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		int position = 0;
+		for (int i = 0; i < 5; i++)
+			position += 8 + Math.abs(readInt(raf, position));
+		raf.seek(position);
+		raf.writeInt(100);
+		raf.writeInt(42);
+		raf.close();
+
+		queue = new SpillQueue(directory);
+		assertEquals(3, queue.size());
+		queue.append(element(6));
+		for (long t = 3; t <= 6; t++)
+			assertEquals(t, queue.poll().getTimeStamp());
+		assertTrue(queue.isEmpty());
+		queue.close();
+	}
+
+	@Test
+	public void testSpillQueueSiblings() throws Exception {
+		File directory = createDirectory();
+		SpillQueue first = new SpillQueue(directory);
+		SpillQueue second = new SpillQueue(directory);
+		assertEquals(new File(directory.getPath() + "-1"), second.getDirectory());
+		first.append(element(1));
+		second.append(element(2));
+		second.append(element(3));
+		first.close();
+
+		// the suffixed directory is in use, it is left alone
+		SpillQueue reopened = new SpillQueue(directory);
+		assertEquals(1, reopened.size());
+		reopened.close();
+
+		// then its elements are moved once it is closed
+		second.close();
+		reopened = new SpillQueue(directory);
+		assertEquals(directory, reopened.getDirectory());
+		assertFalse(second.getDirectory().exists());
+		for (long t = 1; t <= 3; t++)
+			assertEquals(t, reopened.poll().getTimeStamp());
+		assertTrue(reopened.isEmpty());
+		reopened.close();
+	}
+
+	private static int readInt(RandomAccessFile raf, int position) throws Exception {
+		raf.seek(position);
+		return raf.readInt();
+	}
+
+	@Test
+	public void testPolicies() {
+		Backpressure sample = new Backpressure("test", new AddressBean("test", new KeyValueImp(Backpressure.POLICY, "sample"), new KeyValueImp(
+				Backpressure.SAMPLE, "3")));
+		int admitted = 0;
+		for (long t = 0; t < 9; t++)
+			if (sample.admit(element(t)))
+				admitted++;
+		assertEquals(3, admitted);
+		assertEquals(6L, sample.getSampledOutCount());
+
+		Backpressure drop = new Backpressure("test", new AddressBean("test", new KeyValueImp(Backpressure.POLICY, "drop")));
+		assertFalse(drop.admit(element(1)));
+		assertEquals(1L, drop.getDroppedCount());
+
+		Backpressure block = new Backpressure("test", null);
+		assertEquals(Backpressure.Policy.block, block.getPolicy());
+		assertTrue(block.admit(element(1)));
+	}
+
+	@Test
+	public void testSlowPosting() {
+		Backpressure backpressure = new Backpressure("test", new AddressBean("test", new KeyValueImp(Backpressure.LATENCY, "1000")));
+		ArrayList<StreamSource> listeners = new ArrayList<StreamSource>();
+		assertFalse(backpressure.isOverloaded(listeners));
+		backpressure.posted(10);
+		assertFalse(backpressure.isOverloaded(listeners));
+		backpressure.posted(2000);
+		assertTrue(backpressure.isOverloaded(listeners));
+	}
+}
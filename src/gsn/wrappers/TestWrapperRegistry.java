@@ -0,0 +1,75 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/TestWrapperRegistry.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gsn.beans.AddressBean;
+import gsn.utils.KeyValueImp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestWrapperRegistry {
+
+	@Test
+	public void testKey() {
+		AddressBean a = new AddressBean("csv", new KeyValueImp("file", "data/a.csv"), new KeyValueImp("sampling", "1000"));
+		AddressBean b = new AddressBean("CSV ", new KeyValueImp(" Sampling", "1000 "), new KeyValueImp("FILE", "data/a.csv"));
+		AddressBean c = new AddressBean("csv", new KeyValueImp("file", "data/b.csv"), new KeyValueImp("sampling", "1000"));
+		AddressBean d = new AddressBean("remote", new KeyValueImp("file", "data/a.csv"), new KeyValueImp("sampling", "1000"));
+		assertEquals(WrapperRegistry.getKey(a), WrapperRegistry.getKey(b));
+		assertFalse(WrapperRegistry.getKey(a).equals(WrapperRegistry.getKey(c)));
+		assertFalse(WrapperRegistry.getKey(a).equals(WrapperRegistry.getKey(d)));
+		// the values are case sensitive, file names for instance
+		AddressBean e = new AddressBean("csv", new KeyValueImp("file", "data/A.csv"), new KeyValueImp("sampling", "1000"));
+		assertFalse(WrapperRegistry.getKey(a).equals(WrapperRegistry.getKey(e)));
+	}
+
+	@Test
+	public void testLock() throws InterruptedException {
+		final AddressBean a = new AddressBean("csv", new KeyValueImp("file", "data/a.csv"));
+		AddressBean b = new AddressBean("csv", new KeyValueImp("file", "data/b.csv"));
+		final CountDownLatch locked = new CountDownLatch(1);
+		String key = WrapperRegistry.lock(a);
+		Thread other = new Thread() {
+			public void run() {
+				WrapperRegistry.unlock(WrapperRegistry.lock(new AddressBean("CSV", new KeyValueImp("File", "data/a.csv"))));
+				locked.countDown();
+			}
+		};
+		other.start();
+		// another address isn't locked
+		WrapperRegistry.unlock(WrapperRegistry.lock(b));
+		assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+		WrapperRegistry.unlock(key);
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+		other.join();
+	}
+}
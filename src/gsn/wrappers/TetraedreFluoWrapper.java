@@ -81,6 +81,13 @@ public class TetraedreFluoWrapper extends AbstractWrapper {
         return "TetraedreFluoWrapper";
     }
 
+    /**
+     * Resumes from the output table and the checkpoint of its own virtual sensor.
+     */
+    public boolean isShareable() {
+        return false;
+    }
+
     public void dispose() {
         threadCounter--;
     }
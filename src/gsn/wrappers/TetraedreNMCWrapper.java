@@ -80,6 +80,13 @@ public class TetraedreNMCWrapper extends AbstractWrapper {
         return "TetraedreNMCWrapper";
     }
 
+    /**
+     * Resumes from the output table and the checkpoint of its own virtual sensor.
+     */
+    public boolean isShareable() {
+        return false;
+    }
+
     public void dispose() {
         threadCounter--;
     }
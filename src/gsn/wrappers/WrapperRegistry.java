@@ -0,0 +1,211 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/WrapperRegistry.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers;
+
+import gsn.beans.AddressBean;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.collections.KeyValue;
+import org.apache.log4j.Logger;
+
+/**
+ * The running wrappers which can be shared by the stream sources of several
+ * virtual sensors, keyed by their address, so that a source referenced by many
+ * virtual sensors (the same remote GSN, serial port or file) is read once and
+ * its elements are posted to all of them.
+ * <p>
+ * Each stream source bound to a shared wrapper holds a reference to it, taken
+ * by {@link #acquire(AddressBean)} or {@link #register(AbstractWrapper)} and
+ * given back by {@link #release(AbstractWrapper)} when the stream source is
+ * removed. The wrapper is released with the last reference.
+ * <p>
+ * The stream sources of virtual sensors loaded in parallel may look for the
+ * same address at the same time: the lookup and the creation of the wrapper
+ * are done holding the lock of the address (see {@link #lock(AddressBean)}),
+ * so that only the first one creates it.
+ */
+public class WrapperRegistry {
+
+	private static final transient Logger logger = Logger.getLogger(WrapperRegistry.class);
+
+	/**
+	 * Predicate of the address preventing the wrapper from being shared when
+	 * set to <code>false</code>.
+	 */
+	public static final String SHARED = "shared";
+
+	private static final class Entry {
+		final String key;
+
+		final AbstractWrapper wrapper;
+
+		int references = 1;
+
+		Entry(String key, AbstractWrapper wrapper) {
+			this.key = key;
+			this.wrapper = wrapper;
+		}
+	}
+
+	private static final Map<String, Entry> byAddress = new HashMap<String, Entry>();
+
+	private static final Map<AbstractWrapper, Entry> byWrapper = new HashMap<AbstractWrapper, Entry>();
+
+	private static final class KeyLock {
+		final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * The number of threads holding or waiting for the lock.
+		 */
+		int users = 0;
+	}
+
+	private static final Map<String, KeyLock> locks = new HashMap<String, KeyLock>();
+
+	/**
+	 * The name of the wrapper and its predicates sorted by key, the keys being
+	 * case insensitive as in {@link AddressBean#getPredicateValue(String)}.
+	 */
+	public static String getKey(AddressBean address) {
+		TreeMap<String, String> predicates = new TreeMap<String, String>();
+		for (KeyValue predicate : address.getPredicates()) {
+			String key = predicate.getKey().toString().trim().toLowerCase();
+			// the first one wins, as in getPredicateValue
+			if (!predicates.containsKey(key))
+				predicates.put(key, predicate.getValue() == null ? "" : predicate.getValue().toString().trim());
+		}
+		StringBuilder key = new StringBuilder(address.getWrapper().trim().toLowerCase());
+		for (Map.Entry<String, String> predicate : predicates.entrySet())
+			key.append('\u0000').append(predicate.getKey()).append('=').append(predicate.getValue());
+		return key.toString();
+	}
+
+	/**
+	 * Waits for the lock of the address, held while looking for its wrapper
+	 * and creating it if there is none. The locks of different addresses are
+	 * independent.
+	 * 
+	 * @return the key of the address, to be given to {@link #unlock(String)}.
+	 */
+	public static String lock(AddressBean address) {
+		String key = getKey(address);
+		KeyLock keyLock;
+		synchronized (WrapperRegistry.class) {
+			keyLock = locks.get(key);
+			if (keyLock == null)
+				locks.put(key, keyLock = new KeyLock());
+			keyLock.users++;
+		}
+		keyLock.lock.lock();
+		return key;
+	}
+
+	public static void unlock(String key) {
+		synchronized (WrapperRegistry.class) {
+			KeyLock keyLock = locks.get(key);
+			keyLock.lock.unlock();
+			if (--keyLock.users == 0)
+				locks.remove(key);
+		}
+	}
+
+	/**
+	 * @return the running wrapper with this address, with one more reference,
+	 *         or null if there is none.
+	 */
+	public static synchronized AbstractWrapper acquire(AddressBean address) {
+		Entry entry = byAddress.get(getKey(address));
+		if (entry == null)
+			return null;
+		entry.references++;
+		if (logger.isInfoEnabled())
+			logger.info("Sharing the wrapper " + entry.wrapper.getWrapperName() + " (" + entry.wrapper.getDBAliasInStr() + ") for " + address
+					+ ", references: " + entry.references);
+		return entry.wrapper;
+	}
+
+	/**
+	 * Registers a new initialized wrapper, if it can be shared, with one
+	 * reference.
+	 * 
+	 * @return the wrapper, or the one registered with the same address in the
+	 *         meantime (with one more reference), in which case the new one
+	 *         should be released.
+	 */
+	public static synchronized AbstractWrapper register(AbstractWrapper wrapper) {
+		if (!wrapper.isShareable())
+			return wrapper;
+		String key = getKey(wrapper.getActiveAddressBean());
+		Entry entry = byAddress.get(key);
+		if (entry != null) {
+			entry.references++;
+			return entry.wrapper;
+		}
+		entry = new Entry(key, wrapper);
+		byAddress.put(key, entry);
+		byWrapper.put(wrapper, entry);
+		return wrapper;
+	}
+
+	/**
+	 * Gives back a reference to the wrapper.
+	 * 
+	 * @return true if it was the last one, and the wrapper should be released.
+	 *         A wrapper which isn't registered is released when it has no
+	 *         listeners anymore.
+	 */
+	public static synchronized boolean release(AbstractWrapper wrapper) {
+		Entry entry = byWrapper.get(wrapper);
+		if (entry == null)
+			return wrapper.getListeners().isEmpty();
+		if (--entry.references > 0)
+			return false;
+		remove(wrapper);
+		return true;
+	}
+
+	/**
+	 * Forgets the wrapper, called when it is released.
+	 */
+	public static synchronized void remove(AbstractWrapper wrapper) {
+		Entry entry = byWrapper.remove(wrapper);
+		if (entry != null)
+			byAddress.remove(entry.key);
+	}
+
+	/**
+	 * @return the number of references to the wrapper, 0 if it isn't
+	 *         registered.
+	 */
+	public static synchronized int getReferences(AbstractWrapper wrapper) {
+		Entry entry = byWrapper.get(wrapper);
+		return entry == null ? 0 : entry.references;
+	}
+}
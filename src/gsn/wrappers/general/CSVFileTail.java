@@ -0,0 +1,223 @@
+/**
+* Global Sensor Networks (GSN) Source Code
+* Copyright (c) 2006-2014, Ecole Polytechnique Federale de Lausanne (EPFL)
+*
+* This file is part of GSN.
+*
+* GSN is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* GSN is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with GSN.  If not, see <http://www.gnu.org/licenses/>.
+*
+* File: src/gsn/wrappers/general/CSVFileTail.java
+*
+* @author gsn_devs
+*
+*/
+
+package gsn.wrappers.general;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the records appended to a CSV file since the previous read, starting
+ * at a byte offset, with positioned reads on a channel kept open between the
+ * reads. Only the complete records are returned, those ending with a new line
+ * which is not between quotes, so a record being written is read once it is
+ * complete.
+ * <p>
+ * The file is read again from its start when it is truncated, and when it is
+ * replaced (rotated), once the rest of the replaced file has been read. The
+ * given number of records at the start of a file (its header) are skipped.
+ */
+public class CSVFileTail {
+
+    private static final transient Logger logger = Logger.getLogger(CSVFileTail.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+
+    private final byte quote;
+
+    private final int skipFirstRecords;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private String fileKey;
+
+    private long offset;
+
+    private int toSkip;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param offset   the offset to continue from, negative to read the file
+     *                 from its start.
+     * @param fileKey  the identity of the file the offset belongs to, null if
+     *                 unknown. The file is read from its start if it has been
+     *                 replaced since.
+     */
+    public CSVFileTail(File file, char quote, int skipFirstRecords, long offset, String fileKey) {
+        this.file = file;
+        this.quote = (byte) quote;
+        this.skipFirstRecords = skipFirstRecords;
+        this.offset = offset;
+        this.fileKey = fileKey;
+    }
+
+    /**
+     * @return the identity of the file (its inode on unix), null if the file
+     *         system doesn't give one or the file doesn't exist.
+     */
+    public static String getFileKey(File file) {
+        try {
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            return key == null ? null : key.toString().replaceAll("\\s", "");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the offset just after the latest record read.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the identity of the file the offset belongs to.
+     */
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * @return at most max complete records appended since the previous read,
+     *         without their line terminator.
+     */
+    public List<String> read(int max) throws IOException {
+        List<String> records = new ArrayList<String>();
+        if (channel == null && !open(false))
+            return records;
+        if (channel.size() < offset) {
+            logger.warn("The file " + file + " has been truncated, reading it from its start.");
+            restart();
+        }
+        readRecords(records, max);
+        if (records.size() < max && isReplaced()) {
+            logger.warn("The file " + file + " has been replaced, reading the new one from its start.");
+            close();
+            if (open(true))
+                readRecords(records, max);
+        }
+        return records;
+    }
+
+    public void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        raf = null;
+        channel = null;
+    }
+
+    private boolean open(boolean fromStart) throws IOException {
+        if (!file.isFile())
+            return false;
+        String key = getFileKey(file);
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        if (fromStart || offset < 0 || (fileKey != null && key != null && !fileKey.equals(key))) {
+            if (offset > 0)
+                logger.warn("The file " + file + " isn't the one of the check point, reading it from its start.");
+            restart();
+        } else if (offset == 0)
+            toSkip = skipFirstRecords;
+        fileKey = key;
+        return true;
+    }
+
+    private void restart() {
+        offset = 0;
+        toSkip = skipFirstRecords;
+    }
+
+    private boolean isReplaced() {
+        String key = getFileKey(file);
+        return key != null && fileKey != null && !key.equals(fileKey);
+    }
+
+    private void readRecords(List<String> records, int max) throws IOException {
+        long position = offset;
+        int length = 0;
+        int start = 0;
+        int i = 0;
+        boolean quoted = false;
+        while (records.size() < max) {
+            if (i == length) {
+                // keeps the pending record at the head of the buffer
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, length - start);
+                    position += start;
+                    length -= start;
+                    i -= start;
+                    start = 0;
+                }
+                if (length == buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                int read = channel.read(ByteBuffer.wrap(buffer, length, buffer.length - length), position + length);
+                if (read <= 0)
+                    break;
+                length += read;
+            }
+            byte b = buffer[i++];
+            if (b == quote)
+                quoted = !quoted;
+            else if (b == '\n' && !quoted) {
+                int end = i - 1;
+                if (end > start && buffer[end - 1] == '\r')
+                    end--;
+                String record = new String(buffer, start, end - start, charset);
+                start = i;
+                offset = position + start;
+                if (toSkip > 0)
+                    toSkip--;
+                else
+                    records.add(record);
+            }
+        }
+        if (buffer.length > BUFFER_SIZE)
+            buffer = new byte[BUFFER_SIZE];
+    }
+}
@@ -27,13 +27,18 @@
 
 package gsn.wrappers.general;
 import gsn.beans.DataField;
+import gsn.beans.StreamElement;
+import gsn.beans.StreamSchema;
 import gsn.utils.CaseInsensitiveComparator;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -75,6 +80,47 @@ public class CSVHandler {
 
     private String checkPointFile;
 
+    /**
+     * The output structure, and for each column of the file, the index of its
+     * field in it.
+     */
+    private DataField[] dataFields;
+
+    private int[] columnFields;
+
+    /**
+     * The structure of the elements, which is the output structure without the
+     * timed field.
+     */
+    private StreamSchema elementSchema;
+
+    private int[] elementIndexes;
+
+    private int timedField;
+
+    private final HashMap<String, DateTimeFormatter> timeStampFormatters = new HashMap<String, DateTimeFormatter>();
+
+    /**
+     * The state saved in the check point file: the timestamp of the latest
+     * element (or the number of elements read when using a counter), and the
+     * offset in the data file just after it with the identity of the file.
+     * The offset is negative if unknown, for the check points written by the
+     * older versions, which only saved the timestamp or the counter.
+     */
+    public static class CheckPoint {
+        public final long lastItem;
+
+        public final long offset;
+
+        public final String fileKey;
+
+        public CheckPoint(long lastItem, long offset, String fileKey) {
+            this.lastItem = lastItem;
+            this.offset = offset;
+            this.fileKey = fileKey;
+        }
+    }
+
     public boolean initialize(String dataFile, String inFields, String inFormats, char separator, char stringSeparator, int skipFirstXLines, String nullValues) {
         return initialize(dataFile, inFields, inFormats, separator, stringSeparator, skipFirstXLines, nullValues, LOCAL_TIMEZONE_ID, "check-poin/" + (new File(dataFile).getName() + ".chk-point"));
     }
@@ -113,10 +159,40 @@ public class CSVHandler {
             logger.error("loading the csv-wrapper failed as the length of fields(" + fields.length + ") doesn't match the length of formats(" + formats.length + ")");
             return false;
         }
+        compile();
         return true;
 
     }
 
+    private void compile() {
+        dataFields = getDataFields();
+        columnFields = new int[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            for (int j = 0; j < dataFields.length; j++)
+                if (dataFields[j].getName().equals(fields[i]))
+                    columnFields[i] = j;
+        timedField = -1;
+        elementIndexes = new int[dataFields.length];
+        ArrayList<DataField> elementFields = new ArrayList<DataField>();
+        for (int j = 0; j < dataFields.length; j++) {
+            if (dataFields[j].getName().equalsIgnoreCase(TIMESTAMP)) {
+                timedField = j;
+                elementIndexes[j] = -1;
+            } else {
+                elementIndexes[j] = elementFields.size();
+                elementFields.add(dataFields[j]);
+            }
+        }
+        elementSchema = new StreamSchema(elementFields.toArray(new DataField[elementFields.size()]));
+    }
+
+    /**
+     * @return true if the elements get their timestamp from a timed field.
+     */
+    public boolean hasTimeStamp() {
+        return timedField >= 0;
+    }
+
     public void setupCheckPointFileIfNeeded() throws IOException {
         String chkPointDir = new File(new File(getCheckPointFile()).getParent()).getAbsolutePath();
         new File(chkPointDir).mkdirs();
@@ -167,17 +243,45 @@ public class CSVHandler {
     public ArrayList<TreeMap<String, Serializable>> work(Reader dataFile, String checkpointDir) throws IOException {
         ArrayList<TreeMap<String, Serializable>> items = null;
         setupCheckPointFileIfNeeded();
-        String val = FileUtils.readFileToString(new File(checkPointFile), "UTF-8");
-        long lastItem = 0;
-        if (val != null && val.trim().length() > 0)
-            lastItem = Long.parseLong(val.trim());
-        items = parseValues(dataFile, lastItem);
+        items = parseValues(dataFile, readCheckPoint().lastItem);
 
         return items;
     }
 
     public void updateCheckPointFile(long timestamp) throws IOException {
-        FileUtils.writeStringToFile(new File(checkPointFile), Long.toString(timestamp), "UTF-8");
+        writeCheckPoint(new CheckPoint(timestamp, -1, null));
+    }
+
+    public CheckPoint readCheckPoint() throws IOException {
+        String val = FileUtils.readFileToString(new File(checkPointFile), "UTF-8");
+        if (val == null || val.trim().length() == 0)
+            return new CheckPoint(0, -1, null);
+        String[] tokens = val.trim().split("\\s+");
+        return new CheckPoint(Long.parseLong(tokens[0]), tokens.length > 1 ? Long.parseLong(tokens[1]) : -1, tokens.length > 2 ? tokens[2] : null);
+    }
+
+    /**
+     * Writes the check point to a temporary file synced to the disk, which
+     * then replaces the check point file, so that a crash leaves either the
+     * previous check point or the new one.
+     */
+    public void writeCheckPoint(CheckPoint checkPoint) throws IOException {
+        StringBuilder content = new StringBuilder().append(checkPoint.lastItem);
+        if (checkPoint.offset >= 0) {
+            content.append(' ').append(checkPoint.offset);
+            if (checkPoint.fileKey != null)
+                content.append(' ').append(checkPoint.fileKey);
+        }
+        File file = new File(checkPointFile);
+        File tmp = new File(checkPointFile + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(content.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     private boolean loggedNoChange = false; // to avoid duplicate logging messages when there is no change
@@ -230,6 +334,109 @@ public class CSVHandler {
         return true;
     }
 
+    /**
+     * Splits a record into its values, the separators and new lines between
+     * quotes being part of the values, and two quotes in a row standing for a
+     * quote.
+     */
+    public String[] split(String record) {
+        ArrayList<String> values = new ArrayList<String>(fields.length);
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c == stringSeparator) {
+                if (quoted && i + 1 < record.length() && record.charAt(i + 1) == stringSeparator) {
+                    value.append(c);
+                    i++;
+                } else
+                    quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else
+                value.append(c);
+        }
+        values.add(value.toString());
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Parses a record straight into the values of an element, with the same
+     * conversions as {@link #convertTo}.
+     *
+     * @return the element, or null if all its values are null.
+     * @throws IllegalArgumentException if a value can't be parsed.
+     */
+    public StreamElement parseElement(String record) {
+        String[] values = split(record);
+        Serializable[] row = new Serializable[dataFields.length];
+        StringBuilder[] timeValues = null;
+        StringBuilder[] timeFormats = null;
+        boolean empty = true;
+        for (int i = 0; i < Math.min(fields.length, values.length); i++) {
+            if (isNull(nulls, values[i]))
+                continue;
+            int field = columnFields[i];
+            if (formats[i].equalsIgnoreCase("numeric")) {
+                try {
+                    row[field] = Double.parseDouble(values[i]);
+                } catch (java.lang.NumberFormatException e) {
+                    logger.error("Parsing to Numeric fails: Value to parse=" + values[i]);
+                    throw e;
+                }
+            } else if (formats[i].equalsIgnoreCase("string"))
+                row[field] = values[i];
+            else {
+                if (timeValues == null) {
+                    timeValues = new StringBuilder[dataFields.length];
+                    timeFormats = new StringBuilder[dataFields.length];
+                }
+                String format = getTimeStampFormat(formats[i]);
+                String value = isTimeStampLeftPaddedFormat(formats[i]) ? StringUtils.leftPad(values[i], format.length(), '0') : values[i];
+                if (timeValues[field] == null) {
+                    timeValues[field] = new StringBuilder(value);
+                    timeFormats[field] = new StringBuilder(format);
+                } else {
+                    timeValues[field].append(separator).append(value);
+                    timeFormats[field].append(separator).append(format);
+                }
+            }
+            empty = false;
+        }
+        if (empty)
+            return null;
+        if (timeValues != null) {
+            for (int j = 0; j < timeValues.length; j++) {
+                if (timeValues[j] == null)
+                    continue;
+                String timeFormat = timeFormats[j].toString();
+                String timeValue = timeValues[j].toString();
+                try {
+                    row[j] = getTimeStampFormatter(timeFormat).parseMillis(timeValue);
+                } catch (IllegalArgumentException e) {
+                    logger.error("Parsing error: TimeFormat=" + timeFormat + " , TimeValue=" + timeValue);
+                    throw e;
+                }
+            }
+        }
+        Serializable[] data = new Serializable[elementSchema.size()];
+        for (int j = 0; j < row.length; j++)
+            if (elementIndexes[j] >= 0)
+                data[elementIndexes[j]] = row[j];
+        long timestamp = timedField >= 0 && row[timedField] != null ? (Long) row[timedField] : System.currentTimeMillis();
+        return new StreamElement(elementSchema, data, timestamp);
+    }
+
+    private DateTimeFormatter getTimeStampFormatter(String format) {
+        DateTimeFormatter formatter = timeStampFormatters.get(format);
+        if (formatter == null) {
+            formatter = DateTimeFormat.forPattern(format).withZone(getTimeZone());
+            timeStampFormatters.put(format, formatter);
+        }
+        return formatter;
+    }
+
     public TreeMap<String, Serializable> convertTo(String[] formats, String[] fields, String nullValues[], String[] values, char separator) {
         TreeMap<String, Serializable> streamElement = new TreeMap<String, Serializable>(new CaseInsensitiveComparator());
         for (String field : fields)
@@ -35,11 +35,8 @@ import gsn.beans.StreamElement;
 import gsn.wrappers.AbstractWrapper;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
@@ -47,6 +44,13 @@ import org.apache.log4j.Logger;
 /**
  * Timezones: http://joda-time.sourceforge.net/timezones.html
  * Formatting: http://joda-time.sourceforge.net/apidocs/org/joda/time/format/DateTimeFormat.html
+ * <p>
+ * The file is tailed: only the records appended since the previous read are
+ * parsed, from the offset saved in the check point file with the timestamp of
+ * the latest element (or the counter of the records read). The check point is
+ * written after each batch of up to check-point-interval records, the last
+ * one of the file included, and the wrapper only sleeps once it has read the
+ * whole file.
  */
 public class CSVWrapper extends AbstractWrapper {
 
@@ -64,8 +68,15 @@ public class CSVWrapper extends AbstractWrapper {
 
     private String dataFile;
 
+    private int checkPointInterval;
+
+    private CSVFileTail tail;
+
+    private long lastTimeStamp;
+
     boolean useCounterForCheckPoint = false;
     long processedLineCounter = 0; // counts lines processed when checkpoint use counter to track changes (instead of timestamp, by default)
+    long linesToSkip = 0; // lines already processed according to a counter-based check point without offset
 
     public boolean initialize() {
         setName("CSVWrapper-Thread" + (++threadCounter));
@@ -83,10 +94,8 @@ public class CSVWrapper extends AbstractWrapper {
         String nullValues = addressBean.getPredicateValueWithDefault("bad-values", "");
         String strUseCounterForCheckPoint = addressBean.getPredicateValueWithDefault("use-counter-for-check-point", "false");
         samplingPeriodInMsc = addressBean.getPredicateValueAsInt("sampling", 10000);
-
-        /*
-        DEBUG_INFO(dataFile);
-        */
+        // the records read again after a crash, at most: the check point is also written before sleeping
+        checkPointInterval = Math.max(1, addressBean.getPredicateValueAsInt("check-point-interval", 250));
 
         if (csvSeparator != null && csvSeparator.length() != 1) {
             logger.warn("The provided CSV separator:>" + csvSeparator + "< should only have  1 character, thus ignored and instead \",\" is used.");
@@ -117,15 +126,17 @@ public class CSVWrapper extends AbstractWrapper {
             if (!handler.initialize(dataFile.trim(), csvFields, csvFormats, csvSeparator.toCharArray()[0], csvStringQuote.toCharArray()[0], skipFirstXLine, nullValues, timezone, checkPointFile.toString()))
                 return false;
 
-            String val = FileUtils.readFileToString(new File(checkPointFile.toString()), "UTF-8");
-            long lastItem = 0;
-            if (val != null && val.trim().length() > 0)
-                lastItem = Long.parseLong(val.trim());
-            logger.warn("Latest item: "+lastItem);
+            CSVHandler.CheckPoint checkPoint = handler.readCheckPoint();
+            long lastItem = checkPoint.lastItem;
+            logger.warn("Latest item: " + lastItem + ", offset: " + checkPoint.offset);
 
             if (useCounterForCheckPoint) {
                 processedLineCounter = lastItem;
-            }
+                if (checkPoint.offset < 0)
+                    linesToSkip = lastItem;
+            } else
+                lastTimeStamp = lastItem;
+            tail = new CSVFileTail(new File(handler.getDataFile()), csvStringQuote.charAt(0), skipFirstXLine, checkPoint.offset, checkPoint.fileKey);
 
         } catch (Exception e) {
             logger.error("Loading the csv-wrapper failed:" + e.getMessage(), e);
@@ -141,73 +152,64 @@ public class CSVWrapper extends AbstractWrapper {
 
 
     public void run() {
-        Exception preivousError = null;
-        long previousModTime = -1;
-        long previousCheckModTime = -1;
-        while (isActive()) {
-            File dataFile = new File(handler.getDataFile());
-            File chkPointFile = new File(handler.getCheckPointFile());
-            long lastModified = -1;
-            long lastModifiedCheckPoint = -1;
-            if (dataFile.isFile())
-                lastModified = dataFile.lastModified();
-            if (chkPointFile.isFile())
-                lastModifiedCheckPoint = chkPointFile.lastModified();
-            FileReader reader = null;
-
-            /*
-            DEBUG_INFO("* Entry *");
-            DEBUG_INFO(list("lastModified", lastModified));
-            DEBUG_INFO(list("lastModifiedCheckPoint", lastModifiedCheckPoint));
-            */
-
-            try {
-                ArrayList<TreeMap<String, Serializable>> output = null;
-                if (preivousError == null || (preivousError != null && ((lastModified != previousModTime || lastModifiedCheckPoint != previousCheckModTime) || useCounterForCheckPoint))) {
-
-                    reader = new FileReader(handler.getDataFile());
-                    output = handler.work(reader, checkPointDir);
-                    for (TreeMap<String, Serializable> se : output) {
-                        StreamElement streamElement = new StreamElement(se, getOutputFormat());
-                        String [] ses = streamElement.getFieldNames();
-                        processedLineCounter++;
-                        for (int i=0;i<ses.length; i++){
-                            if ("anetz_snow_height".equalsIgnoreCase(ses[i]) || "mst_surface_temp".equalsIgnoreCase(ses[i])){
-                                logger.warn(dataFile+" : "+se);
-                                break;
-                            }
-                        }
-                        boolean insertionSuccess = postStreamElement(streamElement);
-
-                        if (!useCounterForCheckPoint)
-                            handler.updateCheckPointFile(streamElement.getTimeStamp()); // write latest processed timestamp
-                        else
-                            handler.updateCheckPointFile(processedLineCounter); // write latest processed line number
-                    }
+        String previousError = null;
+        try {
+            while (isActive()) {
+                int read = 0;
+                try {
+                    List<String> records = tail.read(checkPointInterval);
+                    read = records.size();
+                    for (String record : records)
+                        process(record);
+                    if (read > 0)
+                        handler.writeCheckPoint(new CSVHandler.CheckPoint(useCounterForCheckPoint ? processedLineCounter : lastTimeStamp, tail.getOffset(), tail.getFileKey()));
+                    previousError = null;
+                } catch (IOException e) {
+                    if (!e.toString().equals(previousError))
+                        logger.error(e.getMessage() + " :: " + dataFile, e);
+                    previousError = e.toString();
                 }
-                //if (output==null || output.size()==0) //More intelligent sleeping, being more proactive once the wrapper receives huge files.
-                Thread.sleep(samplingPeriodInMsc);
-            } catch (Exception e) {
-                if (preivousError != null && preivousError.getMessage().equals(e.getMessage()))
-                    continue;
-                logger.error(e.getMessage() + " :: " + dataFile, e);
-                preivousError = e;
-                previousModTime = lastModified;
-                previousCheckModTime = lastModifiedCheckPoint;
-            } finally {
-                if (reader != null)
+                // keeps reading without sleeping while catching up with a large file
+                if (read < checkPointInterval) {
                     try {
-                        reader.close();
-                    } catch (IOException e) {
+                        Thread.sleep(samplingPeriodInMsc);
+                    } catch (InterruptedException e) {
                         logger.debug(e.getMessage(), e);
                     }
+                }
             }
-            /*
-            DEBUG_INFO("* Exit *");
-            */
+        } finally {
+            tail.close();
         }
     }
 
+    private void process(String record) {
+        // the counter is a position in the file, the records which can't be parsed or are empty count too
+        if (useCounterForCheckPoint) {
+            if (linesToSkip > 0) {
+                linesToSkip--;
+                return;
+            }
+            processedLineCounter++;
+        }
+        StreamElement streamElement;
+        try {
+            streamElement = handler.parseElement(record);
+        } catch (IllegalArgumentException e) {
+            logger.error("Skipping the record of " + dataFile + " which can't be parsed: " + record);
+            return;
+        }
+        if (streamElement == null)
+            return;
+        if (!useCounterForCheckPoint && handler.hasTimeStamp()) {
+            // the elements already read, if the file has been read again from its start
+            if (streamElement.getTimeStamp() <= lastTimeStamp)
+                return;
+            lastTimeStamp = streamElement.getTimeStamp();
+        }
+        postStreamElement(streamElement);
+    }
+
     public DataField[] getOutputFormat() {
         return dataField;
     }
@@ -216,6 +218,13 @@ public class CSVWrapper extends AbstractWrapper {
         return this.getClass().getName();
     }
 
+    /**
+     * Resumes from the check point file of its own virtual sensor.
+     */
+    public boolean isShareable() {
+        return false;
+    }
+
     public void dispose() {
         threadCounter--;
     }
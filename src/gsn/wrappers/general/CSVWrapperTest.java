@@ -29,12 +29,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 
+import gsn.beans.StreamElement;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.commons.io.FileUtils;
@@ -156,6 +159,88 @@ public class CSVWrapperTest {
 		
 	}
 	
+	private CSVHandler newHandler(String fields, String formats, String nullValues) throws IOException {
+		File file = new File(CHECK_POINT_DIR, "parse.csv");
+		FileUtils.writeStringToFile(file, "", "UTF-8");
+		CSVHandler wrapper = new CSVHandler();
+		assertEquals(true,wrapper.initialize(file.getPath(), fields,formats,',','\"',0,nullValues,CSVHandler.LOCAL_TIMEZONE_ID,new File(CHECK_POINT_DIR, "parse.csv.chk-point").getPath()));
+		return wrapper;
+	}
+
+	@Test
+	public void testParseElement() throws IOException {
+		String fields = "TIMED, air_temp , TIMEd , AiR_TeMp2, comments";
+		String formats = "Timestamp(d.M.y ) , Numeric , timestamp(k:m) , numeric ,String   ";
+		CSVHandler wrapper = newHandler(fields,formats,"NaN,-1234,4321");
+		String[] values = new String[] {"01.01.2009","1","10:10","-1234","Ali, \"Salehi\""};
+		TreeMap<String, Serializable> se = wrapper.convertTo(wrapper.getFormats(),wrapper.getFields(),wrapper.getNulls(),values.clone(), wrapper.getSeparator());
+		StreamElement parsed = wrapper.parseElement("01.01.2009,1,10:10,-1234,\"Ali, \"\"Salehi\"\"\"");
+		assertEquals(se.get("timed"), parsed.getTimeStamp());
+		assertEquals(se.get("air_temp"), parsed.getData("air_temp"));
+		assertNull(parsed.getData("air_temp2"));
+		assertEquals(values[4], parsed.getData("comments"));
+		assertNull(wrapper.parseElement(",,,NaN,"));
+		assertNull(wrapper.parseElement(""));
+	}
+
+	@Test
+	public void testCheckPointFile() throws IOException {
+		CSVHandler wrapper = newHandler("timed","timestamp(k:m)","");
+		FileUtils.writeStringToFile(new File(wrapper.getCheckPointFile()),  "1234","UTF-8");
+		CSVHandler.CheckPoint checkPoint = wrapper.readCheckPoint();
+		assertEquals(1234L, checkPoint.lastItem);
+		assertEquals(-1L, checkPoint.offset);
+		wrapper.writeCheckPoint(new CSVHandler.CheckPoint(2 * 86400000L, 90, "(dev=1,ino=2)"));
+		checkPoint = wrapper.readCheckPoint();
+		assertEquals(2 * 86400000L, checkPoint.lastItem);
+		assertEquals(90L, checkPoint.offset);
+		assertEquals("(dev=1,ino=2)", checkPoint.fileKey);
+		assertEquals(0, wrapper.work(new StringReader("10:10\n"), CHECK_POINT_DIR).size());
+	}
+
+	@Test
+	public void testTail() throws IOException {
+		File file = new File(CHECK_POINT_DIR, "tail.csv");
+		FileUtils.writeStringToFile(file, "header\n1,a\n2,\"b\nc\"\n3,", "UTF-8");
+		CSVFileTail tail = new CSVFileTail(file, '"', 1, -1, null);
+		List<String> records = tail.read(10);
+		assertEquals(2, records.size());
+		assertEquals("1,a", records.get(0));
+		assertEquals("2,\"b\nc\"", records.get(1));
+		long offset = tail.getOffset();
+		assertEquals(file.length() - 2, offset);
+		assertEquals(0, tail.read(10).size());
+		FileUtils.writeStringToFile(file, "header\n1,a\n2,\"b\nc\"\n3,d\r\n4,e\n", "UTF-8");
+		records = tail.read(1);
+		assertEquals(1, records.size());
+		assertEquals("3,d", records.get(0));
+		records = tail.read(10);
+		assertEquals(1, records.size());
+		assertEquals("4,e", records.get(0));
+		tail.close();
+		// continues from the check point
+		tail = new CSVFileTail(file, '"', 1, offset, CSVFileTail.getFileKey(file));
+		assertEquals(2, tail.read(10).size());
+		// truncated
+		FileUtils.writeStringToFile(file, "header\n5,f\n", "UTF-8");
+		records = tail.read(10);
+		assertEquals(1, records.size());
+		assertEquals("5,f", records.get(0));
+		// replaced
+		File rotated = new File(CHECK_POINT_DIR, "tail.csv.1");
+		rotated.delete();
+		FileUtils.writeStringToFile(file, "header\n5,f\n6,g\n", "UTF-8");
+		assertEquals(true, file.renameTo(rotated));
+		FileUtils.writeStringToFile(file, "header\n7,h\n", "UTF-8");
+		records = tail.read(10);
+		assertEquals(2, records.size());
+		assertEquals("6,g", records.get(0));
+		assertEquals("7,h", records.get(1));
+		tail.close();
+		rotated.delete();
+		file.delete();
+	}
+
 	@Test
 	public void testTimeStampParser() throws IOException {
 		DateTime toReturn = CSVHandler.parseTimeStamp("d.M.y k:m","01.10.2008 06:20");